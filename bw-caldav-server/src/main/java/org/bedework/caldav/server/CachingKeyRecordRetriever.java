@@ -0,0 +1,101 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.caldav.server;
+
+import org.bedework.caldav.server.DomainKeyCache.KeyRecords;
+import org.bedework.webdav.servlet.shared.WebdavException;
+
+import org.apache.james.jdkim.api.PublicKeyRecordRetriever;
+import org.apache.james.jdkim.exceptions.PermFailException;
+import org.apache.james.jdkim.exceptions.TempFailException;
+import org.apache.james.jdkim.impl.DNSPublicKeyRecordRetriever;
+import org.apache.james.jdkim.impl.MultiplexingPublicKeyRecordRetriever;
+
+import java.util.List;
+import java.util.concurrent.Callable;
+
+/** Fetches the key records used to verify inbound DKIM signatures through
+ * the DomainKeyCache. A missing key is remembered for the negative ttl.
+ * Temporary failures are not cached.
+ */
+public class CachingKeyRecordRetriever implements PublicKeyRecordRetriever {
+  private static final CachingKeyRecordRetriever dnsRetriever =
+          new CachingKeyRecordRetriever(
+                  new MultiplexingPublicKeyRecordRetriever(
+                          "dns", new DNSPublicKeyRecordRetriever()));
+
+  private final PublicKeyRecordRetriever retriever;
+
+  /**
+   * @param retriever to fetch records not held
+   */
+  public CachingKeyRecordRetriever(final PublicKeyRecordRetriever retriever) {
+    this.retriever = retriever;
+  }
+
+  /**
+   * @return a shared retriever which looks up keys with dns/txt - as the
+   *         jDKIM verifier does by default
+   */
+  public static CachingKeyRecordRetriever getDnsRetriever() {
+    return dnsRetriever;
+  }
+
+  @Override
+  public List<String> getRecords(final CharSequence methodAndOptions,
+                                 final CharSequence selector,
+                                 final CharSequence token)
+          throws TempFailException, PermFailException {
+    final KeyRecords recs;
+
+    try {
+      recs = DomainKeyCache.getCache().getRecords(String.valueOf(token),
+                                                  String.valueOf(methodAndOptions),
+                                                  String.valueOf(selector),
+                                                  new Callable<List<String>>() {
+        @Override
+        public List<String> call() throws Exception {
+          try {
+            return retriever.getRecords(methodAndOptions, selector, token);
+          } catch (final PermFailException pfe) {
+            // There is no key - cache that
+            return null;
+          }
+        }
+      });
+    } catch (final WebdavException we) {
+      final Throwable t = we.getCause();
+
+      if (t instanceof TempFailException) {
+        throw (TempFailException)t;
+      }
+
+      throw new TempFailException("Unable to retrieve key for " +
+                                          selector + "._domainkey." + token +
+                                          ": " + we.getMessage());
+    }
+
+    if (recs.isEmpty()) {
+      throw new PermFailException("No key for " +
+                                          selector + "._domainkey." + token);
+    }
+
+    return recs.getRecords();
+  }
+}
@@ -167,6 +167,17 @@ public abstract class CalDAVEvent <T> extends WdEntity<T> {
   public abstract boolean generatePropertyValue(QName tag,
                                                 XmlEmit xml) throws WebdavException;
 
+  /** Backends which store the size of the rendered entity may override
+   * this so that the content length can be reported without rendering.
+   *
+   * @param contentType of the rendered content
+   * @return length in bytes of the rendered content or -1 if not known
+   * @throws WebdavException
+   */
+  public long getContentLength(final String contentType) throws WebdavException {
+    return -1;
+  }
+
   /** Return a complete representation of the event
    *
    * @param methodType
@@ -27,6 +27,7 @@ import org.bedework.access.Acl;
 import org.bedework.access.PrivilegeDefs;
 import org.bedework.access.WhoDefs;
 import org.bedework.caldav.server.CaldavBwNode.PropertyTagXrdEntry;
+import org.bedework.caldav.server.QueryExecutor.ResultHandler;
 import org.bedework.caldav.server.calquery.CalData;
 import org.bedework.caldav.server.calquery.FreeBusyQuery;
 import org.bedework.caldav.server.filter.FilterHandler;
@@ -35,14 +36,17 @@ import org.bedework.caldav.server.get.GetHandler;
 import org.bedework.caldav.server.get.IscheduleGetHandler;
 import org.bedework.caldav.server.get.ServerInfoGetHandler;
 import org.bedework.caldav.server.get.WebcalGetHandler;
+import org.bedework.caldav.server.soap.JaxbContextStats;
 import org.bedework.caldav.server.soap.synch.SynchConnections;
 import org.bedework.caldav.server.soap.synch.SynchConnectionsMBean;
 import org.bedework.caldav.server.sysinterface.CalPrincipalInfo;
 import org.bedework.caldav.server.sysinterface.RetrievalMode;
+import org.bedework.caldav.server.sysinterface.RetrievalProjection;
 import org.bedework.caldav.server.sysinterface.SysIntf;
 import org.bedework.caldav.server.sysinterface.SysIntf.IcalResultType;
 import org.bedework.caldav.server.sysinterface.SysIntf.SynchReportData;
 import org.bedework.caldav.server.sysinterface.SysIntf.SynchReportData.SynchReportDataItem;
+import org.bedework.caldav.util.JaxbContexts;
 import org.bedework.util.jmx.AnnotatedMBean;
 import org.bedework.util.jmx.ManagementContext;
 import org.bedework.util.misc.Util;
@@ -100,6 +104,8 @@ import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -111,7 +117,6 @@ import javax.servlet.ServletContext;
 import javax.servlet.ServletContextEvent;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
-import javax.xml.bind.JAXBContext;
 import javax.xml.bind.Marshaller;
 import javax.xml.namespace.QName;
 
@@ -144,9 +149,19 @@ public class CaldavBWIntf extends WebdavNsIntf {
 
   SysIntf sysi;
 
+  /* true once detachSysi has handed the system interface on */
+  private boolean sysiDetached;
+
   /* true if this is a CalWS server */
   private boolean calWs;
 
+  /* Collections resolved by path during this request. Queries can return
+     thousands of events from a handful of collections - we only want to
+     look each one up once.
+   */
+  private final Map<String, CalDAVCollection> queryCollections =
+          new HashMap<>();
+
   private static ServerInfo serverInfo;
 
   /* ====================================================================
@@ -261,6 +276,21 @@ public class CaldavBWIntf extends WebdavNsIntf {
         synchConn = new SynchConnections();
         registerMbean(new ObjectName(synchConn.getServiceName()),
                       synchConn);
+
+        registerMbean(new ObjectName(JaxbContextStats.serviceName),
+                      new JaxbContextStats());
+
+        registerMbean(new ObjectName(RenderedContentCache.serviceName),
+                      RenderedContentCache.getCache());
+
+        registerMbean(new ObjectName(ChangeJournal.serviceName),
+                      ChangeJournal.getJournal());
+
+        registerMbean(new ObjectName(FreeBusyIndex.serviceName),
+                      FreeBusyIndex.getIndex());
+
+        registerMbean(new ObjectName(DomainKeyCache.serviceName),
+                      DomainKeyCache.getCache());
       }
     } catch (final Throwable t) {
       t.printStackTrace();
@@ -274,6 +304,10 @@ public class CaldavBWIntf extends WebdavNsIntf {
         return;
       }
 
+      SchedulingDelivery.stopRetries();
+      QueryExecutor.shutdown();
+      SynchConnections.stopSweeper();
+
       try {
         for (final ObjectName on: registeredMBeans) {
           unregister(on);
@@ -369,6 +403,7 @@ public class CaldavBWIntf extends WebdavNsIntf {
       }
 
       this.account = account;
+      queryCollections.clear();
 
       sysi.init(req, account, service,
                 calWs, synchWs, notifyWs, opaqueData);
@@ -566,9 +601,27 @@ public class CaldavBWIntf extends WebdavNsIntf {
 
   @Override
   public void close() throws WebdavException {
+    if (sysiDetached) {
+      // Whoever took it over will close it
+      return;
+    }
+
     sysi.close();
   }
 
+  /** The caller takes over the system interface and will close it once
+   * done - e.g. when work started for the request is still running once
+   * the response is complete. It may still be used here until the
+   * request ends so must be thread safe.
+   *
+   * @return the system interface
+   */
+  public SysIntf detachSysi() {
+    sysiDetached = true;
+
+    return sysi;
+  }
+
   /**
    * @return SysIntf
    */
@@ -642,6 +695,7 @@ public class CaldavBWIntf extends WebdavNsIntf {
         CaldavResourceNode rnode = (CaldavResourceNode)node;
 
         sysi.deleteFile(rnode.getResource());
+        journalChange(rnode, false);
       } else if (node instanceof CaldavComponentNode) {
         CaldavComponentNode cnode = (CaldavComponentNode)node;
 
@@ -669,6 +723,8 @@ public class CaldavBWIntf extends WebdavNsIntf {
           }
 
           sysi.deleteEvent(ev, sendSchedulingMessage);
+          RenderedContentCache.getCache().invalidate(cnode.getUri());
+          journalChange(cnode, false);
         } else {
           if (debug) {
             trace("No event object available");
@@ -695,6 +751,7 @@ public class CaldavBWIntf extends WebdavNsIntf {
           }
         }
         sysi.deleteCollection(col, sendSchedulingMessage);
+        journalChange(cnode, true);
       }
     } catch (WebdavException we) {
       throw we;
@@ -1051,6 +1108,8 @@ public class CaldavBWIntf extends WebdavNsIntf {
       } else {
         sysi.updateFile(r, true);
       }
+
+      journalChange(bwnode, false);
       return pcr;
     } catch (WebdavException we) {
       throw we;
@@ -1103,6 +1162,7 @@ public class CaldavBWIntf extends WebdavNsIntf {
 
       /* Collection<BwEventProxy>failedOverrides = */
       sysi.addEvent(ev, noInvites, true);
+      journalChange(bwnode, false);
 
       bwnode.setEvent(ev);
     } else if (ifHeaders.create) {
@@ -1139,6 +1199,8 @@ public class CaldavBWIntf extends WebdavNsIntf {
         debugMsg("putContent: update event " + ev);
       }
       sysi.updateEvent(ev);
+      RenderedContentCache.getCache().invalidate(bwnode.getUri());
+      journalChange(bwnode, false);
 
       bwnode.setEvent(ev);
     }
@@ -1202,6 +1264,7 @@ public class CaldavBWIntf extends WebdavNsIntf {
 
       /* Collection<BwEventProxy>failedOverrides = */
       sysi.addEvent(ev, noInvites, true);
+      journalChange(bwnode, false);
 
       bwnode.setEvent(ev);
     } else if (create) {
@@ -1238,6 +1301,8 @@ public class CaldavBWIntf extends WebdavNsIntf {
         debugMsg("putContent: update event " + ev);
       }
       sysi.updateEvent(ev);
+      RenderedContentCache.getCache().invalidate(bwnode.getUri());
+      journalChange(bwnode, false);
     }
 
     if (ev.getOrganizerSchedulingObject() ||
@@ -1311,6 +1376,7 @@ public class CaldavBWIntf extends WebdavNsIntf {
       }
 
       resp.setStatus(sysi.makeCollection(newCol));
+      journalChange(bwnode, true);
     } catch (WebdavException we) {
       throw we;
     } catch (Throwable t) {
@@ -1358,12 +1424,13 @@ public class CaldavBWIntf extends WebdavNsIntf {
                         final CaldavBwNode node) throws WebdavException {
     resp.setContentType("application/xrd+xml; charset=UTF-8");
 
+    final String contextPath = XRDType.class.getPackage().getName();
+    Marshaller m = null;
+
     try {
       XRDType xrd = getXRD(node);
 
-      JAXBContext jc = JAXBContext.newInstance(xrd.getClass().getPackage().getName());
-
-      Marshaller m = jc.createMarshaller();
+      m = JaxbContexts.getMarshaller(contextPath);
       m.setProperty(Marshaller.JAXB_FORMATTED_OUTPUT, Boolean.TRUE);
       m.marshal(xrd, resp.getOutputStream());
 
@@ -1374,6 +1441,8 @@ public class CaldavBWIntf extends WebdavNsIntf {
       return c;
     } catch (Throwable t) {
       throw new WebdavException(t);
+    } finally {
+      JaxbContexts.release(contextPath, m);
     }
   }
 
@@ -1475,6 +1544,11 @@ public class CaldavBWIntf extends WebdavNsIntf {
     }
 
     getSysi().copyMove(fromCol, toCol, copy, overwrite);
+
+    if (!copy) {
+      journalChange(fromCalNode, true);
+    }
+    journalChange(toCalNode, true);
     if (toCalNode.getExists()) {
       resp.setStatus(HttpServletResponse.SC_NO_CONTENT);
     } else {
@@ -1503,9 +1577,22 @@ public class CaldavBWIntf extends WebdavNsIntf {
     /* deref - copy/move into targetted collection */
     CalDAVCollection toCol = (CalDAVCollection)toNode.getCollection(true);
 
-    if (!getSysi().copyMove(from.getEvent(),
-                            toCol, toNode.getEntityName(), copy,
-                            overwrite)) {
+    boolean created = getSysi().copyMove(from.getEvent(),
+                                         toCol, toNode.getEntityName(), copy,
+                                         overwrite);
+
+    RenderedContentCache cache = RenderedContentCache.getCache();
+    if (!copy) {
+      cache.invalidate(from.getUri());
+    }
+    cache.invalidate(toNode.getUri());
+
+    if (!copy) {
+      journalChange(from, false);
+    }
+    journalChange(toNode, false);
+
+    if (!created) {
       resp.setStatus(HttpServletResponse.SC_NO_CONTENT);
     } else {
       resp.setStatus(HttpServletResponse.SC_CREATED);
@@ -1530,9 +1617,17 @@ public class CaldavBWIntf extends WebdavNsIntf {
       return;
     }
 
-    if (!getSysi().copyMoveFile(from.getResource(),
-                                toNode.getPath(), toNode.getEntityName(), copy,
-                            overwrite)) {
+    final boolean created =
+            getSysi().copyMoveFile(from.getResource(),
+                                   toNode.getPath(), toNode.getEntityName(),
+                                   copy, overwrite);
+
+    if (!copy) {
+      journalChange(from, false);
+    }
+    journalChange(toNode, false);
+
+    if (!created) {
       resp.setStatus(HttpServletResponse.SC_NO_CONTENT);
     } else {
       resp.setStatus(HttpServletResponse.SC_CREATED);
@@ -1586,69 +1681,87 @@ public class CaldavBWIntf extends WebdavNsIntf {
     Map<String, WebdavNsNode> parents = new HashMap<String, WebdavNsNode>();
 
     for (SynchReportDataItem srdi: srd.items) {
-      int nodeType;
-      CalDAVCollection col = null;
-      CalDAVResource r = null;
-      CalDAVEvent ev = null;
-      WdSynchReportItem wri = null;
-      WebdavNsNode parent = null; // Need for non-collection
-      String name;
-      boolean canSync;
-      boolean collection = false;
-
-      if (srdi.getCol() == null) {
-        parent = parents.get(srdi.getVpath());
-        if (parent == null) {
-          parent = getNode(srdi.getVpath(),
-                           WebdavNsIntf.existanceMust,
-                           WebdavNsIntf.nodeTypeCollection,
-                           false);
-
-          parents.put(srdi.getVpath(), parent);
-        }
+      boolean canSync = (srdi.getCol() == null) || srdi.getCanSync();
 
-        col = (CalDAVCollection)parent.getCollection(false);
-        canSync = true;
+      wsr.items.add(new WdSynchReportItem(getSyncNode(srdi, parents),
+                                          srdi.getToken(),
+                                          canSync));
+    }
 
-        if (srdi.getEntity() != null) {
-          nodeType = WebdavNsIntf.nodeTypeEntity;
-          ev = srdi.getEntity();
-          name = ev.getName();
-        } else if (srdi.getResource() != null) {
-          nodeType = WebdavNsIntf.nodeTypeEntity;
-          r = srdi.getResource();
-          name = r.getName();
-        } else {
-          throw new WebdavException("Unexpected return type");
-        }
-      } else {
-        nodeType = WebdavNsIntf.nodeTypeCollection;
-        col = srdi.getCol();
-        name = col.getName();
-        canSync = srdi.getCanSync();
-        collection = true;
+    return wsr;
+  }
+
+  /** Build the node for an item returned in a sync report.
+   *
+   * @param srdi      the item
+   * @param parents   cache of parent nodes for entities - updated
+   * @return node
+   * @throws WebdavException
+   */
+  public WebdavNsNode getSyncNode(final SynchReportDataItem srdi,
+                                  final Map<String, WebdavNsNode> parents)
+          throws WebdavException {
+    int nodeType;
+    CalDAVCollection col = null;
+    CalDAVResource r = null;
+    CalDAVEvent ev = null;
+    WebdavNsNode parent = null; // Need for non-collection
+    String name;
+    boolean collection = false;
+
+    if (srdi.getCol() == null) {
+      parent = parents.get(srdi.getVpath());
+      if (parent == null) {
+        parent = getNode(srdi.getVpath(),
+                         WebdavNsIntf.existanceMust,
+                         WebdavNsIntf.nodeTypeCollection,
+                         false);
+
+        parents.put(srdi.getVpath(), parent);
       }
 
-      wri = new WdSynchReportItem(getNodeInt(Util.buildPath(collection,
-                                                            srdi.getVpath(),
-                                                            "/", name),
-                                             WebdavNsIntf.existanceDoesExist,
-                                             nodeType,
-                                             false,
-                                             col, ev, r),
-                                             srdi.getToken(),
-                                             canSync);
+      col = (CalDAVCollection)parent.getCollection(false);
 
-      wsr.items.add(wri);
+      if (srdi.getEntity() != null) {
+        nodeType = WebdavNsIntf.nodeTypeEntity;
+        ev = srdi.getEntity();
+        name = ev.getName();
+      } else if (srdi.getResource() != null) {
+        nodeType = WebdavNsIntf.nodeTypeEntity;
+        r = srdi.getResource();
+        name = r.getName();
+      } else {
+        throw new WebdavException("Unexpected return type");
+      }
+    } else {
+      nodeType = WebdavNsIntf.nodeTypeCollection;
+      col = srdi.getCol();
+      name = col.getName();
+      collection = true;
     }
 
-    return wsr;
+    return getNodeInt(Util.buildPath(collection,
+                                     srdi.getVpath(),
+                                     "/", name),
+                      WebdavNsIntf.existanceDoesExist,
+                      nodeType,
+                      false,
+                      col, ev, r);
   }
 
   @Override
   public String getSyncToken(final String path) throws WebdavException{
     String url = sysi.getUrlHandler().unprefix(fixPath(path));
 
+    final ChangeJournal journal = ChangeJournal.getJournal();
+    String token = journal.getSyncToken(url);
+
+    if (token != null) {
+      return token;
+    }
+
+    final long seq = journal.getSeq();
+
     CalDAVCollection col = getSysi().getCollection(url);
 
     if (col == null) {
@@ -1656,7 +1769,64 @@ public class CaldavBWIntf extends WebdavNsIntf {
                                 "Bad If header - unknown resource");
     }
 
-    return getSysi().getSyncToken(col);
+    token = getSysi().getSyncToken(col);
+
+    if (!col.isAlias()) {
+      journal.setSyncToken(col.getPath(), token, seq);
+    }
+
+    return token;
+  }
+
+  /** Record a change made through this server in the change journal and
+   * the free-busy index. Both the collection as addressed and the target
+   * of any alias are recorded.
+   *
+   * @param node   collection or member that changed
+   * @param tree   true if the collection and its descendants may have
+   *               changed - ignored for members
+   * @throws WebdavException
+   */
+  public void journalChange(final CaldavBwNode node,
+                            final boolean tree) throws WebdavException {
+    final ChangeJournal journal = ChangeJournal.getJournal();
+    final boolean collection = node instanceof CaldavCalNode;
+
+    final CalDAVCollection col = (CalDAVCollection)node.getCollection(false);
+    if (col != null) {
+      journal.changed(col.getPath(), collection && tree);
+      freeBusyChange(col);
+    }
+
+    final CalDAVCollection target =
+            (CalDAVCollection)node.getCollection(true);
+    if ((target != null) && (target != col)) {
+      journal.changed(target.getPath(), collection && tree);
+      freeBusyChange(target);
+    }
+  }
+
+  /** The path under which the change journal holds the sync-token for a
+   * node.
+   *
+   * @param node
+   * @return path or null if the journal can't be used for the node
+   * @throws WebdavException
+   */
+  public String getJournalPath(final WebdavNsNode node) throws WebdavException {
+    if (!(node instanceof CaldavCalNode)) {
+      return null;
+    }
+
+    final CalDAVCollection col =
+            (CalDAVCollection)((CaldavCalNode)node).getCollection(false);
+
+    if ((col == null) || col.isAlias()) {
+      // Changes to the target are not seen under the alias path
+      return null;
+    }
+
+    return col.getPath();
   }
 
   /* ====================================================================
@@ -1735,9 +1905,11 @@ public class CaldavBWIntf extends WebdavNsIntf {
       if (node instanceof CaldavCalNode) {
         // XXX to dref or not deref?
         sysi.updateAccess((CalDAVCollection)node.getCollection(false), info.acl);
+        journalChange(node, true);
       } else if (node instanceof CaldavComponentNode) {
         sysi.updateAccess(((CaldavComponentNode)node).getEvent(),
                           info.acl);
+        journalChange(node, false);
       } else {
         throw new WebdavException(HttpServletResponse.SC_NOT_IMPLEMENTED);
       }
@@ -1948,27 +2120,186 @@ public class CaldavBWIntf extends WebdavNsIntf {
    *                         Caldav methods
    * ==================================================================== */
 
+  /** Handed each node as it is produced by a query. Allows results to be
+   * written out as they are found rather than accumulated.
+   */
+  public interface NodeHandler {
+    /**
+     * @param node a result node
+     * @throws WebdavException
+     */
+    void node(WebdavNsNode node) throws WebdavException;
+  }
+
   /** Use the given query to return a collection of nodes. An exception will
    * be raised if the entire query fails for some reason (access, etc). An
    * empty collection will be returned if no objects match.
    *
    * @param wdnode    WebdavNsNode defining root of search
-   * @param retrieveList   If non-null limit required fields.
+   * @param projection     If non-null limit required fields.
    * @param retrieveRecur  How we retrieve recurring events
    * @param fltr      Filter object defining search
    * @return Collection of result nodes (empty for no result)
    * @throws WebdavException
    */
   public Collection<WebdavNsNode> query(final WebdavNsNode wdnode,
-                                        final List<String> retrieveList,
+                                        final RetrievalProjection projection,
                                         final RetrievalMode retrieveRecur,
                                         final FilterType fltr) throws WebdavException {
+    final Collection<WebdavNsNode> evnodes = new ArrayList<>();
+
+    query(wdnode, projection, retrieveRecur, fltr,
+          new NodeHandler() {
+            @Override
+            public void node(final WebdavNsNode node) throws WebdavException {
+              evnodes.add(node);
+            }
+          });
+
+    return evnodes;
+  }
+
+  /** Use the given query to produce result nodes, each of which is passed
+   * to the handler once it has been built and post-filtered. Nothing is
+   * retained here so the caller can emit each node and discard it.
+   *
+   * @param wdnode    WebdavNsNode defining root of search
+   * @param projection     If non-null limit required fields.
+   * @param retrieveRecur  How we retrieve recurring events
+   * @param fltr      Filter object defining search
+   * @param handler   called for each result node
+   * @throws WebdavException
+   */
+  public void query(final WebdavNsNode wdnode,
+                    final RetrievalProjection projection,
+                    final RetrievalMode retrieveRecur,
+                    final FilterType fltr,
+                    final NodeHandler handler) throws WebdavException {
     CaldavBwNode node = (CaldavBwNode)wdnode;
 
     FilterHandler fh = new FilterHandler(fltr);
-    Collection<CalDAVEvent> events = fh.query(node,
-                                             retrieveList, retrieveRecur);
+    Iterator<CalDAVEvent> events = fh.iterate(node,
+                                              projection, retrieveRecur);
+
+    buildQueryNodes(node, fh, events, projection, retrieveRecur, handler);
+  }
+
+  /** Run the query against each of the nodes, passing the result nodes to
+   * the handler in the order of the list.
+   *
+   * <p>If the backend can search a set of collections in one go it is
+   * asked for all of them with a single call. Otherwise, if it is thread
+   * safe and the system properties allow it, a number of collections are
+   * queried concurrently. Failing that each node is queried in turn. In
+   * all cases nodes are built and handed on here, on the request thread,
+   * as the events for each collection become available.
+   *
+   * @param wdnodes   WebdavNsNodes defining the roots of search
+   * @param projection     If non-null limit required fields.
+   * @param retrieveRecur  How we retrieve recurring events
+   * @param fltr      Filter object defining search
+   * @param handler   called for each result node
+   * @throws WebdavException
+   */
+  public void query(final List<WebdavNsNode> wdnodes,
+                    final RetrievalProjection projection,
+                    final RetrievalMode retrieveRecur,
+                    final FilterType fltr,
+                    final NodeHandler handler) throws WebdavException {
+    final int limit = getReportConcurrency();
+
+    if ((wdnodes.size() == 1) ||
+        (!sysi.getMultiCollectionQuery() && (limit <= 1))) {
+      for (final WebdavNsNode wdnode: wdnodes) {
+        query(wdnode, projection, retrieveRecur, fltr, handler);
+      }
+      return;
+    }
+
+    final List<CaldavBwNode> nodes = new ArrayList<>(wdnodes.size());
+    final List<CalDAVCollection> cols = new ArrayList<>(wdnodes.size());
+
+    for (final WebdavNsNode wdnode: wdnodes) {
+      final CaldavBwNode node = (CaldavBwNode)wdnode;
+      final CalDAVCollection col = (CalDAVCollection)node.getCollection(false);
+
+      if (col == null) {
+        continue;
+      }
+
+      nodes.add(node);
+      cols.add(col);
+    }
+
+    if (cols.isEmpty()) {
+      return;
+    }
+
+    if (debug) {
+      debugMsg("query " + cols.size() + " collections");
+    }
+
+    final FilterHandler fh = new FilterHandler(fltr);
+
+    if (sysi.getMultiCollectionQuery()) {
+      final List<Collection<CalDAVEvent>> results =
+              fh.query(sysi, cols, projection, retrieveRecur);
 
+      for (int i = 0; i < nodes.size(); i++) {
+        final Collection<CalDAVEvent> events = results.get(i);
+
+        if (events == null) {
+          continue;
+        }
+
+        buildQueryNodes(nodes.get(i), fh, events.iterator(),
+                        projection, retrieveRecur, handler);
+      }
+
+      return;
+    }
+
+    fh.query(sysi, cols, projection, retrieveRecur, limit,
+             new ResultHandler<Collection<CalDAVEvent>>() {
+      private int i;
+
+      @Override
+      public void result(final Collection<CalDAVEvent> events)
+              throws WebdavException {
+        final CaldavBwNode node = nodes.get(i);
+        i++;
+
+        if (events == null) {
+          return;
+        }
+
+        buildQueryNodes(node, fh, events.iterator(),
+                        projection, retrieveRecur, handler);
+      }
+    });
+  }
+
+  /* Max number of collections we may query at once for a single REPORT */
+  private int getReportConcurrency() throws WebdavException {
+    if (!sysi.getThreadSafe()) {
+      return 1;
+    }
+
+    final Integer limit = sysi.getSystemProperties().getReportConcurrency();
+
+    if (limit == null) {
+      return 1;
+    }
+
+    return limit;
+  }
+
+  private void buildQueryNodes(final CaldavBwNode node,
+                               final FilterHandler fh,
+                               final Iterator<CalDAVEvent> events,
+                               final RetrievalProjection projection,
+                               final RetrievalMode retrieveRecur,
+                               final NodeHandler handler) throws WebdavException {
     /* We now need to build a node for each of the events in the collection.
        For each event we first determine what calendar it's in. We then take the
        incoming uri, strip any calendar names off it and append the calendar
@@ -1977,15 +2308,35 @@ public class CaldavBWIntf extends WebdavNsIntf {
        If there is no calendar name for the event we just give it the default.
      */
 
-    Collection<WebdavNsNode> evnodes = new ArrayList<WebdavNsNode>();
-
     if (events == null) {
-      return evnodes;
+      return;
     }
 
     try {
-      for (CalDAVEvent ev: events) {
-        CalDAVCollection col = getSysi().getCollection(ev.getParentPath());
+      final CalDAVCollection qcol =
+              (CalDAVCollection)node.getCollection(false);
+      if ((qcol != null) && (qcol.getPath() != null)) {
+        queryCollections.put(qcol.getPath(), qcol);
+      }
+
+      while (events.hasNext()) {
+        final CalDAVEvent ev = events.next();
+
+        /* Usually the event is in the collection we queried. If not -
+           e.g. we queried an alias - find its parent.
+         */
+        CalDAVCollection col;
+        if ((qcol != null) && (qcol.getPath() != null) &&
+            qcol.getPath().equals(ev.getParentPath())) {
+          col = qcol;
+        } else {
+          col = getQueryCollection(ev.getParentPath());
+        }
+
+        if (col == null) {
+          continue;
+        }
+
         String uri = col.getPath();
 
         /* If no name was assigned use the guid */
@@ -2002,11 +2353,12 @@ public class CaldavBWIntf extends WebdavNsIntf {
                                                 WebdavNsIntf.nodeTypeEntity,
                                                 false,
                                                 col, ev, null);
+        evnode.setRetrieval(retrieveRecur, projection);
 
-        evnodes.add(evnode);
+        if (fh.postFilter(evnode)) {
+          handler.node(evnode);
+        }
       }
-
-      return fh.postFilter(evnodes);
     } catch (WebdavException we) {
       throw we;
     } catch (Throwable t) {
@@ -2015,6 +2367,161 @@ public class CaldavBWIntf extends WebdavNsIntf {
     }
   }
 
+  /** Return nodes for a number of entity uris, all of which are expected to
+   * exist. The uris are grouped by parent collection and the entities for
+   * each group fetched with a single call to the system interface.
+   *
+   * <p>Only uris which resolve to an entity in a calendar collection will
+   * have an entry in the result. Uris which name a collection are left out
+   * as are any not found. The caller should resolve the rest one at a time.
+   *
+   * @param uris    Collection of entity uris - just the path part
+   * @return Map of uri to node - never null
+   * @throws WebdavException
+   */
+  public Map<String, WebdavNsNode> getEntityNodes(final Collection<String> uris)
+          throws WebdavException {
+    return getEntityNodes(uris, null);
+  }
+
+  /** As getEntityNodes but only the parts of each entity described by the
+   * projection need be retrieved.
+   *
+   * @param uris    Collection of entity uris - just the path part
+   * @param projection     If non-null limit required fields.
+   * @return Map of uri to node - never null
+   * @throws WebdavException
+   */
+  public Map<String, WebdavNsNode> getEntityNodes(final Collection<String> uris,
+                                                  final RetrievalProjection projection)
+          throws WebdavException {
+    final Map<String, WebdavNsNode> res = new HashMap<>();
+
+    if (Util.isEmpty(uris)) {
+      return res;
+    }
+
+    try {
+      /* parent path -> (entity name -> uris as supplied). More than one
+         uri may name the same entity.
+       */
+      final Map<String, Map<String, List<String>>> byParent =
+              new LinkedHashMap<>();
+
+      for (final String uri: uris) {
+        if (uri == null) {
+          continue;
+        }
+
+        final String nuri = normalizeUri(uri);
+
+        if (!nuri.startsWith("/") || nuri.endsWith("/") ||
+            sysi.isPrincipal(nuri)) {
+          continue;
+        }
+
+        final SplitResult split = splitUri(nuri);
+
+        if (split.name == null) {
+          continue;
+        }
+
+        Map<String, List<String>> names = byParent.get(split.path);
+
+        if (names == null) {
+          names = new LinkedHashMap<>();
+          byParent.put(split.path, names);
+        }
+
+        List<String> nameUris = names.get(split.name);
+
+        if (nameUris == null) {
+          nameUris = new ArrayList<>();
+          names.put(split.name, nameUris);
+        }
+
+        nameUris.add(uri);
+      }
+
+      for (final String parentPath: byParent.keySet()) {
+        final CalDAVCollection col = getQueryCollection(parentPath);
+
+        if (col == null) {
+          continue;
+        }
+
+        final int ctype = col.getCalType();
+        if ((ctype != CalDAVCollection.calTypeCalendarCollection) &&
+            (ctype != CalDAVCollection.calTypeInbox) &&
+            (ctype != CalDAVCollection.calTypeOutbox)) {
+          continue;
+        }
+
+        final Map<String, List<String>> names = byParent.get(parentPath);
+
+        if (debug) {
+          debugMsg("fetch " + names.size() + " event(s) - cal=\"" +
+                   col.getPath() + "\"");
+        }
+
+        final Map<String, CalDAVEvent> evs =
+                sysi.getEvents(col, names.keySet(), projection);
+
+        if ((evs == null) || evs.isEmpty()) {
+          continue;
+        }
+
+        /* As findURI - a collection at the same path takes precedence
+           so find any in one call and leave those to the caller.
+         */
+        final List<String> colPaths = new ArrayList<>(evs.size());
+
+        for (final String name: evs.keySet()) {
+          colPaths.add(Util.buildPath(true,
+                                      Util.buildPath(false, col.getPath(),
+                                                     "/", name)));
+        }
+
+        final Map<String, CalDAVCollection> cols =
+                sysi.getCollections(colPaths);
+
+        for (final String name: names.keySet()) {
+          final CalDAVEvent ev = evs.get(name);
+
+          if (ev == null) {
+            continue;
+          }
+
+          final String entityPath = Util.buildPath(false, col.getPath(),
+                                                   "/", name);
+
+          if ((cols != null) &&
+              cols.containsKey(Util.buildPath(true, entityPath))) {
+            continue;
+          }
+
+          final WebdavNsNode node =
+                  getNodeInt(entityPath,
+                             WebdavNsIntf.existanceDoesExist,
+                             WebdavNsIntf.nodeTypeEntity,
+                             false,
+                             col, ev, null);
+          ((CaldavComponentNode)node).setRetrieval(null, projection);
+
+          for (final String uri: names.get(name)) {
+            res.put(uri, node);
+          }
+        }
+      }
+
+      return res;
+    } catch (final WebdavException we) {
+      throw we;
+    } catch (final Throwable t) {
+      throw new WebdavException(t);
+    }
+  }
+
   /** The node represents a calendar resource for which we must get free-busy
    * information.
    *
@@ -2048,6 +2555,51 @@ public class CaldavBWIntf extends WebdavNsIntf {
    *                         Private methods
    * ==================================================================== */
 
+  private void freeBusyChange(final CalDAVCollection col) throws WebdavException {
+    final FreeBusyIndex fbi = FreeBusyIndex.getIndex();
+
+    if (!fbi.getEnabled()) {
+      return;
+    }
+
+    final AccessPrincipal owner = col.getOwner();
+    String ownerHref = null;
+
+    if (owner != null) {
+      ownerHref = owner.getPrincipalRef();
+    }
+
+    fbi.changed(ownerHref, col.getPath());
+  }
+
+  /* Return the collection for the path - resolving each distinct path only
+   * once for the request.
+   */
+  private CalDAVCollection getQueryCollection(final String path) throws WebdavException {
+    if (path == null) {
+      return null;
+    }
+
+    CalDAVCollection col = queryCollections.get(path);
+
+    if ((col == null) && !queryCollections.containsKey(path)) {
+      col = getSysi().getCollection(path);
+      queryCollections.put(path, col);
+    }
+
+    return col;
+  }
+
+  /** Get a new system interface object for work done outside of a
+   * request. The caller must initialise and close it.
+   *
+   * @return uninitialised SysIntf
+   * @throws WebdavException
+   */
+  public SysIntf newSysi() throws WebdavException {
+    return getSysi(servlet.getInitParameter("sysintfImpl"));
+  }
+
   private SysIntf getSysi(final String className) throws WebdavException {
     try {
       Object o = Class.forName(className).newInstance();
@@ -24,6 +24,7 @@ import org.bedework.util.xml.tagdefs.CalWSSoapTags;
 import org.bedework.util.xml.tagdefs.CalWSXrdDefs;
 import org.bedework.util.xml.tagdefs.CaldavTags;
 import org.bedework.util.xml.tagdefs.XrdTags;
+import org.bedework.webdav.servlet.shared.UrlHandler;
 import org.bedework.webdav.servlet.shared.WdCollection;
 import org.bedework.webdav.servlet.shared.WdEntity;
 import org.bedework.webdav.servlet.shared.WebdavException;
@@ -451,16 +452,32 @@ public abstract class CaldavBwNode extends WebdavNsNode {
    */
   public String getUrlValue(final String uri,
                             final boolean exists) throws WebdavException {
+    return getUrlValue(urlHandler, uri, exists, trailSlash());
+  }
+
+  /** Format a url value as a node would - for use when we have no node.
+   *
+   * @param urlHandler to prefix the uri
+   * @param uri
+   * @param exists - true if we KNOW it exists
+   * @param trailSlash - true if the node would have a trailing slash
+   * @return formatted url value
+   * @throws WebdavException
+   */
+  public static String getUrlValue(final UrlHandler urlHandler,
+                                   final String uri,
+                                   final boolean exists,
+                                   final boolean trailSlash) throws WebdavException {
     try {
       String prefixed = urlHandler.prefix(uri);
 
       if (exists) {
         if (prefixed.endsWith("/")) {
-          if (!trailSlash()) {
+          if (!trailSlash) {
             prefixed = prefixed.substring(0, prefixed.length() - 1);
           }
         } else {
-          if (trailSlash()) {
+          if (trailSlash) {
             prefixed = prefixed + "/";
           }
         }
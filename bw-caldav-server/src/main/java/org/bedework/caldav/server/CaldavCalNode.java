@@ -22,6 +22,7 @@ import org.bedework.access.AccessPrincipal;
 import org.bedework.access.Acl.CurrentAccess;
 import org.bedework.access.PrivilegeDefs;
 import org.bedework.caldav.server.sysinterface.CalPrincipalInfo;
+import org.bedework.caldav.server.sysinterface.RetrievalProjection;
 import org.bedework.caldav.server.sysinterface.SysIntf;
 import org.bedework.caldav.server.sysinterface.SysIntf.MethodEmitted;
 import org.bedework.caldav.util.sharing.InviteType;
@@ -339,7 +340,7 @@ public class CaldavCalNode extends CaldavBwNode {
         debugMsg("Get all resources in calendar " + c.getPath());
       }
 
-      return getSysi().getEvents(c, null, null, null);
+      return getSysi().getEvents(c, null, (RetrievalProjection)null, null);
     } catch (Throwable t) {
       throw new WebdavException(t);
     }
@@ -471,7 +472,24 @@ public class CaldavCalNode extends CaldavBwNode {
 
   @Override
   public String getSyncToken() throws WebdavException {
-    return getSysi().getSyncToken(col);
+    if (col.isAlias()) {
+      // Changes to the target are not journalled under our path
+      return getSysi().getSyncToken(col);
+    }
+
+    final ChangeJournal journal = ChangeJournal.getJournal();
+    String token = journal.getSyncToken(col.getPath());
+
+    if (token != null) {
+      return token;
+    }
+
+    final long seq = journal.getSeq();
+
+    token = getSysi().getSyncToken(col);
+    journal.setSyncToken(col.getPath(), token, seq);
+
+    return token;
   }
 
   /* ====================================================================
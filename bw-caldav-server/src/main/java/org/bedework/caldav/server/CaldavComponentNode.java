@@ -21,6 +21,8 @@ package org.bedework.caldav.server;
 import org.bedework.access.AccessPrincipal;
 import org.bedework.access.Acl.CurrentAccess;
 import org.bedework.access.PrivilegeDefs;
+import org.bedework.caldav.server.sysinterface.RetrievalMode;
+import org.bedework.caldav.server.sysinterface.RetrievalProjection;
 import org.bedework.caldav.server.sysinterface.SysIntf;
 import org.bedework.caldav.server.sysinterface.SysIntf.MethodEmitted;
 import org.bedework.util.timezones.DateTimeUtil;
@@ -28,6 +30,8 @@ import org.bedework.util.xml.XmlEmit;
 import org.bedework.util.xml.tagdefs.AppleServerTags;
 import org.bedework.util.xml.tagdefs.CaldavTags;
 import org.bedework.util.xml.tagdefs.ICalTags;
+import org.bedework.util.xml.tagdefs.WebdavTags;
+import org.bedework.util.xml.tagdefs.XcalTags;
 import org.bedework.webdav.servlet.shared.WebdavException;
 import org.bedework.webdav.servlet.shared.WebdavNsIntf;
 
@@ -37,10 +41,15 @@ import net.fortuna.ical4j.model.ComponentList;
 
 import org.w3c.dom.Element;
 
+import java.io.StringWriter;
 import java.io.Writer;
+import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 import javax.xml.namespace.QName;
 
@@ -71,6 +80,28 @@ public class CaldavComponentNode extends CaldavBwNode {
   private String compContentType;
   private String compString;
 
+  /* Null if the event is complete, otherwise a description of the
+   * retrieval mode and projection it was fetched with. */
+  private String retrieval;
+
+  private static final Charset utf8 = Charset.forName("UTF-8");
+
+  private static final int maxContentLengths = 10000;
+
+  /* UTF-8 byte lengths of rendered content keyed by path, etag, retrieval,
+   * content type and, unless rendering is user independent, principal. A changed
+   * etag gives a new key so entries need no invalidation.
+   */
+  private static final Map<String, Long> contentLengths =
+          Collections.synchronizedMap(
+                  new LinkedHashMap<String, Long>(16, 0.75f, true) {
+                    @Override
+                    protected boolean removeEldestEntry(
+                            final Map.Entry<String, Long> eldest) {
+                      return size() > maxContentLengths;
+                    }
+                  });
+
   private final static HashMap<QName, PropertyTagEntry> propertyNames =
     new HashMap<QName, PropertyTagEntry>();
 
@@ -179,6 +210,24 @@ public class CaldavComponentNode extends CaldavBwNode {
     this.event = event;
   }
 
+  /** Called for an event which the backend fetched with a retrieval mode
+   * - expand or limit-recurrence-set - or a projection. What is rendered
+   * for the node then differs from the stored entity so it must not
+   * share rendered content or lengths with a GET of the entity.
+   *
+   * @param mode     how recurring events were retrieved - may be null
+   * @param projection  what was retrieved - may be null
+   */
+  public void setRetrieval(final RetrievalMode mode,
+                           final RetrievalProjection projection) {
+    if ((mode == null) && (projection == null)) {
+      retrieval = null;
+      return;
+    }
+
+    retrieval = String.valueOf(mode) + "\t" + String.valueOf(projection);
+  }
+
   @Override
   public void init(final boolean content) throws WebdavException {
     if (!content) {
@@ -313,6 +362,21 @@ public boolean generatePropertyValue(final QName tag,
     PropVal pv = new PropVal();
     XmlEmit xml = intf.getXmlEmit();
 
+    if (tag.equals(WebdavTags.getcontentlength)) {
+      /* Never render the content just to report its length. If the
+         backend doesn't store it and we haven't seen it, it's not found.
+       */
+      long len = getKnownContentLen(getContentType());
+
+      if (len < 0) {
+        return false;
+      }
+
+      xml.property(tag, String.valueOf(len));
+
+      return true;
+    }
+
     if (propertyNames.get(tag) == null) {
       // Not ours
       return super.generatePropertyValue(tag, intf, allProp);
@@ -428,24 +492,32 @@ public boolean generatePropertyValue(final QName tag,
                              final Writer wtr,
                              final String contentType) throws WebdavException {
     try {
-      Collection<CalDAVEvent> evs = new ArrayList<CalDAVEvent>();
+      String ctype = contentType;
+      if (ctype == null) {
+        ctype = getSysi().getDefaultContentType();
+      }
 
-      evs.add(event);
+      if ((event == null) ||
+          ((xml != null) && XcalTags.mimetype.equals(ctype))) {
+        /* xCal in an xml stream is emitted as elements so can't come
+           from the cache.
+         */
+        return getSysi().writeCalendar(getEvents(),
+                                       getMethodEmitted(),
+                                       xml,
+                                       wtr,
+                                       contentType);
+      }
 
-      MethodEmitted method;
+      RenderedContentCache.Entry ent = getRendered(ctype);
 
-      if ((col.getCalType() == CalDAVCollection.calTypeInbox) ||
-      (col.getCalType() == CalDAVCollection.calTypeOutbox)) {
-        method = MethodEmitted.eventMethod;
+      if (xml != null) {
+        xml.cdataValue(ent.getString());
       } else {
-        method = MethodEmitted.noMethod;
+        wtr.write(ent.getString());
       }
 
-      return getSysi().writeCalendar(evs,
-                                     method,
-                                     xml,
-                                     wtr,
-                                     contentType);
+      return ent.getContentType();
     } catch (WebdavException we) {
       throw we;
     } catch (Throwable t) {
@@ -584,7 +656,80 @@ public boolean generatePropertyValue(final QName tag,
 
   @Override
   public long getContentLen() throws WebdavException {
-    return getCompString(getContentType()).length();
+    String ctype = getContentType();
+    long len = getKnownContentLen(ctype);
+
+    if (len >= 0) {
+      return len;
+    }
+
+    /* Render it. For a GET the content is delivered anyway so this
+       costs nothing extra.
+     */
+    len = utf8Length(getCompString(ctype));
+
+    String key = contentLengthKey(ctype);
+    if (key != null) {
+      contentLengths.put(key, len);
+    }
+
+    return len;
+  }
+
+  /** Return the length in bytes of the content if it can be determined
+   * without rendering it - from the backend, from an earlier rendering of
+   * the same version of the entity or from content already rendered for
+   * this node.
+   *
+   * @param contentType of the content
+   * @return length or -1 for unknown
+   * @throws WebdavException
+   */
+  public long getKnownContentLen(final String contentType) throws WebdavException {
+    CalDAVEvent ev = getEvent();
+    if (ev == null) {
+      return -1;
+    }
+
+    long len;
+
+    if (retrieval == null) {
+      // The backend knows the size of the stored entity only
+      len = ev.getContentLength(contentType);
+      if (len >= 0) {
+        return len;
+      }
+    }
+
+    String key = contentLengthKey(contentType);
+    if (key == null) {
+      return -1;
+    }
+
+    Long l = contentLengths.get(key);
+    if (l != null) {
+      return l;
+    }
+
+    if (getSysi().getRenderingUserIndependent()) {
+      len = RenderedContentCache.getCache().getLength(getUri(),
+                                                      getEtagValue(true),
+                                                      retrieval,
+                                                      contentType);
+      if (len >= 0) {
+        contentLengths.put(key, len);
+        return len;
+      }
+    }
+
+    if ((compString == null) || !contentType.equals(compContentType)) {
+      return -1;
+    }
+
+    len = utf8Length(compString);
+    contentLengths.put(key, len);
+
+    return len;
   }
 
   @Override
@@ -647,14 +792,127 @@ public boolean generatePropertyValue(final QName tag,
       return compString;
     }
 
-    getIcal();
+    init(true);
+
+    if (event == null) {
+      getIcal();
+
+      compString = getSysi().toIcalString(ical, ctype);
+    } else {
+      compString = getRendered(ctype).getString();
+    }
 
     compContentType = ctype;
-    compString = getSysi().toIcalString(ical, ctype);
 
     return compString;
   }
 
+  /* Return the rendered entity from the shared cache or render it and
+   * add it to the cache. The cache is only used if the backend renders
+   * the same for every principal.
+   */
+  private RenderedContentCache.Entry getRendered(final String contentType) throws WebdavException {
+    RenderedContentCache cache = RenderedContentCache.getCache();
+    String etag = null;
+    String uri = getUri();
+
+    if (getSysi().getRenderingUserIndependent()) {
+      etag = getEtagValue(true);
+    }
+
+    if (etag != null) {
+      RenderedContentCache.Entry ent = cache.get(uri, etag, retrieval,
+                                                 contentType);
+
+      if (ent != null) {
+        return ent;
+      }
+    }
+
+    StringWriter sw = new StringWriter();
+
+    String actualType = getSysi().writeCalendar(getEvents(),
+                                                getMethodEmitted(),
+                                                null,
+                                                sw,
+                                                contentType);
+    if (actualType == null) {
+      actualType = contentType;
+    }
+
+    if (etag == null) {
+      return new RenderedContentCache.Entry(actualType,
+                                            sw.toString().getBytes(utf8));
+    }
+
+    return cache.put(uri, etag, retrieval, contentType, actualType,
+                     sw.toString());
+  }
+
+  private Collection<CalDAVEvent> getEvents() {
+    Collection<CalDAVEvent> evs = new ArrayList<CalDAVEvent>();
+
+    evs.add(event);
+
+    return evs;
+  }
+
+  private MethodEmitted getMethodEmitted() {
+    if ((col.getCalType() == CalDAVCollection.calTypeInbox) ||
+        (col.getCalType() == CalDAVCollection.calTypeOutbox)) {
+      return MethodEmitted.eventMethod;
+    }
+
+    return MethodEmitted.noMethod;
+  }
+
+  /* Lengths are shared between principals only if the rendering is */
+  private String contentLengthKey(final String contentType) throws WebdavException {
+    String etag = getEtagValue(true);
+
+    if (etag == null) {
+      return null;
+    }
+
+    String key = getUri() + "\t" + etag + "\t" + retrieval + "\t" +
+            contentType;
+
+    if (getSysi().getRenderingUserIndependent()) {
+      return key;
+    }
+
+    AccessPrincipal p = getSysi().getPrincipal();
+
+    if (p == null) {
+      return key + "\t";
+    }
+
+    return key + "\t" + p.getPrincipalRef();
+  }
+
+  private static long utf8Length(final String val) {
+    long len = 0;
+    int sz = val.length();
+
+    for (int i = 0; i < sz; i++) {
+      char c = val.charAt(i);
+
+      if (c < 0x80) {
+        len++;
+      } else if (c < 0x800) {
+        len += 2;
+      } else if (Character.isHighSurrogate(c) && (i + 1 < sz) &&
+                 Character.isLowSurrogate(val.charAt(i + 1))) {
+        len += 4;
+        i++;
+      } else {
+        len += 3;
+      }
+    }
+
+    return len;
+  }
+
   private boolean generateTZPropertyValue(final QName tag,
                                           final WebdavNsIntf intf,
                                           final boolean allProp) throws WebdavException {
@@ -18,12 +18,14 @@
 */
 package org.bedework.caldav.server;
 
+import org.bedework.access.AccessPrincipal;
 import org.bedework.caldav.server.soap.calws.CalwsHandler;
 import org.bedework.caldav.server.soap.synch.SynchwsHandler;
 import org.bedework.caldav.server.sysinterface.CalPrincipalInfo;
 import org.bedework.caldav.server.sysinterface.SysIntf;
 import org.bedework.caldav.server.sysinterface.SysIntf.IcalResultType;
 import org.bedework.caldav.server.sysinterface.SysIntf.SchedRecipientResult;
+import org.bedework.caldav.util.freebusy.BusyIntervals;
 import org.bedework.caldav.util.sharing.InviteReplyType;
 import org.bedework.caldav.util.sharing.ShareResultType;
 import org.bedework.caldav.util.sharing.ShareType;
@@ -51,18 +53,19 @@ import org.bedework.webdav.servlet.shared.WebdavStatusCode;
 import org.apache.james.jdkim.DKIMVerifier;
 import org.apache.james.jdkim.IscheduleDKIMVerifier;
 import org.apache.james.jdkim.api.BodyHasher;
-import org.apache.james.jdkim.api.SignatureRecord;
+import org.apache.james.jdkim.api.PublicKeyRecordRetriever;
 import org.apache.james.jdkim.exceptions.FailException;
 import org.w3c.dom.Element;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.Set;
+import java.util.TreeSet;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
@@ -511,19 +514,88 @@ public class CaldavPostMethod extends PostMethod {
                                   "No message id");
       }
 
-      final ByteArrayOutputStream baos = new ByteArrayOutputStream();
-      streamCopy(pars.getReq().getInputStream(), baos);
+      /* Read the body once - it is hashed for DKIM as it is parsed. Nothing
+         is acted upon until the signature has been verified below.
+       */
+      final Integer maxSize = sysi.getAuthProperties().getMaxUserEntitySize();
+      long limit = 0;
+
+      if (maxSize != null) {
+        limit = maxSize;
+
+        if (pars.getReq().getContentLength() > limit) {
+          throw new WebdavException(HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE);
+        }
+      }
+
+      final DKIMVerifier verifier;
+      final BodyHasher bh;
+
+      if (isi.getDkimSignature() == null) {
+        // Check to see if we allow this host -
+        warn("Unchecked host - no dkim signature:");
+        verifier = null;
+        bh = null;
+      } else {
+        verifier = new IscheduleDKIMVerifier() {
+          @Override
+          protected PublicKeyRecordRetriever getPublicKeyRecordRetriever() {
+            return CachingKeyRecordRetriever.getDnsRetriever();
+          }
+        };
+        bh = newBodyHasher(verifier, isi);
+      }
+
+      OutputStream hashOut = null;
+      if (bh != null) {
+        hashOut = bh.getOutputStream();
+      }
+
+      final TeeInputStream body =
+              new TeeInputStream(pars.getReq().getInputStream(),
+                                 hashOut, limit);
+
+      WebdavException parseFailure = null;
+
+      try {
+        pars.setIcalendar(sysi.fromIcal(pars.getCol(),
+                                        new InputStreamReader(body),
+                                        pars.getContentTypePars()[0],
+                                        IcalResultType.OneComponent,
+                                        false));
+      } catch (final WebdavException we) {
+        if (body.getTooLarge()) {
+          throw new WebdavException(HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE);
+        }
+
+        // Report a bad signature in preference to bad data
+        parseFailure = we;
+      }
+
+      try {
+        body.drain();
+      } catch (final IOException ioe) {
+        if (body.getTooLarge()) {
+          throw new WebdavException(HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE);
+        }
+        throw new WebdavException(ioe);
+      }
+
+      if (hashOut != null) {
+        try {
+          hashOut.close();
+        } catch (final IOException ioe) {
+          throw new WebdavException(ioe);
+        }
+      }
 
-      validateHost(pars,
-                   new ByteArrayInputStream(baos.toByteArray()));
+      if (verifier != null) {
+        validateHost(verifier, bh);
+      }
 
-      pars.setIcalendar(sysi.fromIcal(pars.getCol(),
-                                      new InputStreamReader(
-                                              new ByteArrayInputStream(
-                                                      baos.toByteArray())),
-                                      pars.getContentTypePars()[0],
-                                      IcalResultType.OneComponent,
-                                      false));
+      if (parseFailure != null) {
+        throw parseFailure;
+      }
 
       /* (ISCHED:valid-calendar-data) -- checked in fromIcal */
 
@@ -540,9 +612,11 @@ public class CaldavPostMethod extends PostMethod {
       /* (CALDAV:valid-scheduling-message) -- later */
       final IcalComponentType ctype = pars.getIcalendar().getComponentType();
 
+      SchedulingDelivery delivery = null;
+
       if ((ctype == IcalComponentType.event) ||
           (ctype == IcalComponentType.vpoll)) {
-        handleEvent(sysi, pars, resp);
+        delivery = handleEvent(sysi, pars, resp);
       } else if (ctype == IcalComponentType.freebusy) {
         handleFreeBusy(sysi, pars, resp);
       } else {
@@ -554,6 +628,18 @@ public class CaldavPostMethod extends PostMethod {
       }
 
       flush();
+
+      if (delivery != null) {
+        /* Complete the response before any further delivery work */
+        resp.getWriter().close();
+
+        SchedulingDelivery.retryQueued(sysi, (CaldavBWIntf)getNsIntf());
+
+        /* Last - this may hand the session to the worker */
+        if (delivery.getDeferred()) {
+          delivery.finish((CaldavBWIntf)getNsIntf());
+        }
+      }
     } catch (final WebdavException we) {
       throw we;
     } catch (final Throwable t) {
@@ -561,30 +647,24 @@ public class CaldavPostMethod extends PostMethod {
     }
   }
 
-  private void validateHost(final RequestPars pars,
-                            final InputStream content) throws WebdavException {
-    final IscheduleIn isi = pars.getIschedRequest();
-    final SignatureRecord sig = isi.getDkimSignature();
-
-    if (sig == null) {
-      // Check to see if we allow this host -
-      warn("Unchecked host - no dkim signature:");
-      return;
+  private BodyHasher newBodyHasher(final DKIMVerifier verifier,
+                                   final IscheduleIn isi) throws WebdavException {
+    try {
+      return verifier.newBodyHasher(isi);
+    } catch (final FailException e) {
+      if (debug) {
+        error(e);
+      }
+      throw new WebdavForbidden(IscheduleTags.verificationFailed);
     }
+  }
 
+  /* Called once the whole body has been through the hasher */
+  private void validateHost(final DKIMVerifier verifier,
+                            final BodyHasher bh) throws WebdavException {
     try {
       /* Do DKIM validation */
-      final DKIMVerifier verifier = new IscheduleDKIMVerifier();
-      final BodyHasher bh = verifier.newBodyHasher(isi);
-
-      if (bh != null) {
-        final OutputStream os = bh.getOutputStream();
-        streamCopy(content, os);
-      }
-
       verifier.verify(bh);
-    } catch (final IOException e) {
-      throw new WebdavException(e);
     } catch (final FailException e) {
       if (debug) {
         error(e);
@@ -598,11 +678,12 @@ public class CaldavPostMethod extends PostMethod {
    * @param intf the interface
    * @param pars POST parameters
    * @param resp response
+   * @return the delivery - to be finished once the response is complete
    * @throws WebdavException
    */
-  private void handleEvent(final SysIntf intf,
-                           final RequestPars pars,
-                           final HttpServletResponse resp) throws WebdavException {
+  private SchedulingDelivery handleEvent(final SysIntf intf,
+                                         final RequestPars pars,
+                                         final HttpServletResponse resp) throws WebdavException {
     final CalDAVEvent ev = pars.getIcalendar().getEvent();
 
     if (pars.getIschedRequest().getRecipients() != null) {
@@ -612,9 +693,12 @@ public class CaldavPostMethod extends PostMethod {
     }
 
     ev.setScheduleMethod(pars.getIcalendar().getMethodType());
-    validateOriginator(pars, ev);
 
-    final Collection<SchedRecipientResult> srrs = intf.schedule(ev);
+    final SchedulingDelivery delivery =
+            new SchedulingDelivery(intf, pars.getCol(), ev,
+                                   validateOriginator(pars, ev),
+                                   false);
+    final Collection<SchedRecipientResult> srrs = delivery.deliver();
 
     resp.setStatus(HttpServletResponse.SC_OK);
     resp.setContentType("text/xml; charset=UTF-8");
@@ -635,6 +719,8 @@ public class CaldavPostMethod extends PostMethod {
     }
 
     closeTag(IscheduleTags.scheduleResponse);
+
+    return delivery;
   }
 
   private void handleFreeBusy(final SysIntf intf,
@@ -650,9 +736,72 @@ public class CaldavPostMethod extends PostMethod {
     }
 
     ev.setScheduleMethod(pars.getIcalendar().getMethodType());
-    validateOriginator(pars, ev);
+    final String originator = validateOriginator(pars, ev);
 
-    final Collection<SchedRecipientResult> srrs = intf.requestFreeBusy(ev, true);
+    /* Answer what we can from the free-busy index - only for text/calendar
+       which is what the index produces.
+     */
+    final FreeBusyIndex fbi = FreeBusyIndex.getIndex();
+    final boolean useIndex = fbi.getEnabled() &&
+            "text/calendar".equals(pars.getContentTypePars()[0]);
+    final Map<String, String> indexed = new LinkedHashMap<>();
+    String requester = null;
+    String uid = null;
+    long start = 0;
+    long end = 0;
+    long seq = 0;
+
+    if (useIndex) {
+      final String req = ev.toIcalString(ScheduleMethods.methodTypeRequest,
+                                         "text/calendar");
+
+      requester = FreeBusyIndex.getRequester(intf);
+      if (pars.isiSchedule()) {
+        requester += " " + pars.getIschedRequest().getOriginator();
+      }
+
+      uid = FreeBusyIndex.getPropertyValue(req, "UID");
+      start = utc(FreeBusyIndex.getPropertyValue(req, "DTSTART"));
+      end = utc(FreeBusyIndex.getPropertyValue(req, "DTEND"));
+
+      if (start == 0) {
+        // The index can't be used - an empty period means no hits or adds
+        end = 0;
+      }
+
+      final String organizer =
+              FreeBusyIndex.getPropertyValue(req, "ORGANIZER");
+
+      for (final String recipient: ev.getRecipients()) {
+        final BusyIntervals busy =
+                fbi.getBusy(requester, "schedule " + recipient,
+                            start, end);
+
+        if (busy != null) {
+          indexed.put(recipient,
+                      FreeBusyIndex.toVfreebusy("REPLY", uid, organizer,
+                                                recipient, start, end,
+                                                busy));
+        }
+      }
+
+      if (!indexed.isEmpty()) {
+        final Set<String> remaining = new TreeSet<>(ev.getRecipients());
+        remaining.removeAll(indexed.keySet());
+        ev.setRecipients(remaining);
+      }
+
+      seq = fbi.getSeq();
+    }
+
+    final Collection<SchedRecipientResult> srrs;
+
+    if (ev.getRecipients().isEmpty()) {
+      srrs = new ArrayList<>();
+    } else {
+      srrs = new SchedulingDelivery(intf, pars.getCol(), ev, originator,
+                                    true).deliver();
+    }
 
     resp.setStatus(HttpServletResponse.SC_OK);
     resp.setContentType("application/xml; charset=UTF-8");
@@ -697,26 +846,74 @@ public class CaldavPostMethod extends PostMethod {
       if (rfb != null) {
         rfb.setOrganizer(pars.getIcalendar().getOrganizer());
 
+        final String data;
+
         try {
+          data = rfb.toIcalString(ScheduleMethods.methodTypeReply,
+                                  pars.getContentTypePars()[0]);
           cdataProperty(calendarDataTag,
                         "content-type",
                         pars.getContentType(),
-                        rfb.toIcalString(ScheduleMethods.methodTypeReply,
-                                         pars.getContentTypePars()[0]));
+                        data);
         } catch (final Throwable t) {
           if (debug) {
             error(t);
           }
           throw new WebdavException(t);
         }
+
+        if (useIndex) {
+          final AccessPrincipal owner =
+                  intf.caladdrToPrincipal(srr.recipient);
+
+          if (owner != null) {
+            fbi.add(requester, "schedule " + srr.recipient,
+                    owner.getPrincipalRef(), null,
+                    start, end, data, seq);
+          }
+        }
+      }
+
+      closeTag(responseTag);
+    }
+
+    for (final Map.Entry<String, String> ent: indexed.entrySet()) {
+      openTag(responseTag);
+
+      if (pars.isiSchedule()) {
+        property(recipientTag, ent.getKey());
+      } else {
+        openTag(recipientTag);
+        property(WebdavTags.href, ent.getKey());
+        closeTag(recipientTag);
       }
 
+      setReqstat(SchedRecipientResult.scheduleOk, pars.isiSchedule());
+
+      cdataProperty(calendarDataTag,
+                    "content-type",
+                    pars.getContentType(),
+                    ent.getValue());
+
       closeTag(responseTag);
     }
 
     closeTag(sresponseTag);
   }
 
+  /* UTC millis for the request period - 0 for anything else */
+  private long utc(final String val) {
+    if (val == null) {
+      return 0;
+    }
+
+    try {
+      return BusyIntervals.parseUtc(val, 0, val.length());
+    } catch (final IllegalArgumentException iae) {
+      return 0;
+    }
+  }
+
   /**
    *
    +----------------+----------------------------------+
@@ -733,14 +930,15 @@ public class CaldavPostMethod extends PostMethod {
    +----------------+----------------------------------+
    * @param pars for request
    * @param ev object to be validated
+   * @return the originator set on the object - null for PUBLISH
    * @throws WebdavException
    */
-  private void validateOriginator(final RequestPars pars,
-                                  final CalDAVEvent ev) throws WebdavException {
+  private String validateOriginator(final RequestPars pars,
+                                    final CalDAVEvent ev) throws WebdavException {
     final int meth = ev.getScheduleMethod();
 
     if (meth == ScheduleMethods.methodTypePublish) {
-      return;
+      return null;
     }
 
     final boolean matchOrganizer =
@@ -788,9 +986,13 @@ public class CaldavPostMethod extends PostMethod {
                                      "Attendee/originator mismatch");
         }
       }
-    } else{
-      ev.setOriginator(org.getOrganizerUri());
+
+      return origUrl;
     }
+
+    ev.setOriginator(org.getOrganizerUri());
+
+    return org.getOrganizerUri();
   }
 
   private void setReqstat(final int status,
@@ -820,15 +1022,4 @@ public class CaldavPostMethod extends PostMethod {
       property(CaldavTags.requestStatus, reqstat);
     }
   }
-
-  private void streamCopy(final InputStream in, final OutputStream out)
-          throws IOException {
-    final byte[] buffer = new byte[2048];
-    int read;
-    while ((read = in.read(buffer)) > 0) {
-      out.write(buffer, 0, read);
-    }
-    in.close();
-    out.close();
-  }
 }
@@ -18,10 +18,14 @@
 */
 package org.bedework.caldav.server;
 
+import org.bedework.caldav.server.CaldavBWIntf.NodeHandler;
 import org.bedework.caldav.server.calquery.CalData;
 import org.bedework.caldav.server.calquery.FreeBusyQuery;
 import org.bedework.caldav.server.sysinterface.RetrievalMode;
+import org.bedework.caldav.server.sysinterface.RetrievalProjection;
 import org.bedework.caldav.server.sysinterface.SysIntf.IcalResultType;
+import org.bedework.caldav.server.sysinterface.SysIntf.SynchReportData;
+import org.bedework.caldav.server.sysinterface.SysIntf.SynchReportData.SynchReportDataItem;
 import org.bedework.caldav.util.DumpUtil;
 import org.bedework.caldav.util.filter.parse.Filters;
 import org.bedework.util.misc.Util;
@@ -30,8 +34,11 @@ import org.bedework.util.xml.tagdefs.CaldavTags;
 import org.bedework.util.xml.tagdefs.WebdavTags;
 import org.bedework.webdav.servlet.common.PropFindMethod.PropRequest;
 import org.bedework.webdav.servlet.common.ReportMethod;
+import org.bedework.webdav.servlet.shared.UrlHandler;
+import org.bedework.webdav.servlet.shared.WdEntity;
 import org.bedework.webdav.servlet.shared.WebdavBadRequest;
 import org.bedework.webdav.servlet.shared.WebdavException;
+import org.bedework.webdav.servlet.shared.WebdavForbidden;
 import org.bedework.webdav.servlet.shared.WebdavNsIntf;
 import org.bedework.webdav.servlet.shared.WebdavNsNode;
 import org.bedework.webdav.servlet.shared.WebdavProperty;
@@ -51,12 +58,13 @@ import java.io.StringReader;
 import java.net.URLDecoder;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
-import javax.xml.namespace.QName;
 
 /** Class called to handle CalDAV REPORT.
  *
@@ -71,12 +79,31 @@ public class CaldavReportMethod extends ReportMethod {
 
   private FreeBusyQuery freeBusy;
 
-  protected static class CalendarQueryPars {
+  /** Parameters for a calendar query - parsed from a REPORT body or built
+   * directly by callers of query.
+   */
+  public static class CalendarQueryPars {
+    /** null for no filter */
     public FilterType filter;
+
+    /** timezone for floating times - may be null */
     public String tzid;
+
+    /** Depth of the query */
     public int depth;
 
+    /** */
     public CalendarQueryPars() {}
+
+    /**
+     * @param filter null for no filter
+     * @param depth of the query
+     */
+    public CalendarQueryPars(final FilterType filter,
+                             final int depth) {
+      this.filter = filter;
+      this.depth = depth;
+    }
   }
 
   protected CalendarQueryPars cqpars;
@@ -86,6 +113,12 @@ public class CaldavReportMethod extends ReportMethod {
   private final static int reportTypeQuery = 0;
   private final static int reportTypeMultiGet = 1;
   private final static int reportTypeFreeBusy = 2;
+  private final static int reportTypeSync = 3;
+
+  /* sync-collection parameters */
+  private String syncToken;
+  private boolean syncRecurse;
+  private int syncLimit = -1;
 
   private int reportType;
 
@@ -116,6 +149,8 @@ public class CaldavReportMethod extends ReportMethod {
 
     if (reportType == reportTypeFreeBusy) {
       processFbResp(req, resp, depth);
+    } else if (reportType == reportTypeSync) {
+      processSyncResp(req, resp);
     } else {
       processResp(req, resp, depth);
     }
@@ -143,6 +178,10 @@ public class CaldavReportMethod extends ReportMethod {
         return reportTypeFreeBusy;
       }
 
+      if (XmlUtil.nodeMatches(root, WebdavTags.syncCollection)) {
+        return reportTypeSync;
+      }
+
       return -1;
     } catch (Throwable t) {
       System.err.println(t.getMessage());
@@ -204,6 +243,78 @@ public class CaldavReportMethod extends ReportMethod {
 
       Element curnode = chiter.next();
 
+      if (reportType == reportTypeSync) {
+        /*
+           <!ELEMENT sync-collection (sync-token, sync-level, limit?, prop)>
+         */
+        if (!XmlUtil.nodeMatches(curnode, WebdavTags.syncToken)) {
+          throw new WebdavBadRequest("Expected sync-token");
+        }
+
+        // Empty for an initial sync
+        syncToken = XmlUtil.getElementContent(curnode);
+        if ((syncToken != null) && (syncToken.length() == 0)) {
+          syncToken = null;
+        }
+
+        if (!chiter.hasNext()) {
+          throw new WebdavBadRequest();
+        }
+
+        curnode = chiter.next();
+
+        if (!XmlUtil.nodeMatches(curnode, WebdavTags.syncLevel)) {
+          throw new WebdavBadRequest("Expected sync-level");
+        }
+
+        String lvl = XmlUtil.getElementContent(curnode);
+
+        if ("infinite".equals(lvl)) {
+          syncRecurse = true;
+        } else if (!"1".equals(lvl)) {
+          throw new WebdavBadRequest("Bad sync-level");
+        }
+
+        if (!chiter.hasNext()) {
+          throw new WebdavBadRequest();
+        }
+
+        curnode = chiter.next();
+
+        if (XmlUtil.nodeMatches(curnode, WebdavTags.limit)) {
+          Element nres = getOnlyChild(curnode);
+
+          if (!XmlUtil.nodeMatches(nres, WebdavTags.nresults)) {
+            throw new WebdavBadRequest("Expected nresults");
+          }
+
+          try {
+            syncLimit = Integer.parseInt(XmlUtil.getElementContent(nres));
+          } catch (NumberFormatException nfe) {
+            throw new WebdavBadRequest("Bad nresults");
+          }
+
+          if (!chiter.hasNext()) {
+            throw new WebdavBadRequest();
+          }
+
+          curnode = chiter.next();
+        }
+
+        preq = pm.tryPropRequest(curnode);
+
+        if ((preq == null) || chiter.hasNext()) {
+          throw new WebdavBadRequest("Expected prop");
+        }
+
+        if (debug) {
+          trace("REPORT: sync-collection token=" + syncToken +
+                " recurse=" + syncRecurse + " limit=" + syncLimit);
+        }
+
+        return;
+      }
+
       if (reportType == reportTypeQuery) {
         /* First try for a property request */
         preq = pm.tryPropRequest(curnode);
@@ -382,7 +493,25 @@ public class CaldavReportMethod extends ReportMethod {
     Collection<WebdavNsNode> nodes = null;
     Collection<String> badHrefs = new ArrayList<String>();
 
-    if (reportType == reportTypeQuery) {
+    final int pageSize = getReportPageSize();
+
+    if (pageSize > 0) {
+      /* Emit each response as it is produced */
+      final ResponseEmitter emitter = new ResponseEmitter(pageSize);
+
+      if (reportType == reportTypeQuery) {
+        doNodeAndChildren(cqp, node, emitter);
+      } else if ((reportType == reportTypeMultiGet) && (hrefs != null)) {
+        for (int i = 0; i < hrefs.size(); i += pageSize) {
+          final List<String> page =
+                  hrefs.subList(i, Math.min(i + pageSize, hrefs.size()));
+
+          for (WebdavNsNode curnode: getMgetNodes(page, badHrefs)) {
+            emitter.node(curnode);
+          }
+        }
+      }
+    } else if (reportType == reportTypeQuery) {
       nodes = doNodeAndChildren(cqp, node);
     } else if (reportType == reportTypeMultiGet) {
       nodes = getMgetNodes(hrefs, badHrefs);
@@ -415,6 +544,54 @@ public class CaldavReportMethod extends ReportMethod {
     flush();
   }
 
+  /** Run a calendar query given as objects rather than as a REPORT
+   * body. Nothing is emitted - the result nodes are handed to the handler
+   * in the order found.
+   *
+   * @param resourceUri target of the query
+   * @param cqp query parameters
+   * @param expand null or the range to expand recurrences over
+   * @param lrs null or the range to limit recurrence sets to
+   * @param projection what the caller will use - null for everything
+   * @param handler called for each result
+   * @throws WebdavException
+   */
+  public void query(final String resourceUri,
+                    final CalendarQueryPars cqp,
+                    final ExpandType expand,
+                    final LimitRecurrenceSetType lrs,
+                    final RetrievalProjection projection,
+                    final NodeHandler handler) throws WebdavException {
+    final WebdavNsNode node = getNsIntf().getNode(resourceUri,
+                                                  WebdavNsIntf.existanceMust,
+                                                  WebdavNsIntf.nodeTypeUnknown,
+                                                  false);
+
+    doNodeAndChildren(cqp, node, expand, lrs, projection, handler);
+  }
+
+  /** As above but the nodes are returned together.
+   *
+   * @param resourceUri target of the query
+   * @param cqp query parameters
+   * @param expand null or the range to expand recurrences over
+   * @param lrs null or the range to limit recurrence sets to
+   * @param projection what the caller will use - null for everything
+   * @return result nodes
+   * @throws WebdavException
+   */
+  public Collection<WebdavNsNode> query(final String resourceUri,
+                                        final CalendarQueryPars cqp,
+                                        final ExpandType expand,
+                                        final LimitRecurrenceSetType lrs,
+                                        final RetrievalProjection projection) throws WebdavException {
+    final NodeCollector nc = new NodeCollector();
+
+    query(resourceUri, cqp, expand, lrs, projection, nc);
+
+    return nc.nodes;
+  }
+
   /** Return collection of nodes specified by list of hrefs.
    *
    * @param hrefs
@@ -431,10 +608,32 @@ public class CaldavReportMethod extends ReportMethod {
       return nodes;
     }
 
+    /* Fetch the entities a collection at a time - anything not found that
+       way is resolved individually below.
+     */
+    final List<String> uris = new ArrayList<String>(hrefs.size());
+
     for (String hr: hrefs) {
-      WebdavNsNode n = null;
+      uris.add(intf.getUri(hr));
+    }
+
+    final Map<String, WebdavNsNode> entityNodes =
+            intf.getEntityNodes(uris, getProjection());
+
+    int i = 0;
+    for (String hr: hrefs) {
+      final String uri = uris.get(i);
+      i++;
+
+      WebdavNsNode n = entityNodes.get(uri);
+
+      if (n != null) {
+        nodes.add(n);
+        continue;
+      }
+
       try {
-        n = intf.getNode(intf.getUri(hr),
+        n = intf.getNode(uri,
                          WebdavNsIntf.existanceMust,
                          WebdavNsIntf.nodeTypeUnknown,
                          false);
@@ -442,11 +641,11 @@ public class CaldavReportMethod extends ReportMethod {
         if (hr.endsWith("/")) {
           n = new CaldavCalNode(intf.getSysi(),
                                 we.getStatusCode(),
-                                intf.getUri(hr));
+                                uri);
         } else {
           n = new CaldavComponentNode(intf.getSysi(),
                                       we.getStatusCode(),
-                                      intf.getUri(hr));
+                                      uri);
         }
       }
 
@@ -462,8 +661,25 @@ public class CaldavReportMethod extends ReportMethod {
 
   protected Collection<WebdavNsNode> doNodeAndChildren(final CalendarQueryPars cqp,
                                     final WebdavNsNode node) throws WebdavException {
+    final NodeCollector nc = new NodeCollector();
+
+    doNodeAndChildren(cqp, node, nc);
+
+    return nc.nodes;
+  }
+
+  /** Run the query, handing each result node to the handler as it is
+   * produced.
+   *
+   * @param cqp query parameters
+   * @param node target of the query
+   * @param handler called for each result
+   * @throws WebdavException
+   */
+  protected void doNodeAndChildren(final CalendarQueryPars cqp,
+                                   final WebdavNsNode node,
+                                   final NodeHandler handler) throws WebdavException {
 
-    List<String> retrieveList = null;
     CalData caldata = null;
 
     if (preq != null) {
@@ -474,88 +690,46 @@ public class CaldavReportMethod extends ReportMethod {
       if (preq.reqType == PropRequest.ReqType.prop) {
         // Look for a calendar-data property
         for (WebdavProperty prop: preq.props) {
-          if (retrieveList == null) {
-            retrieveList = new ArrayList<String>();
-          }
-
           if (prop instanceof CalData) {
             caldata = (CalData)prop;
-          } else if (!addPropname(prop.getTag(),
-                                  retrieveList)) {
-            retrieveList = null;
             break;
           }
         }
       }
     }
 
-    CompType comp = null;
     ExpandType expand = null;
     LimitRecurrenceSetType lrs = null;
 
     if (caldata != null) {
       CalendarDataType cd = caldata.getCalendarData();
-      comp = cd.getComp();
 
       expand = cd.getExpand();
       lrs = cd.getLimitRecurrenceSet();
     }
 
-    /* This isn't ideal - we build a list which is an accumulation of all
-     * properties for all components.
-     */
-    if (comp == null) {
-      if (caldata != null) {
-        // Retrieve everything
-        retrieveList = null;
-      }
-    } else if (comp.getAllcomp() != null) {
-      // Retrieve everything
-      retrieveList = null;
-    } else if (comp.getName().toUpperCase().equals("VCALENDAR")) {
-      // Should have "VACALENDAR" as outer
-
-      if (comp.getComp().isEmpty()) {
-        retrieveList = null;
-      } else {
-        for (CompType calcomp: comp.getComp()) {
-          String nm = calcomp.getName().toUpperCase();
-          if (nm.equals("VEVENT") ||
-              nm.equals("VTODO") ||
-              nm.equals("VJOURNAL") ||
-              nm.equals("VAVAILABILITY")) {
-            if ((calcomp.getAllprop() != null) ||
-                Util.isEmpty(calcomp.getProp())) {
-              retrieveList = null;
-              break;
-            }
-
-            if (retrieveList == null) {
-              retrieveList = new ArrayList<String>();
-            }
-
-            for (PropType p: calcomp.getProp()) {
-              if (!retrieveList.contains(p.getName())) {
-                retrieveList.add(p.getName());
-              }
-            }
-          }
-        }
-      }
-    }
-
-    if (Util.isEmpty(retrieveList)) {
-      retrieveList = null;
-    }
-
-    return doNodeAndChildren(cqp, node, expand, lrs, retrieveList);
+    doNodeAndChildren(cqp, node, expand, lrs, getProjection(),
+                      handler);
   }
 
   protected Collection<WebdavNsNode> doNodeAndChildren(final CalendarQueryPars cqp,
                                     final WebdavNsNode node,
                                     final ExpandType expand,
                                     final LimitRecurrenceSetType lrs,
-                                    final List<String> retrieveList) throws WebdavException {
+                                    final RetrievalProjection projection) throws WebdavException {
+    final NodeCollector nc = new NodeCollector();
+
+    doNodeAndChildren(cqp, node, expand, lrs, projection, nc);
+
+    return nc.nodes;
+  }
+
+  protected void doNodeAndChildren(final CalendarQueryPars cqp,
+                                   final WebdavNsNode node,
+                                   final ExpandType expand,
+                                   final LimitRecurrenceSetType lrs,
+                                   final RetrievalProjection projection,
+                                   final NodeHandler handler) throws WebdavException {
     RetrievalMode rm = null;
 
     if (expand != null) {
@@ -568,31 +742,109 @@ public class CaldavReportMethod extends ReportMethod {
       rm.setLimitRecurrenceSet(lrs);
     }
 
-    return doNodeAndChildren(cqp, node, 0, defaultDepth(cqp.depth, 0),
-                             rm, retrieveList);
+    doNodeAndChildren(cqp, node, 0, defaultDepth(cqp.depth, 0),
+                      rm, projection, handler);
   }
 
   /* ====================================================================
    *                   Private methods
    * ==================================================================== */
 
-  private Collection<WebdavNsNode> doNodeAndChildren(final CalendarQueryPars cqp,
-                                                     final WebdavNsNode node,
-                                       int curDepth,
-                                       final int maxDepth,
-                                       final RetrievalMode rm,
-                                       final List<String> retrieveList) throws WebdavException {
-    if (debug) {
-      trace("doNodeAndChildren: curDepth=" + curDepth +
-            " maxDepth=" + maxDepth + " uri=" + node.getUri());
+  /* Collects the results when we are not streaming */
+  private static class NodeCollector implements NodeHandler {
+    final Collection<WebdavNsNode> nodes = new ArrayList<WebdavNsNode>();
+
+    @Override
+    public void node(final WebdavNsNode node) throws WebdavException {
+      nodes.add(node);
     }
+  }
 
-    Collection<WebdavNsNode> nodes = new ArrayList<WebdavNsNode>();
+  /* Emits the response for each node as it arrives and flushes the
+   * output after every page.
+   */
+  private class ResponseEmitter implements NodeHandler {
+    private final int pageSize;
+    private int count;
 
+    ResponseEmitter(final int pageSize) {
+      this.pageSize = pageSize;
+    }
+
+    @Override
+    public void node(final WebdavNsNode node) throws WebdavException {
+      doNodeProperties(node);
+      count++;
+
+      if ((count % pageSize) == 0) {
+        flush();
+      }
+    }
+  }
+
+  private int getReportPageSize() throws WebdavException {
+    final Integer pageSize = ((CaldavBWIntf)getNsIntf()).getSysi().
+            getSystemProperties().getReportPageSize();
+
+    if (pageSize == null) {
+      return 0;
+    }
+
+    return pageSize;
+  }
+
+  private void doNodeAndChildren(final CalendarQueryPars cqp,
+                                 final WebdavNsNode node,
+                                 final int curDepth,
+                                 final int maxDepth,
+                                 final RetrievalMode rm,
+                                 final RetrievalProjection projection,
+                                 final NodeHandler handler) throws WebdavException {
     if (node instanceof CaldavComponentNode) {
       // Targetted directly at component
-      nodes.add(node);
-      return nodes;
+      handler.node(node);
+      return;
+    }
+
+    /* Find all the targets first so the calendar collections can be
+     * queried together. Output is in the order they were found.
+     */
+    final List<WebdavNsNode> targets = new ArrayList<WebdavNsNode>();
+
+    findTargets(node, curDepth, maxDepth, targets);
+
+    final List<WebdavNsNode> calnodes = new ArrayList<WebdavNsNode>();
+
+    for (WebdavNsNode target: targets) {
+      if (target instanceof CaldavComponentNode) {
+        getNodes(cqp, calnodes, rm, projection, handler);
+        calnodes.clear();
+
+        handler.node(target);
+        continue;
+      }
+
+      calnodes.add(target);
+    }
+
+    getNodes(cqp, calnodes, rm, projection, handler);
+  }
+
+  /* Add to the list the calendar collections and any components within
+   * range of the query.
+   */
+  private void findTargets(final WebdavNsNode node,
+                           int curDepth,
+                           final int maxDepth,
+                           final List<WebdavNsNode> targets) throws WebdavException {
+    if (debug) {
+      trace("findTargets: curDepth=" + curDepth +
+            " maxDepth=" + maxDepth + " uri=" + node.getUri());
+    }
+
+    if (node instanceof CaldavComponentNode) {
+      targets.add(node);
+      return;
     }
 
     if (!(node instanceof CaldavCalNode)) {
@@ -607,47 +859,303 @@ public class CaldavReportMethod extends ReportMethod {
     curDepth++;
 
     if (curDepth > maxDepth) {
-      return nodes;
+      return;
     }
 
     if (calnode.isCalendarCollection()) {
-      return getNodes(cqp, node, rm, retrieveList);
+      targets.add(node);
+      return;
     }
 
     for (WebdavNsNode child: getNsIntf().getChildren(node)) {
-      nodes.addAll(doNodeAndChildren(cqp,
-                                     child,
-                                     curDepth,
-                                     maxDepth,
-                                     rm,
-                                     retrieveList));
+      findTargets(child, curDepth, maxDepth, targets);
     }
-
-    return nodes;
   }
 
-  private Collection<WebdavNsNode> getNodes(final CalendarQueryPars cqp,
-                                            final WebdavNsNode node,
-                                            final RetrievalMode rm,
-                                            final List<String> retrieveList)
+  private void getNodes(final CalendarQueryPars cqp,
+                        final List<WebdavNsNode> nodes,
+                        final RetrievalMode rm,
+                        final RetrievalProjection projection,
+                        final NodeHandler handler)
           throws WebdavException {
+    if (nodes.isEmpty()) {
+      return;
+    }
+
     if (debug) {
-      trace("getNodes: " + node.getUri());
+      trace("getNodes: " + nodes.size() + " collection(s)");
     }
 
     CaldavBWIntf intf = (CaldavBWIntf)getNsIntf();
 
-    return intf.query(node, retrieveList, rm, cqp.filter);
+    intf.query(nodes, projection, rm, cqp.filter, handler);
+  }
+
+  /* Build a description of what the backend needs to retrieve for the
+   * properties requested. Null means everything.
+   */
+  private RetrievalProjection getProjection() {
+    if ((preq == null) || (preq.reqType != PropRequest.ReqType.prop)) {
+      return null;
+    }
+
+    final RetrievalProjection projection = new RetrievalProjection();
+    CalData caldata = null;
+
+    for (WebdavProperty prop: preq.props) {
+      if (prop instanceof CalData) {
+        caldata = (CalData)prop;
+      } else if (!projection.addDavProperty(prop.getTag())) {
+        return null;
+      }
+    }
+
+    if (caldata == null) {
+      // No content required - e.g. just the etag
+      return projection;
+    }
+
+    final CompType comp = caldata.getCalendarData().getComp();
+
+    if ((comp == null) ||
+        (comp.getAllcomp() != null) ||
+        !"VCALENDAR".equals(comp.getName().toUpperCase()) ||
+        comp.getComp().isEmpty()) {
+      // Retrieve everything
+      return null;
+    }
+
+    for (CompType calcomp: comp.getComp()) {
+      if (!addComponent(calcomp, projection)) {
+        return null;
+      }
+    }
+
+    if (debug) {
+      trace("REPORT: " + projection);
+    }
+
+    return projection;
+  }
+
+  /* Add the properties for the component and any subcomponents. Returns
+   * false if we need the whole component.
+   */
+  private boolean addComponent(final CompType comp,
+                               final RetrievalProjection projection) {
+    if ((comp.getAllprop() != null) ||
+        Util.isEmpty(comp.getProp()) ||
+        (comp.getAllcomp() != null)) {
+      return false;
+    }
+
+    for (PropType p: comp.getProp()) {
+      projection.addIcalProperty(comp.getName(), p.getName());
+    }
+
+    for (CompType subcomp: comp.getComp()) {
+      if (!addComponent(subcomp, projection)) {
+        return false;
+      }
+    }
+
+    return true;
+  }
+
+  /** Handle sync-collection response. Items which are deleted, or when
+   * only the etag is requested, are emitted directly from the report
+   * data. Nodes are built only when other properties are requested.
+   *
+   * @param req
+   * @param resp
+   * @throws WebdavException
+   */
+  public void processSyncResp(final HttpServletRequest req,
+                              final HttpServletResponse resp) throws WebdavException {
+    final CaldavBWIntf intf = (CaldavBWIntf)getNsIntf();
+    final String resourceUri = getResourceUri(req);
+
+    final WebdavNsNode node = intf.getNode(resourceUri,
+                                           WebdavNsIntf.existanceMust,
+                                           WebdavNsIntf.nodeTypeCollection,
+                                           false);
+
+    /* The journal holds the token for the collection alone */
+    String journalPath = null;
+    if (!syncRecurse) {
+      journalPath = intf.getJournalPath(node);
+    }
+
+    final ChangeJournal journal = ChangeJournal.getJournal();
+
+    if ((journalPath != null) &&
+        journal.unchangedSince(journalPath, syncToken)) {
+      if (debug) {
+        trace("sync-collection: no change since " + syncToken);
+      }
+
+      resp.setStatus(WebdavStatusCode.SC_MULTI_STATUS);
+      resp.setContentType("text/xml; charset=UTF-8");
+
+      startEmit(resp);
+
+      openTag(WebdavTags.multistatus);
+      property(WebdavTags.syncToken, syncToken);
+      closeTag(WebdavTags.multistatus);
+
+      flush();
+      return;
+    }
+
+    final long seq = journal.getSeq();
+    final int limit = getSyncLimit();
+    final SynchReportData srd =
+            intf.getSysi().getSyncReport(node.getUri(), syncToken,
+                                         limit, syncRecurse);
+
+    if (srd == null) {
+      throw new WebdavForbidden(WebdavTags.validSyncToken);
+    }
+
+    if ((journalPath != null) && !srd.truncated) {
+      journal.setSyncToken(journalPath, srd.token, seq);
+    }
+
+    if (SyncReportPager.page(srd, limit, intf.getSysi()) && debug) {
+      trace("sync-collection truncated at " + srd.items.size() + " items");
+    }
+
+    resp.setStatus(WebdavStatusCode.SC_MULTI_STATUS);
+    resp.setContentType("text/xml; charset=UTF-8");
+
+    startEmit(resp);
+
+    final boolean etagOnly = etagOnly();
+    final UrlHandler urlHandler = intf.getSysi().getUrlHandler();
+    final Map<String, WebdavNsNode> parents =
+            new HashMap<String, WebdavNsNode>();
+
+    openTag(WebdavTags.multistatus);
+
+    if (srd.items != null) {
+      for (SynchReportDataItem srdi: srd.items) {
+        if (!emitSyncItem(srdi, etagOnly, urlHandler)) {
+          doNodeProperties(intf.getSyncNode(srdi, parents));
+        }
+      }
+    }
+
+    if (srd.truncated) {
+      openTag(WebdavTags.response);
+      property(WebdavTags.href, urlHandler.prefix(resourceUri));
+      property(WebdavTags.status,
+               "HTTP/1.1 " + WebdavStatusCode.SC_INSUFFICIENT_STORAGE);
+      openTag(WebdavTags.error);
+      emptyTag(WebdavTags.numberOfMatchesWithinLimits);
+      closeTag(WebdavTags.error);
+      closeTag(WebdavTags.response);
+    }
+
+    if (srd.token != null) {
+      property(WebdavTags.syncToken, srd.token);
+    }
+
+    closeTag(WebdavTags.multistatus);
+
+    flush();
+  }
+
+  /* The smaller of the client and server limits - negative for none */
+  private int getSyncLimit() throws WebdavException {
+    final Integer max = ((CaldavBWIntf)getNsIntf()).getSysi().
+            getSystemProperties().getMaxSyncReportItems();
+
+    if ((max == null) || (max <= 0)) {
+      return syncLimit;
+    }
+
+    if ((syncLimit <= 0) || (syncLimit > max)) {
+      return max;
+    }
+
+    return syncLimit;
+  }
+
+  /* True if the only property requested is the etag */
+  private boolean etagOnly() {
+    if ((preq == null) || (preq.reqType != PropRequest.ReqType.prop)) {
+      return false;
+    }
+
+    for (WebdavProperty prop: preq.props) {
+      if (!prop.getTag().equals(WebdavTags.getetag)) {
+        return false;
+      }
+    }
+
+    return true;
   }
 
-  private boolean addPropname(final QName tag,
-                              final List<String> retrieveList) {
-    if (tag.equals(WebdavTags.getetag)) {
-      retrieveList.add(tag.toString());
-      return true;
+  /* Emit the response for an item without building a node. Returns false
+   * if we need the node.
+   */
+  private boolean emitSyncItem(final SynchReportDataItem srdi,
+                               final boolean etagOnly,
+                               final UrlHandler urlHandler) throws WebdavException {
+    final WdEntity ent;
+    final boolean collection;
+    final boolean deleted;
+
+    if (srdi.getCol() != null) {
+      // Collections may be aliases - let the node sort out the etag
+      if (!srdi.getCol().getDeleted()) {
+        return false;
+      }
+
+      ent = srdi.getCol();
+      collection = true;
+      deleted = true;
+    } else if (srdi.getEntity() != null) {
+      ent = srdi.getEntity();
+      collection = false;
+      deleted = srdi.getEntity().getDeleted();
+    } else if (srdi.getResource() != null) {
+      ent = srdi.getResource();
+      collection = false;
+      deleted = srdi.getResource().getDeleted();
+    } else {
+      throw new WebdavException("Unexpected return type");
+    }
+
+    if (!deleted && !etagOnly) {
+      return false;
+    }
+
+    openTag(WebdavTags.response);
+    /* As the node getSyncNode would have built. Only collections have a
+       trailing slash.
+     */
+    property(WebdavTags.href,
+             CaldavBwNode.getUrlValue(urlHandler,
+                                      Util.buildPath(collection,
+                                                     srdi.getVpath(),
+                                                     "/", ent.getName()),
+                                      true, collection));
+
+    if (deleted) {
+      property(WebdavTags.status, "HTTP/1.1 " + HttpServletResponse.SC_NOT_FOUND);
+    } else {
+      openTag(WebdavTags.propstat);
+      openTag(WebdavTags.prop);
+      property(WebdavTags.getetag, ent.getEtag());
+      closeTag(WebdavTags.prop);
+      property(WebdavTags.status, "HTTP/1.1 " + HttpServletResponse.SC_OK);
+      closeTag(WebdavTags.propstat);
     }
 
-    return false;
+    closeTag(WebdavTags.response);
+
+    return true;
   }
 
   /** Handle free/busy response
@@ -0,0 +1,347 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.caldav.server;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/** A journal of changes made through this server. It holds the latest
+ * sync-token seen for each collection and a ring of recent changes so
+ * that a poll which finds nothing changed need not reach the backend.
+ *
+ * <p>A token is trusted only if no change to the collection, any of its
+ * descendants or any of its ancestors has been recorded since it was
+ * fetched. Changes made other than through this server are not seen here
+ * so tokens are also only trusted for a limited time. When the journal
+ * can't vouch for a token callers go to the backend.
+ */
+public class ChangeJournal implements ChangeJournalMBean {
+  private static final ChangeJournal journal = new ChangeJournal();
+
+  private static final long defaultMaxAge = 10 * 1000;
+
+  private static final int defaultMaxCollections = 10000;
+
+  private static final int ringSize = 4096;
+
+  private static class Change {
+    final long seq;
+    final String path;
+    final long time;
+
+    Change(final long seq, final String path, final long time) {
+      this.seq = seq;
+      this.path = path;
+      this.time = time;
+    }
+  }
+
+  private static class Token {
+    final String token;
+    final long fetched;
+
+    Token(final String token, final long fetched) {
+      this.token = token;
+      this.fetched = fetched;
+    }
+  }
+
+  /* Recent changes - change n is at n % ringSize */
+  private final Change[] ring = new Change[ringSize];
+
+  /* Number of changes ever recorded */
+  private long seq;
+
+  /* Access ordered so iteration starts at the least recently used */
+  private final LinkedHashMap<String, Token> tokens =
+          new LinkedHashMap<String, Token>(256, 0.75f, true);
+
+  private volatile long maxAge = defaultMaxAge;
+
+  private volatile int maxCollections = defaultMaxCollections;
+
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+  private final AtomicLong rejected = new AtomicLong();
+
+  /**
+   * @return the shared journal
+   */
+  public static ChangeJournal getJournal() {
+    return journal;
+  }
+
+  /** Take this before fetching a token from the backend and pass it to
+   * setSyncToken. Any change recorded in between means the token may
+   * already be out of date.
+   *
+   * @return current position in the journal
+   */
+  public synchronized long getSeq() {
+    return seq;
+  }
+
+  /**
+   * @param path of the collection
+   * @return a token we can vouch for or null
+   */
+  public String getSyncToken(final String path) {
+    if ((maxAge <= 0) || (path == null)) {
+      return null;
+    }
+
+    final String key = normalize(path);
+    Token t;
+
+    synchronized (this) {
+      t = tokens.get(key);
+
+      if ((t != null) &&
+          (System.currentTimeMillis() - t.fetched > maxAge)) {
+        tokens.remove(key);
+        t = null;
+      }
+    }
+
+    if (t == null) {
+      misses.incrementAndGet();
+      return null;
+    }
+
+    hits.incrementAndGet();
+    return t.token;
+  }
+
+  /**
+   * @param path of the collection
+   * @param token supplied by a client
+   * @return true if we know nothing has changed since that token. false
+   *         means we don't know.
+   */
+  public boolean unchangedSince(final String path,
+                                final String token) {
+    return (token != null) && token.equals(getSyncToken(path));
+  }
+
+  /** Record a token fetched from the backend.
+   *
+   * @param path of the collection
+   * @param token from the backend
+   * @param fromSeq value of getSeq before the token was fetched
+   */
+  public void setSyncToken(final String path,
+                           final String token,
+                           final long fromSeq) {
+    if ((maxAge <= 0) || (path == null) || (token == null)) {
+      return;
+    }
+
+    final String key = normalize(path);
+
+    synchronized (this) {
+      if (changedSince(key, fromSeq)) {
+        rejected.incrementAndGet();
+        return;
+      }
+
+      tokens.put(key, new Token(token, System.currentTimeMillis()));
+
+      final Iterator<String> it = tokens.keySet().iterator();
+
+      while ((tokens.size() > maxCollections) && it.hasNext()) {
+        it.next();
+        it.remove();
+      }
+    }
+  }
+
+  /** Record a change to a collection or its members. The tokens for the
+   * collection and all its ancestors are dropped.
+   *
+   * @param path of the collection
+   * @param tree true if descendants may also have changed - e.g. the
+   *             collection was deleted or moved.
+   */
+  public void changed(final String path,
+                      final boolean tree) {
+    if (path == null) {
+      return;
+    }
+
+    final String key = normalize(path);
+
+    synchronized (this) {
+      seq++;
+      ring[(int)(seq % ringSize)] =
+              new Change(seq, key, System.currentTimeMillis());
+
+      if (tokens.isEmpty()) {
+        return;
+      }
+
+      String p = key;
+
+      while (true) {
+        tokens.remove(p);
+
+        final int pos = p.lastIndexOf('/');
+        if (pos < 0) {
+          break;
+        }
+
+        p = p.substring(0, pos);
+      }
+
+      if (!tree) {
+        return;
+      }
+
+      final String prefix = key + "/";
+      final Iterator<String> it = tokens.keySet().iterator();
+
+      while (it.hasNext()) {
+        if (it.next().startsWith(prefix)) {
+          it.remove();
+        }
+      }
+    }
+  }
+
+  /* ========================================================================
+   * Attributes
+   * ======================================================================== */
+
+  @Override
+  public void setMaxAge(final long val) {
+    maxAge = val;
+
+    if (val <= 0) {
+      flush();
+    }
+  }
+
+  @Override
+  public long getMaxAge() {
+    return maxAge;
+  }
+
+  @Override
+  public void setMaxCollections(final int val) {
+    maxCollections = val;
+  }
+
+  @Override
+  public int getMaxCollections() {
+    return maxCollections;
+  }
+
+  @Override
+  public synchronized int getEntries() {
+    return tokens.size();
+  }
+
+  @Override
+  public synchronized long getChanges() {
+    return seq;
+  }
+
+  @Override
+  public long getHits() {
+    return hits.get();
+  }
+
+  @Override
+  public long getMisses() {
+    return misses.get();
+  }
+
+  @Override
+  public long getRejected() {
+    return rejected.get();
+  }
+
+  /* ========================================================================
+   * Operations
+   * ======================================================================== */
+
+  @Override
+  public synchronized List<String> recentChanges(final int num) {
+    final List<String> res = new ArrayList<String>();
+
+    for (long s = seq; (s > 0) && (s > seq - ringSize) &&
+            (res.size() < num); s--) {
+      final Change c = ring[(int)(s % ringSize)];
+
+      res.add(c.seq + " " + new Date(c.time) + " " + c.path);
+    }
+
+    return res;
+  }
+
+  @Override
+  public synchronized void flush() {
+    tokens.clear();
+  }
+
+  @Override
+  public void resetCounters() {
+    hits.set(0);
+    misses.set(0);
+    rejected.set(0);
+  }
+
+  /* ========================================================================
+   * Private methods
+   * ======================================================================== */
+
+  /* True if a change recorded after fromSeq may affect the token for the
+   * path. Must be called holding the lock.
+   */
+  private boolean changedSince(final String key,
+                               final long fromSeq) {
+    if (seq - fromSeq >= ringSize) {
+      // Overwritten - we can't tell
+      return true;
+    }
+
+    for (long s = fromSeq + 1; s <= seq; s++) {
+      final String p = ring[(int)(s % ringSize)].path;
+
+      if (p.equals(key) ||
+          p.startsWith(key + "/") ||
+          key.startsWith(p + "/")) {
+        return true;
+      }
+    }
+
+    return false;
+  }
+
+  private static String normalize(final String path) {
+    if (path.endsWith("/")) {
+      return path.substring(0, path.length() - 1);
+    }
+
+    return path;
+  }
+}
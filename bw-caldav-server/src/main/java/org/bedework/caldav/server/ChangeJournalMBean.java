@@ -0,0 +1,109 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.caldav.server;
+
+import org.bedework.util.jmx.MBeanInfo;
+
+import java.util.List;
+
+/** Statistics and control for the journal of changes used to answer
+ * sync-token requests.
+ */
+public interface ChangeJournalMBean {
+  static final String serviceName =
+          "org.bedework.caldav:service=ChangeJournal";
+
+  /* ========================================================================
+   * Attributes
+   * ======================================================================== */
+
+  /**
+   * @param val max time in millis a token from the backend is trusted.
+   *            0 disables the journal.
+   */
+  void setMaxAge(long val);
+
+  /**
+   * @return max time in millis a token from the backend is trusted
+   */
+  @MBeanInfo("Max time in millis a token is trusted without asking the backend - 0 to disable")
+  long getMaxAge();
+
+  /**
+   * @param val max number of collections with a token
+   */
+  void setMaxCollections(int val);
+
+  /**
+   * @return max number of collections with a token
+   */
+  @MBeanInfo("Max number of collections for which a token is held")
+  int getMaxCollections();
+
+  /**
+   * @return number of entries
+   */
+  @MBeanInfo("Number of collections for which a token is held")
+  int getEntries();
+
+  /**
+   * @return changes
+   */
+  @MBeanInfo("Number of changes recorded")
+  long getChanges();
+
+  /**
+   * @return hits
+   */
+  @MBeanInfo("Number of times a token was supplied without asking the backend")
+  long getHits();
+
+  /**
+   * @return misses
+   */
+  @MBeanInfo("Number of times the backend had to be asked for a token")
+  long getMisses();
+
+  /**
+   * @return rejected
+   */
+  @MBeanInfo("Number of tokens not held because of a concurrent change")
+  long getRejected();
+
+  /* ========================================================================
+   * Operations
+   * ======================================================================== */
+
+  /**
+   * @param num max number to list
+   * @return most recent changes first
+   */
+  @MBeanInfo("List the most recent changes")
+  List<String> recentChanges(int num);
+
+  /** Remove all tokens
+   */
+  @MBeanInfo("Remove all tokens")
+  void flush();
+
+  /** Reset the counters
+   */
+  @MBeanInfo("Reset the counters")
+  void resetCounters();
+}
@@ -0,0 +1,425 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.caldav.server;
+
+import org.bedework.caldav.server.sysinterface.SysIntf;
+import org.bedework.webdav.servlet.shared.WebdavException;
+
+import org.apache.commons.codec.binary.Base64;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+/** A cache of DKIM public keys keyed by domain, service and selector.
+ * It holds our own keys, served by the domainkey GET, and, separately, the
+ * key records used to verify inbound signatures - see
+ * CachingKeyRecordRetriever.
+ *
+ * <p>Keys and records are held for the ttl and the absence of a key for the negative
+ * ttl. Only one request loads a given key at a time - any others asking
+ * for it meanwhile wait for that load. Failures are not cached.
+ */
+public class DomainKeyCache implements DomainKeyCacheMBean {
+  private static final DomainKeyCache cache = new DomainKeyCache();
+
+  private static final long defaultTtl = 10 * 60 * 1000;
+
+  private static final long defaultNegativeTtl = 60 * 1000;
+
+  private static final int defaultMaxEntries = 1000;
+
+  /* What we hold - a key or the records for one */
+  interface Cached {
+    /**
+     * @return true if there is nothing usable
+     */
+    boolean isEmpty();
+  }
+
+  /** A key with its base64 encoding */
+  public static class DomainKey implements Cached {
+    private final byte[] key;
+    private final String base64;
+
+    DomainKey(final byte[] key) {
+      this.key = key;
+
+      if ((key == null) || (key.length == 0)) {
+        base64 = null;
+      } else {
+        base64 = new String(Base64.encodeBase64(key));
+      }
+    }
+
+    /**
+     * @return the key - null if refused, empty if there is none
+     */
+    public byte[] getKey() {
+      return key;
+    }
+
+    /**
+     * @return base64 encoded key - null if there is none
+     */
+    public String getBase64() {
+      return base64;
+    }
+
+    /**
+     * @return true if there is no usable key
+     */
+    @Override
+    public boolean isEmpty() {
+      return base64 == null;
+    }
+  }
+
+  /** The TXT records published for a key, as fetched */
+  public static class KeyRecords implements Cached {
+    private final List<String> records;
+
+    KeyRecords(final List<String> records) {
+      if (records == null) {
+        this.records = Collections.emptyList();
+      } else {
+        this.records = Collections.unmodifiableList(
+                new ArrayList<String>(records));
+      }
+    }
+
+    /**
+     * @return the records - never null
+     */
+    public List<String> getRecords() {
+      return records;
+    }
+
+    /**
+     * @return true if there are no records
+     */
+    @Override
+    public boolean isEmpty() {
+      return records.isEmpty();
+    }
+  }
+
+  private static class Entry<T extends Cached> {
+    final FutureTask<T> task;
+
+    /* Set when loaded */
+    volatile long expires = Long.MAX_VALUE;
+
+    Entry(final Callable<T> loader) {
+      task = new FutureTask<T>(loader);
+    }
+
+    boolean expired(final long now) {
+      return now >= expires;
+    }
+  }
+
+  private final ConcurrentHashMap<String, Entry<DomainKey>> keys =
+          new ConcurrentHashMap<String, Entry<DomainKey>>();
+
+  private final ConcurrentHashMap<String, Entry<KeyRecords>> records =
+          new ConcurrentHashMap<String, Entry<KeyRecords>>();
+
+  private volatile long ttl = defaultTtl;
+
+  private volatile long negativeTtl = defaultNegativeTtl;
+
+  private volatile int maxEntries = defaultMaxEntries;
+
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+  private final AtomicLong negativeHits = new AtomicLong();
+  private final AtomicLong waits = new AtomicLong();
+
+  /**
+   * @return the shared cache
+   */
+  public static DomainKeyCache getCache() {
+    return cache;
+  }
+
+  /** Get the key from the system interface if not held.
+   *
+   * @param sysi system interface
+   * @param domain the key is for
+   * @param service the key is for
+   * @return the key
+   * @throws WebdavException
+   */
+  public DomainKey getPublicKey(final SysIntf sysi,
+                                final String domain,
+                                final String service) throws WebdavException {
+    return get(domain, service, null, new Callable<byte[]>() {
+      @Override
+      public byte[] call() throws Exception {
+        return sysi.getPublicKey(domain, service);
+      }
+    });
+  }
+
+  /**
+   * @param domain the key is for
+   * @param service the key is for
+   * @param selector the key is for - may be null
+   * @param loader called to fetch a key not held. May return null or an
+   *               empty key
+   * @return the key
+   * @throws WebdavException
+   */
+  public DomainKey get(final String domain,
+                       final String service,
+                       final String selector,
+                       final Callable<byte[]> loader) throws WebdavException {
+    return get(keys, domain + "\t" + service + "\t" + selector,
+               new Callable<DomainKey>() {
+      @Override
+      public DomainKey call() throws Exception {
+        return new DomainKey(loader.call());
+      }
+    });
+  }
+
+  /**
+   * @param domain the records are for
+   * @param methodAndOptions used to fetch them, e.g. "dns/txt"
+   * @param selector the records are for
+   * @param loader called to fetch records not held. May return null or
+   *               an empty list if there are none
+   * @return the records
+   * @throws WebdavException
+   */
+  public KeyRecords getRecords(final String domain,
+                               final String methodAndOptions,
+                               final String selector,
+                               final Callable<List<String>> loader)
+          throws WebdavException {
+    return get(records, domain + "\t" + methodAndOptions + "\t" + selector,
+               new Callable<KeyRecords>() {
+      @Override
+      public KeyRecords call() throws Exception {
+        return new KeyRecords(loader.call());
+      }
+    });
+  }
+
+  /* ========================================================================
+   * Attributes
+   * ======================================================================== */
+
+  @Override
+  public void setTtl(final long val) {
+    ttl = val;
+
+    if (val <= 0) {
+      flush();
+    }
+  }
+
+  @Override
+  public long getTtl() {
+    return ttl;
+  }
+
+  @Override
+  public void setNegativeTtl(final long val) {
+    negativeTtl = val;
+  }
+
+  @Override
+  public long getNegativeTtl() {
+    return negativeTtl;
+  }
+
+  @Override
+  public void setMaxEntries(final int val) {
+    maxEntries = val;
+  }
+
+  @Override
+  public int getMaxEntries() {
+    return maxEntries;
+  }
+
+  @Override
+  public int getEntries() {
+    return keys.size() + records.size();
+  }
+
+  @Override
+  public long getHits() {
+    return hits.get();
+  }
+
+  @Override
+  public long getMisses() {
+    return misses.get();
+  }
+
+  @Override
+  public long getNegativeHits() {
+    return negativeHits.get();
+  }
+
+  @Override
+  public long getWaits() {
+    return waits.get();
+  }
+
+  /* ========================================================================
+   * Operations
+   * ======================================================================== */
+
+  @Override
+  public void flush() {
+    keys.clear();
+    records.clear();
+  }
+
+  @Override
+  public void resetCounters() {
+    hits.set(0);
+    misses.set(0);
+    negativeHits.set(0);
+    waits.set(0);
+  }
+
+  /* ========================================================================
+   * Private methods
+   * ======================================================================== */
+
+  private <T extends Cached> T get(final ConcurrentHashMap<String, Entry<T>> entries,
+                                   final String k,
+                                   final Callable<T> loader)
+          throws WebdavException {
+    if (ttl <= 0) {
+      misses.incrementAndGet();
+      return load(new Entry<T>(loader));
+    }
+
+    while (true) {
+      final long now = System.currentTimeMillis();
+      final Entry<T> e = entries.get(k);
+
+      if ((e != null) && !e.expired(now)) {
+        if (!e.task.isDone()) {
+          waits.incrementAndGet();
+        }
+
+        final T val = result(e);
+
+        if (val.isEmpty()) {
+          negativeHits.incrementAndGet();
+        } else {
+          hits.incrementAndGet();
+        }
+
+        return val;
+      }
+
+      final Entry<T> ne = new Entry<T>(loader);
+
+      final boolean ours;
+      if (e == null) {
+        ours = entries.putIfAbsent(k, ne) == null;
+      } else {
+        ours = entries.replace(k, e, ne);
+      }
+
+      if (!ours) {
+        // Somebody else got in first
+        continue;
+      }
+
+      misses.incrementAndGet();
+
+      try {
+        final T val = load(ne);
+
+        if (val.isEmpty()) {
+          ne.expires = System.currentTimeMillis() + negativeTtl;
+        } else {
+          ne.expires = System.currentTimeMillis() + ttl;
+        }
+
+        trim(entries);
+
+        return val;
+      } catch (final WebdavException we) {
+        entries.remove(k, ne);
+        throw we;
+      }
+    }
+  }
+
+  private <T extends Cached> T load(final Entry<T> e) throws WebdavException {
+    e.task.run();
+
+    return result(e);
+  }
+
+  private <T extends Cached> T result(final Entry<T> e) throws WebdavException {
+    try {
+      return e.task.get();
+    } catch (final InterruptedException ie) {
+      Thread.currentThread().interrupt();
+      throw new WebdavException(ie);
+    } catch (final ExecutionException ee) {
+      final Throwable t = ee.getCause();
+
+      if (t instanceof WebdavException) {
+        throw (WebdavException)t;
+      }
+
+      throw new WebdavException(t);
+    }
+  }
+
+  /* Drop expired entries once we have too many - everything if that
+   * isn't enough.
+   */
+  private <T extends Cached> void trim(final ConcurrentHashMap<String, Entry<T>> entries) {
+    if (entries.size() <= maxEntries) {
+      return;
+    }
+
+    final long now = System.currentTimeMillis();
+    final Iterator<Entry<T>> it = entries.values().iterator();
+
+    while (it.hasNext()) {
+      if (it.next().expired(now)) {
+        it.remove();
+      }
+    }
+
+    if (entries.size() > maxEntries) {
+      entries.clear();
+    }
+  }
+}
@@ -0,0 +1,109 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.caldav.server;
+
+import org.bedework.util.jmx.MBeanInfo;
+
+/** Statistics and control for the cache of DKIM public keys.
+ */
+public interface DomainKeyCacheMBean {
+  static final String serviceName =
+          "org.bedework.caldav:service=DomainKeyCache";
+
+  /* ========================================================================
+   * Attributes
+   * ======================================================================== */
+
+  /**
+   * @param val millis a key is held. 0 disables the cache.
+   */
+  void setTtl(long val);
+
+  /**
+   * @return millis a key is held
+   */
+  @MBeanInfo("Millis a key is held - 0 to disable the cache")
+  long getTtl();
+
+  /**
+   * @param val millis the absence of a key is held
+   */
+  void setNegativeTtl(long val);
+
+  /**
+   * @return millis the absence of a key is held
+   */
+  @MBeanInfo("Millis the absence of a key is remembered")
+  long getNegativeTtl();
+
+  /**
+   * @param val max number of keys, and of key records, held
+   */
+  void setMaxEntries(int val);
+
+  /**
+   * @return max number of keys, and of key records, held
+   */
+  @MBeanInfo("Max number of keys, and of key records, held")
+  int getMaxEntries();
+
+  /**
+   * @return number of entries
+   */
+  @MBeanInfo("Number of keys and key records held")
+  int getEntries();
+
+  /**
+   * @return hits
+   */
+  @MBeanInfo("Number of times a held key was used")
+  long getHits();
+
+  /**
+   * @return misses
+   */
+  @MBeanInfo("Number of times a key had to be loaded")
+  long getMisses();
+
+  /**
+   * @return negative hits
+   */
+  @MBeanInfo("Number of times a held absence of a key was used")
+  long getNegativeHits();
+
+  /**
+   * @return waits
+   */
+  @MBeanInfo("Number of times a request waited for another to load a key")
+  long getWaits();
+
+  /* ========================================================================
+   * Operations
+   * ======================================================================== */
+
+  /** Remove all keys
+   */
+  @MBeanInfo("Remove all keys")
+  void flush();
+
+  /** Reset the counters
+   */
+  @MBeanInfo("Reset the counters")
+  void resetCounters();
+}
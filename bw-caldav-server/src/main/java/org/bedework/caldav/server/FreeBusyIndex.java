@@ -0,0 +1,781 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.caldav.server;
+
+import org.bedework.access.AccessPrincipal;
+import org.bedework.caldav.server.sysinterface.SysIntf;
+import org.bedework.caldav.util.freebusy.BusyIntervals;
+import org.bedework.caldav.util.freebusy.FreeBusyAggregator;
+import org.bedework.webdav.servlet.shared.WebdavException;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
+
+/** An index of free-busy time held as bitmaps of fixed length slots, one
+ * set of words per day for each FBTYPE along with a set marking the slots
+ * we know about. It is filled from the results of backend free-busy
+ * requests and used to answer later requests which fall entirely within
+ * known slots.
+ *
+ * <p>Busy time is rounded out to whole slots. Entries are keyed by the
+ * requesting principal as well as the subject so that we never hand out
+ * anything the backend has not already allowed that requester to see.
+ *
+ * <p>A slot can't be made free again without knowing everything else
+ * that overlaps it so a change to a collection drops every entry for its
+ * owner or covering its path. The next request goes to the backend and
+ * fills the index again. Changes made other than through this server are
+ * not seen so entries are also only used for a limited time and
+ * invalidate may be called when the backend knows better.
+ */
+public class FreeBusyIndex implements FreeBusyIndexMBean {
+  private static final FreeBusyIndex index = new FreeBusyIndex();
+
+  /** Length of a slot */
+  public static final long slotMillis = 15 * 60 * 1000;
+
+  private static final long millisPerDay = 24L * 60 * 60 * 1000;
+
+  private static final int slotsPerDay = (int)(millisPerDay / slotMillis);
+
+  private static final int wordsPerDay = (slotsPerDay + 63) / 64;
+
+  /* Known slots first then one set of words for each busy type */
+  private static final int knownOffset = 0;
+
+  private static final int dayWords =
+          wordsPerDay * BusyIntervals.numFbtypes;
+
+  /* Array plus its map entry and boxed key - roughly */
+  private static final long bytesPerDay = 16 + 8 * dayWords + 64;
+
+  private static final long bytesPerEntry = 256;
+
+  private static final long defaultMaxAge = 0;
+
+  private static final int defaultMaxEntries = 5000;
+
+  private static final int ringSize = 1024;
+
+  /* Longer periods are neither indexed nor answered */
+  private static final long maxSlots = 366L * slotsPerDay;
+
+  private static final String prodid = "-//Bedework//CalDAV Server//EN";
+
+  private static class Entry {
+    final String owner;
+    final String path;
+    final long fetched;
+
+    final Map<Long, long[]> days = new HashMap<Long, long[]>();
+
+    Entry(final String owner, final String path, final long fetched) {
+      this.owner = owner;
+      this.path = path;
+      this.fetched = fetched;
+    }
+
+    boolean affectedBy(final String changedOwner,
+                       final String changedPath) {
+      if ((changedOwner != null) && changedOwner.equals(owner)) {
+        return true;
+      }
+
+      return (changedPath != null) && (path != null) &&
+              (changedPath.equals(path) ||
+                       changedPath.startsWith(path + "/") ||
+                       path.startsWith(changedPath + "/"));
+    }
+  }
+
+  private static class Change {
+    final String owner;
+    final String path;
+
+    Change(final String owner, final String path) {
+      this.owner = owner;
+      this.path = path;
+    }
+  }
+
+  /* Access ordered so iteration starts at the least recently used */
+  private final LinkedHashMap<String, Entry> entries =
+          new LinkedHashMap<String, Entry>(256, 0.75f, true);
+
+  /* Recent changes - change n is at n % ringSize */
+  private final Change[] ring = new Change[ringSize];
+
+  private long seq;
+
+  private long days;
+
+  private volatile long maxAge = defaultMaxAge;
+
+  private volatile int maxEntries = defaultMaxEntries;
+
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+  private final AtomicLong invalidations = new AtomicLong();
+
+  /**
+   * @return the shared index
+   */
+  public static FreeBusyIndex getIndex() {
+    return index;
+  }
+
+  /**
+   * @return true if the index is in use
+   */
+  public boolean getEnabled() {
+    return maxAge > 0;
+  }
+
+  /** Take this before asking the backend for free-busy and pass it to
+   * add. A relevant change recorded in between means the result may
+   * already be out of date.
+   *
+   * @return current position in the list of changes
+   */
+  public synchronized long getSeq() {
+    return seq;
+  }
+
+  /**
+   * @param sysi for the request
+   * @return the key for the requesting principal
+   * @throws WebdavException
+   */
+  public static String getRequester(final SysIntf sysi) throws WebdavException {
+    final AccessPrincipal p = sysi.getPrincipal();
+
+    if (p == null) {
+      return "";
+    }
+
+    return p.getPrincipalRef();
+  }
+
+  /**
+   * @param requester from getRequester
+   * @param subject calendar user address or collection
+   * @param start millis UTC
+   * @param end millis UTC - exclusive
+   * @return busy time or null if the index can't answer
+   */
+  public BusyIntervals getBusy(final String requester,
+                               final String subject,
+                               final long start,
+                               final long end) {
+    if ((maxAge <= 0) || (start >= end)) {
+      return null;
+    }
+
+    final long firstSlot = Math.floorDiv(start, slotMillis);
+    final long lastSlot = Math.floorDiv(end - 1, slotMillis);
+
+    if (lastSlot - firstSlot >= maxSlots) {
+      return null;
+    }
+
+    final BusyIntervals[] byType =
+            new BusyIntervals[BusyIntervals.numFbtypes];
+
+    synchronized (this) {
+      final String key = key(requester, subject);
+      final Entry e = entries.get(key);
+
+      if (e == null) {
+        misses.incrementAndGet();
+        return null;
+      }
+
+      if (System.currentTimeMillis() - e.fetched > maxAge) {
+        remove(key);
+        misses.incrementAndGet();
+        return null;
+      }
+
+      /* Walk the slots - each busy type builds its own sorted runs */
+      final long[] runStart = new long[BusyIntervals.numFbtypes];
+      final boolean[] inRun = new boolean[BusyIntervals.numFbtypes];
+      long[] words = null;
+      long wordsDay = Long.MIN_VALUE;
+
+      for (long slot = firstSlot; slot <= lastSlot + 1; slot++) {
+        if (slot <= lastSlot) {
+          final long day = Math.floorDiv(slot, slotsPerDay);
+
+          if (day != wordsDay) {
+            words = e.days.get(day);
+            wordsDay = day;
+          }
+
+          if ((words == null) ||
+              !isSet(words, knownOffset, slot)) {
+            misses.incrementAndGet();
+            return null;
+          }
+        }
+
+        for (int t = 1; t < BusyIntervals.numFbtypes; t++) {
+          final boolean busy = (slot <= lastSlot) &&
+                  isSet(words, t * wordsPerDay, slot);
+
+          if (busy) {
+            if (!inRun[t]) {
+              runStart[t] = slot;
+              inRun[t] = true;
+            }
+            continue;
+          }
+
+          if (inRun[t]) {
+            if (byType[t] == null) {
+              byType[t] = new BusyIntervals();
+            }
+
+            byType[t].add(Math.max(start, runStart[t] * slotMillis),
+                          Math.min(end, slot * slotMillis),
+                          t);
+            inRun[t] = false;
+          }
+        }
+      }
+    }
+
+    hits.incrementAndGet();
+
+    final FreeBusyAggregator agg = new FreeBusyAggregator(start, end);
+
+    for (final BusyIntervals bi: byType) {
+      agg.add(bi);
+    }
+
+    return agg.aggregate();
+  }
+
+  /** Add the result of a backend request. Only slots wholly inside the
+   * range become known.
+   *
+   * @param requester from getRequester
+   * @param subject calendar user address or collection
+   * @param owner href of the principal whose changes affect the result -
+   *              may be null
+   * @param path of the collection whose changes affect the result - may
+   *             be null
+   * @param start millis UTC
+   * @param end millis UTC - exclusive
+   * @param busy from the backend
+   * @param fromSeq value of getSeq before the backend was asked
+   */
+  public void add(final String requester,
+                  final String subject,
+                  final String owner,
+                  final String path,
+                  final long start,
+                  final long end,
+                  final BusyIntervals busy,
+                  final long fromSeq) {
+    if ((maxAge <= 0) || ((owner == null) && (path == null))) {
+      return;
+    }
+
+    final long firstSlot = -Math.floorDiv(-start, slotMillis);
+    final long endSlot = Math.floorDiv(end, slotMillis);
+
+    if ((firstSlot >= endSlot) || (endSlot - firstSlot > maxSlots)) {
+      return;
+    }
+
+    synchronized (this) {
+      if (changedSince(owner, path, fromSeq)) {
+        return;
+      }
+
+      final String key = key(requester, subject);
+      Entry e = entries.get(key);
+
+      if ((e == null) ||
+          (System.currentTimeMillis() - e.fetched > maxAge)) {
+        remove(key);
+        e = new Entry(owner, path, System.currentTimeMillis());
+        entries.put(key, e);
+      }
+
+      set(e, firstSlot, endSlot, knownOffset);
+
+      for (int i = 0; i < busy.size(); i++) {
+        final long from = Math.max(firstSlot,
+                                   Math.floorDiv(busy.getStart(i),
+                                                 slotMillis));
+        final long to = Math.min(endSlot,
+                                 Math.floorDiv(busy.getEnd(i) - 1,
+                                               slotMillis) + 1);
+
+        if (from < to) {
+          set(e, from, to, busy.getFbtype(i) * wordsPerDay);
+        }
+      }
+
+      final Iterator<String> it = entries.keySet().iterator();
+
+      while ((entries.size() > maxEntries) && it.hasNext()) {
+        final String k = it.next();
+
+        if (k.equals(key)) {
+          continue;
+        }
+
+        days -= entries.get(k).days.size();
+        it.remove();
+      }
+    }
+  }
+
+  /** Add the result of a backend request as iCalendar text. Anything we
+   * can't parse is left out of the index.
+   *
+   * @param requester from getRequester
+   * @param subject calendar user address or collection
+   * @param owner href of the principal whose changes affect the result -
+   *              may be null
+   * @param path of the collection whose changes affect the result - may
+   *             be null
+   * @param start millis UTC
+   * @param end millis UTC - exclusive
+   * @param ical containing a VFREEBUSY
+   * @param fromSeq value of getSeq before the backend was asked
+   */
+  public void add(final String requester,
+                  final String subject,
+                  final String owner,
+                  final String path,
+                  final long start,
+                  final long end,
+                  final String ical,
+                  final long fromSeq) {
+    final BusyIntervals busy;
+
+    try {
+      busy = parseFreeBusy(ical);
+    } catch (final IllegalArgumentException iae) {
+      return;
+    }
+
+    add(requester, subject, owner, path, start, end, busy, fromSeq);
+  }
+
+  /** Record a change to a collection or its members.
+   *
+   * @param owner href of the owner of the collection - may be null
+   * @param path of the collection - may be null
+   * @return number of entries dropped
+   */
+  public int changed(final String owner,
+                     final String path) {
+    if ((owner == null) && (path == null)) {
+      return 0;
+    }
+
+    final String p;
+    if ((path != null) && path.endsWith("/")) {
+      p = path.substring(0, path.length() - 1);
+    } else {
+      p = path;
+    }
+
+    int dropped = 0;
+
+    synchronized (this) {
+      seq++;
+      ring[(int)(seq % ringSize)] = new Change(owner, p);
+
+      final Iterator<Entry> it = entries.values().iterator();
+
+      while (it.hasNext()) {
+        final Entry e = it.next();
+
+        if (e.affectedBy(owner, p)) {
+          days -= e.days.size();
+          it.remove();
+          dropped++;
+        }
+      }
+    }
+
+    invalidations.addAndGet(dropped);
+
+    return dropped;
+  }
+
+  /* ========================================================================
+   * iCalendar text
+   * ======================================================================== */
+
+  /** Extract the FREEBUSY properties from an iCalendar object.
+   *
+   * @param ical text
+   * @return busy time
+   * @throws IllegalArgumentException for a malformed period
+   */
+  public static BusyIntervals parseFreeBusy(final String ical) {
+    final BusyIntervals res = new BusyIntervals();
+
+    for (final String line: unfold(ical)) {
+      if (!line.regionMatches(true, 0, "FREEBUSY", 0, 8) ||
+          (line.length() < 9) ||
+          ((line.charAt(8) != ':') && (line.charAt(8) != ';'))) {
+        continue;
+      }
+
+      final int colon = valueStart(line);
+      if (colon < 0) {
+        continue;
+      }
+
+      res.addFreeBusy(getParameter(line.substring(8, colon), "FBTYPE"),
+                      line.substring(colon + 1));
+    }
+
+    return res;
+  }
+
+  /**
+   * @param ical text
+   * @param name of property
+   * @return value of the first property with that name or null
+   */
+  public static String getPropertyValue(final String ical,
+                                        final String name) {
+    for (final String line: unfold(ical)) {
+      if (!line.regionMatches(true, 0, name, 0, name.length()) ||
+          (line.length() <= name.length())) {
+        continue;
+      }
+
+      final char c = line.charAt(name.length());
+      if ((c != ':') && (c != ';')) {
+        continue;
+      }
+
+      final int colon = valueStart(line);
+      if (colon >= 0) {
+        return line.substring(colon + 1);
+      }
+    }
+
+    return null;
+  }
+
+  /** Build a VCALENDAR containing a single VFREEBUSY.
+   *
+   * @param method e.g. REPLY - null for none
+   * @param uid null to generate one
+   * @param organizer may be null
+   * @param attendee may be null
+   * @param start millis UTC
+   * @param end millis UTC
+   * @param busy busy time
+   * @return iCalendar text
+   */
+  public static String toVfreebusy(final String method,
+                                   final String uid,
+                                   final String organizer,
+                                   final String attendee,
+                                   final long start,
+                                   final long end,
+                                   final BusyIntervals busy) {
+    final StringBuilder sb = new StringBuilder(256 + busy.size() * 64);
+
+    sb.append("BEGIN:VCALENDAR\r\n");
+    property(sb, "VERSION", "2.0");
+    property(sb, "PRODID", prodid);
+    property(sb, "METHOD", method);
+    sb.append("BEGIN:VFREEBUSY\r\n");
+
+    if (uid == null) {
+      property(sb, "UID", UUID.randomUUID().toString());
+    } else {
+      property(sb, "UID", uid);
+    }
+
+    utcProperty(sb, "DTSTAMP", System.currentTimeMillis());
+    utcProperty(sb, "DTSTART", start);
+    utcProperty(sb, "DTEND", end);
+    property(sb, "ORGANIZER", organizer);
+    property(sb, "ATTENDEE", attendee);
+
+    try {
+      busy.writeFreeBusy(sb);
+    } catch (final java.io.IOException ignored) {
+      // Not for a StringBuilder
+    }
+
+    sb.append("END:VFREEBUSY\r\n");
+    sb.append("END:VCALENDAR\r\n");
+
+    return sb.toString();
+  }
+
+  /* ========================================================================
+   * Attributes
+   * ======================================================================== */
+
+  @Override
+  public void setMaxAge(final long val) {
+    maxAge = val;
+
+    if (val <= 0) {
+      flush();
+    }
+  }
+
+  @Override
+  public long getMaxAge() {
+    return maxAge;
+  }
+
+  @Override
+  public void setMaxEntries(final int val) {
+    maxEntries = val;
+  }
+
+  @Override
+  public int getMaxEntries() {
+    return maxEntries;
+  }
+
+  @Override
+  public synchronized int getEntries() {
+    return entries.size();
+  }
+
+  @Override
+  public synchronized long getDays() {
+    return days;
+  }
+
+  @Override
+  public synchronized long getMemory() {
+    return entries.size() * bytesPerEntry + days * bytesPerDay;
+  }
+
+  @Override
+  public long getHits() {
+    return hits.get();
+  }
+
+  @Override
+  public long getMisses() {
+    return misses.get();
+  }
+
+  @Override
+  public long getHitRate() {
+    final long h = hits.get();
+    final long total = h + misses.get();
+
+    if (total == 0) {
+      return 0;
+    }
+
+    return (h * 100) / total;
+  }
+
+  @Override
+  public long getInvalidations() {
+    return invalidations.get();
+  }
+
+  /* ========================================================================
+   * Operations
+   * ======================================================================== */
+
+  @Override
+  public int invalidate(final String principalHref) {
+    return changed(principalHref, null);
+  }
+
+  @Override
+  public synchronized void flush() {
+    entries.clear();
+    days = 0;
+  }
+
+  @Override
+  public void resetCounters() {
+    hits.set(0);
+    misses.set(0);
+    invalidations.set(0);
+  }
+
+  /* ========================================================================
+   * Private methods
+   * ======================================================================== */
+
+  private static String key(final String requester,
+                            final String subject) {
+    return requester + "\t" + subject;
+  }
+
+  /* Must be called holding the lock */
+  private void remove(final String key) {
+    final Entry e = entries.remove(key);
+
+    if (e != null) {
+      days -= e.days.size();
+    }
+  }
+
+  /* True if a change recorded after fromSeq may affect a result. Must be
+   * called holding the lock.
+   */
+  private boolean changedSince(final String owner,
+                               final String path,
+                               final long fromSeq) {
+    if (seq - fromSeq >= ringSize) {
+      // Overwritten - we can't tell
+      return true;
+    }
+
+    final Entry probe = new Entry(owner, path, 0);
+
+    for (long s = fromSeq + 1; s <= seq; s++) {
+      final Change c = ring[(int)(s % ringSize)];
+
+      if (probe.affectedBy(c.owner, c.path)) {
+        return true;
+      }
+    }
+
+    return false;
+  }
+
+  /* Set the bits for slots from to to - exclusive - in the words at
+   * offset. Must be called holding the lock.
+   */
+  private void set(final Entry e,
+                   final long from,
+                   final long to,
+                   final int offset) {
+    long[] words = null;
+    long wordsDay = Long.MIN_VALUE;
+
+    for (long slot = from; slot < to; slot++) {
+      final long day = Math.floorDiv(slot, slotsPerDay);
+
+      if (day != wordsDay) {
+        words = e.days.get(day);
+
+        if (words == null) {
+          words = new long[dayWords];
+          e.days.put(day, words);
+          days++;
+        }
+
+        wordsDay = day;
+      }
+
+      final int s = (int)Math.floorMod(slot, (long)slotsPerDay);
+      words[offset + s / 64] |= 1L << (s % 64);
+    }
+  }
+
+  private static boolean isSet(final long[] words,
+                               final int offset,
+                               final long slot) {
+    final int s = (int)Math.floorMod(slot, (long)slotsPerDay);
+
+    return (words[offset + s / 64] & (1L << (s % 64))) != 0;
+  }
+
+  private static String[] unfold(final String ical) {
+    return ical.replace("\r\n", "\n")
+               .replace("\n ", "")
+               .replace("\n\t", "")
+               .split("\n");
+  }
+
+  /* Index of the colon separating the value - skipping quoted parameter
+   * values.
+   */
+  private static int valueStart(final String line) {
+    boolean quoted = false;
+
+    for (int i = 0; i < line.length(); i++) {
+      final char c = line.charAt(i);
+
+      if (c == '"') {
+        quoted = !quoted;
+      } else if ((c == ':') && !quoted) {
+        return i;
+      }
+    }
+
+    return -1;
+  }
+
+  private static String getParameter(final String params,
+                                     final String name) {
+    for (final String par: params.split(";")) {
+      final int eq = par.indexOf('=');
+
+      if ((eq > 0) && par.substring(0, eq).equalsIgnoreCase(name)) {
+        return par.substring(eq + 1);
+      }
+    }
+
+    return null;
+  }
+
+  private static void utcProperty(final StringBuilder sb,
+                                  final String name,
+                                  final long val) {
+    sb.append(name);
+    sb.append(':');
+    BusyIntervals.appendUtc(sb, val);
+    sb.append("\r\n");
+  }
+
+  /* Append a property folding at 75 characters */
+  private static void property(final StringBuilder sb,
+                               final String name,
+                               final String val) {
+    if (val == null) {
+      return;
+    }
+
+    final String line = name + ":" + val;
+    int pos = 0;
+
+    while (line.length() - pos > 75) {
+      sb.append(line, pos, pos + 75);
+      sb.append("\r\n ");
+      pos += 75;
+    }
+
+    sb.append(line, pos, line.length());
+    sb.append("\r\n");
+  }
+}
@@ -0,0 +1,119 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.caldav.server;
+
+import org.bedework.util.jmx.MBeanInfo;
+
+/** Statistics and control for the index of free-busy slots.
+ */
+public interface FreeBusyIndexMBean {
+  static final String serviceName =
+          "org.bedework.caldav:service=FreeBusyIndex";
+
+  /* ========================================================================
+   * Attributes
+   * ======================================================================== */
+
+  /**
+   * @param val max time in millis indexed free-busy is used. 0 disables
+   *            the index.
+   */
+  void setMaxAge(long val);
+
+  /**
+   * @return max time in millis indexed free-busy is used
+   */
+  @MBeanInfo("Max time in millis indexed free-busy is used without asking the backend - 0 to disable")
+  long getMaxAge();
+
+  /**
+   * @param val max number of indexed subjects
+   */
+  void setMaxEntries(int val);
+
+  /**
+   * @return max number of indexed subjects
+   */
+  @MBeanInfo("Max number of principals or collections indexed")
+  int getMaxEntries();
+
+  /**
+   * @return number of entries
+   */
+  @MBeanInfo("Number of principals or collections indexed")
+  int getEntries();
+
+  /**
+   * @return number of days
+   */
+  @MBeanInfo("Number of days indexed over all entries")
+  long getDays();
+
+  /**
+   * @return approximate memory used
+   */
+  @MBeanInfo("Approximate memory in bytes used by the index")
+  long getMemory();
+
+  /**
+   * @return hits
+   */
+  @MBeanInfo("Number of free-busy requests answered from the index")
+  long getHits();
+
+  /**
+   * @return misses
+   */
+  @MBeanInfo("Number of free-busy requests passed to the backend")
+  long getMisses();
+
+  /**
+   * @return hit rate
+   */
+  @MBeanInfo("Percentage of free-busy requests answered from the index")
+  long getHitRate();
+
+  /**
+   * @return invalidations
+   */
+  @MBeanInfo("Number of entries dropped because of a change")
+  long getInvalidations();
+
+  /* ========================================================================
+   * Operations
+   * ======================================================================== */
+
+  /** Drop everything indexed for a principal
+   *
+   * @param principalHref of the principal
+   * @return number of entries dropped
+   */
+  @MBeanInfo("Drop everything indexed for a principal")
+  int invalidate(String principalHref);
+
+  /** Remove all entries
+   */
+  @MBeanInfo("Remove all entries")
+  void flush();
+
+  /** Reset the counters
+   */
+  @MBeanInfo("Reset the counters")
+  void resetCounters();
+}
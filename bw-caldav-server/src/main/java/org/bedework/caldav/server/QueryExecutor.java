@@ -0,0 +1,232 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.caldav.server;
+
+import org.bedework.webdav.servlet.shared.WebdavException;
+
+import java.lang.reflect.Method;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/** Runs a number of backend fetches for a single request concurrently.
+ *
+ * <p>The threads are shared by all requests. Virtual threads are used if
+ * the runtime has them, otherwise a fixed pool of daemon threads. Each
+ * request limits itself to a number of outstanding fetches and results
+ * are always handed back in the order the fetches were supplied so the
+ * output is the same as if they had been run one at a time.
+ */
+public class QueryExecutor {
+  /** Called on the requesting thread with each result in turn
+   *
+   * @param <T> result type
+   */
+  public interface ResultHandler<T> {
+    /**
+     * @param val result of a fetch
+     * @throws WebdavException
+     */
+    void result(T val) throws WebdavException;
+  }
+
+  private static final int poolSize =
+          Math.max(8, 4 * Runtime.getRuntime().availableProcessors());
+
+  private static ExecutorService executor;
+
+  /* Set while one of our threads is running a fetch. A fetch which itself
+   * asks for concurrent work runs it inline rather than wait on the pool
+   * it is occupying.
+   */
+  private static final ThreadLocal<Boolean> onPool = new ThreadLocal<>();
+
+  private QueryExecutor() {
+  }
+
+  /** Run the fetches with at most limit outstanding at any time. Each
+   * result is passed to the handler in the order of the list while later
+   * fetches continue to run.
+   *
+   * <p>Any failure is rethrown here and fetches not yet consumed are
+   * cancelled.
+   *
+   * <p>If called from one of our own threads the fetches are run one at a
+   * time on that thread. A bounded pool could otherwise be filled with
+   * tasks all waiting for each other.
+   *
+   * @param fetches   to run
+   * @param limit     max outstanding for this request
+   * @param handler   for the results
+   * @param <T>       result type
+   * @throws WebdavException
+   */
+  public static <T> void invokeOrdered(final List<? extends Callable<T>> fetches,
+                                       final int limit,
+                                       final ResultHandler<T> handler)
+          throws WebdavException {
+    if ((limit <= 1) || (fetches.size() <= 1) || onPool()) {
+      for (final Callable<T> fetch: fetches) {
+        handler.result(call(fetch));
+      }
+
+      return;
+    }
+
+    final ExecutorService exec = getExecutor();
+    final Deque<Future<T>> pending = new ArrayDeque<Future<T>>();
+    int next = 0;
+
+    try {
+      while ((next < fetches.size()) || !pending.isEmpty()) {
+        while ((next < fetches.size()) && (pending.size() < limit)) {
+          pending.add(exec.submit(new Pooled<T>(fetches.get(next))));
+          next++;
+        }
+
+        handler.result(get(pending.remove()));
+      }
+    } finally {
+      for (Future<T> f: pending) {
+        f.cancel(true);
+      }
+    }
+  }
+
+  /** Run a single task on the shared threads. If called from one of
+   * those threads the task is run before returning.
+   *
+   * @param task to run
+   * @param <T>       result type
+   * @return future for the result
+   */
+  public static <T> Future<T> submit(final Callable<T> task) {
+    if (onPool()) {
+      final FutureTask<T> ft = new FutureTask<T>(task);
+      ft.run();
+
+      return ft;
+    }
+
+    return getExecutor().submit(new Pooled<T>(task));
+  }
+
+  /** Stop the shared threads - called when the context is destroyed.
+   * Anything still running is interrupted. The threads are created again
+   * if needed.
+   */
+  public static synchronized void shutdown() {
+    if (executor == null) {
+      return;
+    }
+
+    executor.shutdownNow();
+    executor = null;
+  }
+
+  private static boolean onPool() {
+    return Boolean.TRUE.equals(onPool.get());
+  }
+
+  /* Marks the thread as ours while the task runs */
+  private static class Pooled<T> implements Callable<T> {
+    private final Callable<T> task;
+
+    Pooled(final Callable<T> task) {
+      this.task = task;
+    }
+
+    @Override
+    public T call() throws Exception {
+      onPool.set(Boolean.TRUE);
+
+      try {
+        return task.call();
+      } finally {
+        onPool.remove();
+      }
+    }
+  }
+
+  private static <T> T call(final Callable<T> fetch) throws WebdavException {
+    try {
+      return fetch.call();
+    } catch (WebdavException we) {
+      throw we;
+    } catch (Throwable t) {
+      throw new WebdavException(t);
+    }
+  }
+
+  private static <T> T get(final Future<T> f) throws WebdavException {
+    try {
+      return f.get();
+    } catch (InterruptedException ie) {
+      Thread.currentThread().interrupt();
+      throw new WebdavException(ie);
+    } catch (ExecutionException ee) {
+      final Throwable t = ee.getCause();
+
+      if (t instanceof WebdavException) {
+        throw (WebdavException)t;
+      }
+
+      throw new WebdavException(t);
+    }
+  }
+
+  private static synchronized ExecutorService getExecutor() {
+    if (executor != null) {
+      return executor;
+    }
+
+    /* Virtual threads only exist in newer runtimes than we build for */
+    try {
+      final Method m =
+              Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+
+      executor = (ExecutorService)m.invoke(null);
+      return executor;
+    } catch (Throwable ignored) {
+    }
+
+    executor = Executors.newFixedThreadPool(poolSize, new ThreadFactory() {
+      private final AtomicInteger count = new AtomicInteger();
+
+      @Override
+      public Thread newThread(final Runnable r) {
+        final Thread t = new Thread(r,
+                                    "caldav-query-" + count.incrementAndGet());
+        t.setDaemon(true);
+
+        return t;
+      }
+    });
+
+    return executor;
+  }
+}
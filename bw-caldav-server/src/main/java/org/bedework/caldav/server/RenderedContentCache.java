@@ -0,0 +1,385 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.caldav.server;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/** A cache of rendered entities shared across requests. Entries are keyed
+ * by href, etag, retrieval and content type so a changed entity is never
+ * served from the cache. Entries are also removed when an entity is updated,
+ * deleted or moved so the space is reclaimed early.
+ *
+ * <p>The content is held as UTF-8 bytes and the least recently used
+ * entries are evicted to keep the total size within the maximum.
+ *
+ * <p>The retrieval is null for the complete entity. For an entity fetched
+ * with a retrieval mode or projection - e.g. a REPORT with expand - it
+ * describes what was fetched so that rendering is never served for a GET
+ * or the reverse.
+ *
+ * <p>The key has no principal so the cache is only used when the system
+ * interface says rendering is user independent.
+ */
+public class RenderedContentCache implements RenderedContentCacheMBean {
+  private static final Charset utf8 = Charset.forName("UTF-8");
+
+  private static final RenderedContentCache cache =
+          new RenderedContentCache();
+
+  private static final long defaultMaxSize = 32 * 1024 * 1024;
+
+  /* Don't let one large entity push out many small ones */
+  private static final int maxEntryFraction = 8;
+
+  /** Rendered content */
+  public static class Entry {
+    private final String contentType;
+    private final byte[] content;
+
+    Entry(final String contentType,
+          final byte[] content) {
+      this.contentType = contentType;
+      this.content = content;
+    }
+
+    /**
+     * @return actual content type of the rendered content
+     */
+    public String getContentType() {
+      return contentType;
+    }
+
+    /**
+     * @return length in bytes
+     */
+    public int getLength() {
+      return content.length;
+    }
+
+    /**
+     * @return the content as a String
+     */
+    public String getString() {
+      return new String(content, utf8);
+    }
+  }
+
+  private static class Key {
+    final String href;
+    final String etag;
+    final String retrieval;
+    final String contentType;
+
+    Key(final String href, final String etag, final String retrieval,
+        final String contentType) {
+      this.href = href;
+      this.etag = etag;
+      if (retrieval == null) {
+        this.retrieval = "";
+      } else {
+        this.retrieval = retrieval;
+      }
+      this.contentType = contentType;
+    }
+
+    @Override
+    public int hashCode() {
+      return ((href.hashCode() * 31 + etag.hashCode()) * 31 +
+              retrieval.hashCode()) * 31 +
+              contentType.hashCode();
+    }
+
+    @Override
+    public boolean equals(final Object o) {
+      if (!(o instanceof Key)) {
+        return false;
+      }
+
+      Key that = (Key)o;
+
+      return href.equals(that.href) &&
+              etag.equals(that.etag) &&
+              retrieval.equals(that.retrieval) &&
+              contentType.equals(that.contentType);
+    }
+  }
+
+  /* Access ordered so iteration starts at the least recently used */
+  private final LinkedHashMap<Key, Entry> entries =
+          new LinkedHashMap<Key, Entry>(256, 0.75f, true);
+
+  /* All keys for an href - one per etag, retrieval and content type */
+  private final Map<String, List<Key>> hrefKeys =
+          new HashMap<String, List<Key>>();
+
+  private long size;
+
+  private volatile long maxSize = defaultMaxSize;
+
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+  private final AtomicLong evicted = new AtomicLong();
+  private final AtomicLong invalidated = new AtomicLong();
+
+  /**
+   * @return the shared cache
+   */
+  public static RenderedContentCache getCache() {
+    return cache;
+  }
+
+  /**
+   * @param href of the entity
+   * @param etag current etag of the entity
+   * @param retrieval null for the complete entity or a description of
+   *                  the retrieval mode and projection it was fetched with
+   * @param contentType requested content type
+   * @return cached content or null
+   */
+  public Entry get(final String href,
+                   final String etag,
+                   final String retrieval,
+                   final String contentType) {
+    if (maxSize <= 0) {
+      return null;
+    }
+
+    Entry ent;
+
+    synchronized (this) {
+      ent = entries.get(new Key(href, etag, retrieval, contentType));
+    }
+
+    if (ent == null) {
+      misses.incrementAndGet();
+    } else {
+      hits.incrementAndGet();
+    }
+
+    return ent;
+  }
+
+  /** As get but only returns the length and doesn't affect the
+   * statistics.
+   *
+   * @param href of the entity
+   * @param etag current etag of the entity
+   * @param retrieval null for the complete entity or a description of
+   *                  the retrieval mode and projection it was fetched with
+   * @param contentType requested content type
+   * @return length in bytes of cached content or -1
+   */
+  public long getLength(final String href,
+                        final String etag,
+                        final String retrieval,
+                        final String contentType) {
+    if ((maxSize <= 0) || (etag == null)) {
+      return -1;
+    }
+
+    Entry ent;
+
+    synchronized (this) {
+      ent = entries.get(new Key(href, etag, retrieval, contentType));
+    }
+
+    if (ent == null) {
+      return -1;
+    }
+
+    return ent.getLength();
+  }
+
+  /**
+   * @param href of the entity
+   * @param etag current etag of the entity
+   * @param retrieval null for the complete entity or a description of
+   *                  the retrieval mode and projection it was fetched with
+   * @param contentType requested content type
+   * @param actualContentType content type actually rendered
+   * @param content rendered content
+   * @return the entry - which may not have been cached
+   */
+  public Entry put(final String href,
+                   final String etag,
+                   final String retrieval,
+                   final String contentType,
+                   final String actualContentType,
+                   final String content) {
+    Entry ent = new Entry(actualContentType, content.getBytes(utf8));
+    long max = maxSize;
+
+    if ((max <= 0) || (ent.getLength() > max / maxEntryFraction)) {
+      return ent;
+    }
+
+    Key key = new Key(href, etag, retrieval, contentType);
+
+    synchronized (this) {
+      Entry prev = entries.put(key, ent);
+
+      if (prev != null) {
+        size -= prev.getLength();
+      } else {
+        List<Key> keys = hrefKeys.get(href);
+
+        if (keys == null) {
+          keys = new ArrayList<Key>(2);
+          hrefKeys.put(href, keys);
+        }
+
+        keys.add(key);
+      }
+
+      size += ent.getLength();
+
+      Iterator<Map.Entry<Key, Entry>> it = entries.entrySet().iterator();
+
+      while ((size > max) && it.hasNext()) {
+        Map.Entry<Key, Entry> me = it.next();
+
+        it.remove();
+        removeKey(me.getKey());
+        size -= me.getValue().getLength();
+        evicted.incrementAndGet();
+      }
+    }
+
+    return ent;
+  }
+
+  /** Remove all content for the entity.
+   *
+   * @param href of the entity
+   */
+  public void invalidate(final String href) {
+    if (href == null) {
+      return;
+    }
+
+    synchronized (this) {
+      List<Key> keys = hrefKeys.remove(href);
+
+      if (keys == null) {
+        return;
+      }
+
+      for (Key key: keys) {
+        Entry ent = entries.remove(key);
+
+        if (ent != null) {
+          size -= ent.getLength();
+          invalidated.incrementAndGet();
+        }
+      }
+    }
+  }
+
+  /* ========================================================================
+   * Attributes
+   * ======================================================================== */
+
+  @Override
+  public void setMaxSize(final long val) {
+    maxSize = val;
+
+    if (val <= 0) {
+      flush();
+    }
+  }
+
+  @Override
+  public long getMaxSize() {
+    return maxSize;
+  }
+
+  @Override
+  public synchronized long getSize() {
+    return size;
+  }
+
+  @Override
+  public synchronized int getEntries() {
+    return entries.size();
+  }
+
+  @Override
+  public long getHits() {
+    return hits.get();
+  }
+
+  @Override
+  public long getMisses() {
+    return misses.get();
+  }
+
+  @Override
+  public long getEvicted() {
+    return evicted.get();
+  }
+
+  @Override
+  public long getInvalidated() {
+    return invalidated.get();
+  }
+
+  /* ========================================================================
+   * Operations
+   * ======================================================================== */
+
+  @Override
+  public synchronized void flush() {
+    entries.clear();
+    hrefKeys.clear();
+    size = 0;
+  }
+
+  @Override
+  public void resetCounters() {
+    hits.set(0);
+    misses.set(0);
+    evicted.set(0);
+    invalidated.set(0);
+  }
+
+  /* ========================================================================
+   * Private methods
+   * ======================================================================== */
+
+  private void removeKey(final Key key) {
+    List<Key> keys = hrefKeys.get(key.href);
+
+    if (keys == null) {
+      return;
+    }
+
+    keys.remove(key);
+
+    if (keys.isEmpty()) {
+      hrefKeys.remove(key.href);
+    }
+  }
+}
@@ -0,0 +1,94 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.caldav.server;
+
+import org.bedework.util.jmx.MBeanInfo;
+
+/** Statistics and control for the cache of rendered entities.
+ */
+public interface RenderedContentCacheMBean {
+  static final String serviceName =
+          "org.bedework.caldav:service=RenderedContentCache";
+
+  /* ========================================================================
+   * Attributes
+   * ======================================================================== */
+
+  /**
+   * @param val max total size in bytes of cached content. 0 disables
+   *            the cache.
+   */
+  void setMaxSize(long val);
+
+  /**
+   * @return max total size in bytes of cached content
+   */
+  @MBeanInfo("Max total size in bytes of cached content - 0 to disable")
+  long getMaxSize();
+
+  /**
+   * @return current size
+   */
+  @MBeanInfo("Total size in bytes of cached content")
+  long getSize();
+
+  /**
+   * @return number of entries
+   */
+  @MBeanInfo("Number of cached entities")
+  int getEntries();
+
+  /**
+   * @return hits
+   */
+  @MBeanInfo("Number of times cached content was used")
+  long getHits();
+
+  /**
+   * @return misses
+   */
+  @MBeanInfo("Number of times content had to be rendered")
+  long getMisses();
+
+  /**
+   * @return evictions
+   */
+  @MBeanInfo("Number of entries evicted to stay within the max size")
+  long getEvicted();
+
+  /**
+   * @return invalidations
+   */
+  @MBeanInfo("Number of entries removed because the entity changed")
+  long getInvalidated();
+
+  /* ========================================================================
+   * Operations
+   * ======================================================================== */
+
+  /** Remove all entries
+   */
+  @MBeanInfo("Remove all entries")
+  void flush();
+
+  /** Reset the counters
+   */
+  @MBeanInfo("Reset the counters")
+  void resetCounters();
+}
@@ -0,0 +1,753 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.caldav.server;
+
+import org.bedework.access.AccessPrincipal;
+import org.bedework.caldav.server.sysinterface.CalDAVSystemProperties;
+import org.bedework.caldav.server.sysinterface.SysIntf;
+import org.bedework.caldav.server.sysinterface.SysIntf.IcalResultType;
+import org.bedework.caldav.server.sysinterface.SysIntf.SchedRecipientResult;
+import org.bedework.webdav.servlet.shared.WebdavException;
+
+import org.apache.log4j.Logger;
+
+import java.io.StringReader;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/** Delivers a scheduling message to its recipients in batches.
+ *
+ * <p>Batches are delivered concurrently if the system interface is
+ * thread safe. If a deadline is configured the request waits no longer
+ * than that and recipients still pending are reported as deferred. The
+ * first batch is delivered on its own so that a message the backend
+ * rejects fails the request as it did without batches. After that a
+ * failed batch is reported as deferred and tried again.
+ *
+ * <p>finish, called once the response is complete, hands what is left to
+ * a background worker. Batches still running at the deadline are left
+ * to complete - the worker waits for them and takes over the request's
+ * system interface session until they have. Batches not started, and
+ * any which failed, are delivered by the worker with its own session.
+ * If a queue directory is configured they are also saved there so they
+ * survive a restart and anything the worker fails to deliver stays
+ * queued. retryQueued hands those to the worker.
+ *
+ * <p>Free-busy requests are never deferred beyond the response - pending
+ * recipients are reported as deferred with no free-busy and dropped.
+ *
+ * <p>Messages with no more than one batch of recipients are delivered as
+ * they always were with a single call.
+ */
+public class SchedulingDelivery {
+  private static final int batchSize = 25;
+
+  private static final int maxAttempts = 5;
+
+  /* Max queued deliveries retried by one request */
+  private static final int maxRetries = 10;
+
+  private static final String icalType = "text/calendar";
+
+  /* Accounts with a retry waiting or running */
+  private static final Set<String> retrying =
+          Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+  private static ExecutorService retryWorker;
+
+  private final SysIntf sysi;
+  private final CalDAVCollection col;
+  private final CalDAVEvent<?> ev;
+  private final String originator;
+  private final boolean freeBusy;
+
+  private int concurrency = 1;
+  private long deadline;
+  private SchedulingQueue queue;
+
+  private String ical;
+
+  /* Batches still running at the deadline */
+  private final List<Batch> running = new ArrayList<>();
+
+  /* Recipients of batches not started or which failed */
+  private final TreeSet<String> pending = new TreeSet<>();
+
+  private SchedulingQueue.Entry queued;
+
+  private class Batch implements Callable<Batch> {
+    final Set<String> recipients;
+    CalDAVEvent<?> bev;
+    Future<Batch> future;
+
+    volatile boolean done;
+    Collection<SchedRecipientResult> results;
+    Throwable failure;
+
+    Batch(final Set<String> recipients) {
+      this.recipients = recipients;
+    }
+
+    /* Never throws - a failure is recorded for the whole batch */
+    @Override
+    public Batch call() {
+      try {
+        if (freeBusy) {
+          results = sysi.requestFreeBusy(bev, true);
+        } else {
+          results = sysi.schedule(bev);
+        }
+      } catch (final Throwable t) {
+        failure = t;
+      }
+
+      done = true;
+
+      return this;
+    }
+  }
+
+  /**
+   * @param sysi system interface
+   * @param col collection the message was parsed for - may be null
+   * @param ev validated message with its recipients set
+   * @param originator as set on the message
+   * @param freeBusy true for a free-busy request
+   */
+  public SchedulingDelivery(final SysIntf sysi,
+                            final CalDAVCollection col,
+                            final CalDAVEvent<?> ev,
+                            final String originator,
+                            final boolean freeBusy) {
+    this.sysi = sysi;
+    this.col = col;
+    this.ev = ev;
+    this.originator = originator;
+    this.freeBusy = freeBusy;
+  }
+
+  /** Deliver the message - waiting no longer than the configured deadline.
+   *
+   * @return results for every recipient - batch by batch
+   * @throws WebdavException if delivery failed before anything was
+   *                         delivered
+   */
+  public Collection<SchedRecipientResult> deliver() throws WebdavException {
+    final Set<String> recipients = ev.getRecipients();
+
+    if (recipients.size() <= batchSize) {
+      return single();
+    }
+
+    final CalDAVSystemProperties props = sysi.getSystemProperties();
+
+    if ((props.getSchedulingConcurrency() != null) &&
+        sysi.getThreadSafe()) {
+      concurrency = Math.max(1, props.getSchedulingConcurrency());
+    }
+
+    if (props.getSchedulingDeadline() != null) {
+      deadline = props.getSchedulingDeadline();
+    }
+
+    if ((concurrency <= 1) && (deadline <= 0)) {
+      return single();
+    }
+
+    queue = getQueue(props);
+    ical = ev.toIcalString(ev.getScheduleMethod(), icalType);
+
+    final List<Batch> batches = new ArrayList<>();
+    Set<String> rs = new TreeSet<>();
+
+    for (final String r: recipients) {
+      rs.add(r);
+
+      if (rs.size() == batchSize) {
+        batches.add(new Batch(rs));
+        rs = new TreeSet<>();
+      }
+    }
+
+    if (!rs.isEmpty()) {
+      batches.add(new Batch(rs));
+    }
+
+    final long end;
+    if (deadline > 0) {
+      end = System.currentTimeMillis() + deadline;
+    } else {
+      end = Long.MAX_VALUE;
+    }
+
+    final Deque<Batch> window = new ArrayDeque<>();
+    int next = 0;
+    boolean delivered = false;
+
+    while ((next < batches.size()) || !window.isEmpty()) {
+      /* The first batch goes on its own - if the backend rejects it
+       * nothing else has been started.
+       */
+      final int open;
+      if (delivered) {
+        open = concurrency;
+      } else {
+        open = 1;
+      }
+
+      while ((next < batches.size()) && (window.size() < open)) {
+        final Batch b = batches.get(next);
+        next++;
+
+        b.bev = copy(b.recipients);
+
+        if (concurrency > 1) {
+          b.future = QueryExecutor.submit(b);
+        }
+
+        window.add(b);
+      }
+
+      final Batch b = window.peek();
+      final long wait = end - System.currentTimeMillis();
+
+      if (wait <= 0) {
+        break;
+      }
+
+      if (b.future == null) {
+        b.call();
+      } else {
+        try {
+          b.future.get(wait, TimeUnit.MILLISECONDS);
+        } catch (final TimeoutException te) {
+          break;
+        } catch (final InterruptedException ie) {
+          Thread.currentThread().interrupt();
+          break;
+        } catch (final ExecutionException ee) {
+          // Batch.call doesn't throw
+          b.failure = ee.getCause();
+        }
+      }
+
+      window.remove();
+
+      if ((b.failure != null) && !delivered && !freeBusy) {
+        /* Probably something wrong with the message itself - fail as we
+         * would have without batches.
+         */
+        throw rethrow(b.failure);
+      }
+
+      delivered = true;
+    }
+
+    /* Batches in the window were started. Any which have finished since
+     * we stopped waiting can still go in the response.
+     */
+    for (final Batch b: window) {
+      if (b.future == null) {
+        continue;
+      }
+
+      if (!b.future.isDone()) {
+        running.add(b);
+        continue;
+      }
+
+      try {
+        b.future.get();
+      } catch (final InterruptedException ie) {
+        Thread.currentThread().interrupt();
+        running.add(b);
+      } catch (final ExecutionException ee) {
+        b.failure = ee.getCause();
+      }
+    }
+
+    final Collection<SchedRecipientResult> res = new ArrayList<>();
+
+    for (final Batch b: batches) {
+      if (b.done && (b.failure == null)) {
+        if (b.results != null) {
+          res.addAll(b.results);
+        }
+        continue;
+      }
+
+      /* Failed, still running or not started */
+      final int status;
+
+      if (freeBusy && (b.failure != null)) {
+        status = SchedRecipientResult.scheduleError;
+      } else {
+        status = SchedRecipientResult.scheduleDeferred;
+      }
+
+      for (final String r: b.recipients) {
+        res.add(result(r, status));
+      }
+
+      if (!running.contains(b)) {
+        pending.addAll(b.recipients);
+      }
+    }
+
+    if (freeBusy) {
+      // Nothing is delivered - stop any lookups still running
+      cancel(running);
+      running.clear();
+      pending.clear();
+    } else if (!pending.isEmpty() && (queue != null)) {
+      queued = queue.add(account(sysi), originator, ical, pending);
+    }
+
+    return res;
+  }
+
+  /**
+   * @return true if finish has work to do
+   */
+  public boolean getDeferred() {
+    return !running.isEmpty() || !pending.isEmpty();
+  }
+
+  /** Hand the deferred work to the background worker. Call once the
+   * response has been completed. If batches are still running the worker
+   * takes over the request's system interface session and closes it once
+   * they are done.
+   *
+   * @param intf for the sessions
+   */
+  public void finish(final CaldavBWIntf intf) {
+    if (!getDeferred()) {
+      return;
+    }
+
+    SysIntf requestSysi = null;
+
+    try {
+      final String account = account(sysi);
+
+      if (!running.isEmpty()) {
+        requestSysi = intf.detachSysi();
+      }
+
+      getRetryWorker().execute(new Deferred(this, account, requestSysi,
+                                            intf.newSysi()));
+    } catch (final Throwable t) {
+      getLogger().error("Unable to hand on deferred scheduling delivery", t);
+
+      close(requestSysi);
+
+      if (queued != null) {
+        // Leave it for a later retry
+        try {
+          queue.release(queued);
+        } catch (final Throwable t1) {
+          getLogger().error("Unable to requeue scheduling delivery", t1);
+        }
+      } else if (!pending.isEmpty()) {
+        getLogger().error("Unable to deliver to " + pending +
+                                  " - no scheduling queue configured");
+      }
+    }
+  }
+
+  /** Retry deliveries queued by earlier requests from the current
+   * principal. Nothing is done unless a queue directory is configured and
+   * something may be waiting. The work is done on a background thread
+   * which opens its own session with a new system interface object, so
+   * this should be called once the response is complete.
+   *
+   * @param sysi system interface for the request
+   * @param intf to get a system interface for the worker
+   */
+  public static void retryQueued(final SysIntf sysi,
+                                 final CaldavBWIntf intf) {
+    try {
+      final SchedulingQueue queue = getQueue(sysi.getSystemProperties());
+
+      if ((queue == null) || !queue.getMaybePending()) {
+        return;
+      }
+
+      final String account = account(sysi);
+
+      if (!retrying.add(account)) {
+        // Already waiting to run for this principal
+        return;
+      }
+
+      try {
+        getRetryWorker().execute(new Retry(queue, account, intf.newSysi()));
+      } catch (final Throwable t) {
+        retrying.remove(account);
+        throw t;
+      }
+    } catch (final Throwable t) {
+      getLogger().error("Unable to retry queued scheduling deliveries", t);
+    }
+  }
+
+  /** Stop the background retries. Queued deliveries stay queued.
+   */
+  public static synchronized void stopRetries() {
+    if (retryWorker != null) {
+      retryWorker.shutdownNow();
+      retryWorker = null;
+    }
+  }
+
+  /* Delivers queued entries for one principal */
+  private static class Retry implements Runnable {
+    private final SchedulingQueue queue;
+    private final String account;
+    private final SysIntf sysi;
+
+    Retry(final SchedulingQueue queue,
+          final String account,
+          final SysIntf sysi) {
+      this.queue = queue;
+      this.account = account;
+      this.sysi = sysi;
+    }
+
+    @Override
+    public void run() {
+      try {
+        /* There is no request - this is a service session as for
+         * iSchedule.
+         */
+        sysi.init(null, account, true, false, false, false, null);
+
+        for (final SchedulingQueue.Entry e:
+                queue.claim(account, maxRetries)) {
+          done(queue, e, redeliver(sysi, e.originator, e.ical,
+                                   e.recipients));
+        }
+      } catch (final Throwable t) {
+        getLogger().error("Unable to retry queued scheduling deliveries", t);
+      } finally {
+        retrying.remove(account);
+        close(sysi);
+      }
+    }
+  }
+
+  /* Completes the deliveries left by a request */
+  private static class Deferred implements Runnable {
+    private final SchedulingDelivery sd;
+    private final String account;
+    private final SysIntf requestSysi;
+    private final SysIntf sysi;
+
+    Deferred(final SchedulingDelivery sd,
+             final String account,
+             final SysIntf requestSysi,
+             final SysIntf sysi) {
+      this.sd = sd;
+      this.account = account;
+      this.requestSysi = requestSysi;
+      this.sysi = sysi;
+    }
+
+    @Override
+    public void run() {
+      /* Recipients to try again - those not started or which failed */
+      final TreeSet<String> retry = new TreeSet<>(sd.pending);
+
+      try {
+        for (final Batch b: sd.running) {
+          try {
+            b.future.get();
+          } catch (final InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            b.failure = ie;
+          } catch (final ExecutionException ee) {
+            b.failure = ee.getCause();
+          } catch (final Throwable t) {
+            b.failure = t;
+          }
+
+          retry.addAll(failures(b));
+        }
+      } finally {
+        close(requestSysi);
+      }
+
+      if (retry.isEmpty()) {
+        close(sysi);
+        return;
+      }
+
+      TreeSet<String> failed = retry;
+
+      try {
+        /* As for retries this is a service session */
+        sysi.init(null, account, true, false, false, false, null);
+
+        failed = redeliver(sysi, sd.originator, sd.ical, retry);
+      } catch (final Throwable t) {
+        getLogger().error("Deferred scheduling delivery failed", t);
+      } finally {
+        close(sysi);
+      }
+
+      if (sd.queue == null) {
+        if (!failed.isEmpty()) {
+          getLogger().error("Unable to deliver to " + failed +
+                                    " - no scheduling queue configured");
+        }
+        return;
+      }
+
+      try {
+        SchedulingQueue.Entry e = sd.queued;
+
+        if (e == null) {
+          if (failed.isEmpty()) {
+            return;
+          }
+
+          e = sd.queue.add(account, sd.originator, sd.ical, failed);
+        }
+
+        done(sd.queue, e, failed);
+      } catch (final Throwable t) {
+        getLogger().error("Unable to requeue scheduling delivery to " +
+                                  failed, t);
+      }
+    }
+  }
+
+  /* ========================================================================
+   * Private methods
+   * ======================================================================== */
+
+  /* null if no queue directory is configured */
+  private static SchedulingQueue getQueue(final CalDAVSystemProperties props) {
+    final String dir = props.getSchedulingQueueDir();
+
+    if (dir == null) {
+      return null;
+    }
+
+    return new SchedulingQueue(dir);
+  }
+
+  private static synchronized ExecutorService getRetryWorker() {
+    if (retryWorker == null) {
+      retryWorker = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(final Runnable r) {
+          final Thread t = new Thread(r, "caldav-scheduling-retry");
+          t.setDaemon(true);
+
+          return t;
+        }
+      });
+    }
+
+    return retryWorker;
+  }
+
+  private Collection<SchedRecipientResult> single() throws WebdavException {
+    if (freeBusy) {
+      return sysi.requestFreeBusy(ev, true);
+    }
+
+    return sysi.schedule(ev);
+  }
+
+  /* A fresh copy of the message for a batch - batches may be delivered
+   * concurrently and the backend may modify what it is given.
+   */
+  private CalDAVEvent<?> copy(final Set<String> recipients) throws WebdavException {
+    final SysiIcalendar cal = sysi.fromIcal(col, new StringReader(ical),
+                                            icalType,
+                                            IcalResultType.OneComponent,
+                                            false);
+    final CalDAVEvent<?> cev = cal.getEvent();
+
+    cev.setRecipients(recipients);
+    cev.setScheduleMethod(cal.getMethodType());
+    cev.setOriginator(originator);
+
+    return cev;
+  }
+
+  /* Deliver with the given session a batch at a time. Returns the
+   * recipients which failed.
+   */
+  private static TreeSet<String> redeliver(final SysIntf sysi,
+                                           final String originator,
+                                           final String ical,
+                                           final Set<String> recipients) {
+    final SchedulingDelivery sd =
+            new SchedulingDelivery(sysi, null, null, originator, false);
+    sd.ical = ical;
+
+    final TreeSet<String> failed = new TreeSet<>();
+    Set<String> rs = new TreeSet<>();
+
+    for (final String r: recipients) {
+      rs.add(r);
+
+      if (rs.size() == batchSize) {
+        failed.addAll(sd.redeliver(rs));
+        rs = new TreeSet<>();
+      }
+    }
+
+    if (!rs.isEmpty()) {
+      failed.addAll(sd.redeliver(rs));
+    }
+
+    return failed;
+  }
+
+  private Set<String> redeliver(final Set<String> recipients) {
+    try {
+      final Batch b = new Batch(recipients);
+      b.bev = copy(recipients);
+      b.call();
+
+      return failures(b);
+    } catch (final Throwable t) {
+      getLogger().error("Scheduling delivery failed", t);
+      return recipients;
+    }
+  }
+
+  /* Recipients to try again */
+  private static Set<String> failures(final Batch b) {
+    if (b.failure != null) {
+      getLogger().error("Scheduling delivery failed", b.failure);
+      return b.recipients;
+    }
+
+    final Set<String> res = new TreeSet<>();
+
+    if (b.results == null) {
+      return res;
+    }
+
+    for (final SchedRecipientResult srr: b.results) {
+      if (srr.status == SchedRecipientResult.scheduleError) {
+        res.add(srr.recipient);
+      }
+    }
+
+    return res;
+  }
+
+  private static void done(final SchedulingQueue queue,
+                           final SchedulingQueue.Entry e,
+                           final TreeSet<String> failed) {
+    if (failed.isEmpty()) {
+      queue.remove(e);
+      return;
+    }
+
+    e.attempts++;
+
+    if (e.attempts >= maxAttempts) {
+      getLogger().error("Giving up scheduling delivery to " + failed);
+      queue.remove(e);
+      return;
+    }
+
+    e.recipients = failed;
+
+    try {
+      queue.release(e);
+    } catch (final Throwable t) {
+      getLogger().error("Unable to requeue scheduling delivery", t);
+    }
+  }
+
+  private static void cancel(final Collection<Batch> batches) {
+    for (final Batch b: batches) {
+      if (b.future != null) {
+        b.future.cancel(true);
+      }
+    }
+  }
+
+  private static void close(final SysIntf sysi) {
+    if (sysi == null) {
+      return;
+    }
+
+    try {
+      sysi.close();
+    } catch (final Throwable t) {
+      getLogger().error("Unable to close scheduling delivery session", t);
+    }
+  }
+
+  private static SchedRecipientResult result(final String recipient,
+                                             final int status) {
+    final SchedRecipientResult srr = new SchedRecipientResult();
+
+    srr.recipient = recipient;
+    srr.status = status;
+
+    return srr;
+  }
+
+  private static WebdavException rethrow(final Throwable t) {
+    if (t instanceof WebdavException) {
+      return (WebdavException)t;
+    }
+
+    return new WebdavException(t);
+  }
+
+  private static String account(final SysIntf sysi) throws WebdavException {
+    final AccessPrincipal p = sysi.getPrincipal();
+
+    if (p == null) {
+      return "";
+    }
+
+    return p.getAccount();
+  }
+
+  private static Logger getLogger() {
+    return Logger.getLogger(SchedulingDelivery.class);
+  }
+}
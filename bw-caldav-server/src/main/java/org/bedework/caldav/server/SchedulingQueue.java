@@ -0,0 +1,323 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.caldav.server;
+
+import org.bedework.webdav.servlet.shared.WebdavException;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+import java.util.TreeSet;
+import java.util.UUID;
+
+/** Scheduling deliveries which have not yet completed, held one to a file
+ * in a local directory so they survive a restart.
+ *
+ * <p>An entry is claimed by renaming its file before it is worked on so
+ * that only one request delivers it. A claim not released within a while
+ * is assumed to belong to a request which died and the entry becomes
+ * available again.
+ */
+public class SchedulingQueue {
+  private static final String pendingSuffix = ".sched";
+
+  private static final String claimedSuffix = ".claimed";
+
+  private static final long claimTimeout = 10 * 60 * 1000;
+
+  /* Set when anything may be waiting - avoids listing the directory */
+  private static volatile boolean maybePending = true;
+
+  /** A queued delivery */
+  public static class Entry {
+    private final String name;
+
+    /** Account of the principal delivering */
+    public final String account;
+
+    /** Value for setOriginator */
+    public final String originator;
+
+    /** The scheduling message as text/calendar */
+    public final String ical;
+
+    /** Recipients still to be delivered to */
+    public TreeSet<String> recipients;
+
+    /** Number of failed attempts */
+    public int attempts;
+
+    Entry(final String name,
+          final String account,
+          final String originator,
+          final String ical,
+          final TreeSet<String> recipients,
+          final int attempts) {
+      this.name = name;
+      this.account = account;
+      this.originator = originator;
+      this.ical = ical;
+      this.recipients = recipients;
+      this.attempts = attempts;
+    }
+  }
+
+  private final File dir;
+
+  /**
+   * @param dirName directory for the queue - never null
+   */
+  public SchedulingQueue(final String dirName) {
+    dir = new File(dirName);
+  }
+
+  /**
+   * @return false if nothing has been queued since the queue was last
+   *         found to be empty.
+   */
+  public boolean getMaybePending() {
+    return maybePending;
+  }
+
+  /** Add a new entry - already claimed by the caller.
+   *
+   * @param account of the principal delivering
+   * @param originator for the message
+   * @param ical the message
+   * @param recipients not yet delivered
+   * @return the entry
+   * @throws WebdavException
+   */
+  public Entry add(final String account,
+                   final String originator,
+                   final String ical,
+                   final TreeSet<String> recipients) throws WebdavException {
+    final Entry e = new Entry(prefix(account) + UUID.randomUUID(),
+                              account, originator, ical, recipients, 0);
+
+    write(e, claimedSuffix);
+    maybePending = true;
+
+    return e;
+  }
+
+  /** Claim up to max unclaimed entries for the account.
+   *
+   * @param account of the principal delivering
+   * @param max number of entries
+   * @return claimed entries - never null
+   * @throws WebdavException
+   */
+  public List<Entry> claim(final String account,
+                           final int max) throws WebdavException {
+    final List<Entry> res = new ArrayList<>();
+
+    if (!maybePending) {
+      return res;
+    }
+
+    final File[] files = dir.listFiles();
+
+    if (files == null) {
+      maybePending = false;
+      return res;
+    }
+
+    Arrays.sort(files);
+
+    final String prefix = prefix(account);
+    boolean found = false;
+
+    for (final File f: files) {
+      final String fname = f.getName();
+      final String name;
+
+      if (fname.endsWith(pendingSuffix)) {
+        name = fname.substring(0, fname.length() - pendingSuffix.length());
+      } else if (fname.endsWith(claimedSuffix)) {
+        found = true;
+
+        if (System.currentTimeMillis() - f.lastModified() >= claimTimeout) {
+          // Abandoned - make it available again
+          release(fname.substring(0, fname.length() - claimedSuffix.length()),
+                  f);
+        }
+        continue;
+      } else {
+        continue;
+      }
+
+      found = true;
+
+      if (!name.startsWith(prefix) || (res.size() >= max)) {
+        continue;
+      }
+
+      final File claimed = new File(dir, name + claimedSuffix);
+
+      try {
+        Files.move(f.toPath(), claimed.toPath(),
+                   StandardCopyOption.ATOMIC_MOVE);
+
+        // Restart the claim timeout
+        claimed.setLastModified(System.currentTimeMillis());
+      } catch (final IOException ioe) {
+        // Somebody else has it
+        continue;
+      }
+
+      final Entry e = read(name, claimed);
+
+      if (e == null) {
+        // Unreadable - nothing we can do with it
+        claimed.delete();
+        continue;
+      }
+
+      if (!account.equals(e.account)) {
+        release(name, claimed);
+        continue;
+      }
+
+      res.add(e);
+    }
+
+    if (!found) {
+      maybePending = false;
+    }
+
+    return res;
+  }
+
+  /** Save the entry and release the claim on it.
+   *
+   * @param e the entry
+   * @throws WebdavException
+   */
+  public void release(final Entry e) throws WebdavException {
+    write(e, claimedSuffix);
+    release(e.name, new File(dir, e.name + claimedSuffix));
+  }
+
+  /** The entry is complete.
+   *
+   * @param e the entry
+   */
+  public void remove(final Entry e) {
+    new File(dir, e.name + claimedSuffix).delete();
+  }
+
+  /* ========================================================================
+   * Private methods
+   * ======================================================================== */
+
+  private void release(final String name,
+                       final File claimed) {
+    try {
+      Files.move(claimed.toPath(),
+                 new File(dir, name + pendingSuffix).toPath(),
+                 StandardCopyOption.ATOMIC_MOVE);
+      maybePending = true;
+    } catch (final IOException ignored) {
+      // It stays claimed until the timeout
+    }
+  }
+
+  private void write(final Entry e,
+                     final String suffix) throws WebdavException {
+    final Properties p = new Properties();
+
+    p.setProperty("account", e.account);
+
+    if (e.originator != null) {
+      p.setProperty("originator", e.originator);
+    }
+
+    p.setProperty("ical", e.ical);
+    p.setProperty("attempts", String.valueOf(e.attempts));
+    p.setProperty("recipients", String.join("\n", e.recipients));
+
+    try {
+      dir.mkdirs();
+
+      /* Write it elsewhere then move it into place so a reader never sees
+       * part of an entry.
+       */
+      final Path tmp = Files.createTempFile(dir.toPath(), e.name, ".tmp");
+
+      try (Writer wtr = Files.newBufferedWriter(tmp,
+                                                StandardCharsets.UTF_8)) {
+        p.store(wtr, null);
+      }
+
+      Files.move(tmp, new File(dir, e.name + suffix).toPath(),
+                 StandardCopyOption.ATOMIC_MOVE,
+                 StandardCopyOption.REPLACE_EXISTING);
+    } catch (final IOException ioe) {
+      throw new WebdavException(ioe);
+    }
+  }
+
+  private Entry read(final String name,
+                     final File f) {
+    final Properties p = new Properties();
+
+    try (Reader rdr = Files.newBufferedReader(f.toPath(),
+                                              StandardCharsets.UTF_8)) {
+      p.load(rdr);
+    } catch (final IOException ioe) {
+      return null;
+    }
+
+    final String account = p.getProperty("account");
+    final String ical = p.getProperty("ical");
+    final String recipients = p.getProperty("recipients");
+
+    if ((account == null) || (ical == null) || (recipients == null)) {
+      return null;
+    }
+
+    final TreeSet<String> rs = new TreeSet<>(
+            Arrays.asList(recipients.split("\n")));
+
+    int attempts;
+    try {
+      attempts = Integer.parseInt(p.getProperty("attempts", "0"));
+    } catch (final NumberFormatException nfe) {
+      attempts = 0;
+    }
+
+    return new Entry(name, account, p.getProperty("originator"),
+                     ical, rs, attempts);
+  }
+
+  /* Lets us pick out an account's entries without reading every file */
+  private static String prefix(final String account) {
+    return Integer.toHexString(account.hashCode()) + "-";
+  }
+}
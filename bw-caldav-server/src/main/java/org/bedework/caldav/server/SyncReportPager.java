@@ -0,0 +1,105 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.caldav.server;
+
+import org.bedework.caldav.server.sysinterface.SysIntf;
+import org.bedework.caldav.server.sysinterface.SysIntf.SynchReportData;
+import org.bedework.caldav.server.sysinterface.SysIntf.SynchReportData.SynchReportDataItem;
+import org.bedework.webdav.servlet.shared.WebdavException;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/** Limits the number of items in a sync-collection report.
+ *
+ * <p>The next request returns changes after the continuation token so
+ * items sharing a token are never split across pages. The page ends
+ * before the run of items which crosses the limit or, if that run starts
+ * the report, after it. A truncated page is therefore never empty and
+ * the client always makes progress.
+ */
+class SyncReportPager {
+  private SyncReportPager() {
+  }
+
+  /** Put the items in token order and, if there are more than the limit,
+   * drop the excess and set the token to continue from. If the backend
+   * can't supply such a token, or the page would hold every item,
+   * nothing is dropped.
+   *
+   * @param srd the report
+   * @param limit max number of items - zero or negative for no limit
+   * @param sysi for the continuation token
+   * @return true if the report was truncated
+   * @throws WebdavException
+   */
+  static boolean page(final SynchReportData srd,
+                      final int limit,
+                      final SysIntf sysi) throws WebdavException {
+    final List<SynchReportDataItem> items = srd.items;
+
+    if (items == null) {
+      return false;
+    }
+
+    Collections.sort(items);
+
+    if ((limit <= 0) || (items.size() <= limit)) {
+      return false;
+    }
+
+    int end = limit;
+    while ((end > 0) && sameToken(items, end)) {
+      end--;
+    }
+
+    if (end == 0) {
+      // The first run is longer than the limit - return all of it
+      end = limit;
+      while ((end < items.size()) && sameToken(items, end)) {
+        end++;
+      }
+
+      if (end == items.size()) {
+        return false;
+      }
+    }
+
+    final String token = sysi.getContinuationToken(srd,
+                                                   items.get(end - 1));
+
+    if (token == null) {
+      // Backend can't continue part way through - return the lot
+      return false;
+    }
+
+    srd.items = new ArrayList<SynchReportDataItem>(items.subList(0, end));
+    srd.truncated = true;
+    srd.token = token;
+
+    return true;
+  }
+
+  /* True if the item at i has the same token as the one before it */
+  private static boolean sameToken(final List<SynchReportDataItem> items,
+                                   final int i) {
+    return items.get(i).getToken().equals(items.get(i - 1).getToken());
+  }
+}
@@ -0,0 +1,157 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.caldav.server;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/** An input stream which copies everything read from it to an output
+ * stream. Used to hash an iSchedule body for DKIM while it is being
+ * parsed so that it is only read once.
+ *
+ * <p>Reading past the limit fails and getTooLarge will return true.
+ */
+public class TeeInputStream extends FilterInputStream {
+  private final OutputStream out;
+  private final long limit;
+
+  private long count;
+  private boolean tooLarge;
+
+  /**
+   * @param in     source
+   * @param out    gets a copy of everything read - may be null
+   * @param limit  max bytes - 0 or less for no limit
+   */
+  public TeeInputStream(final InputStream in,
+                        final OutputStream out,
+                        final long limit) {
+    super(in);
+
+    this.out = out;
+    this.limit = limit;
+  }
+
+  /**
+   * @return true if the source had more than the limit
+   */
+  public boolean getTooLarge() {
+    return tooLarge;
+  }
+
+  /**
+   * @return bytes read so far
+   */
+  public long getCount() {
+    return count;
+  }
+
+  /** Read whatever the reader left so that all of it is copied.
+   *
+   * @throws IOException
+   */
+  public void drain() throws IOException {
+    final byte[] buffer = new byte[2048];
+
+    while (read(buffer, 0, buffer.length) >= 0) {
+      // Just copying
+    }
+  }
+
+  @Override
+  public int read() throws IOException {
+    final int c = super.read();
+
+    if (c >= 0) {
+      counted(1);
+
+      if (out != null) {
+        out.write(c);
+      }
+    }
+
+    return c;
+  }
+
+  @Override
+  public int read(final byte[] b,
+                  final int off,
+                  final int len) throws IOException {
+    final int n = super.read(b, off, len);
+
+    if (n > 0) {
+      counted(n);
+
+      if (out != null) {
+        out.write(b, off, n);
+      }
+    }
+
+    return n;
+  }
+
+  /* Skipped bytes must still be copied */
+  @Override
+  public long skip(final long n) throws IOException {
+    if (n <= 0) {
+      return 0;
+    }
+
+    final byte[] buffer = new byte[(int)Math.min(n, 2048)];
+    long skipped = 0;
+
+    while (skipped < n) {
+      final int len = read(buffer, 0,
+                           (int)Math.min(buffer.length, n - skipped));
+
+      if (len < 0) {
+        break;
+      }
+
+      skipped += len;
+    }
+
+    return skipped;
+  }
+
+  @Override
+  public boolean markSupported() {
+    return false;
+  }
+
+  @Override
+  public void mark(final int readlimit) {
+  }
+
+  @Override
+  public void reset() throws IOException {
+    throw new IOException("mark/reset not supported");
+  }
+
+  private void counted(final int n) throws IOException {
+    count += n;
+
+    if ((limit > 0) && (count > limit)) {
+      tooLarge = true;
+      throw new IOException("Entity larger than " + limit + " bytes");
+    }
+  }
+}
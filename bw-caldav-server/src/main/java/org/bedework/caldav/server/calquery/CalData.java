@@ -19,7 +19,6 @@
 package org.bedework.caldav.server.calquery;
 
 import org.bedework.caldav.server.CaldavComponentNode;
-import org.bedework.caldav.server.sysinterface.SysIntf;
 import org.bedework.caldav.util.DumpUtil;
 import org.bedework.caldav.util.ParseUtil;
 import org.bedework.util.xml.XmlEmit;
@@ -41,20 +40,15 @@ import ietf.params.xml.ns.caldav.LimitFreebusySetType;
 import ietf.params.xml.ns.caldav.LimitRecurrenceSetType;
 import ietf.params.xml.ns.caldav.PropType;
 import net.fortuna.ical4j.model.Calendar;
-import net.fortuna.ical4j.model.Component;
-import net.fortuna.ical4j.model.ComponentList;
-import net.fortuna.ical4j.model.Property;
-import net.fortuna.ical4j.model.PropertyList;
-import net.fortuna.ical4j.model.component.VEvent;
 
 import org.apache.log4j.Logger;
 import org.w3c.dom.Element;
 import org.w3c.dom.NamedNodeMap;
 import org.w3c.dom.Node;
 
+import java.io.BufferedWriter;
 import java.io.IOException;
-import java.util.Collection;
-import java.util.Iterator;
+import java.io.Writer;
 
 import javax.servlet.http.HttpServletResponse;
 import javax.xml.namespace.QName;
@@ -149,6 +143,11 @@ public class CalData extends WebdavProperty {
 
   private CalendarDataType calendarData;
 
+  private ProjectionWriter projection;
+
+  /* Size of each CDATA section written for the calendar data */
+  private static final int cdataBufferSize = 8192;
+
   /** Constructor
    *
    * @param tag  QName name
@@ -296,99 +295,71 @@ public class CalData extends WebdavProperty {
       return;
     }
 
-    // Assume all properties for that level.
-
-    // Currently we only handle VEVENT -
-    // If there's no VEVENT element what does that imply?
+    String ctype = contentType;
+    if (ctype == null) {
+      ctype = node.getIntf().getDefaultContentType();
+    }
 
-    for (final CompType subcomp : comp.getComp()) {
-      final String nm = subcomp.getName().toUpperCase();
+    if (!ProjectionWriter.handles(ctype)) {
+      node.writeContent(xml, null, contentType);
+      return;
+    }
 
-      if ("VEVENT".equals(nm) ||
-              "VTODO".equals(nm)) {
-        if (subcomp.getAllprop() != null) {
-          node.writeContent(xml, null, contentType);
-          return;
-        }
+    final ProjectionWriter pw = getProjection(comp);
+    final Calendar ical = node.getIcal();
 
-        try {
-          if ((contentType != null) &&
-                  contentType.equals(XcalTags.mimetype)) {
-            // XXX Just return the whole lot for the moment
-            node.writeContent(xml, null, contentType);
-          } else {
-            xml.cdataValue(transformVevent(node.getIntf(),
-                                           node.getIcal(),
-                                           subcomp.getProp(),
-                                           contentType));
-          }
-        } catch (final IOException ioe) {
-          throw new WebdavException(ioe);
-        }
-        return;
-      }
+    if (XcalTags.mimetype.equals(ctype)) {
+      pw.writeXcal(ical, xml);
+      return;
     }
 
-    // No special instructions.
+    /* Written straight into the xml a buffer at a time */
+    final Writer wtr = new BufferedWriter(new CdataWriter(xml),
+                                          cdataBufferSize);
 
-    node.writeContent(xml, null, contentType);
+    if (ProjectionWriter.jcalMimetype.equals(ctype)) {
+      pw.writeJcal(ical, wtr);
+    } else {
+      pw.writeIcal(ical, wtr);
+    }
   }
 
-  /* Transform one or more VEVENT objects based on a list of required
-   * properties.
+  /* Emits whatever is written to it as CDATA. Adjacent CDATA sections
+   * are a single value to an xml parser so it doesn't matter where the
+   * content is split.
    */
-  private String transformVevent(final SysIntf intf,
-                                 final Calendar ical,
-                                 final Collection<PropType> props,
-                                 final String contentType)  throws WebdavException {
-    try {
-      final Calendar nical = new Calendar();
-      final PropertyList pl = ical.getProperties();
-      final PropertyList npl = nical.getProperties();
+  private static class CdataWriter extends Writer {
+    private final XmlEmit xml;
 
-      // Add all vcalendar properties to new cal
-      Iterator it = pl.iterator();
+    CdataWriter(final XmlEmit xml) {
+      this.xml = xml;
+    }
 
-      while (it.hasNext()) {
-        npl.add((Property)it.next());
+    @Override
+    public void write(final char[] cbuf,
+                      final int off,
+                      final int len) throws IOException {
+      if (len > 0) {
+        xml.cdataValue(new String(cbuf, off, len));
       }
+    }
 
-      final ComponentList cl = ical.getComponents();
-      final ComponentList ncl = nical.getComponents();
-
-      it = cl.iterator();
-
-      while (it.hasNext()) {
-        final Component c = (Component)it.next();
-
-        if (!(c instanceof VEvent)) {
-          ncl.add(c);
-        } else {
-          final VEvent v = new VEvent();
-
-          final PropertyList vpl = c.getProperties();
-          final PropertyList nvpl = v.getProperties();
-
-          for (final PropType pr: props) {
-            final Property p = vpl.getProperty(pr.getName());
-
-            if (p != null) {
-              nvpl.add(p);
-            }
-          }
-
-          ncl.add(v);
-        }
-      }
+    @Override
+    public void flush() {
+    }
 
-      return intf.toIcalString(nical, contentType);
-    } catch (final Throwable t) {
-      if (debug) {
-        getLogger().error("transformVevent exception: ", t);
-      }
+    @Override
+    public void close() {
+    }
+  }
 
-      throw new WebdavBadRequest();
+  /* The projection is the same for every node in the report */
+  private ProjectionWriter getProjection(final CompType comp) throws WebdavException {
+    if (projection == null) {
+      projection = new ProjectionWriter(comp);
     }
+
+    return projection;
   }
 
   /* ====================================================================
@@ -18,11 +18,16 @@
 */
 package org.bedework.caldav.server.calquery;
 
+import org.bedework.access.AccessPrincipal;
 import org.bedework.caldav.server.CalDAVCollection;
 import org.bedework.caldav.server.CalDAVEvent;
+import org.bedework.caldav.server.FreeBusyIndex;
 import org.bedework.caldav.server.sysinterface.SysIntf;
+import org.bedework.caldav.server.sysinterface.SysIntf.IcalResultType;
 import org.bedework.caldav.util.ParseUtil;
 import org.bedework.caldav.util.TimeRange;
+import org.bedework.caldav.util.freebusy.BusyIntervals;
+import org.bedework.util.calendar.ScheduleMethods;
 import org.bedework.util.xml.XmlUtil;
 import org.bedework.util.xml.tagdefs.CaldavTags;
 import org.bedework.webdav.servlet.shared.WebdavBadRequest;
@@ -31,6 +36,8 @@ import org.bedework.webdav.servlet.shared.WebdavException;
 import org.apache.log4j.Logger;
 import org.w3c.dom.Node;
 
+import java.io.StringReader;
+
 /**
  * @author Mike Douglass douglm  rpi.edu
  */
@@ -76,7 +83,8 @@ public class FreeBusyQuery {
     }
   }
 
-  /**
+  /** Answered from the free-busy index if it has everything we need.
+   *
    * @param sysi
    * @param col
    * @param depth
@@ -86,7 +94,47 @@ public class FreeBusyQuery {
   public CalDAVEvent getFreeBusy(final SysIntf sysi, final CalDAVCollection col,
                                  final int depth) throws WebdavException {
     try {
-      return sysi.getFreeBusy(col, depth, timeRange);
+      final FreeBusyIndex fbi = FreeBusyIndex.getIndex();
+
+      if (!fbi.getEnabled()) {
+        return sysi.getFreeBusy(col, depth, timeRange);
+      }
+
+      final String requester = FreeBusyIndex.getRequester(sysi);
+      final String subject = col.getPath() + ";" + depth;
+      final long start = timeRange.getStart().getTime();
+      final long end = timeRange.getEnd().getTime();
+
+      final BusyIntervals busy = fbi.getBusy(requester, subject,
+                                             start, end);
+
+      if (busy != null) {
+        final String fb = FreeBusyIndex.toVfreebusy(null, null, null, null,
+                                                    start, end, busy);
+
+        return sysi.fromIcal(col, new StringReader(fb), "text/calendar",
+                             IcalResultType.OneComponent,
+                             false).getEvent();
+      }
+
+      final long seq = fbi.getSeq();
+      final CalDAVEvent ev = sysi.getFreeBusy(col, depth, timeRange);
+
+      if (ev != null) {
+        final AccessPrincipal owner = col.getOwner();
+        String ownerHref = null;
+
+        if (owner != null) {
+          ownerHref = owner.getPrincipalRef();
+        }
+
+        fbi.add(requester, subject, ownerHref, col.getPath(), start, end,
+                ev.toIcalString(ScheduleMethods.methodTypeNone,
+                                "text/calendar"),
+                seq);
+      }
+
+      return ev;
     } catch (WebdavException wde) {
       throw wde;
     } catch (Throwable t) {
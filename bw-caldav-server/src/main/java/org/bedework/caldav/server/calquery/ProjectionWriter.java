@@ -0,0 +1,944 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.caldav.server.calquery;
+
+import org.bedework.util.xml.XmlEmit;
+import org.bedework.util.xml.tagdefs.XcalTags;
+import org.bedework.webdav.servlet.shared.WebdavException;
+
+import ietf.params.xml.ns.caldav.CompType;
+import ietf.params.xml.ns.caldav.PropType;
+import net.fortuna.ical4j.data.FoldingWriter;
+import net.fortuna.ical4j.model.Calendar;
+import net.fortuna.ical4j.model.Component;
+import net.fortuna.ical4j.model.ComponentList;
+import net.fortuna.ical4j.model.DateTime;
+import net.fortuna.ical4j.model.Parameter;
+import net.fortuna.ical4j.model.ParameterList;
+import net.fortuna.ical4j.model.Property;
+import net.fortuna.ical4j.model.PropertyList;
+import net.fortuna.ical4j.model.TextList;
+import net.fortuna.ical4j.model.component.VAvailability;
+import net.fortuna.ical4j.model.component.VEvent;
+import net.fortuna.ical4j.model.component.VTimeZone;
+import net.fortuna.ical4j.model.component.VToDo;
+import net.fortuna.ical4j.model.property.Categories;
+import net.fortuna.ical4j.model.property.DateListProperty;
+import net.fortuna.ical4j.model.property.DateProperty;
+import net.fortuna.ical4j.model.property.Geo;
+import net.fortuna.ical4j.model.property.RequestStatus;
+import net.fortuna.ical4j.model.property.Resources;
+import net.fortuna.ical4j.model.property.XProperty;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import javax.xml.namespace.QName;
+
+/** Writes the part of a calendar selected by a calendar-data comp
+ * element. The selected components and properties are written directly
+ * from the source components - no trimmed copy of the calendar is built.
+ *
+ * <p>Following RFC 4791 section 9.6 a component which has neither
+ * allprop nor any prop elements is returned with no properties and only
+ * the components named (or all for allcomp) are returned.
+ *
+ * <p>Output may be iCalendar, jCal or xCal. A compiled projection holds
+ * no state for the output so may be reused for every node in a report.
+ */
+public class ProjectionWriter {
+  /** */
+  public static final String jcalMimetype = "application/calendar+json";
+
+  /** */
+  public static final String icalMimetype = "text/calendar";
+
+  private static final String crlf = "\r\n";
+
+  private final Projection vcal;
+
+  /* What we keep for each component level */
+  private static class Projection {
+    final String name;
+
+    boolean allProps;
+
+    /* Property name to novalue flag */
+    final Map<String, Boolean> props = new HashMap<String, Boolean>();
+
+    boolean allComps;
+
+    final Map<String, Projection> comps = new HashMap<String, Projection>();
+
+    Projection(final String name) {
+      this.name = name;
+    }
+
+    /* Return null if the property is not wanted */
+    Boolean wantProp(final String pname) {
+      if (allProps) {
+        return Boolean.FALSE;
+      }
+
+      return props.get(pname);
+    }
+
+    /* Return null if the component is not wanted */
+    Projection wantComp(final String cname) {
+      if (allComps) {
+        return all;
+      }
+
+      return comps.get(cname);
+    }
+  }
+
+  /* Everything for a component selected by allcomp */
+  private static final Projection all = new Projection(null);
+
+  static {
+    all.allProps = true;
+    all.allComps = true;
+  }
+
+  /**
+   * @param comp the top level VCALENDAR comp element
+   * @throws WebdavException
+   */
+  public ProjectionWriter(final CompType comp) throws WebdavException {
+    vcal = compile(comp);
+  }
+
+  /**
+   * @param contentType a content type
+   * @return true if we can write that type
+   */
+  public static boolean handles(final String contentType) {
+    return icalMimetype.equals(contentType) ||
+           jcalMimetype.equals(contentType) ||
+           XcalTags.mimetype.equals(contentType);
+  }
+
+  /* ====================================================================
+   *                   iCalendar
+   * ==================================================================== */
+
+  /** Write the selected parts of the calendar as iCalendar text.
+   *
+   * @param cal source calendar
+   * @param wtr for output
+   * @throws WebdavException
+   */
+  public void writeIcal(final Calendar cal,
+                        final Writer wtr) throws WebdavException {
+    try {
+      FoldingWriter fw = new FoldingWriter(wtr);
+
+      writeIcal(Calendar.VCALENDAR, cal.getProperties(),
+                cal.getComponents(), vcal, fw);
+
+      fw.flush();
+    } catch (IOException ioe) {
+      throw new WebdavException(ioe);
+    }
+  }
+
+  private void writeIcal(final String name,
+                         final PropertyList pl,
+                         final ComponentList cl,
+                         final Projection proj,
+                         final Writer wtr) throws IOException {
+    wtr.write("BEGIN:");
+    wtr.write(name);
+    wtr.write(crlf);
+
+    for (Object o: pl) {
+      Property p = (Property)o;
+      Boolean novalue = proj.wantProp(p.getName());
+
+      if (novalue == null) {
+        continue;
+      }
+
+      if (!novalue) {
+        wtr.write(p.toString());
+        continue;
+      }
+
+      wtr.write(p.getName());
+
+      Iterator pit = p.getParameters().iterator();
+      while (pit.hasNext()) {
+        wtr.write(';');
+        wtr.write(pit.next().toString());
+      }
+
+      wtr.write(':');
+      wtr.write(crlf);
+    }
+
+    if (cl != null) {
+      for (Object o: cl) {
+        Component c = (Component)o;
+        Projection cproj = proj.wantComp(c.getName());
+
+        if (cproj == null) {
+          continue;
+        }
+
+        writeIcal(c.getName(), c.getProperties(), subComponents(c),
+                  cproj, wtr);
+      }
+    }
+
+    wtr.write("END:");
+    wtr.write(name);
+    wtr.write(crlf);
+  }
+
+  /* ====================================================================
+   *                   jCal
+   * ==================================================================== */
+
+  /** Write the selected parts of the calendar as jCal.
+   *
+   * @param cal source calendar
+   * @param wtr for output
+   * @throws WebdavException
+   */
+  public void writeJcal(final Calendar cal,
+                        final Writer wtr) throws WebdavException {
+    try {
+      writeJcal(Calendar.VCALENDAR, cal.getProperties(),
+                cal.getComponents(), vcal, wtr);
+      wtr.flush();
+    } catch (IOException ioe) {
+      throw new WebdavException(ioe);
+    }
+  }
+
+  private void writeJcal(final String name,
+                         final PropertyList pl,
+                         final ComponentList cl,
+                         final Projection proj,
+                         final Writer wtr) throws IOException {
+    wtr.write('[');
+    jsonString(name.toLowerCase(), wtr);
+    wtr.write(",[");
+
+    boolean first = true;
+
+    for (Object o: pl) {
+      Property p = (Property)o;
+      Boolean novalue = proj.wantProp(p.getName());
+
+      if (novalue == null) {
+        continue;
+      }
+
+      if (!first) {
+        wtr.write(',');
+      }
+      first = false;
+
+      Value val = value(p, novalue);
+
+      wtr.write('[');
+      jsonString(p.getName().toLowerCase(), wtr);
+      wtr.write(",{");
+
+      boolean firstPar = true;
+      Iterator pit = p.getParameters().iterator();
+      while (pit.hasNext()) {
+        Parameter par = (Parameter)pit.next();
+
+        if (Parameter.VALUE.equals(par.getName())) {
+          continue;
+        }
+
+        if (!firstPar) {
+          wtr.write(',');
+        }
+        firstPar = false;
+
+        jsonString(par.getName().toLowerCase(), wtr);
+        wtr.write(':');
+        jsonString(par.getValue(), wtr);
+      }
+
+      wtr.write("},");
+      jsonString(val.type, wtr);
+
+      for (Object v: val.values) {
+        wtr.write(',');
+        jsonValue(v, wtr);
+      }
+
+      wtr.write(']');
+    }
+
+    wtr.write("],[");
+
+    first = true;
+
+    if (cl != null) {
+      for (Object o: cl) {
+        Component c = (Component)o;
+        Projection cproj = proj.wantComp(c.getName());
+
+        if (cproj == null) {
+          continue;
+        }
+
+        if (!first) {
+          wtr.write(',');
+        }
+        first = false;
+
+        writeJcal(c.getName(), c.getProperties(), subComponents(c),
+                  cproj, wtr);
+      }
+    }
+
+    wtr.write("]]");
+  }
+
+  @SuppressWarnings("unchecked")
+  private void jsonValue(final Object v,
+                         final Writer wtr) throws IOException {
+    if (v instanceof Number) {
+      wtr.write(v.toString());
+      return;
+    }
+
+    if (v instanceof Structured) {
+      // One array holding the parts
+      Structured st = (Structured)v;
+
+      wtr.write('[');
+      for (int i = 0; i < st.values.size(); i++) {
+        if (i > 0) {
+          wtr.write(',');
+        }
+        jsonValue(st.values.get(i), wtr);
+      }
+      wtr.write(']');
+      return;
+    }
+
+    if (v instanceof List) {
+      // Recurrence parts
+      wtr.write('{');
+
+      boolean first = true;
+      for (String[] part: (List<String[]>)v) {
+        if (!first) {
+          wtr.write(',');
+        }
+        first = false;
+
+        jsonString(part[0].toLowerCase(), wtr);
+        wtr.write(':');
+
+        if (part.length == 2) {
+          jsonPart(part[0], part[1], wtr);
+          continue;
+        }
+
+        wtr.write('[');
+        for (int i = 1; i < part.length; i++) {
+          if (i > 1) {
+            wtr.write(',');
+          }
+          jsonPart(part[0], part[i], wtr);
+        }
+        wtr.write(']');
+      }
+
+      wtr.write('}');
+      return;
+    }
+
+    jsonString(String.valueOf(v), wtr);
+  }
+
+  private void jsonPart(final String name,
+                        final String val,
+                        final Writer wtr) throws IOException {
+    if (numericRecurPart(name)) {
+      wtr.write(val);
+    } else {
+      jsonString(val, wtr);
+    }
+  }
+
+  private static void jsonString(final String val,
+                                 final Writer wtr) throws IOException {
+    wtr.write('"');
+
+    int len = val.length();
+    for (int i = 0; i < len; i++) {
+      char c = val.charAt(i);
+
+      switch (c) {
+        case '"':
+          wtr.write("\\\"");
+          break;
+        case '\\':
+          wtr.write("\\\\");
+          break;
+        case '\n':
+          wtr.write("\\n");
+          break;
+        case '\r':
+          wtr.write("\\r");
+          break;
+        case '\t':
+          wtr.write("\\t");
+          break;
+        default:
+          if (c < 0x20) {
+            wtr.write(String.format("\\u%04x", (int)c));
+          } else {
+            wtr.write(c);
+          }
+      }
+    }
+
+    wtr.write('"');
+  }
+
+  /* ====================================================================
+   *                   xCal
+   * ==================================================================== */
+
+  /** Write the selected parts of the calendar as xCal elements.
+   *
+   * @param cal source calendar
+   * @param xml for output
+   * @throws WebdavException
+   */
+  public void writeXcal(final Calendar cal,
+                        final XmlEmit xml) throws WebdavException {
+    try {
+      QName icalendar = xcalTag("icalendar");
+
+      xml.openTag(icalendar);
+      writeXcal(Calendar.VCALENDAR, cal.getProperties(),
+                cal.getComponents(), vcal, xml);
+      xml.closeTag(icalendar);
+    } catch (WebdavException we) {
+      throw we;
+    } catch (Throwable t) {
+      throw new WebdavException(t);
+    }
+  }
+
+  private void writeXcal(final String name,
+                         final PropertyList pl,
+                         final ComponentList cl,
+                         final Projection proj,
+                         final XmlEmit xml) throws Throwable {
+    QName ctag = xcalTag(name);
+    QName propsTag = xcalTag("properties");
+    QName compsTag = xcalTag("components");
+
+    xml.openTag(ctag);
+
+    boolean open = false;
+
+    for (Object o: pl) {
+      Property p = (Property)o;
+      Boolean novalue = proj.wantProp(p.getName());
+
+      if (novalue == null) {
+        continue;
+      }
+
+      if (!open) {
+        xml.openTag(propsTag);
+        open = true;
+      }
+
+      QName ptag = xcalTag(p.getName());
+      xml.openTag(ptag);
+
+      ParameterList parl = p.getParameters();
+      boolean openPars = false;
+
+      Iterator pit = parl.iterator();
+      while (pit.hasNext()) {
+        Parameter par = (Parameter)pit.next();
+
+        if (Parameter.VALUE.equals(par.getName())) {
+          continue;
+        }
+
+        if (!openPars) {
+          xml.openTag(xcalTag("parameters"));
+          openPars = true;
+        }
+
+        QName partag = xcalTag(par.getName());
+        xml.openTag(partag);
+        xml.property(xcalTag(parameterType(par)), par.getValue());
+        xml.closeTag(partag);
+      }
+
+      if (openPars) {
+        xml.closeTag(xcalTag("parameters"));
+      }
+
+      Value val = value(p, novalue);
+      QName vtag = xcalTag(val.type);
+
+      for (Object v: val.values) {
+        if (v instanceof Structured) {
+          // Each part is an element of its own with no value type
+          Structured st = (Structured)v;
+
+          for (int i = 0; i < st.values.size(); i++) {
+            xml.property(xcalTag(st.names[i]),
+                         String.valueOf(st.values.get(i)));
+          }
+        } else if (v instanceof List) {
+          xml.openTag(vtag);
+          for (Object po: (List)v) {
+            String[] part = (String[])po;
+            for (int i = 1; i < part.length; i++) {
+              xml.property(xcalTag(part[0]), part[i]);
+            }
+          }
+          xml.closeTag(vtag);
+        } else {
+          xml.property(vtag, String.valueOf(v));
+        }
+      }
+
+      xml.closeTag(ptag);
+    }
+
+    if (open) {
+      xml.closeTag(propsTag);
+    }
+
+    open = false;
+
+    if (cl != null) {
+      for (Object o: cl) {
+        Component c = (Component)o;
+        Projection cproj = proj.wantComp(c.getName());
+
+        if (cproj == null) {
+          continue;
+        }
+
+        if (!open) {
+          xml.openTag(compsTag);
+          open = true;
+        }
+
+        writeXcal(c.getName(), c.getProperties(), subComponents(c),
+                  cproj, xml);
+      }
+    }
+
+    if (open) {
+      xml.closeTag(compsTag);
+    }
+
+    xml.closeTag(ctag);
+  }
+
+  private static QName xcalTag(final String name) {
+    return new QName(XcalTags.namespace, name.toLowerCase());
+  }
+
+  private static String parameterType(final Parameter par) {
+    String name = par.getName();
+
+    if (Parameter.DELEGATED_FROM.equals(name) ||
+        Parameter.DELEGATED_TO.equals(name) ||
+        Parameter.MEMBER.equals(name) ||
+        Parameter.SENT_BY.equals(name)) {
+      return "cal-address";
+    }
+
+    if (Parameter.ALTREP.equals(name) ||
+        Parameter.DIR.equals(name)) {
+      return "uri";
+    }
+
+    return "text";
+  }
+
+  /* ====================================================================
+   *                   Typed values for jCal and xCal
+   * ==================================================================== */
+
+  /* A value type and one or more values. Values are Strings, Numbers,
+   * Structured or for recurrences a list of name + values arrays.
+   */
+  private static class Value {
+    final String type;
+    final List<Object> values = new ArrayList<Object>(1);
+
+    Value(final String type) {
+      this.type = type;
+    }
+  }
+
+  /* A value made up of a fixed sequence of parts - GEO and
+   * REQUEST-STATUS. jCal writes the parts as one array and xCal as an
+   * element per part named as in RFC 6321.
+   */
+  private static class Structured {
+    final String[] names;
+    final List<Object> values = new ArrayList<Object>(3);
+
+    Structured(final String... names) {
+      this.names = names;
+    }
+  }
+
+  private static Value value(final Property p,
+                             final boolean novalue) {
+    String type = valueType(p);
+    Value val = new Value(type);
+
+    if (novalue) {
+      val.values.add("");
+      return val;
+    }
+
+    /* Multi-valued text is one value per item so that jCal gets an
+       array and xCal an element for each.
+     */
+    if (p instanceof Categories) {
+      return textList(((Categories)p).getCategories(), val);
+    }
+
+    if (p instanceof Resources) {
+      return textList(((Resources)p).getResources(), val);
+    }
+
+    if (p instanceof Geo) {
+      Geo geo = (Geo)p;
+
+      if ((geo.getLatitude() != null) && (geo.getLongitude() != null)) {
+        Structured st = new Structured("latitude", "longitude");
+
+        st.values.add(geo.getLatitude());
+        st.values.add(geo.getLongitude());
+        val.values.add(st);
+
+        return val;
+      }
+    }
+
+    if (p instanceof RequestStatus) {
+      return requestStatus((RequestStatus)p, val);
+    }
+
+    String s = p.getValue();
+
+    if (s == null) {
+      val.values.add("");
+      return val;
+    }
+
+    if ("date".equals(type) || "date-time".equals(type)) {
+      for (String d: s.split(",")) {
+        val.values.add(formatDate(d));
+      }
+    } else if ("period".equals(type)) {
+      for (String per: s.split(",")) {
+        int pos = per.indexOf('/');
+
+        if (pos < 0) {
+          val.values.add(per);
+          continue;
+        }
+
+        String end = per.substring(pos + 1);
+        if (!end.startsWith("P") && !end.startsWith("-P")) {
+          end = formatDate(end);
+        }
+
+        val.values.add(formatDate(per.substring(0, pos)) + "/" + end);
+      }
+    } else if ("integer".equals(type)) {
+      try {
+        val.values.add(Integer.valueOf(s.trim()));
+      } catch (NumberFormatException nfe) {
+        val.values.add(s);
+      }
+    } else if ("float".equals(type)) {
+      try {
+        val.values.add(Double.valueOf(s.trim()));
+      } catch (NumberFormatException nfe) {
+        val.values.add(s);
+      }
+    } else if ("utc-offset".equals(type)) {
+      if ((s.length() >= 5) && (s.indexOf(':') < 0)) {
+        s = s.substring(0, 3) + ":" + s.substring(3);
+      }
+      val.values.add(s);
+    } else if ("recur".equals(type)) {
+      val.values.add(recurParts(s));
+    } else {
+      val.values.add(s);
+    }
+
+    return val;
+  }
+
+  private static Value textList(final TextList tl,
+                                final Value val) {
+    if (tl != null) {
+      final Iterator it = tl.iterator();
+
+      while (it.hasNext()) {
+        val.values.add(String.valueOf(it.next()));
+      }
+    }
+
+    if (val.values.isEmpty()) {
+      val.values.add("");
+    }
+
+    return val;
+  }
+
+  /* Code, description and, if present, the exception data */
+  private static Value requestStatus(final RequestStatus rs,
+                                     final Value val) {
+    String data = rs.getExData();
+    Structured st;
+
+    if (data == null) {
+      st = new Structured("code", "description");
+    } else {
+      st = new Structured("code", "description", "data");
+    }
+
+    st.values.add(nonNull(rs.getStatusCode()));
+    st.values.add(nonNull(rs.getDescription()));
+
+    if (data != null) {
+      st.values.add(data);
+    }
+
+    val.values.add(st);
+
+    return val;
+  }
+
+  private static String nonNull(final String val) {
+    if (val == null) {
+      return "";
+    }
+
+    return val;
+  }
+
+  private static String valueType(final Property p) {
+    Parameter vpar = p.getParameter(Parameter.VALUE);
+
+    if (vpar != null) {
+      return vpar.getValue().toLowerCase();
+    }
+
+    if (p instanceof DateProperty) {
+      if (((DateProperty)p).getDate() instanceof DateTime) {
+        return "date-time";
+      }
+
+      return "date";
+    }
+
+    if (p instanceof DateListProperty) {
+      return "date-time";
+    }
+
+    String name = p.getName();
+
+    if (Property.SEQUENCE.equals(name) ||
+        Property.PRIORITY.equals(name) ||
+        Property.PERCENT_COMPLETE.equals(name) ||
+        Property.REPEAT.equals(name)) {
+      return "integer";
+    }
+
+    if (Property.DURATION.equals(name) ||
+        Property.TRIGGER.equals(name)) {
+      return "duration";
+    }
+
+    if (Property.TZOFFSETFROM.equals(name) ||
+        Property.TZOFFSETTO.equals(name)) {
+      return "utc-offset";
+    }
+
+    if (Property.ORGANIZER.equals(name) ||
+        Property.ATTENDEE.equals(name)) {
+      return "cal-address";
+    }
+
+    if (Property.URL.equals(name) ||
+        Property.TZURL.equals(name) ||
+        Property.ATTACH.equals(name)) {
+      return "uri";
+    }
+
+    if (Property.RRULE.equals(name) ||
+        Property.EXRULE.equals(name)) {
+      return "recur";
+    }
+
+    if (Property.GEO.equals(name)) {
+      return "float";
+    }
+
+    if (p instanceof XProperty) {
+      return "unknown";
+    }
+
+    return "text";
+  }
+
+  /* 20130101T100000Z -> 2013-01-01T10:00:00Z */
+  private static String formatDate(final String val) {
+    if ((val.length() < 8) || (val.indexOf('-') >= 0)) {
+      return val;
+    }
+
+    StringBuilder sb = new StringBuilder(val.length() + 4);
+
+    sb.append(val, 0, 4);
+    sb.append('-');
+    sb.append(val, 4, 6);
+    sb.append('-');
+    sb.append(val, 6, 8);
+
+    if (val.length() < 15) {
+      return sb.toString();
+    }
+
+    sb.append(val, 8, 11);
+    sb.append(':');
+    sb.append(val, 11, 13);
+    sb.append(':');
+    sb.append(val, 13, val.length());
+
+    return sb.toString();
+  }
+
+  private static List<String[]> recurParts(final String val) {
+    List<String[]> parts = new ArrayList<String[]>();
+
+    for (String part: val.split(";")) {
+      int pos = part.indexOf('=');
+
+      if (pos < 0) {
+        continue;
+      }
+
+      String name = part.substring(0, pos);
+      String[] vals = part.substring(pos + 1).split(",");
+      String[] res = new String[vals.length + 1];
+
+      res[0] = name;
+
+      for (int i = 0; i < vals.length; i++) {
+        if ("UNTIL".equals(name)) {
+          res[i + 1] = formatDate(vals[i]);
+        } else {
+          res[i + 1] = vals[i];
+        }
+      }
+
+      parts.add(res);
+    }
+
+    return parts;
+  }
+
+  private static boolean numericRecurPart(final String name) {
+    return "COUNT".equals(name) ||
+           "INTERVAL".equals(name) ||
+           "BYSECOND".equals(name) ||
+           "BYMINUTE".equals(name) ||
+           "BYHOUR".equals(name) ||
+           "BYMONTHDAY".equals(name) ||
+           "BYYEARDAY".equals(name) ||
+           "BYWEEKNO".equals(name) ||
+           "BYMONTH".equals(name) ||
+           "BYSETPOS".equals(name);
+  }
+
+  /* ====================================================================
+   *                   Private methods
+   * ==================================================================== */
+
+  private static Projection compile(final CompType comp) throws WebdavException {
+    Projection proj = new Projection(comp.getName().toUpperCase());
+
+    proj.allProps = comp.getAllprop() != null;
+    proj.allComps = comp.getAllcomp() != null;
+
+    for (PropType pr: comp.getProp()) {
+      proj.props.put(pr.getName().toUpperCase(),
+                     "yes".equals(pr.getNovalue()));
+    }
+
+    for (CompType sub: comp.getComp()) {
+      Projection sproj = compile(sub);
+
+      proj.comps.put(sproj.name, sproj);
+    }
+
+    return proj;
+  }
+
+  private static ComponentList subComponents(final Component comp) {
+    if (comp instanceof VEvent) {
+      return ((VEvent)comp).getAlarms();
+    }
+
+    if (comp instanceof VToDo) {
+      return ((VToDo)comp).getAlarms();
+    }
+
+    if (comp instanceof VTimeZone) {
+      return ((VTimeZone)comp).getObservances();
+    }
+
+    if (comp instanceof VAvailability) {
+      return ((VAvailability)comp).getAvailable();
+    }
+
+    return null;
+  }
+}
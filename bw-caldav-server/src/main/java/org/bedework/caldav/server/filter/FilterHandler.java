@@ -22,8 +22,15 @@ import org.bedework.caldav.server.CalDAVCollection;
 import org.bedework.caldav.server.CalDAVEvent;
 import org.bedework.caldav.server.CaldavBwNode;
 import org.bedework.caldav.server.CaldavComponentNode;
+import org.bedework.caldav.server.QueryExecutor;
+import org.bedework.caldav.server.QueryExecutor.ResultHandler;
 import org.bedework.caldav.server.sysinterface.RetrievalMode;
+import org.bedework.caldav.server.sysinterface.RetrievalProjection;
+import org.bedework.caldav.server.sysinterface.SysIntf;
+import org.bedework.caldav.util.filter.FilterEvaluator;
+import org.bedework.caldav.util.filter.FilterEvaluator.ComponentMatcher;
 import org.bedework.caldav.util.filter.FilterUtil;
+import org.bedework.caldav.util.filter.TextMatcher;
 import org.bedework.caldav.util.filter.parse.EventQuery;
 import org.bedework.caldav.util.filter.parse.Filters;
 import org.bedework.util.calendar.IcalDefs;
@@ -35,12 +42,17 @@ import org.bedework.webdav.servlet.shared.WebdavNsNode;
 import ietf.params.xml.ns.caldav.CompFilterType;
 import ietf.params.xml.ns.caldav.FilterType;
 import ietf.params.xml.ns.caldav.PropFilterType;
+import net.fortuna.ical4j.model.Calendar;
 import net.fortuna.ical4j.model.Component;
 import org.apache.log4j.Logger;
 
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
 
 import javax.servlet.http.HttpServletResponse;
 
@@ -131,6 +143,13 @@ public class FilterHandler {
 
   private FilterType f;
 
+  /* Compiled from eventq.filter on first use */
+  private ComponentMatcher matcher;
+
+  /* Text-matches of post filters compiled once for the query */
+  private final Map<PropFilterType, TextMatcher> textMatchers =
+          new IdentityHashMap<PropFilterType, TextMatcher>();
+
   private boolean debug;
 
   protected transient Logger log;
@@ -149,13 +168,13 @@ public class FilterHandler {
    * empty collection will be returned if no objects match.
    *
    * @param wdnode    WebdavNsNode defining root of search
-   * @param retrieveList   If non-null limit required fields.
+   * @param projection     If non-null limit required fields.
    * @param retrieveRecur  How we retrieve recurring events
    * @return Collection of event objects (null or empty for no result)
    * @throws WebdavException
    */
   public Collection<CalDAVEvent> query(final CaldavBwNode wdnode,
-                                       final List<String> retrieveList,
+                                       final RetrievalProjection projection,
                                        final RetrievalMode retrieveRecur) throws WebdavException {
     try {
       eventq = Filters.getQuery(f);
@@ -177,7 +196,7 @@ public class FilterHandler {
 
       Collection<CalDAVEvent> events = wdnode.getSysi().getEvents(c,
                                                                   eventq.filter,
-                                                                  retrieveList,
+                                                                  projection,
                                                                   retrieveRecur);
 
       if (debug) {
@@ -193,6 +212,122 @@ public class FilterHandler {
     }
   }
 
+  /** Query a number of collections with a single call to the system
+   * interface.
+   *
+   * @param sysi      system interface
+   * @param cols      collections to query
+   * @param projection     If non-null limit required fields.
+   * @param retrieveRecur  How we retrieve recurring events
+   * @return events for each collection in the order of cols
+   * @throws WebdavException
+   */
+  public List<Collection<CalDAVEvent>> query(final SysIntf sysi,
+                                             final List<CalDAVCollection> cols,
+                                             final RetrievalProjection projection,
+                                             final RetrievalMode retrieveRecur) throws WebdavException {
+    try {
+      eventq = Filters.getQuery(f);
+
+      final List<Collection<CalDAVEvent>> res =
+              sysi.getEvents(cols, eventq.filter,
+                             projection, retrieveRecur);
+
+      if (res.size() != cols.size()) {
+        throw new WebdavException("Expected " + cols.size() +
+                                  " results, got " + res.size());
+      }
+
+      return res;
+    } catch (WebdavBadRequest wbr) {
+      throw wbr;
+    } catch (Throwable t) {
+      error(t);
+      throw new WebdavException(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+    }
+  }
+
+  /** Query a number of collections, making up to limit calls to the
+   * system interface concurrently. The handler is called on this thread
+   * with the events for each collection, in the order of cols, as soon as
+   * that collection and all those before it have been fetched.
+   *
+   * <p>Only the calls to getEvents are made on other threads so the
+   * system interface must be thread safe.
+   *
+   * @param sysi      system interface
+   * @param cols      collections to query
+   * @param projection     If non-null limit required fields.
+   * @param retrieveRecur  How we retrieve recurring events
+   * @param limit     max number of concurrent calls
+   * @param handler   called with the events for each collection
+   * @throws WebdavException
+   */
+  public void query(final SysIntf sysi,
+                    final List<CalDAVCollection> cols,
+                    final RetrievalProjection projection,
+                    final RetrievalMode retrieveRecur,
+                    final int limit,
+                    final ResultHandler<Collection<CalDAVEvent>> handler) throws WebdavException {
+    try {
+      eventq = Filters.getQuery(f);
+
+      final List<Callable<Collection<CalDAVEvent>>> fetches =
+              new ArrayList<>(cols.size());
+
+      for (final CalDAVCollection col: cols) {
+        fetches.add(new Callable<Collection<CalDAVEvent>>() {
+          @Override
+          public Collection<CalDAVEvent> call() throws WebdavException {
+            return sysi.getEvents(col, eventq.filter,
+                                  projection, retrieveRecur);
+          }
+        });
+      }
+
+      QueryExecutor.invokeOrdered(fetches, limit, handler);
+    } catch (WebdavBadRequest wbr) {
+      throw wbr;
+    } catch (WebdavException we) {
+      throw we;
+    } catch (Throwable t) {
+      error(t);
+      throw new WebdavException(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+    }
+  }
+
+  /** As query but the events are delivered through an iterator so that
+   * large results can be processed without holding them all in memory.
+   *
+   * @param wdnode    WebdavNsNode defining root of search
+   * @param projection     If non-null limit required fields.
+   * @param retrieveRecur  How we retrieve recurring events
+   * @return Iterator over event objects (null for no result)
+   * @throws WebdavException
+   */
+  public Iterator<CalDAVEvent> iterate(final CaldavBwNode wdnode,
+                                       final RetrievalProjection projection,
+                                       final RetrievalMode retrieveRecur) throws WebdavException {
+    try {
+      eventq = Filters.getQuery(f);
+
+      CalDAVCollection c = (CalDAVCollection)wdnode.getCollection(false);
+      if (c == null) {
+        return null;
+      }
+
+      return wdnode.getSysi().getEventsIterator(c,
+                                                eventq.filter,
+                                                projection,
+                                                retrieveRecur);
+    } catch (WebdavBadRequest wbr) {
+      throw wbr;
+    } catch (Throwable t) {
+      error(t);
+      throw new WebdavException(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+    }
+  }
+
   /** Carry out any postfiltering on the collection of initialised nodes,
    *
    * @param nodes     Collection of initialised CaldavBwNode
@@ -209,49 +344,112 @@ public class FilterHandler {
       trace("post filtering needed");
     }
 
+    ArrayList<WebdavNsNode> filtered = new ArrayList<WebdavNsNode>();
+
+    for (WebdavNsNode node: nodes) {
+      if (postFilter(node)) {
+        filtered.add(node);
+      }
+    }
+
+    return filtered;
+  }
+
+  /** Carry out any postfiltering on a single initialised node. Only the
+   * prop-filters the query couldn't pass to the backend are applied - the
+   * backend has already matched everything else.
+   *
+   * @param node     initialised CaldavBwNode
+   * @return true if the node passes the filter
+   * @throws WebdavException
+   */
+  public boolean postFilter(final WebdavNsNode node) throws WebdavException {
+    if (!eventq.postFilter) {
+      return true;
+    }
+
     CompFilterType cfltr = f.getCompFilter();
 
     // Currently only handle VCALENDAR for top level.
     if (!"VCALENDAR".equals(cfltr.getName())) {
-      return new ArrayList<WebdavNsNode>();
+      return false;
     }
 
-    ArrayList<WebdavNsNode> filtered = new ArrayList<WebdavNsNode>();
+    if (!(node instanceof CaldavComponentNode)) {
+      // Cannot match to anything - don't pass it?
+      return false;
+    }
 
-    for (WebdavNsNode node: nodes) {
-      CaldavComponentNode curnode = null;
+    CaldavComponentNode curnode = (CaldavComponentNode)node;
 
-      if (!(node instanceof CaldavComponentNode)) {
-        // Cannot match to anything - don't pass it?
-      } else {
-        curnode = (CaldavComponentNode)node;
+    int entityType = curnode.getEvent().getEntityType();
 
-        int entityType = curnode.getEvent().getEntityType();
+    Collection<PropFilterType> pfs = null;
 
-        Collection<PropFilterType> pfs = null;
+    if (entityType == IcalDefs.entityTypeEvent) {
+      pfs = eventq.eventFilters;
+    } else if (entityType == IcalDefs.entityTypeTodo) {
+      pfs = eventq.todoFilters;
+    } else if (entityType == IcalDefs.entityTypeJournal) {
+      pfs = eventq.journalFilters;
+    }
 
-        if (entityType == IcalDefs.entityTypeEvent) {
-          pfs = eventq.eventFilters;
-        } else if (entityType == IcalDefs.entityTypeTodo) {
-          pfs = eventq.todoFilters;
-        } else if (entityType == IcalDefs.entityTypeJournal) {
-          pfs = eventq.journalFilters;
-        }
+    if (WebdavUtils.emptyCollection(pfs)) {
+      return false;
+    }
 
-        if (!WebdavUtils.emptyCollection(pfs)) {
-          Component comp = curnode.getComponent();
+    Component comp = curnode.getComponent();
 
-          for (PropFilterType pf: pfs) {
-            if (FilterUtil.filter(pf, comp)) {
-              filtered.add(curnode);
-              break;
-            }
-          }
-        }
+    for (PropFilterType pf: pfs) {
+      if (FilterUtil.filter(pf, getTextMatcher(pf), comp)) {
+        return true;
       }
     }
 
-    return filtered;
+    return false;
+  }
+
+  /** Evaluate the query filter in process against an event. This allows
+   * backends with no query engine to select events themselves. The event
+   * matches if its master or any override does.
+   *
+   * @param sysi     the system interface
+   * @param ev       the event
+   * @return true if the event matches the filter
+   * @throws WebdavException
+   */
+  public boolean matches(final SysIntf sysi,
+                         final CalDAVEvent ev) throws WebdavException {
+    Calendar ical = sysi.toCalendar(ev, false);
+
+    return FilterEvaluator.matches(getMatcher(), ical.getComponents());
+  }
+
+  private TextMatcher getTextMatcher(final PropFilterType pf) {
+    if (pf.getTextMatch() == null) {
+      return null;
+    }
+
+    TextMatcher tm = textMatchers.get(pf);
+
+    if (tm == null) {
+      tm = TextMatcher.compile(pf.getTextMatch());
+      textMatchers.put(pf, tm);
+    }
+
+    return tm;
+  }
+
+  private ComponentMatcher getMatcher() throws WebdavException {
+    if (matcher == null) {
+      if (eventq == null) {
+        eventq = Filters.getQuery(f);
+      }
+
+      matcher = FilterEvaluator.compile(eventq.filter);
+    }
+
+    return matcher;
   }
 
   /** ===================================================================
@@ -18,21 +18,26 @@
 */
 package org.bedework.caldav.server.get;
 
+import org.bedework.access.AccessPrincipal;
 import org.bedework.caldav.server.CaldavBWIntf;
+import org.bedework.caldav.server.FreeBusyIndex;
 import org.bedework.caldav.server.RequestPars;
 import org.bedework.caldav.server.sysinterface.CalDAVAuthProperties;
 import org.bedework.caldav.util.ParseUtil;
 import org.bedework.caldav.util.TimeRange;
+import org.bedework.caldav.util.freebusy.BusyIntervals;
 import org.bedework.webdav.servlet.shared.WebdavException;
 import org.bedework.webdav.servlet.shared.WebdavForbidden;
 
+import java.io.StringWriter;
 import java.util.Set;
 import java.util.TreeSet;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
-/** Handle freebusy GET requests.
+/** Handle freebusy GET requests. These are answered from the free-busy
+ * index when it is enabled and has the whole period.
  *
  * @author Mike Douglass
  */
@@ -94,9 +99,44 @@ public class FreeBusyGetHandler extends GetHandler {
       resp.setContentType("text/calendar; charset=UTF-8");
       recipients.add(cua);
 
+      final FreeBusyIndex fbi = FreeBusyIndex.getIndex();
+
+      if (!fbi.getEnabled()) {
+        getSysi().getSpecialFreeBusy(cua, recipients,
+                                     originator,
+                                     tr, resp.getWriter());
+        return;
+      }
+
+      final String requester = FreeBusyIndex.getRequester(getSysi());
+      final long start = tr.getStart().getTime();
+      final long end = tr.getEnd().getTime();
+
+      final BusyIntervals busy = fbi.getBusy(requester, cua, start, end);
+
+      if (busy != null) {
+        resp.getWriter().write(FreeBusyIndex.toVfreebusy(null, null,
+                                                         null, cua,
+                                                         start, end,
+                                                         busy));
+        return;
+      }
+
+      final long seq = fbi.getSeq();
+      final StringWriter sw = new StringWriter();
+
       getSysi().getSpecialFreeBusy(cua, recipients,
                                    originator,
-                                   tr, resp.getWriter());
+                                   tr, sw);
+
+      final String fb = sw.toString();
+      resp.getWriter().write(fb);
+
+      final AccessPrincipal owner = getSysi().caladdrToPrincipal(cua);
+      if (owner != null) {
+        fbi.add(requester, cua, owner.getPrincipalRef(), null,
+                start, end, fb, seq);
+      }
     } catch (final WebdavForbidden wdf) {
       resp.setStatus(HttpServletResponse.SC_FORBIDDEN);
     } catch (final WebdavException wde) {
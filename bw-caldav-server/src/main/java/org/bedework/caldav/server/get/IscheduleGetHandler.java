@@ -19,14 +19,14 @@
 package org.bedework.caldav.server.get;
 
 import org.bedework.caldav.server.CaldavBWIntf;
+import org.bedework.caldav.server.DomainKeyCache;
+import org.bedework.caldav.server.DomainKeyCache.DomainKey;
 import org.bedework.caldav.server.RequestPars;
 import org.bedework.caldav.server.sysinterface.CalDAVAuthProperties;
 import org.bedework.util.misc.Util;
 import org.bedework.util.xml.tagdefs.IscheduleTags;
 import org.bedework.webdav.servlet.shared.WebdavException;
 
-import org.apache.commons.codec.binary.Base64;
-
 import java.io.Writer;
 
 import javax.servlet.http.HttpServletRequest;
@@ -89,9 +89,10 @@ public class IscheduleGetHandler extends GetHandler {
                              final String domain,
                              final String service) throws WebdavException {
     try {
-      final byte[] key = intf.getSysi().getPublicKey(domain, service);
+      final DomainKey key = DomainKeyCache.getCache().
+              getPublicKey(intf.getSysi(), domain, service);
 
-      if ((key == null) || (key.length == 0)) {
+      if (key.isEmpty()) {
         resp.sendError(HttpServletResponse.SC_NOT_FOUND);
         return;
       }
@@ -101,7 +102,7 @@ public class IscheduleGetHandler extends GetHandler {
       final Writer wtr = resp.getWriter();
 
       wtr.write("v=DKIM1;p=");
-      wtr.write(new String(new Base64().encode(key)));
+      wtr.write(key.getBase64());
       wtr.close();
     } catch (final Throwable t) {
       throw new WebdavException(t);
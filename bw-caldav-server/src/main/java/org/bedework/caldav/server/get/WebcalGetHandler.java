@@ -18,19 +18,27 @@
 */
 package org.bedework.caldav.server.get;
 
+import org.bedework.caldav.server.CalDAVCollection;
 import org.bedework.caldav.server.CalDAVEvent;
 import org.bedework.caldav.server.CaldavBWIntf;
+import org.bedework.caldav.server.CaldavCalNode;
 import org.bedework.caldav.server.CaldavComponentNode;
 import org.bedework.caldav.server.RequestPars;
 import org.bedework.caldav.server.sysinterface.CalDAVAuthProperties;
+import org.bedework.caldav.server.sysinterface.RetrievalProjection;
 import org.bedework.caldav.server.sysinterface.SysIntf.MethodEmitted;
 import org.bedework.caldav.util.ParseUtil;
 import org.bedework.caldav.util.TimeRange;
+import org.bedework.caldav.util.filter.EntityTimeRangeFilter;
+import org.bedework.caldav.util.filter.EntityTypeFilter;
+import org.bedework.caldav.util.filter.FilterBase;
 import org.bedework.util.xml.tagdefs.XcalTags;
 import org.bedework.webdav.servlet.shared.WebdavException;
 import org.bedework.webdav.servlet.shared.WebdavNsIntf;
 import org.bedework.webdav.servlet.shared.WebdavNsNode;
 
+import net.fortuna.ical4j.model.DateTime;
+
 import java.util.ArrayList;
 import java.util.Collection;
 
@@ -38,6 +46,12 @@ import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
 /** Handle web calendar GET requests.
+ *
+ * <p>Only events overlapping the requested (or default) period are fetched
+ * from calendar collections. Other components - tasks and journals, which
+ * are often undated - are all returned as they always were. The response carries an etag built from the
+ * collection ctag, the period and the content type so that subscribers
+ * polling an unchanged calendar get a 304 without any events being read.
  *
  * @author Mike Douglass
  */
@@ -99,19 +113,54 @@ public class WebcalGetHandler extends GetHandler {
         return;
       }
 
-      final Collection<CalDAVEvent> evs = new ArrayList<>();
+      final String suffix;
+      String acceptType = pars.getAcceptType();
+      if (acceptType == null) {
+        acceptType = getSysi().getDefaultContentType();
+      }
+
+      CalDAVCollection col = null;
+      if ((node instanceof CaldavCalNode) &&
+          ((CaldavCalNode)node).isCalendarCollection()) {
+        col = (CalDAVCollection)((CaldavCalNode)node).getCollection(false);
+      }
 
-      for (final WebdavNsNode child: getChildren(node)) {
-        if (child instanceof CaldavComponentNode) {
-          evs.add(((CaldavComponentNode)child).getEvent());
+      if (col != null) {
+        final String etag = makeEtag((CaldavCalNode)node, tr, acceptType);
+        // The alias target's last modification - as for the ctag
+        final long lastMod = getLastModified(
+                (CalDAVCollection)((CaldavCalNode)node).getCollection(true),
+                tr);
+
+        if (etag != null) {
+          resp.setHeader("ETag", etag);
+        }
+
+        if (lastMod > 0) {
+          resp.setDateHeader("Last-Modified", lastMod);
+        }
+
+        if (notModified(req, etag, lastMod)) {
+          resp.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+          return;
         }
       }
 
+      final Collection<CalDAVEvent> evs;
 
-      final String suffix;
-      String acceptType = pars.getAcceptType();
-      if (acceptType == null) {
-        acceptType = getSysi().getDefaultContentType();
+      if (col != null) {
+        evs = getSysi().getEvents(col,
+                                  makeFilter(tr),
+                                  (RetrievalProjection)null,
+                                  null);
+      } else {
+        evs = new ArrayList<>();
+
+        for (final WebdavNsNode child: getChildren(node)) {
+          if (child instanceof CaldavComponentNode) {
+            evs.add(((CaldavComponentNode)child).getEvent());
+          }
+        }
       }
 
       if (acceptType.equals(XcalTags.mimetype)) {
@@ -137,4 +186,112 @@ public class WebcalGetHandler extends GetHandler {
       throw new WebdavException(t);
     }
   }
+
+  /* ====================================================================
+   *                   Private methods
+   * ==================================================================== */
+
+  /* Events in the period or anything which isn't an event. This is the
+   * filter for a VEVENT comp-filter with a time-range or'd with the rest.
+   */
+  private FilterBase makeFilter(final TimeRange tr) throws WebdavException {
+    final FilterBase events = FilterBase.addAndChild(
+            EntityTypeFilter.makeIcalEntityTypeFilter(null, "VEVENT", false),
+            new EntityTimeRangeFilter(null, tr));
+
+    return FilterBase.addOrChild(
+            events,
+            EntityTypeFilter.makeIcalEntityTypeFilter(null, "VEVENT", true));
+  }
+
+  /* The ctag changes with any change to the collection. The period and
+   * type are included as they select what we return.
+   */
+  private String makeEtag(final CaldavCalNode node,
+                          final TimeRange tr,
+                          final String acceptType) throws WebdavException {
+    String ctag = node.getEtagValue(true);
+
+    if (ctag == null) {
+      return null;
+    }
+
+    if ((ctag.length() > 1) &&
+        ctag.startsWith("\"") && ctag.endsWith("\"")) {
+      ctag = ctag.substring(1, ctag.length() - 1);
+    }
+
+    final String variant = tr.getStart() + "-" + tr.getEnd() +
+            "-" + acceptType;
+
+    return "\"" + ctag + "-" +
+            Integer.toHexString(variant.hashCode()) + "\"";
+  }
+
+  /* The collection's last modification - or the start of the period if
+   * later, so that a default period which moves on with the date is seen
+   * as a change.
+   */
+  private long getLastModified(final CalDAVCollection col,
+                               final TimeRange tr) {
+    long lastMod;
+
+    try {
+      if ((col == null) || (col.getLastmod() == null)) {
+        return 0;
+      }
+
+      lastMod = new DateTime(col.getLastmod()).getTime();
+    } catch (final Throwable t) {
+      return 0;
+    }
+
+    if ((tr.getStart() != null) && (tr.getStart().getTime() > lastMod)) {
+      lastMod = tr.getStart().getTime();
+    }
+
+    return lastMod;
+  }
+
+  private boolean notModified(final HttpServletRequest req,
+                              final String etag,
+                              final long lastMod) {
+    final String inm = req.getHeader("If-None-Match");
+
+    if (inm != null) {
+      // If-Modified-Since is ignored when this is present
+      if (etag == null) {
+        return false;
+      }
+
+      for (String tag: inm.split(",")) {
+        tag = tag.trim();
+
+        if (tag.startsWith("W/")) {
+          tag = tag.substring(2);
+        }
+
+        if (tag.equals("*") || tag.equals(etag)) {
+          return true;
+        }
+      }
+
+      return false;
+    }
+
+    if (lastMod <= 0) {
+      return false;
+    }
+
+    final long ims;
+
+    try {
+      ims = req.getDateHeader("If-Modified-Since");
+    } catch (final IllegalArgumentException iae) {
+      return false;
+    }
+
+    // Header dates have no millis
+    return (ims >= 0) && ((lastMod / 1000) <= (ims / 1000));
+  }
 }
@@ -0,0 +1,83 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.caldav.server.soap;
+
+import org.bedework.caldav.util.JaxbContexts;
+
+/** Exposes the JaxbContexts statistics over JMX.
+ */
+public class JaxbContextStats implements JaxbContextStatsMBean {
+  /* ========================================================================
+   * Attributes
+   * ======================================================================== */
+
+  @Override
+  public void setMaxPoolSize(final int val) {
+    JaxbContexts.setMaxPoolSize(val);
+  }
+
+  @Override
+  public int getMaxPoolSize() {
+    return JaxbContexts.getMaxPoolSize();
+  }
+
+  @Override
+  public int getContextCount() {
+    return JaxbContexts.getContextCount();
+  }
+
+  @Override
+  public long getContextHits() {
+    return JaxbContexts.getContextHits();
+  }
+
+  @Override
+  public long getContextMisses() {
+    return JaxbContexts.getContextMisses();
+  }
+
+  @Override
+  public long getMarshallerHits() {
+    return JaxbContexts.getMarshallerHits();
+  }
+
+  @Override
+  public long getMarshallerMisses() {
+    return JaxbContexts.getMarshallerMisses();
+  }
+
+  @Override
+  public long getUnmarshallerHits() {
+    return JaxbContexts.getUnmarshallerHits();
+  }
+
+  @Override
+  public long getUnmarshallerMisses() {
+    return JaxbContexts.getUnmarshallerMisses();
+  }
+
+  /* ========================================================================
+   * Operations
+   * ======================================================================== */
+
+  @Override
+  public void resetCounters() {
+    JaxbContexts.resetCounters();
+  }
+}
@@ -0,0 +1,94 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.caldav.server.soap;
+
+import org.bedework.util.jmx.MBeanInfo;
+
+/** Statistics for the shared JAXB contexts and marshaller pools.
+ */
+public interface JaxbContextStatsMBean {
+  static final String serviceName =
+          "org.bedework.caldav:service=JaxbContexts";
+
+  /* ========================================================================
+   * Attributes
+   * ======================================================================== */
+
+  /**
+   * @param val max number of marshallers and of unmarshallers held per context
+   */
+  void setMaxPoolSize(int val);
+
+  /**
+   * @return max number of marshallers and of unmarshallers held per context
+   */
+  @MBeanInfo("Max number of marshallers and of unmarshallers held per context")
+  int getMaxPoolSize();
+
+  /**
+   * @return number of contexts
+   */
+  @MBeanInfo("Number of JAXB contexts created")
+  int getContextCount();
+
+  /**
+   * @return context hits
+   */
+  @MBeanInfo("Number of times a cached JAXB context was used")
+  long getContextHits();
+
+  /**
+   * @return context misses
+   */
+  @MBeanInfo("Number of times a JAXB context had to be created")
+  long getContextMisses();
+
+  /**
+   * @return marshaller hits
+   */
+  @MBeanInfo("Number of times a pooled marshaller was reused")
+  long getMarshallerHits();
+
+  /**
+   * @return marshaller misses
+   */
+  @MBeanInfo("Number of times a marshaller had to be created")
+  long getMarshallerMisses();
+
+  /**
+   * @return unmarshaller hits
+   */
+  @MBeanInfo("Number of times a pooled unmarshaller was reused")
+  long getUnmarshallerHits();
+
+  /**
+   * @return unmarshaller misses
+   */
+  @MBeanInfo("Number of times an unmarshaller had to be created")
+  long getUnmarshallerMisses();
+
+  /* ========================================================================
+   * Operations
+   * ======================================================================== */
+
+  /** Reset the counters
+   */
+  @MBeanInfo("Reset the counters")
+  void resetCounters();
+}
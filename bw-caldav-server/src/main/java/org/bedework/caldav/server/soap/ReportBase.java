@@ -18,14 +18,23 @@
 */
 package org.bedework.caldav.server.soap;
 
+import org.bedework.caldav.server.CalDAVEvent;
+import org.bedework.caldav.server.CaldavBWIntf;
+import org.bedework.caldav.server.CaldavComponentNode;
 import org.bedework.caldav.server.CaldavReportMethod;
+import org.bedework.caldav.server.sysinterface.RetrievalProjection;
 import org.bedework.util.calendar.XcalUtil;
 import org.bedework.webdav.servlet.common.PropFindMethod;
 import org.bedework.webdav.servlet.shared.WebdavException;
 import org.bedework.webdav.servlet.shared.WebdavNsIntf;
 import org.bedework.webdav.servlet.shared.WebdavNsNode;
 
+import ietf.params.xml.ns.icalendar_2.ArrayOfComponents;
+import ietf.params.xml.ns.icalendar_2.ArrayOfProperties;
+import ietf.params.xml.ns.icalendar_2.BaseComponentType;
+import ietf.params.xml.ns.icalendar_2.BasePropertyType;
 import ietf.params.xml.ns.icalendar_2.IcalendarType;
+import ietf.params.xml.ns.icalendar_2.VcalendarType;
 import org.oasis_open.docs.ws_calendar.ns.soap.CalendarQueryType;
 import org.oasis_open.docs.ws_calendar.ns.soap.CompFilterType;
 import org.oasis_open.docs.ws_calendar.ns.soap.ExpandType;
@@ -41,7 +50,12 @@ import java.io.StringReader;
 import java.io.StringWriter;
 import java.util.Collection;
 
-/**
+import javax.xml.bind.JAXBElement;
+
+/** Calendar queries for the SOAP services. Requests are converted to
+ * query parameters and run directly - XML is only seen at the SOAP
+ * boundary.
+ *
  * @author douglm
  */
 public class ReportBase extends CaldavReportMethod {
@@ -60,7 +74,11 @@ public class ReportBase extends CaldavReportMethod {
    * @param resourceUri
    * @return Document
    * @throws WebdavException
+   * @deprecated the query and its result both go through XML. Use
+   *             {@link #query(String, CalendarQueryType)} or
+   *             CaldavReportMethod.query
    */
+  @Deprecated
   public Document query(final String qstring,
                         final String resourceUri) throws WebdavException {
     pm = new PropFindMethod();
@@ -97,61 +115,111 @@ public class ReportBase extends CaldavReportMethod {
    */
   public Collection<WebdavNsNode> query(final String resourceUri,
                                         final CalendarQueryType cq) throws WebdavException {
-    WebdavNsNode node = getNsIntf().getNode(resourceUri,
-                                            WebdavNsIntf.existanceMust,
-                                            WebdavNsIntf.nodeTypeUnknown,
-                                            false);
+    return query(resourceUri,
+                 new CalendarQueryPars(convertFilter(cq.getFilter()), 1),
+                 convertExpand(cq.getExpand()),
+                 convertLimitRecurrenceSet(cq.getLimitRecurrenceSet()),
+                 getProjection(cq.getIcalendar()));
+  }
+
+  /** Describe what is needed to build responses - the change token and
+   * the properties selected by the pattern.
+   *
+   * @param pattern as for SysIntf.toIcalendar - may be null
+   * @return projection - null if the whole entity is needed
+   */
+  public static RetrievalProjection getProjection(final IcalendarType pattern) {
+    if (pattern == null) {
+      return null;
+    }
+
+    final RetrievalProjection projection = new RetrievalProjection();
+    projection.addDavProperty(RetrievalProjection.DavProperty.etag);
 
-    CalendarQueryPars cqp = new CalendarQueryPars();
+    for (final VcalendarType vcal: pattern.getVcalendar()) {
+      final ArrayOfComponents aoc = vcal.getComponents();
 
-    cqp.filter = convertFilter(cq.getFilter());
-    cqp.depth = 1;
+      if ((aoc == null) || aoc.getBaseComponent().isEmpty()) {
+        return null;
+      }
 
-    return doNodeAndChildren(cqp, node,
-                             convertExpand(cq.getExpand()),
-                             convertLimitRecurrenceSet(cq.getLimitRecurrenceSet()),
-                             null);
+      for (final JAXBElement<? extends BaseComponentType> compel:
+              aoc.getBaseComponent()) {
+        if (!addComponent(compel, projection)) {
+          return null;
+        }
+      }
+    }
+
+    if (!projection.getContentRequired()) {
+      return null;
+    }
+
+    return projection;
   }
 
   IcalendarType fetch(final String resourceUri,
                       final String uid) throws WebdavException {
-    // Build a report query and execute it.
-
-    StringBuilder sb = new StringBuilder();
-
-    sb.append("<?xml version='1.0' encoding='utf-8' ?>");
-    sb.append("<C:calendar-query xmlns:C='urn:ietf:params:xml:ns:caldav'>");
-    sb.append("  <D:prop xmlns:D='DAV:'>");
-    sb.append("    <C:calendar-data content-type='application/calendar+xml'>");
-    sb.append("      <C:comp name='VCALENDAR'>");
-    sb.append("        <C:comp name='VEVENT'>");
-    sb.append("        </C:comp>");
-    sb.append("        <C:comp name='VTODO'>");
-    sb.append("        </C:comp>");
-    sb.append("      </C:comp>");
-    sb.append("    </C:calendar-data>");
-    sb.append("  </D:prop>");
-    sb.append("  <C:filter>");
-    sb.append("    <C:comp-filter name='VCALENDAR'>");
-    //sb.append("      <C:comp-filter name='VEVENT'>");
-    //sb.append("      </C:comp-filter>");
-    sb.append("    </C:comp-filter>");
-    sb.append("  </C:filter>");
-    sb.append("</C:calendar-query>");
+    final ietf.params.xml.ns.caldav.CompFilterType cf =
+        new ietf.params.xml.ns.caldav.CompFilterType();
+    cf.setName("VCALENDAR");
 
-    pm = new PropFindMethod();
-    pm.init(getNsIntf(), true);
+    final ietf.params.xml.ns.caldav.FilterType filter =
+        new ietf.params.xml.ns.caldav.FilterType();
+    filter.setCompFilter(cf);
+
+    for (final WebdavNsNode node: query(resourceUri,
+                                        new CalendarQueryPars(filter, 1),
+                                        null, null, null)) {
+      if (!(node instanceof CaldavComponentNode)) {
+        continue;
+      }
+
+      final CalDAVEvent ev = ((CaldavComponentNode)node).getEvent();
+
+      if ((uid == null) || uid.equals(ev.getUid())) {
+        return ((CaldavBWIntf)getNsIntf()).getSysi().toIcalendar(ev,
+                                                                 false,
+                                                                 null);
+      }
+    }
 
-    Document doc = parseContent(sb.length(),
-                                new StringReader(sb.toString()));
+    return null;
+  }
 
-    processDoc(doc);
+  /* Add the properties for the component and any subcomponents. Returns
+   * false if we need the whole component.
+   */
+  private static boolean addComponent(final JAXBElement<? extends BaseComponentType> compel,
+                                      final RetrievalProjection projection) {
+    final BaseComponentType comp = compel.getValue();
+    final ArrayOfProperties aop = comp.getProperties();
 
-    /* ugly - cqpars is result of processDoc. Need to restructure */
-    cqpars.depth = 1;
-    process(cqpars, resourceUri);
+    if ((aop == null) || aop.getBasePropertyOrTzid().isEmpty()) {
+      return false;
+    }
 
-    return null;
+    final String name = compel.getName().getLocalPart();
+
+    for (final JAXBElement<? extends BasePropertyType> pel:
+            aop.getBasePropertyOrTzid()) {
+      projection.addIcalProperty(name, pel.getName().getLocalPart());
+    }
+
+    final ArrayOfComponents subs = comp.getComponents();
+
+    if (subs == null) {
+      return true;
+    }
+
+    for (final JAXBElement<? extends BaseComponentType> sub:
+            subs.getBaseComponent()) {
+      if (!addComponent(sub, projection)) {
+        return false;
+      }
+    }
+
+    return true;
   }
 
   /** The SOAP FilterType is an almost exact replica of the CalDAV FilterType.
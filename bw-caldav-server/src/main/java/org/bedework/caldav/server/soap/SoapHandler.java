@@ -20,9 +20,11 @@ package org.bedework.caldav.server.soap;
 
 import org.bedework.caldav.server.CaldavBWIntf;
 import org.bedework.caldav.server.sysinterface.SysIntf;
+import org.bedework.caldav.util.JaxbContexts;
 import org.bedework.util.calendar.XcalUtil;
 import org.bedework.util.xml.tagdefs.XcalTags;
 import org.bedework.webdav.servlet.common.MethodBase;
+import org.bedework.webdav.servlet.shared.WebdavBadRequest;
 import org.bedework.webdav.servlet.shared.WebdavException;
 
 import ietf.params.xml.ns.icalendar_2.ArrayOfParameters;
@@ -43,18 +45,48 @@ import javax.xml.bind.Marshaller;
 import javax.xml.bind.Unmarshaller;
 import javax.xml.namespace.QName;
 import javax.xml.parsers.DocumentBuilderFactory;
-import javax.xml.soap.MessageFactory;
-import javax.xml.soap.SOAPBody;
-import javax.xml.soap.SOAPHeader;
-import javax.xml.soap.SOAPMessage;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.stream.XMLStreamWriter;
 
 /** Class extended by classes which handle special SOAP requests, e.g. the
  * exchange synch service etc.
  *
+ * <p>Envelopes are read and written with StAX directly from and to the
+ * servlet streams - the payload is (un)marshalled by JAXB in the same pass
+ * without building a DOM.
+ *
  * @author Mike Douglass
  */
 public abstract class SoapHandler extends MethodBase {
-  private MessageFactory soapMsgFactory;
+  /** SOAP 1.1 envelope namespace - what we write */
+  public static final String soapNs =
+          "http://schemas.xmlsoap.org/soap/envelope/";
+
+  /** SOAP 1.2 envelope namespace - also accepted */
+  public static final String soap12Ns =
+          "http://www.w3.org/2003/05/soap-envelope";
+
+  private static final String soapPrefix = "SOAP-ENV";
+
+  private static final XMLInputFactory xmlInputFactory;
+
+  private static final XMLOutputFactory xmlOutputFactory =
+          XMLOutputFactory.newInstance();
+
+  static {
+    xmlInputFactory = XMLInputFactory.newInstance();
+    xmlInputFactory.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE,
+                                Boolean.TRUE);
+    xmlInputFactory.setProperty(XMLInputFactory.SUPPORT_DTD,
+                                Boolean.FALSE);
+    xmlInputFactory.setProperty(
+            XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES,
+            Boolean.FALSE);
+  }
+
   protected JAXBContext jc;
 
   protected static final Object monitor = new Object();
@@ -68,16 +100,8 @@ public abstract class SoapHandler extends MethodBase {
     debug = getLogger().isDebugEnabled();
 
     try {
-      if (soapMsgFactory == null) {
-        soapMsgFactory = MessageFactory.newInstance();
-      }
-
       if (jc == null) {
-        jc = JAXBContext.newInstance(getJaxbContextPath());
-
-//        if (debug) {
-  //        debugMsg("Created JAXBContext: " + jc);
-    //    }
+        jc = JaxbContexts.getContext(getJaxbContextPath());
       }
     } catch(Throwable t) {
       throw new WebdavException(t);
@@ -117,28 +141,64 @@ public abstract class SoapHandler extends MethodBase {
   }
 
   protected UnmarshalResult unmarshal(final HttpServletRequest req) throws WebdavException {
-    try {
-      UnmarshalResult res = new UnmarshalResult();
+    Unmarshaller u = null;
+    XMLStreamReader xr = null;
 
-      SOAPMessage msg = soapMsgFactory.createMessage(null, // headers
-                                                     req.getInputStream());
+    try {
+      final UnmarshalResult res = new UnmarshalResult();
 
-      SOAPBody body = msg.getSOAPBody();
-      SOAPHeader hdrMsg = msg.getSOAPHeader();
+      xr = xmlInputFactory.createXMLStreamReader(req.getInputStream());
 
-      Unmarshaller u = jc.createUnmarshaller();
+      if ((xr.nextTag() != XMLStreamConstants.START_ELEMENT) ||
+              !isSoap(xr, "Envelope")) {
+        throw new WebdavBadRequest("Expected SOAP envelope");
+      }
 
-      // Only expect one header at most.
-      if ((hdrMsg != null) && hdrMsg.hasChildNodes()) {
-        res.hdrs = new Object[1];
-        res.hdrs[0] = u.unmarshal(hdrMsg.getFirstChild());
+      u = JaxbContexts.getUnmarshaller(getJaxbContextPath());
+
+      boolean gotBody = false;
+
+      while (xr.nextTag() == XMLStreamConstants.START_ELEMENT) {
+        if (isSoap(xr, "Header")) {
+          // Only expect one header at most.
+          if (xr.nextTag() == XMLStreamConstants.START_ELEMENT) {
+            res.hdrs = new Object[1];
+            res.hdrs[0] = u.unmarshal(xr);
+            skipToEnd(xr);
+          }
+        } else if (isSoap(xr, "Body")) {
+          if (xr.nextTag() != XMLStreamConstants.START_ELEMENT) {
+            throw new WebdavBadRequest("Empty SOAP body");
+          }
+
+          res.body = u.unmarshal(xr);
+          gotBody = true;
+
+          // Nothing after the body element interests us
+          break;
+        } else {
+          xr.next();
+          skipToEnd(xr);
+        }
       }
 
-      res.body = u.unmarshal(body.getFirstChild());
+      if (!gotBody) {
+        throw new WebdavBadRequest("Missing SOAP body");
+      }
 
       return res;
+    } catch (final WebdavException we) {
+      throw we;
     } catch(Throwable t) {
       throw new WebdavException(t);
+    } finally {
+      JaxbContexts.release(getJaxbContextPath(), u);
+
+      if (xr != null) {
+        try {
+          xr.close();
+        } catch (final Throwable ignored) {}
+      }
     }
   }
 
@@ -162,8 +222,10 @@ public abstract class SoapHandler extends MethodBase {
 
   protected Document makeDoc(final QName name,
                              final Object o) throws WebdavException {
+    Marshaller marshaller = null;
+
     try {
-      Marshaller marshaller = jc.createMarshaller();
+      marshaller = JaxbContexts.getMarshaller(getJaxbContextPath());
       marshaller.setProperty(Marshaller.JAXB_FORMATTED_OUTPUT, Boolean.TRUE);
 
       DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
@@ -179,28 +241,55 @@ public abstract class SoapHandler extends MethodBase {
       return doc;
     } catch(Throwable t) {
       throw new WebdavException(t);
+    } finally {
+      JaxbContexts.release(getJaxbContextPath(), marshaller);
     }
   }
 
+  /** Write a SOAP envelope with o as the body content.
+   *
+   * @param o the body content - a JAXBElement or root element object
+   * @param out to write to
+   * @throws WebdavException
+   */
   protected void marshal(final Object o,
                          final OutputStream out) throws WebdavException {
+    Marshaller marshaller = null;
+
     try {
-      Marshaller marshaller = jc.createMarshaller();
-      marshaller.setProperty(Marshaller.JAXB_FORMATTED_OUTPUT, Boolean.TRUE);
+      marshaller = JaxbContexts.getMarshaller(getJaxbContextPath());
+      marshaller.setProperty(Marshaller.JAXB_FORMATTED_OUTPUT, Boolean.FALSE);
+      marshaller.setProperty(Marshaller.JAXB_FRAGMENT, Boolean.TRUE);
 
-      DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
-      dbf.setNamespaceAware(true);
-      Document doc = dbf.newDocumentBuilder().newDocument();
+      final XMLStreamWriter xw =
+              xmlOutputFactory.createXMLStreamWriter(out, "UTF-8");
+
+      xw.writeStartDocument("UTF-8", "1.0");
+      xw.writeStartElement(soapPrefix, "Envelope", soapNs);
+      xw.writeNamespace(soapPrefix, soapNs);
 
-      SOAPMessage msg = soapMsgFactory.createMessage();
-      msg.getSOAPBody().addDocument(doc);
+      xw.writeEmptyElement(soapPrefix, "Header", soapNs);
 
-      marshaller.marshal(o,
-                         msg.getSOAPBody());
+      xw.writeStartElement(soapPrefix, "Body", soapNs);
+      marshaller.marshal(o, xw);
+      xw.writeEndElement();
 
-      msg.writeTo(out);
+      xw.writeEndElement();
+      xw.writeEndDocument();
+
+      // Does not close the underlying stream
+      xw.close();
+      out.flush();
     } catch(Throwable t) {
       throw new WebdavException(t);
+    } finally {
+      if (marshaller != null) {
+        try {
+          marshaller.setProperty(Marshaller.JAXB_FRAGMENT, Boolean.FALSE);
+        } catch (final Throwable ignored) {}
+      }
+
+      JaxbContexts.release(getJaxbContextPath(), marshaller);
     }
   }
 
@@ -217,6 +306,36 @@ public abstract class SoapHandler extends MethodBase {
     parent.removeChild(nd);
   }
 
+  private static boolean isSoap(final XMLStreamReader xr,
+                                final String localName) {
+    final String ns = xr.getNamespaceURI();
+
+    return localName.equals(xr.getLocalName()) &&
+            (soapNs.equals(ns) || soap12Ns.equals(ns));
+  }
+
+  /* Move on to the end of the enclosing element. The reader may be on any
+   * event inside it, e.g. just after unmarshalling a child.
+   */
+  private static void skipToEnd(final XMLStreamReader xr) throws Throwable {
+    int depth = 0;
+    int ev = xr.getEventType();
+
+    while (true) {
+      if (ev == XMLStreamConstants.START_ELEMENT) {
+        depth++;
+      } else if (ev == XMLStreamConstants.END_ELEMENT) {
+        if (depth == 0) {
+          return;
+        }
+
+        depth--;
+      }
+
+      ev = xr.next();
+    }
+  }
+
   protected String findTzid(final BasePropertyType bp) {
     ArrayOfParameters aop = bp.getParameters();
 
@@ -24,6 +24,7 @@ import org.bedework.caldav.server.CaldavBwNode;
 import org.bedework.caldav.server.CaldavCalNode;
 import org.bedework.caldav.server.CaldavComponentNode;
 import org.bedework.caldav.server.CaldavPrincipalNode;
+import org.bedework.caldav.server.QueryExecutor;
 import org.bedework.caldav.server.RequestPars;
 import org.bedework.caldav.server.SysiIcalendar;
 import org.bedework.caldav.server.soap.SoapHandler;
@@ -98,8 +99,10 @@ import org.oasis_open.docs.ws_calendar.ns.soap.UpdateItemType;
 
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.List;
 import java.util.Set;
 import java.util.TreeSet;
+import java.util.concurrent.Callable;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
@@ -225,12 +228,51 @@ public class CalwsHandler extends SoapHandler {
       MultiOpResponseType mor = new MultiOpResponseType();
       JAXBElement<MultiOpResponseType> jax = of.createMultiOpResponse(mor);
 
-      ArrayOfResponses aor = new ArrayOfResponses();
+      final ArrayOfResponses aor = new ArrayOfResponses();
       mor.setResponses(aor);
 
+      final int concurrency = getMultiOpConcurrency();
+      final long start = System.currentTimeMillis();
+
+      /* Operations are processed in order on this thread. The only work
+       * done elsewhere is the system interface call for a run of
+       * consecutive free-busy reports. Those are prepared and their
+       * responses built here so request state is only touched from this
+       * thread.
+       */
+      final List<FreebusyOp> fbops = new ArrayList<>();
+
+      int i = 0;
       for (BaseRequestType breq:
            mo.getOperations().getGetPropertiesOrFreebusyReportOrCalendarQuery()) {
+        if ((concurrency > 1) && (breq instanceof FreebusyReportType)) {
+          final FreebusyOp op = new FreebusyOp((FreebusyReportType)breq);
+          prepareFreebusy(op);
+          fbops.add(op);
+          i++;
+          continue;
+        }
+
+        runFreebusy(fbops, concurrency, aor);
+
+        final long opStart = System.currentTimeMillis();
+
         aor.getBaseResponse().add(processRequest(req, resp, breq, pars, true));
+
+        if (debug) {
+          trace("MultiOp " + i + " " +
+                        breq.getClass().getSimpleName() + ": " +
+                        (System.currentTimeMillis() - opStart) + "ms");
+        }
+
+        i++;
+      }
+
+      runFreebusy(fbops, concurrency, aor);
+
+      if (debug) {
+        trace("MultiOp: " + i + " operations in " +
+                      (System.currentTimeMillis() - start) + "ms");
       }
 
       marshal(jax, resp.getOutputStream());
@@ -243,6 +285,50 @@ public class CalwsHandler extends SoapHandler {
     }
   }
 
+  /* Make the requests for the prepared free-busy reports, adding the
+   * responses in order as each completes.
+   */
+  private void runFreebusy(final List<FreebusyOp> fbops,
+                           final int concurrency,
+                           final ArrayOfResponses aor) throws WebdavException {
+    if (fbops.isEmpty()) {
+      return;
+    }
+
+    final long start = System.currentTimeMillis();
+
+    QueryExecutor.invokeOrdered(fbops, concurrency,
+                                new QueryExecutor.ResultHandler<FreebusyOp>() {
+      @Override
+      public void result(final FreebusyOp op) throws WebdavException {
+        finishFreebusy(op);
+        aor.getBaseResponse().add(op.jax);
+      }
+    });
+
+    if (debug) {
+      trace("MultiOp: " + fbops.size() + " FreebusyReport in " +
+                    (System.currentTimeMillis() - start) + "ms");
+    }
+
+    fbops.clear();
+  }
+
+  private int getMultiOpConcurrency() throws WebdavException {
+    if (!getSysi().getThreadSafe()) {
+      return 1;
+    }
+
+    final Integer limit =
+            getSysi().getSystemProperties().getMultiOpConcurrency();
+
+    if (limit == null) {
+      return 1;
+    }
+
+    return limit;
+  }
+
   private JAXBElement<GetPropertiesResponseType> doGetProperties(final GetPropertiesType gp,
                                final HttpServletResponse resp,
                                final boolean multi) throws WebdavException {
@@ -284,6 +370,35 @@ public class CalwsHandler extends SoapHandler {
     }
   }
 
+  /* A free-busy report split up so that only the call to the system
+   * interface need be made off the request thread.
+   */
+  private class FreebusyOp implements Callable<FreebusyOp> {
+    final FreebusyReportType fr;
+    final FreebusyReportResponseType frr = new FreebusyReportResponseType();
+    final JAXBElement<FreebusyReportResponseType> jax;
+
+    /* Set by prepareFreebusy if there is a request to make */
+    CalDAVEvent<?> ev;
+
+    Collection<SchedRecipientResult> srrs;
+
+    FreebusyOp(final FreebusyReportType fr) {
+      this.fr = fr;
+      frr.setId(fr.getId());
+      jax = of.createFreebusyReportResponse(frr);
+    }
+
+    @Override
+    public FreebusyOp call() throws WebdavException {
+      if (ev != null) {
+        srrs = getSysi().requestFreeBusy(ev, false);
+      }
+
+      return this;
+    }
+  }
+
   private JAXBElement<FreebusyReportResponseType> doFreebusyReport(final FreebusyReportType fr,
                                 final HttpServletResponse resp,
                                 final boolean multi) throws WebdavException {
@@ -291,153 +406,172 @@ public class CalwsHandler extends SoapHandler {
       trace("FreebusyReport: ");
     }
 
-    FreebusyReportResponseType frr = new FreebusyReportResponseType();
-    frr.setId(fr.getId());
-    JAXBElement<FreebusyReportResponseType> jax = of.createFreebusyReportResponse(frr);
+    final FreebusyOp op = new FreebusyOp(fr);
 
     try {
-      String url = fr.getHref();
+      prepareFreebusy(op);
+      op.call();
+      finishFreebusy(op);
 
-      buildResponse: {
-        if (url == null) {
-          frr.setStatus(StatusType.ERROR);
-          frr.setMessage("No href supplied");
-          break buildResponse;
-        }
-
-        WebdavNsNode elNode = getNsIntf().getNode(url,
-                                                  WebdavNsIntf.existanceMust,
-                                                  WebdavNsIntf.nodeTypeUnknown,
-                                                  false);
-
-        if (!(elNode instanceof CaldavPrincipalNode)) {
-          frr.setStatus(StatusType.ERROR);
-          frr.setMessage("Only principal href supported");
-          break buildResponse;
-        }
+      if (!multi) {
+        marshal(op.jax, resp.getOutputStream());
+      }
 
-        String cua = getSysi().principalToCaladdr(getSysi().getPrincipal(url));
+      return op.jax;
+    } catch (WebdavException we) {
+      op.frr.setStatus(StatusType.ERROR);
+      throw we;
+    } catch(Throwable t) {
+      throw new WebdavException(t);
+    }
+  }
 
-        /* Build an icalendar freebusy object out of the parameters */
+  /* Validate the report and build the free-busy request. On failure the
+   * response status is set and no request is made.
+   */
+  private void prepareFreebusy(final FreebusyOp op) throws WebdavException {
+    try {
+      String url = op.fr.getHref();
 
-        IcalendarType ical = new IcalendarType();
-        VcalendarType vcal = new VcalendarType();
+      if (url == null) {
+        op.frr.setStatus(StatusType.ERROR);
+        op.frr.setMessage("No href supplied");
+        return;
+      }
 
-        ical.getVcalendar().add(vcal);
+      WebdavNsNode elNode = getNsIntf().getNode(url,
+                                                WebdavNsIntf.existanceMust,
+                                                WebdavNsIntf.nodeTypeUnknown,
+                                                false);
 
-        VfreebusyType vfb = new VfreebusyType();
+      if (!(elNode instanceof CaldavPrincipalNode)) {
+        op.frr.setStatus(StatusType.ERROR);
+        op.frr.setMessage("Only principal href supported");
+        return;
+      }
 
-        JAXBElement<VfreebusyType> compel =
-          new JAXBElement<VfreebusyType>(XcalTags.vfreebusy,
-                                         VfreebusyType.class, vfb);
-        ArrayOfComponents aoc = new ArrayOfComponents();
+      String cua = getSysi().principalToCaladdr(getSysi().getPrincipal(url));
 
-        vcal.setComponents(aoc);
-        aoc.getBaseComponent().add(compel);
+      /* Build an icalendar freebusy object out of the parameters */
 
-        /* Use timerange to limit the requested time */
+      IcalendarType ical = new IcalendarType();
+      VcalendarType vcal = new VcalendarType();
 
-        CalDAVAuthProperties authp = getSysi().getAuthProperties();
+      ical.getVcalendar().add(vcal);
 
-        UTCTimeRangeType utr = fr.getTimeRange();
+      VfreebusyType vfb = new VfreebusyType();
 
-        TimeRange tr = ParseUtil.getPeriod(XcalUtil.getIcalFormatDateTime(utr.getStart().toString()),
-                                           XcalUtil.getIcalFormatDateTime(utr.getEnd().toString()),
-                                           java.util.Calendar.DATE,
-                                           authp.getDefaultFBPeriod(),
-                                           java.util.Calendar.DATE,
-                                           authp.getMaxFBPeriod());
+      JAXBElement<VfreebusyType> compel =
+        new JAXBElement<VfreebusyType>(XcalTags.vfreebusy,
+                                       VfreebusyType.class, vfb);
+      ArrayOfComponents aoc = new ArrayOfComponents();
 
-        ArrayOfProperties aop = new ArrayOfProperties();
-        vfb.setProperties(aop);
+      vcal.setComponents(aoc);
+      aoc.getBaseComponent().add(compel);
 
-        DtstartPropType dtstart = new DtstartPropType();
-        XcalUtil.initDt(dtstart, tr.getStart().toString(), null);
+      /* Use timerange to limit the requested time */
 
-        JAXBElement<DtstartPropType> dtstartProp =
-          new JAXBElement<DtstartPropType>(XcalTags.dtstart,
-                                           DtstartPropType.class, dtstart);
+      CalDAVAuthProperties authp = getSysi().getAuthProperties();
 
-        aop.getBasePropertyOrTzid().add(dtstartProp);
+      UTCTimeRangeType utr = op.fr.getTimeRange();
 
-        DtendPropType dtend = new DtendPropType();
-        XcalUtil.initDt(dtend, tr.getEnd().toString(), null);
+      TimeRange tr = ParseUtil.getPeriod(XcalUtil.getIcalFormatDateTime(utr.getStart().toString()),
+                                         XcalUtil.getIcalFormatDateTime(utr.getEnd().toString()),
+                                         java.util.Calendar.DATE,
+                                         authp.getDefaultFBPeriod(),
+                                         java.util.Calendar.DATE,
+                                         authp.getMaxFBPeriod());
 
-        JAXBElement<DtendPropType> dtendProp =
-          new JAXBElement<DtendPropType>(XcalTags.dtend,
-                                           DtendPropType.class, dtend);
+      ArrayOfProperties aop = new ArrayOfProperties();
+      vfb.setProperties(aop);
 
-        aop.getBasePropertyOrTzid().add(dtendProp);
+      DtstartPropType dtstart = new DtstartPropType();
+      XcalUtil.initDt(dtstart, tr.getStart().toString(), null);
 
-        /* Add a uid */
+      JAXBElement<DtstartPropType> dtstartProp =
+        new JAXBElement<DtstartPropType>(XcalTags.dtstart,
+                                         DtstartPropType.class, dtstart);
 
-        UidPropType uid = new UidPropType();
-        uid.setText(Util.makeRandomString(30, 35));
+      aop.getBasePropertyOrTzid().add(dtstartProp);
 
-        JAXBElement<UidPropType> uidProp =
-          new JAXBElement<UidPropType>(XcalTags.uid,
-                                       UidPropType.class, uid);
+      DtendPropType dtend = new DtendPropType();
+      XcalUtil.initDt(dtend, tr.getEnd().toString(), null);
 
-        aop.getBasePropertyOrTzid().add(uidProp);
+      JAXBElement<DtendPropType> dtendProp =
+        new JAXBElement<DtendPropType>(XcalTags.dtend,
+                                         DtendPropType.class, dtend);
 
-        /* Add the cua as the organizer */
+      aop.getBasePropertyOrTzid().add(dtendProp);
 
-        OrganizerPropType org = new OrganizerPropType();
-        org.setCalAddress(cua);
+      /* Add a uid */
 
-        JAXBElement<OrganizerPropType> orgProp =
-          new JAXBElement<OrganizerPropType>(XcalTags.organizer,
-                                             OrganizerPropType.class, org);
+      UidPropType uid = new UidPropType();
+      uid.setText(Util.makeRandomString(30, 35));
 
-        aop.getBasePropertyOrTzid().add(orgProp);
+      JAXBElement<UidPropType> uidProp =
+        new JAXBElement<UidPropType>(XcalTags.uid,
+                                     UidPropType.class, uid);
 
-        /* We should be in as an attendee */
+      aop.getBasePropertyOrTzid().add(uidProp);
 
-        AttendeePropType att = new AttendeePropType();
-        att.setCalAddress(getSysi().principalToCaladdr(getSysi().getPrincipal()));
+      /* Add the cua as the organizer */
 
-        JAXBElement<AttendeePropType> attProp =
-          new JAXBElement<AttendeePropType>(XcalTags.attendee,
-                                            AttendeePropType.class, att);
+      OrganizerPropType org = new OrganizerPropType();
+      org.setCalAddress(cua);
 
-        aop.getBasePropertyOrTzid().add(attProp);
+      JAXBElement<OrganizerPropType> orgProp =
+        new JAXBElement<OrganizerPropType>(XcalTags.organizer,
+                                           OrganizerPropType.class, org);
 
-        SysiIcalendar sical = getSysi().fromIcal(null, ical,
-                                                 IcalResultType.OneComponent);
-        CalDAVEvent<?> ev = sical.getEvent();
+      aop.getBasePropertyOrTzid().add(orgProp);
 
-        ev.setScheduleMethod(ScheduleMethods.methodTypeRequest);
-        Set<String> recipients = new TreeSet<String>();
-        recipients.add(cua);
-        ev.setRecipients(recipients);
+      /* We should be in as an attendee */
 
-        Collection<SchedRecipientResult> srrs = getSysi().requestFreeBusy(ev, false);
+      AttendeePropType att = new AttendeePropType();
+      att.setCalAddress(getSysi().principalToCaladdr(getSysi().getPrincipal()));
 
-        if (srrs.size() != 1) {
-          frr.setStatus(StatusType.ERROR);
-          frr.setMessage("No data returned");
-          break buildResponse;
-        }
+      JAXBElement<AttendeePropType> attProp =
+        new JAXBElement<AttendeePropType>(XcalTags.attendee,
+                                          AttendeePropType.class, att);
 
-        SchedRecipientResult sr = srrs.iterator().next();
+      aop.getBasePropertyOrTzid().add(attProp);
 
-        frr.setIcalendar(getSysi().toIcalendar(sr.freeBusy, false, null));
-        frr.setStatus(StatusType.OK);
-      } // buildResponse
+      SysiIcalendar sical = getSysi().fromIcal(null, ical,
+                                               IcalResultType.OneComponent);
+      CalDAVEvent<?> ev = sical.getEvent();
 
-      if (!multi) {
-        marshal(jax, resp.getOutputStream());
-      }
+      ev.setScheduleMethod(ScheduleMethods.methodTypeRequest);
+      Set<String> recipients = new TreeSet<String>();
+      recipients.add(cua);
+      ev.setRecipients(recipients);
 
-      return jax;
+      op.ev = ev;
     } catch (WebdavException we) {
-      frr.setStatus(StatusType.ERROR);
+      op.frr.setStatus(StatusType.ERROR);
       throw we;
     } catch(Throwable t) {
       throw new WebdavException(t);
     }
   }
 
+  private void finishFreebusy(final FreebusyOp op) throws WebdavException {
+    if (op.ev == null) {
+      // Status already set
+      return;
+    }
+
+    if ((op.srrs == null) || (op.srrs.size() != 1)) {
+      op.frr.setStatus(StatusType.ERROR);
+      op.frr.setMessage("No data returned");
+      return;
+    }
+
+    SchedRecipientResult sr = op.srrs.iterator().next();
+
+    op.frr.setIcalendar(getSysi().toIcalendar(sr.freeBusy, false, null));
+    op.frr.setStatus(StatusType.OK);
+  }
+
   private JAXBElement<CalendarQueryResponseType> doCalendarMultiget(final CalendarMultigetType cm,
                                final HttpServletResponse resp,
                                final boolean multi) throws WebdavException {
@@ -30,9 +30,10 @@ public class SynchConnection {
 
   private String subscribeUrl;
 
-  private String synchToken;
+  /* Replaced and read by concurrent requests */
+  private volatile String synchToken;
 
-  private long lastPing;
+  private volatile long lastPing;
 
   /**
    * @param connectorId
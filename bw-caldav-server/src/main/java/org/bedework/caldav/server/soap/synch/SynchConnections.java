@@ -19,11 +19,20 @@
 package org.bedework.caldav.server.soap.synch;
 
 import org.bedework.util.jmx.ConfBase;
-import org.bedework.util.misc.Util;
 
-import java.util.Collection;
-import java.util.HashMap;
-import java.util.Map;
+import org.apache.log4j.Logger;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 /** This is a simple bean to handle the dynamic connections made between the
  * CalDAV server and synch engines. These connections are defined by no more
@@ -35,6 +44,9 @@ import java.util.Map;
  * <p>At this point I'm not sure how there can be more than one useful callback
  * url. How do we select which one to callback to?
  *
+ * <p>The tables are safe for concurrent use. Connections which have not
+ * pinged within the ttl are dropped by a background sweep.
+ *
  * @author douglm
  */
 public class SynchConnections extends ConfBase
@@ -42,13 +54,25 @@ public class SynchConnections extends ConfBase
   /* Name of the property holding the location of the config data */
   public static final String confuriPname = "org.bedework.caldav.confuri";
 
-  /* A map indexed by the url which identifies 'open' connections */
-  static Map<String, SynchConnection> activeConnections =
-      new HashMap<>();
+  private static final long defaultConnectionTtl = 30 * 60 * 1000;
+
+  private static final long sweepInterval = 60 * 1000;
+
+  /* A map indexed by the url which identifies 'open' connections. Sorted
+   * so that pages of the listing are stable.
+   */
+  static final ConcurrentMap<String, SynchConnection> activeConnections =
+      new ConcurrentSkipListMap<>();
 
   /* A map indexed by the id which identifies 'open' connections */
-  static Map<String, SynchConnection> activeConnectionsById =
-      new HashMap<>();
+  static final ConcurrentMap<String, SynchConnection> activeConnectionsById =
+      new ConcurrentHashMap<>();
+
+  private static volatile long connectionTtl = defaultConnectionTtl;
+
+  private static final AtomicLong evicted = new AtomicLong();
+
+  private static ScheduledExecutorService sweeper;
 
   public SynchConnections() {
     super(serviceName);
@@ -56,6 +80,8 @@ public class SynchConnections extends ConfBase
     setConfigName(configName);
 
     setConfigPname(confuriPname);
+
+    startSweeper();
   }
 
   @Override
@@ -67,13 +93,39 @@ public class SynchConnections extends ConfBase
    * Attributes
    * ======================================================================== */
 
+  @Override
+  public void setConnectionTtl(final long val) {
+    connectionTtl = val;
+  }
+
+  @Override
+  public long getConnectionTtl() {
+    return connectionTtl;
+  }
+
+  @Override
+  public int getConnectionCount() {
+    return activeConnections.size();
+  }
+
+  @Override
+  public long getEvicted() {
+    return evicted.get();
+  }
+
   /* ========================================================================
    * Operations
    * ======================================================================== */
 
   @Override
   public void setConnection(final SynchConnection val) {
-    activeConnections.put(val.getSubscribeUrl(), val);
+    final SynchConnection prev =
+            activeConnections.put(val.getSubscribeUrl(), val);
+
+    if ((prev != null) && (prev != val)) {
+      activeConnectionsById.remove(prev.getConnectorId(), prev);
+    }
+
     activeConnectionsById.put(val.getConnectorId(), val);
   }
 
@@ -89,20 +141,113 @@ public class SynchConnections extends ConfBase
 
   @Override
   public String[] activeConnectionInfo() {
-    Collection<SynchConnection> conns = activeConnections.values();
+    return activeConnectionInfo(0, Integer.MAX_VALUE);
+  }
 
-    if (Util.isEmpty(conns)) {
+  @Override
+  public String[] activeConnectionInfo(final int start,
+                                       final int count) {
+    final List<String> res = new ArrayList<>();
+
+    if (count <= 0) {
       return new String[0];
     }
 
-    String[] res = new String[conns.size()];
-
     int i = 0;
-    for (SynchConnection sc: conns) {
-      res[i] = sc.shortToString();
+    for (final SynchConnection sc: activeConnections.values()) {
+      if (i >= start) {
+        res.add(sc.shortToString());
+
+        if (res.size() >= count) {
+          break;
+        }
+      }
+
       i++;
     }
 
-    return res;
+    return res.toArray(new String[res.size()]);
+  }
+
+  @Override
+  public int evictIdle() {
+    return evict();
+  }
+
+  /* ========================================================================
+   * Private methods
+   * ======================================================================== */
+
+  private static int evict() {
+    final long ttl = connectionTtl;
+
+    if (ttl <= 0) {
+      return 0;
+    }
+
+    final long cutoff = System.currentTimeMillis() - ttl;
+    int n = 0;
+
+    final Iterator<SynchConnection> it =
+            activeConnections.values().iterator();
+
+    while (it.hasNext()) {
+      final SynchConnection sc = it.next();
+
+      if (sc.getLastPing() >= cutoff) {
+        continue;
+      }
+
+      /* Only remove this connection - it may have been replaced */
+      if (activeConnections.remove(sc.getSubscribeUrl(), sc)) {
+        activeConnectionsById.remove(sc.getConnectorId(), sc);
+        n++;
+      }
+    }
+
+    evicted.addAndGet(n);
+
+    return n;
+  }
+
+  /** Stop evicting idle connections - called when the context is
+   * destroyed. A new instance starts it again.
+   */
+  public static synchronized void stopSweeper() {
+    if (sweeper == null) {
+      return;
+    }
+
+    sweeper.shutdownNow();
+    sweeper = null;
+  }
+
+  /* The tables are shared so one sweep does for all instances */
+  private static synchronized void startSweeper() {
+    if (sweeper != null) {
+      return;
+    }
+
+    sweeper = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+      @Override
+      public Thread newThread(final Runnable r) {
+        final Thread t = new Thread(r, "caldav-synch-sweeper");
+        t.setDaemon(true);
+
+        return t;
+      }
+    });
+
+    sweeper.scheduleWithFixedDelay(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          evict();
+        } catch (final Throwable t) {
+          Logger.getLogger(SynchConnections.class).error(
+                  "Unable to evict idle connections", t);
+        }
+      }
+    }, sweepInterval, sweepInterval, TimeUnit.MILLISECONDS);
   }
 }
@@ -35,6 +35,30 @@ public interface SynchConnectionsMBean extends ConfBaseMBean {
    * Attributes
    * ======================================================================== */
 
+  /**
+   * @param val millis a connection may go without a ping before it is
+   *            dropped. 0 to keep connections forever.
+   */
+  void setConnectionTtl(long val);
+
+  /**
+   * @return millis a connection may go without a ping
+   */
+  @MBeanInfo("Millis a connection may go without a ping before it is dropped - 0 for never")
+  long getConnectionTtl();
+
+  /**
+   * @return number of connections
+   */
+  @MBeanInfo("Number of connections")
+  int getConnectionCount();
+
+  /**
+   * @return number of connections dropped for lack of pings
+   */
+  @MBeanInfo("Number of connections dropped for lack of pings")
+  long getEvicted();
+
   /* ========================================================================
    * Operations
    * ======================================================================== */
@@ -67,4 +91,20 @@ public interface SynchConnectionsMBean extends ConfBaseMBean {
    */
   @MBeanInfo("List of connections")
   String[] activeConnectionInfo();
+
+  /**
+   * @param start index of first connection
+   * @param count max number to return
+   * @return page of the list of connections ordered by url
+   */
+  @MBeanInfo("Page of the list of connections")
+  String[] activeConnectionInfo(int start, int count);
+
+  /** Drop connections which have not pinged within the ttl. This is
+   * also done periodically.
+   *
+   * @return number dropped
+   */
+  @MBeanInfo("Drop connections which have not pinged within the ttl")
+  int evictIdle();
 }
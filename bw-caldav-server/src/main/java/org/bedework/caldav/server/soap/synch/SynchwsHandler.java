@@ -159,29 +159,28 @@ public class SynchwsHandler extends CalwsHandler {
     }
 
     try {
-      synchronized (monitor) {
-        final KeepAliveResponseType kar = of.createKeepAliveResponseType();
-
-        final SynchConnection sc = getActiveConnection(kan.getSubscribeUrl());
-
-        if (sc == null) {
-          kar.setStatus(StatusType.NOT_FOUND);
-        } else if (!sc.getSynchToken().equals(kan.getToken())) {
-          kar.setStatus(StatusType.ERROR);
-        } else {
-          kar.setStatus(StatusType.OK);
-          sc.setLastPing(System.currentTimeMillis());
-          setActiveConnection(sc);
-        }
+      final KeepAliveResponseType kar = of.createKeepAliveResponseType();
 
-        resp.setCharacterEncoding("UTF-8");
-        resp.setStatus(HttpServletResponse.SC_OK);
-        resp.setContentType("text/xml; charset=UTF-8");
+      final SynchConnection sc = getActiveConnection(kan.getSubscribeUrl());
 
-        final JAXBElement<KeepAliveResponseType> jax = of.createKeepAliveResponse(kar);
+      if (sc == null) {
+        kar.setStatus(StatusType.NOT_FOUND);
+      } else if (!sc.getSynchToken().equals(kan.getToken())) {
+        kar.setStatus(StatusType.ERROR);
+      } else {
+        kar.setStatus(StatusType.OK);
 
-        marshal(jax, resp.getOutputStream());
+        /* sc is the registered connection - no need to put it back */
+        sc.setLastPing(System.currentTimeMillis());
       }
+
+      resp.setCharacterEncoding("UTF-8");
+      resp.setStatus(HttpServletResponse.SC_OK);
+      resp.setContentType("text/xml; charset=UTF-8");
+
+      final JAXBElement<KeepAliveResponseType> jax = of.createKeepAliveResponse(kar);
+
+      marshal(jax, resp.getOutputStream());
     } catch (final WebdavException we) {
       throw we;
     } catch(final Throwable t) {
@@ -25,6 +25,10 @@ import java.io.Serializable;
 /** These are the system properties that the server needs to know about, either
  * because it needs to apply these limits or just to report them to clients.
  *
+ * <p>Tuning properties have default methods so that existing
+ * implementations need not change. Their getters return null, meaning not
+ * set, and their setters do nothing.
+ *
  * @author douglm
  *
  */
@@ -79,6 +83,139 @@ public interface CalDAVSystemProperties extends Serializable {
   @MBeanInfo("true if we are NOT including the full tz specification in iCalendar output")
   boolean getTimezonesByReference();
 
+  /** Set the number of results handled at a time when streaming
+   * calendar-query and calendar-multiget responses. null or 0 to build the
+   * entire response before any output.
+   *
+   * @param val    Integer page size
+   */
+  default void setReportPageSize(final Integer val) {
+  }
+
+  /** Get the number of results handled at a time when streaming reports
+   *
+   * @return Integer page size - null or 0 for no streaming
+   */
+  @MBeanInfo("Number of results handled at a time when streaming REPORT output. null or 0 for no streaming")
+  default Integer getReportPageSize() {
+    return null;
+  }
+
+  /** Set the max number of collections queried concurrently for a single
+   * calendar-query REPORT. Only used if the system interface is thread
+   * safe. null or 1 to query them one at a time.
+   *
+   * @param val    Integer max
+   */
+  default void setReportConcurrency(final Integer val) {
+  }
+
+  /** Get the max number of collections queried concurrently for a single
+   * calendar-query REPORT.
+   *
+   * @return Integer max - null or 1 for no concurrency
+   */
+  @MBeanInfo("Max number of collections queried concurrently for a single REPORT. null or 1 for none")
+  default Integer getReportConcurrency() {
+    return null;
+  }
+
+  /** Set the max number of items returned by a single sync-collection
+   * report. Larger change sets are returned a page at a time if the
+   * system interface supplies continuation tokens. null or 0 for no
+   * limit.
+   *
+   * @param val    Integer max
+   */
+  default void setMaxSyncReportItems(final Integer val) {
+  }
+
+  /** Get the max number of items returned by a single sync-collection
+   * report.
+   *
+   * @return Integer max - null or 0 for no limit
+   */
+  @MBeanInfo("Max number of items in a sync-collection report. null or 0 for no limit")
+  default Integer getMaxSyncReportItems() {
+    return null;
+  }
+
+  /** Set the max number of batches of scheduling recipients delivered
+   * concurrently for a single request. Only used if the system interface
+   * is thread safe. null or 1 to deliver them one at a time.
+   *
+   * @param val    Integer max
+   */
+  default void setSchedulingConcurrency(final Integer val) {
+  }
+
+  /** Get the max number of batches of scheduling recipients delivered
+   * concurrently for a single request.
+   *
+   * @return Integer max - null or 1 for no concurrency
+   */
+  @MBeanInfo("Max number of batches of scheduling recipients delivered concurrently. null or 1 for none")
+  default Integer getSchedulingConcurrency() {
+    return null;
+  }
+
+  /** Set the max number of free-busy requests made concurrently for the
+   * reports in a CalWS MultiOp. Only used if the system interface is
+   * thread safe. Operations are otherwise processed one at a time in
+   * order. null or 1 to make the requests one at a time.
+   *
+   * @param val    Integer max
+   */
+  default void setMultiOpConcurrency(final Integer val) {
+  }
+
+  /** Get the max number of free-busy requests made concurrently for a
+   * CalWS MultiOp.
+   *
+   * @return Integer max - null or 1 for no concurrency
+   */
+  @MBeanInfo("Max number of CalWS MultiOp free-busy requests made concurrently. null or 1 for none")
+  default Integer getMultiOpConcurrency() {
+    return null;
+  }
+
+  /** Set the time in millis a scheduling request waits for delivery.
+   * Recipients still pending are reported as deferred and delivered
+   * after the response. null or 0 to wait for all.
+   *
+   * @param val    Integer millis
+   */
+  default void setSchedulingDeadline(final Integer val) {
+  }
+
+  /** Get the time in millis a scheduling request waits for delivery.
+   *
+   * @return Integer millis - null or 0 to wait for all
+   */
+  @MBeanInfo("Millis to wait for scheduling delivery before deferring. null or 0 to wait for all")
+  default Integer getSchedulingDeadline() {
+    return null;
+  }
+
+  /** Set the directory holding deferred scheduling deliveries until they
+   * complete. Deliveries which fail after the response are retried from
+   * here by a background worker.
+   *
+   * @param val    path - null for no queue. Failed deferred deliveries
+   *               are then logged and dropped.
+   */
+  default void setSchedulingQueueDir(final String val) {
+  }
+
+  /** Get the directory holding deferred scheduling deliveries.
+   *
+   * @return path - null for no queue
+   */
+  @MBeanInfo("Directory for deferred scheduling deliveries. null for no queue")
+  default String getSchedulingQueueDir() {
+    return null;
+  }
+
   /** Set the ischedule service uri - null for no ischedule service
    *
    * @param val    String
@@ -0,0 +1,208 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.caldav.server.sysinterface;
+
+import org.bedework.util.xml.tagdefs.CaldavTags;
+import org.bedework.util.xml.tagdefs.WebdavTags;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.xml.namespace.QName;
+
+/** Describes which parts of an entity a request needs. Backends may use
+ * this to avoid loading full entities, for example a report asking only
+ * for the etag needs none of the iCalendar properties.
+ *
+ * <p>A null projection means the full entity is required.
+ */
+public class RetrievalProjection implements Serializable {
+  /** DAV properties which can be derived from a partial entity */
+  public enum DavProperty {
+    /** DAV:getetag */
+    etag(WebdavTags.getetag),
+
+    /** DAV:getlastmodified */
+    lastmod(WebdavTags.getlastmodified),
+
+    /** DAV:getcontenttype */
+    contentType(WebdavTags.getcontenttype),
+
+    /** CALDAV:schedule-tag */
+    scheduleTag(CaldavTags.scheduleTag);
+
+    private final QName tag;
+
+    DavProperty(final QName tag) {
+      this.tag = tag;
+    }
+
+    /**
+     * @return the property element name
+     */
+    public QName getTag() {
+      return tag;
+    }
+
+    /**
+     * @param tag a property element name
+     * @return matching value or null
+     */
+    public static DavProperty fromTag(final QName tag) {
+      for (DavProperty dp: values()) {
+        if (dp.tag.equals(tag)) {
+          return dp;
+        }
+      }
+
+      return null;
+    }
+  }
+
+  private final Set<DavProperty> davProperties =
+          EnumSet.noneOf(DavProperty.class);
+
+  /* Component name to property names */
+  private final Map<String, Set<String>> icalProperties =
+          new HashMap<String, Set<String>>();
+
+  /**
+   * @param val DAV property required
+   */
+  public void addDavProperty(final DavProperty val) {
+    davProperties.add(val);
+  }
+
+  /**
+   * @param tag DAV property element name
+   * @return false if the property can't be derived from a partial
+   *         entity - the full entity is needed.
+   */
+  public boolean addDavProperty(final QName tag) {
+    DavProperty dp = DavProperty.fromTag(tag);
+
+    if (dp == null) {
+      return false;
+    }
+
+    davProperties.add(dp);
+    return true;
+  }
+
+  /**
+   * @return DAV properties required - never null
+   */
+  public Set<DavProperty> getDavProperties() {
+    return Collections.unmodifiableSet(davProperties);
+  }
+
+  /**
+   * @param val a DAV property
+   * @return true if it is required
+   */
+  public boolean getDavProperty(final DavProperty val) {
+    return davProperties.contains(val);
+  }
+
+  /**
+   * @param compName component name e.g. VEVENT
+   * @param propName iCalendar property name e.g. SUMMARY
+   */
+  public void addIcalProperty(final String compName,
+                              final String propName) {
+    String cname = compName.toUpperCase();
+    Set<String> props = icalProperties.get(cname);
+
+    if (props == null) {
+      props = new LinkedHashSet<String>();
+      icalProperties.put(cname, props);
+    }
+
+    props.add(propName.toUpperCase());
+  }
+
+  /**
+   * @return map of component name to required iCalendar property names.
+   *         Components not present are not required.
+   */
+  public Map<String, Set<String>> getIcalProperties() {
+    return Collections.unmodifiableMap(icalProperties);
+  }
+
+  /**
+   * @param compName component name e.g. VEVENT
+   * @return required properties for that component - null for none
+   */
+  public Set<String> getIcalProperties(final String compName) {
+    return icalProperties.get(compName.toUpperCase());
+  }
+
+  /**
+   * @return true if any of the iCalendar content is needed
+   */
+  public boolean getContentRequired() {
+    return !icalProperties.isEmpty();
+  }
+
+  /**
+   * @return true if nothing but DAV:getetag is required
+   */
+  public boolean getEtagOnly() {
+    return icalProperties.isEmpty() &&
+            (davProperties.size() == 1) &&
+            davProperties.contains(DavProperty.etag);
+  }
+
+  /** Flatten into the retrieve list taken by getEvents. Backends only
+   * understand a list naming DAV:getetag, so that is all we produce. Any
+   * other projection gives null, asking for the full entity.
+   *
+   * @return list of property names or null for the full entity
+   */
+  public List<String> getRetrieveList() {
+    if (!getEtagOnly()) {
+      return null;
+    }
+
+    final List<String> res = new ArrayList<String>();
+    res.add(WebdavTags.getetag.toString());
+
+    return res;
+  }
+
+  @Override
+  public String toString() {
+    StringBuilder sb = new StringBuilder("RetrievalProjection{");
+
+    sb.append("dav=");
+    sb.append(davProperties);
+    sb.append(", ical=");
+    sb.append(icalProperties);
+    sb.append("}");
+
+    return sb.toString();
+  }
+}
@@ -48,8 +48,13 @@ import org.oasis_open.docs.ws_calendar.ns.soap.ComponentSelectionType;
 
 import java.io.Reader;
 import java.io.Writer;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 import javax.servlet.http.HttpServletRequest;
@@ -68,7 +73,8 @@ public interface SysIntf extends WdSysIntf {
   /** Called before any other method is called to allow initialization to
    * take place at the first or subsequent requests
    *
-   * @param req the http servlet request
+   * @param req the http servlet request - null for a session started
+   *            outside of any request, e.g. to retry scheduling delivery
    * @param account - possible account
    * @param service - true if this is a service call - e.g. iSchedule -
    *                rather than a real user.
@@ -106,6 +112,32 @@ public interface SysIntf extends WdSysIntf {
    */
   public boolean bedeworkExtensionsEnabled();
 
+  /** true if this object may be called concurrently from more than one
+   * thread while handling a single request. This is done to query a
+   * number of collections in parallel, to deliver batches of scheduling
+   * recipients and to request free-busy for the reports in a CalWS
+   * MultiOp.
+   * Implementations which hold per-thread state, a single database session
+   * for example, should leave this false.
+   *
+   * @return true if we may be called concurrently.
+   */
+  default boolean getThreadSafe() {
+    return false;
+  }
+
+  /** true if an entity renders the same whoever asks for it. Rendered
+   * entities are then cached and shared across requests and principals.
+   * Implementations which mask private or confidential events, add per
+   * user alarms or otherwise vary the output by principal must leave
+   * this false.
+   *
+   * @return true if rendered entities may be shared between principals.
+   */
+  default boolean getRenderingUserIndependent() {
+    return false;
+  }
+
   /** Return CalDAV properties relevant to authentication state.
    *
    * @return CalDAVAuthProperties object - never null.
@@ -528,6 +560,108 @@ public interface SysIntf extends WdSysIntf {
                                            RetrievalMode recurRetrieval)
           throws WebdavException;
 
+  /** As getEvents but the required parts of each entity are described by
+   * a projection. A backend able to load partial entities should override
+   * this - for example when only DAV:getetag is required none of the
+   * iCalendar content need be loaded.
+   *
+   * <p>The default passes a retrieve list naming DAV:getetag if that is
+   * all the projection requires, otherwise null for the full entity.
+   *
+   * @param col
+   * @param filter - if non-null defines a search filter
+   * @param projection what to retrieve or null for a full event.
+   * @param recurRetrieval How recurring event is returned.
+   * @return Collection  populated event value objects
+   * @throws WebdavException
+   */
+  default Collection<CalDAVEvent> getEvents(final CalDAVCollection col,
+                                            final FilterBase filter,
+                                            final RetrievalProjection projection,
+                                            final RetrievalMode recurRetrieval)
+          throws WebdavException {
+    List<String> retrieveList = null;
+
+    if (projection != null) {
+      retrieveList = projection.getRetrieveList();
+    }
+
+    return getEvents(col, filter, retrieveList, recurRetrieval);
+  }
+
+  /** Return the events in each of a number of collections using the
+   * supplied filter. Backends able to search a set of collections in one
+   * go, with a single SQL statement or index query for example, should
+   * override this and return true from getMultiCollectionQuery.
+   *
+   * <p>The default calls getEvents for each collection in turn.
+   *
+   * @param cols the collections
+   * @param filter - if non-null defines a search filter
+   * @param projection what to retrieve or null for a full event.
+   * @param recurRetrieval How recurring event is returned.
+   * @return List with the events for each collection in the order of cols.
+   * @throws WebdavException
+   */
+  default List<Collection<CalDAVEvent>> getEvents(final List<CalDAVCollection> cols,
+                                                  final FilterBase filter,
+                                                  final RetrievalProjection projection,
+                                                  final RetrievalMode recurRetrieval)
+          throws WebdavException {
+    final List<Collection<CalDAVEvent>> res = new ArrayList<>(cols.size());
+
+    for (final CalDAVCollection col: cols) {
+      res.add(getEvents(col, filter, projection, recurRetrieval));
+    }
+
+    return res;
+  }
+
+  /** true if getEvents for a list of collections is implemented by a
+   * single search rather than one per collection. A query over a number
+   * of collections is then made with one call. Otherwise the collections
+   * are queried one at a time, or concurrently if we are thread safe and
+   * the system properties allow it.
+   *
+   * @return true if getEvents for a list of collections should be used.
+   */
+  default boolean getMultiCollectionQuery() {
+    return false;
+  }
+
+  /** As getEvents but the result is delivered through an iterator. This
+   * allows an implementation to hand back a large result a page at a time
+   * rather than building it in memory. Callers process each event as it is
+   * returned and do not retain it.
+   *
+   * <p>Iterators may only throw unchecked exceptions - implementations
+   * should wrap any failure fetching the next page.
+   *
+   * <p>The default delegates to getEvents.
+   *
+   * @param col
+   * @param filter - if non-null defines a search filter
+   * @param projection what to retrieve or null for a full event.
+   * @param recurRetrieval How recurring event is returned.
+   * @return Iterator over populated event value objects - never null
+   * @throws WebdavException
+   */
+  default Iterator<CalDAVEvent> getEventsIterator(final CalDAVCollection col,
+                                                  final FilterBase filter,
+                                                  final RetrievalProjection projection,
+                                                  final RetrievalMode recurRetrieval)
+          throws WebdavException {
+    final Collection<CalDAVEvent> evs = getEvents(col, filter,
+                                                  projection,
+                                                  recurRetrieval);
+
+    if (evs == null) {
+      return Collections.emptyIterator();
+    }
+
+    return evs.iterator();
+  }
+
   /** Get events given the collection and String name. Return null for not
    * found. There should be only one event or none. For recurring, the
    * overrides and possibly the instances will be attached.
@@ -541,6 +675,56 @@ public interface SysIntf extends WdSysIntf {
                               String val)
           throws WebdavException;
 
+  /** Get the named events in a single collection. This is the bulk form of
+   * getEvent and is used, for example, by calendar-multiget to fetch all the
+   * hrefs targetted at a collection in one call.
+   *
+   * <p>Implementations able to fetch a group of events in one round trip
+   * should override this. The default calls getEvent for each name.
+   *
+   * @param col        CalDAVCollection object
+   * @param names      Collection of possible names
+   * @return Map of name to event - names not found have no entry.
+   * @throws WebdavException
+   */
+  default Map<String, CalDAVEvent> getEvents(final CalDAVCollection col,
+                                             final Collection<String> names)
+          throws WebdavException {
+    final Map<String, CalDAVEvent> res = new HashMap<>();
+
+    if (names == null) {
+      return res;
+    }
+
+    for (final String name: names) {
+      final CalDAVEvent ev = getEvent(col, name);
+
+      if (ev != null) {
+        res.put(name, ev);
+      }
+    }
+
+    return res;
+  }
+
+  /** As getEvents for a group of names but the required parts of each
+   * entity are described by a projection.
+   *
+   * <p>The default ignores the projection.
+   *
+   * @param col        CalDAVCollection object
+   * @param names      Collection of possible names
+   * @param projection what to retrieve or null for a full event.
+   * @return Map of name to event - names not found have no entry.
+   * @throws WebdavException
+   */
+  default Map<String, CalDAVEvent> getEvents(final CalDAVCollection col,
+                                             final Collection<String> names,
+                                             final RetrievalProjection projection)
+          throws WebdavException {
+    return getEvents(col, names);
+  }
+
   /**
    * @param ev
    * @param scheduleReply - true if we want a schduling reply posted
@@ -681,6 +865,37 @@ public interface SysIntf extends WdSysIntf {
    */
   public CalDAVCollection getCollection(String path) throws WebdavException;
 
+  /** Get any collections with the given paths. This is the bulk form of
+   * getCollection and is used, for example, by calendar-multiget to check
+   * in one call which of a group of hrefs name collections.
+   *
+   * <p>Implementations able to look up a group of paths in one round trip
+   * should override this. The default calls getCollection for each path.
+   *
+   * @param paths     Collection of paths
+   * @return Map of path to collection - paths which are not collections
+   *         have no entry.
+   * @throws WebdavException
+   */
+  default Map<String, CalDAVCollection> getCollections(final Collection<String> paths)
+          throws WebdavException {
+    final Map<String, CalDAVCollection> res = new HashMap<>();
+
+    if (paths == null) {
+      return res;
+    }
+
+    for (final String path: paths) {
+      final CalDAVCollection col = getCollection(path);
+
+      if (col != null) {
+        res.put(path, col);
+      }
+    }
+
+    return res;
+  }
+
   /** Update a collection.
    *
    * @param val           updated CalDAVCollection object
@@ -978,6 +1193,25 @@ public interface SysIntf extends WdSysIntf {
                                        int limit,
                                        boolean recurse) throws WebdavException;
 
+  /** Return a sync-token which will continue a sync report after the
+   * given item. Used when the server truncates a report. Items with a
+   * token equal to that of the given item have all been returned.
+   *
+   * <p>Item tokens are not in general valid sync-tokens so the default
+   * returns null. Reports are then never truncated by the server.
+   *
+   * @param srd     the report being truncated
+   * @param last    last item returned to the client
+   * @return A sync-token which must be a URI - null if a report can't be
+   *         continued part way through.
+   * @throws WebdavException
+   */
+  default String getContinuationToken(final SynchReportData srd,
+                                      final SynchReportData.SynchReportDataItem last)
+          throws WebdavException {
+    return null;
+  }
+
   /* ====================================================================
    *                   Misc
    * ==================================================================== */
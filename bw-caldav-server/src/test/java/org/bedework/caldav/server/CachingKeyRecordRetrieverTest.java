@@ -0,0 +1,193 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.caldav.server;
+
+import org.bedework.caldav.server.DomainKeyCache.DomainKey;
+
+import org.apache.james.jdkim.api.PublicKeyRecordRetriever;
+import org.apache.james.jdkim.exceptions.PermFailException;
+import org.apache.james.jdkim.exceptions.TempFailException;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+/** Tests for the caching of DKIM key records.
+ */
+public class CachingKeyRecordRetrieverTest {
+  private static final String method = "dns/txt";
+  private static final String selector = "ischedule";
+  private static final String domain = "example.com";
+
+  private static final List<String> recs =
+          Arrays.asList("v=DKIM1; k=rsa; ",
+                        "p=MIGfMA0GCSqGSIb3DQEBAQUAA4GNADCBiQKBgQ");
+
+  private final DomainKeyCache cache = DomainKeyCache.getCache();
+
+  @Before
+  public void setUp() {
+    cache.setTtl(60 * 1000);
+    cache.setNegativeTtl(60 * 1000);
+    cache.flush();
+    cache.resetCounters();
+  }
+
+  @Test
+  public void testRecordsCached() throws Throwable {
+    final Counting fetcher = new Counting(recs, null);
+    final CachingKeyRecordRetriever r = new CachingKeyRecordRetriever(fetcher);
+
+    assertEquals(recs, r.getRecords(method, selector, domain));
+    assertEquals(recs, r.getRecords(method, selector, domain));
+
+    assertEquals(1, fetcher.calls);
+    assertEquals(1, cache.getHits());
+    assertEquals(1, cache.getEntries());
+  }
+
+  @Test
+  public void testRecordsKeptApartFromKeys() throws Throwable {
+    final Counting fetcher = new Counting(recs, null);
+    final CachingKeyRecordRetriever r = new CachingKeyRecordRetriever(fetcher);
+
+    r.getRecords(method, selector, domain);
+
+    // Our own key for the same domain is a different entry
+    final byte[] key = {1, 2, 3};
+    final DomainKey dk =
+            cache.get(domain, method, selector,
+                      new Callable<byte[]>() {
+                        @Override
+                        public byte[] call() {
+                          return key;
+                        }
+                      });
+
+    assertEquals("AQID", dk.getBase64());
+    assertEquals(recs, r.getRecords(method, selector, domain));
+    assertEquals(1, fetcher.calls);
+    assertEquals(2, cache.getEntries());
+  }
+
+  @Test
+  public void testMissingKeyCached() throws Throwable {
+    final Counting fetcher =
+            new Counting(null, new PermFailException("NXDOMAIN"));
+    final CachingKeyRecordRetriever r = new CachingKeyRecordRetriever(fetcher);
+
+    for (int i = 0; i < 2; i++) {
+      try {
+        r.getRecords(method, selector, domain);
+        fail("Expected PermFailException");
+      } catch (final PermFailException expected) {
+      }
+    }
+
+    assertEquals(1, fetcher.calls);
+    assertEquals(1, cache.getNegativeHits());
+  }
+
+  @Test
+  public void testNoRecordsCached() throws Throwable {
+    final Counting fetcher = new Counting(null, null);
+    final CachingKeyRecordRetriever r = new CachingKeyRecordRetriever(fetcher);
+
+    for (int i = 0; i < 2; i++) {
+      try {
+        r.getRecords(method, selector, domain);
+        fail("Expected PermFailException");
+      } catch (final PermFailException expected) {
+      }
+    }
+
+    assertEquals(1, fetcher.calls);
+  }
+
+  @Test
+  public void testTempFailNotCached() throws Throwable {
+    final Counting fetcher =
+            new Counting(null, new TempFailException("SERVFAIL"));
+    final CachingKeyRecordRetriever r = new CachingKeyRecordRetriever(fetcher);
+
+    for (int i = 0; i < 2; i++) {
+      try {
+        r.getRecords(method, selector, domain);
+        fail("Expected TempFailException");
+      } catch (final TempFailException expected) {
+      }
+    }
+
+    assertEquals(2, fetcher.calls);
+    assertEquals(0, cache.getEntries());
+  }
+
+  @Test
+  public void testNoTtl() throws Throwable {
+    cache.setTtl(0);
+
+    final Counting fetcher = new Counting(recs, null);
+    final CachingKeyRecordRetriever r = new CachingKeyRecordRetriever(fetcher);
+
+    assertEquals(recs, r.getRecords(method, selector, domain));
+    assertEquals(recs, r.getRecords(method, selector, domain));
+
+    assertEquals(2, fetcher.calls);
+  }
+
+  /* ====================================================================
+   *                   Private methods
+   * ==================================================================== */
+
+  private static class Counting implements PublicKeyRecordRetriever {
+    private final List<String> records;
+    private final Exception failure;
+
+    int calls;
+
+    Counting(final List<String> records,
+             final Exception failure) {
+      this.records = records;
+      this.failure = failure;
+    }
+
+    @Override
+    public List<String> getRecords(final CharSequence methodAndOptions,
+                                   final CharSequence selector,
+                                   final CharSequence token)
+            throws TempFailException, PermFailException {
+      calls++;
+
+      if (failure instanceof TempFailException) {
+        throw (TempFailException)failure;
+      }
+
+      if (failure instanceof PermFailException) {
+        throw (PermFailException)failure;
+      }
+
+      return records;
+    }
+  }
+}
@@ -0,0 +1,126 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.caldav.server;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/** Tests for the cache of rendered entities.
+ */
+public class RenderedContentCacheTest {
+  private static final String href = "/user/douglm/calendar/a.ics";
+  private static final String etag = "\"1\"";
+  private static final String ctype = "text/calendar";
+
+  private static final String expand =
+          "RetrievalMode{expand, , start=20150101T000000Z, " +
+          "end=20150201T000000Z}\tnull";
+
+  @Test
+  public void testExpandThenGet() {
+    final RenderedContentCache cache = new RenderedContentCache();
+
+    cache.put(href, etag, expand, ctype, ctype, "expanded");
+
+    // A GET of the entity must not see the expanded rendering
+    assertNull(cache.get(href, etag, null, ctype));
+    assertEquals(-1, cache.getLength(href, etag, null, ctype));
+
+    cache.put(href, etag, null, ctype, ctype, "complete entity");
+
+    assertEquals("complete entity",
+                 cache.get(href, etag, null, ctype).getString());
+    assertEquals("expanded",
+                 cache.get(href, etag, expand, ctype).getString());
+    assertEquals(8, cache.getLength(href, etag, expand, ctype));
+  }
+
+  @Test
+  public void testGetThenExpand() {
+    final RenderedContentCache cache = new RenderedContentCache();
+
+    cache.put(href, etag, null, ctype, ctype, "complete entity");
+
+    assertNull(cache.get(href, etag, expand, ctype));
+    assertEquals(-1, cache.getLength(href, etag, expand, ctype));
+  }
+
+  @Test
+  public void testChangedEtag() {
+    final RenderedContentCache cache = new RenderedContentCache();
+
+    cache.put(href, etag, null, ctype, ctype, "v1");
+
+    assertNull(cache.get(href, "\"2\"", null, ctype));
+    assertNull(cache.get(href, etag, null, "application/calendar+json"));
+  }
+
+  @Test
+  public void testInvalidate() {
+    final RenderedContentCache cache = new RenderedContentCache();
+
+    cache.put(href, etag, null, ctype, ctype, "complete entity");
+    cache.put(href, etag, expand, ctype, ctype, "expanded");
+    assertEquals(2, cache.getEntries());
+
+    cache.invalidate(href);
+
+    assertNull(cache.get(href, etag, null, ctype));
+    assertNull(cache.get(href, etag, expand, ctype));
+    assertEquals(0, cache.getEntries());
+    assertEquals(0, cache.getSize());
+    assertEquals(2, cache.getInvalidated());
+  }
+
+  @Test
+  public void testEviction() {
+    final RenderedContentCache cache = new RenderedContentCache();
+
+    cache.setMaxSize(80);
+
+    cache.put("/a.ics", etag, null, ctype, ctype, "0123456789");
+    cache.put("/b.ics", etag, null, ctype, ctype, "0123456789");
+
+    // Least recently used goes first
+    cache.get("/a.ics", etag, null, ctype);
+    for (int i = 0; i < 7; i++) {
+      cache.put("/c" + i + ".ics", etag, null, ctype, ctype, "0123456789");
+    }
+
+    assertNull(cache.get("/b.ics", etag, null, ctype));
+    assertEquals("0123456789",
+                 cache.get("/a.ics", etag, null, ctype).getString());
+    assertEquals(80, cache.getSize());
+  }
+
+  @Test
+  public void testDisabled() {
+    final RenderedContentCache cache = new RenderedContentCache();
+
+    cache.setMaxSize(0);
+
+    assertEquals("content",
+                 cache.put(href, etag, null, ctype, ctype,
+                           "content").getString());
+    assertNull(cache.get(href, etag, null, ctype));
+    assertEquals(0, cache.getEntries());
+  }
+}
@@ -0,0 +1,147 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.caldav.server;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.TreeSet;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/** Tests for the queue of scheduling deliveries not yet completed.
+ */
+public class SchedulingQueueTest {
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  @Test
+  public void testAddedEntryIsClaimed() throws Throwable {
+    final SchedulingQueue queue = queue();
+
+    queue.add("fred", "mailto:fred@example.com", "ical",
+              recipients("a", "b"));
+
+    // The request which added it is still delivering
+    assertTrue(queue.claim("fred", 10).isEmpty());
+  }
+
+  @Test
+  public void testReleaseAndClaim() throws Throwable {
+    final SchedulingQueue queue = queue();
+
+    queue.release(queue.add("fred", "mailto:fred@example.com", "ical",
+                            recipients("a", "b")));
+
+    final List<SchedulingQueue.Entry> es = queue.claim("fred", 10);
+
+    assertEquals(1, es.size());
+
+    final SchedulingQueue.Entry e = es.get(0);
+
+    assertEquals("fred", e.account);
+    assertEquals("mailto:fred@example.com", e.originator);
+    assertEquals("ical", e.ical);
+    assertEquals(recipients("a", "b"), e.recipients);
+    assertEquals(0, e.attempts);
+
+    // Only claimed once
+    assertTrue(queue.claim("fred", 10).isEmpty());
+  }
+
+  @Test
+  public void testNoOriginator() throws Throwable {
+    final SchedulingQueue queue = queue();
+
+    queue.release(queue.add("fred", null, "ical", recipients("a")));
+
+    assertNull(queue.claim("fred", 10).get(0).originator);
+  }
+
+  @Test
+  public void testClaimByAccount() throws Throwable {
+    final SchedulingQueue queue = queue();
+
+    queue.release(queue.add("fred", null, "ical1", recipients("a")));
+    queue.release(queue.add("jim", null, "ical2", recipients("b")));
+    queue.release(queue.add("fred", null, "ical3", recipients("c")));
+
+    assertEquals(1, queue.claim("fred", 1).size());
+    assertEquals(1, queue.claim("fred", 1).size());
+    assertTrue(queue.claim("fred", 1).isEmpty());
+
+    final List<SchedulingQueue.Entry> es = queue.claim("jim", 10);
+
+    assertEquals(1, es.size());
+    assertEquals("ical2", es.get(0).ical);
+  }
+
+  @Test
+  public void testFailedRecipientsRequeued() throws Throwable {
+    final SchedulingQueue queue = queue();
+
+    queue.release(queue.add("fred", null, "ical",
+                            recipients("a", "b", "c")));
+
+    SchedulingQueue.Entry e = queue.claim("fred", 10).get(0);
+
+    e.recipients = recipients("b");
+    e.attempts++;
+    queue.release(e);
+
+    e = queue.claim("fred", 10).get(0);
+
+    assertEquals(recipients("b"), e.recipients);
+    assertEquals(1, e.attempts);
+  }
+
+  @Test
+  public void testRemove() throws Throwable {
+    final SchedulingQueue queue = queue();
+
+    queue.remove(queue.add("fred", null, "ical", recipients("a")));
+
+    assertTrue(queue.getMaybePending());
+    assertTrue(queue.claim("fred", 10).isEmpty());
+
+    // Nothing found so we don't look again until something is added
+    assertFalse(queue.getMaybePending());
+
+    queue.add("fred", null, "ical", recipients("a"));
+    assertTrue(queue.getMaybePending());
+  }
+
+  /* ====================================================================
+   *                   Private methods
+   * ==================================================================== */
+
+  private SchedulingQueue queue() {
+    return new SchedulingQueue(folder.getRoot().getPath());
+  }
+
+  private static TreeSet<String> recipients(final String... rs) {
+    return new TreeSet<String>(Arrays.asList(rs));
+  }
+}
@@ -0,0 +1,181 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.caldav.server;
+
+import org.bedework.caldav.server.sysinterface.SysIntf;
+import org.bedework.caldav.server.sysinterface.SysIntf.SynchReportData;
+import org.bedework.caldav.server.sysinterface.SysIntf.SynchReportData.SynchReportDataItem;
+import org.bedework.webdav.servlet.shared.WebdavException;
+
+import org.junit.Test;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/** Tests for paging of sync-collection reports.
+ */
+public class SyncReportPagerTest {
+  @Test
+  public void testNoLimit() throws Throwable {
+    final SynchReportData srd = report("3", "1", "2");
+
+    assertFalse(SyncReportPager.page(srd, 0, sysi(true)));
+    assertTokens(srd, "1", "2", "3");
+    assertFalse(srd.truncated);
+    assertEquals("full", srd.token);
+  }
+
+  @Test
+  public void testWithinLimit() throws Throwable {
+    final SynchReportData srd = report("2", "1", "3");
+
+    assertFalse(SyncReportPager.page(srd, 3, sysi(true)));
+    assertTokens(srd, "1", "2", "3");
+    assertEquals("full", srd.token);
+  }
+
+  @Test
+  public void testTruncated() throws Throwable {
+    final SynchReportData srd = report("4", "2", "1", "3", "5");
+
+    assertTrue(SyncReportPager.page(srd, 2, sysi(true)));
+    assertTokens(srd, "1", "2");
+    assertTrue(srd.truncated);
+    assertEquals("after-2", srd.token);
+  }
+
+  @Test
+  public void testRunNotSplit() throws Throwable {
+    final SynchReportData srd = report("1", "2", "2", "2", "3");
+
+    assertTrue(SyncReportPager.page(srd, 3, sysi(true)));
+    assertTokens(srd, "1");
+    assertEquals("after-1", srd.token);
+  }
+
+  @Test
+  public void testFirstRunOverLimit() throws Throwable {
+    final SynchReportData srd = report("1", "1", "1", "1", "2", "3");
+
+    assertTrue(SyncReportPager.page(srd, 2, sysi(true)));
+    assertTokens(srd, "1", "1", "1", "1");
+    assertTrue(srd.truncated);
+    assertEquals("after-1", srd.token);
+  }
+
+  @Test
+  public void testInitialSyncFirstRunOverLimit() throws Throwable {
+    final SynchReportData srd = report("1", "1", "1", "2");
+    srd.token = null;
+
+    assertTrue(SyncReportPager.page(srd, 2, sysi(true)));
+    assertTokens(srd, "1", "1", "1");
+    assertEquals("after-1", srd.token);
+  }
+
+  @Test
+  public void testSingleRunOverLimit() throws Throwable {
+    final SynchReportData srd = report("1", "1", "1");
+
+    assertFalse(SyncReportPager.page(srd, 2, sysi(true)));
+    assertTokens(srd, "1", "1", "1");
+    assertFalse(srd.truncated);
+    assertEquals("full", srd.token);
+  }
+
+  @Test
+  public void testNoContinuationToken() throws Throwable {
+    final SynchReportData srd = report("1", "2", "3");
+
+    assertFalse(SyncReportPager.page(srd, 2, sysi(false)));
+    assertTokens(srd, "1", "2", "3");
+    assertFalse(srd.truncated);
+    assertEquals("full", srd.token);
+  }
+
+  @Test
+  public void testNoItems() throws Throwable {
+    final SynchReportData srd = new SynchReportData();
+
+    assertFalse(SyncReportPager.page(srd, 2, sysi(true)));
+    assertNull(srd.items);
+  }
+
+  /* ====================================================================
+   *                   Private methods
+   * ==================================================================== */
+
+  private static SynchReportData report(final String... tokens)
+          throws WebdavException {
+    final SynchReportData srd = new SynchReportData();
+
+    srd.items = new ArrayList<SynchReportDataItem>();
+    srd.token = "full";
+
+    for (int i = 0; i < tokens.length; i++) {
+      srd.items.add(new SynchReportDataItem("/cal/" + i + ".ics",
+                                            (CalDAVEvent)null,
+                                            tokens[i]));
+    }
+
+    return srd;
+  }
+
+  private static void assertTokens(final SynchReportData srd,
+                                   final String... tokens) {
+    assertEquals(tokens.length, srd.items.size());
+
+    for (int i = 0; i < tokens.length; i++) {
+      assertEquals(tokens[i], srd.items.get(i).getToken());
+    }
+  }
+
+  /* Only getContinuationToken is called. If continues is true it gives
+   * a token naming the last item returned.
+   */
+  private static SysIntf sysi(final boolean continues) {
+    return (SysIntf)Proxy.newProxyInstance(
+            SysIntf.class.getClassLoader(),
+            new Class<?>[]{SysIntf.class},
+            new InvocationHandler() {
+              @Override
+              public Object invoke(final Object proxy,
+                                   final Method method,
+                                   final Object[] args) {
+                if (!"getContinuationToken".equals(method.getName())) {
+                  throw new UnsupportedOperationException(method.getName());
+                }
+
+                if (!continues) {
+                  return null;
+                }
+
+                return "after-" +
+                        ((SynchReportDataItem)args[1]).getToken();
+              }
+            });
+  }
+}
@@ -0,0 +1,194 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.caldav.server.calquery;
+
+import org.bedework.util.xml.XmlEmit;
+import org.bedework.util.xml.XmlEmit.NameSpace;
+import org.bedework.util.xml.tagdefs.XcalTags;
+
+import ietf.params.xml.ns.caldav.CompType;
+import ietf.params.xml.ns.caldav.PropType;
+import net.fortuna.ical4j.data.CalendarBuilder;
+import net.fortuna.ical4j.model.Calendar;
+import org.junit.Test;
+
+import java.io.StringReader;
+import java.io.StringWriter;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/** Tests for writing the parts of a calendar selected by calendar-data.
+ */
+public class ProjectionWriterTest {
+  private static final String event =
+          "BEGIN:VCALENDAR\r\n" +
+          "VERSION:2.0\r\n" +
+          "PRODID:-//Example//Test//EN\r\n" +
+          "BEGIN:VEVENT\r\n" +
+          "UID:a@example.com\r\n" +
+          "DTSTAMP:20150101T000000Z\r\n" +
+          "DTSTART:20150102T100000Z\r\n" +
+          "SUMMARY:Meeting\r\n" +
+          "DESCRIPTION:Weekly\r\n" +
+          "CATEGORIES:WORK,TEAM\r\n" +
+          "GEO:37.386013;-122.082932\r\n" +
+          "REQUEST-STATUS:2.0;Success\r\n" +
+          "REQUEST-STATUS:3.1;Invalid property value;DTSTART:96-Apr-01\r\n" +
+          "END:VEVENT\r\n" +
+          "END:VCALENDAR\r\n";
+
+  @Test
+  public void testIcal() throws Throwable {
+    final String s = ical(vevent(prop("SUMMARY", false),
+                                 prop("DESCRIPTION", true)));
+
+    assertTrue(s.startsWith("BEGIN:VCALENDAR\r\nBEGIN:VEVENT\r\n"));
+    assertTrue(s.contains("SUMMARY:Meeting\r\n"));
+    assertTrue(s.contains("DESCRIPTION:\r\n"));
+    assertFalse(s.contains("UID:"));
+    assertFalse(s.contains("VERSION:"));
+    assertTrue(s.endsWith("END:VEVENT\r\nEND:VCALENDAR\r\n"));
+  }
+
+  @Test
+  public void testJcalGeo() throws Throwable {
+    final String s = jcal(vevent(prop("GEO", false)));
+
+    assertEquals("[\"vcalendar\",[],[[\"vevent\"," +
+                 "[[\"geo\",{},\"float\",[37.386013,-122.082932]]]," +
+                 "[]]]]",
+                 s);
+  }
+
+  @Test
+  public void testJcalRequestStatus() throws Throwable {
+    final String s = jcal(vevent(prop("REQUEST-STATUS", false)));
+
+    assertTrue(s.contains("[\"request-status\",{},\"text\"," +
+                          "[\"2.0\",\"Success\"]]"));
+    assertTrue(s.contains("[\"request-status\",{},\"text\"," +
+                          "[\"3.1\",\"Invalid property value\"," +
+                          "\"DTSTART:96-Apr-01\"]]"));
+  }
+
+  @Test
+  public void testJcalMultiValued() throws Throwable {
+    final String s = jcal(vevent(prop("CATEGORIES", false),
+                                 prop("DTSTART", false)));
+
+    assertTrue(s.contains("[\"categories\",{},\"text\",\"WORK\",\"TEAM\"]"));
+    assertTrue(s.contains("[\"dtstart\",{},\"date-time\"," +
+                          "\"2015-01-02T10:00:00Z\"]"));
+  }
+
+  @Test
+  public void testXcalGeo() throws Throwable {
+    final String s = xcal(vevent(prop("GEO", false)));
+
+    assertTrue(s.contains("<X:geo>" +
+                          "<X:latitude>37.386013</X:latitude>" +
+                          "<X:longitude>-122.082932</X:longitude>" +
+                          "</X:geo>"));
+    assertFalse(s.contains("<X:float>"));
+  }
+
+  @Test
+  public void testXcalRequestStatus() throws Throwable {
+    final String s = xcal(vevent(prop("REQUEST-STATUS", false)));
+
+    assertTrue(s.contains("<X:request-status>" +
+                          "<X:code>2.0</X:code>" +
+                          "<X:description>Success</X:description>" +
+                          "</X:request-status>"));
+    assertTrue(s.contains("<X:request-status>" +
+                          "<X:code>3.1</X:code>" +
+                          "<X:description>Invalid property value" +
+                          "</X:description>" +
+                          "<X:data>DTSTART:96-Apr-01</X:data>" +
+                          "</X:request-status>"));
+  }
+
+  /* ====================================================================
+   *                   Private methods
+   * ==================================================================== */
+
+  private static String ical(final CompType comp) throws Throwable {
+    final StringWriter sw = new StringWriter();
+
+    new ProjectionWriter(comp).writeIcal(calendar(), sw);
+
+    return sw.toString();
+  }
+
+  private static String jcal(final CompType comp) throws Throwable {
+    final StringWriter sw = new StringWriter();
+
+    new ProjectionWriter(comp).writeJcal(calendar(), sw);
+
+    return sw.toString();
+  }
+
+  /* Whitespace between elements is dropped */
+  private static String xcal(final CompType comp) throws Throwable {
+    final StringWriter sw = new StringWriter();
+    final XmlEmit xml = new XmlEmit();
+
+    xml.addNs(new NameSpace(XcalTags.namespace, "X"), false);
+    xml.startEmit(sw);
+
+    new ProjectionWriter(comp).writeXcal(calendar(), xml);
+
+    return sw.toString().replaceAll(">\\s+<", "><");
+  }
+
+  private static Calendar calendar() throws Throwable {
+    return new CalendarBuilder().build(new StringReader(event));
+  }
+
+  /* VCALENDAR with no properties selecting the given VEVENT properties */
+  private static CompType vevent(final PropType... props) {
+    final CompType vcal = new CompType();
+    vcal.setName("VCALENDAR");
+
+    final CompType vevent = new CompType();
+    vevent.setName("VEVENT");
+
+    for (final PropType p: props) {
+      vevent.getProp().add(p);
+    }
+
+    vcal.getComp().add(vevent);
+
+    return vcal;
+  }
+
+  private static PropType prop(final String name,
+                               final boolean novalue) {
+    final PropType p = new PropType();
+    p.setName(name);
+
+    if (novalue) {
+      p.setNovalue("yes");
+    }
+
+    return p;
+  }
+}
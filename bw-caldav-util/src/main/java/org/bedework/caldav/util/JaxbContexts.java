@@ -0,0 +1,277 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.caldav.util;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.xml.bind.JAXBContext;
+import javax.xml.bind.JAXBException;
+import javax.xml.bind.Marshaller;
+import javax.xml.bind.Unmarshaller;
+
+/** A process-wide cache of JAXB contexts keyed by context path.
+ *
+ * <p>Creating a JAXBContext is expensive while the context itself is thread
+ * safe, so we create each one once. Marshallers and unmarshallers are not
+ * thread safe. We hold a small bounded pool of each per context - callers
+ * borrow one and must release it when done, usually in a finally block.
+ */
+public class JaxbContexts {
+  private static final ConcurrentMap<String, JAXBContext> contexts =
+          new ConcurrentHashMap<>();
+
+  private static final ConcurrentMap<String, Pool<Marshaller>> marshallers =
+          new ConcurrentHashMap<>();
+
+  private static final ConcurrentMap<String, Pool<Unmarshaller>> unmarshallers =
+          new ConcurrentHashMap<>();
+
+  private static volatile int maxPoolSize = 16;
+
+  private static final AtomicLong contextHits = new AtomicLong();
+  private static final AtomicLong contextMisses = new AtomicLong();
+  private static final AtomicLong marshallerHits = new AtomicLong();
+  private static final AtomicLong marshallerMisses = new AtomicLong();
+  private static final AtomicLong unmarshallerHits = new AtomicLong();
+  private static final AtomicLong unmarshallerMisses = new AtomicLong();
+
+  /* Bounded pool of objects which are not thread safe */
+  private static class Pool<T> {
+    private final Queue<T> free = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger size = new AtomicInteger();
+
+    T get() {
+      final T t = free.poll();
+
+      if (t != null) {
+        size.decrementAndGet();
+      }
+
+      return t;
+    }
+
+    void put(final T val) {
+      if (size.incrementAndGet() > maxPoolSize) {
+        size.decrementAndGet();
+        return;
+      }
+
+      free.offer(val);
+    }
+  }
+
+  private JaxbContexts() {
+  }
+
+  /** Get the context for the given path, creating it on first use.
+   *
+   * @param contextPath as for JAXBContext.newInstance
+   * @return the context
+   * @throws JAXBException
+   */
+  public static JAXBContext getContext(final String contextPath) throws JAXBException {
+    JAXBContext jc = contexts.get(contextPath);
+
+    if (jc != null) {
+      contextHits.incrementAndGet();
+      return jc;
+    }
+
+    synchronized (contexts) {
+      jc = contexts.get(contextPath);
+
+      if (jc != null) {
+        contextHits.incrementAndGet();
+        return jc;
+      }
+
+      contextMisses.incrementAndGet();
+      jc = JAXBContext.newInstance(contextPath);
+      contexts.put(contextPath, jc);
+
+      return jc;
+    }
+  }
+
+  /** Borrow a marshaller for the given context path. The caller must not
+   * share it between threads and should hand it back with release.
+   *
+   * <p>Properties set on the marshaller persist - callers should set any
+   * they depend on.
+   *
+   * @param contextPath as for JAXBContext.newInstance
+   * @return a marshaller
+   * @throws JAXBException
+   */
+  public static Marshaller getMarshaller(final String contextPath) throws JAXBException {
+    final Marshaller m = getPool(marshallers, contextPath).get();
+
+    if (m != null) {
+      marshallerHits.incrementAndGet();
+      return m;
+    }
+
+    marshallerMisses.incrementAndGet();
+    return getContext(contextPath).createMarshaller();
+  }
+
+  /** Hand back a marshaller obtained from getMarshaller.
+   *
+   * @param contextPath as for JAXBContext.newInstance
+   * @param val the marshaller - may be null
+   */
+  public static void release(final String contextPath,
+                             final Marshaller val) {
+    if (val != null) {
+      getPool(marshallers, contextPath).put(val);
+    }
+  }
+
+  /** Borrow an unmarshaller for the given context path. The caller must not
+   * share it between threads and should hand it back with release.
+   *
+   * @param contextPath as for JAXBContext.newInstance
+   * @return an unmarshaller
+   * @throws JAXBException
+   */
+  public static Unmarshaller getUnmarshaller(final String contextPath) throws JAXBException {
+    final Unmarshaller u = getPool(unmarshallers, contextPath).get();
+
+    if (u != null) {
+      unmarshallerHits.incrementAndGet();
+      return u;
+    }
+
+    unmarshallerMisses.incrementAndGet();
+    return getContext(contextPath).createUnmarshaller();
+  }
+
+  /** Hand back an unmarshaller obtained from getUnmarshaller.
+   *
+   * @param contextPath as for JAXBContext.newInstance
+   * @param val the unmarshaller - may be null
+   */
+  public static void release(final String contextPath,
+                             final Unmarshaller val) {
+    if (val != null) {
+      getPool(unmarshallers, contextPath).put(val);
+    }
+  }
+
+  /* ====================================================================
+   *                   Statistics
+   * ==================================================================== */
+
+  /**
+   * @param val max number of marshallers and of unmarshallers held per context
+   */
+  public static void setMaxPoolSize(final int val) {
+    maxPoolSize = val;
+  }
+
+  /**
+   * @return max number of marshallers and of unmarshallers held per context
+   */
+  public static int getMaxPoolSize() {
+    return maxPoolSize;
+  }
+
+  /**
+   * @return number of contexts created
+   */
+  public static int getContextCount() {
+    return contexts.size();
+  }
+
+  /**
+   * @return number of times a cached context was found
+   */
+  public static long getContextHits() {
+    return contextHits.get();
+  }
+
+  /**
+   * @return number of times a context had to be created
+   */
+  public static long getContextMisses() {
+    return contextMisses.get();
+  }
+
+  /**
+   * @return number of times a pooled marshaller was reused
+   */
+  public static long getMarshallerHits() {
+    return marshallerHits.get();
+  }
+
+  /**
+   * @return number of times a marshaller had to be created
+   */
+  public static long getMarshallerMisses() {
+    return marshallerMisses.get();
+  }
+
+  /**
+   * @return number of times a pooled unmarshaller was reused
+   */
+  public static long getUnmarshallerHits() {
+    return unmarshallerHits.get();
+  }
+
+  /**
+   * @return number of times an unmarshaller had to be created
+   */
+  public static long getUnmarshallerMisses() {
+    return unmarshallerMisses.get();
+  }
+
+  /** Reset the counters. Cached contexts are retained.
+   */
+  public static void resetCounters() {
+    contextHits.set(0);
+    contextMisses.set(0);
+    marshallerHits.set(0);
+    marshallerMisses.set(0);
+    unmarshallerHits.set(0);
+    unmarshallerMisses.set(0);
+  }
+
+  private static <T> Pool<T> getPool(final ConcurrentMap<String, Pool<T>> pools,
+                                     final String contextPath) {
+    Pool<T> pool = pools.get(contextPath);
+
+    if (pool != null) {
+      return pool;
+    }
+
+    pool = new Pool<>();
+    final Pool<T> p = pools.putIfAbsent(contextPath, pool);
+
+    if (p != null) {
+      return p;
+    }
+
+    return pool;
+  }
+}
@@ -119,8 +119,46 @@ public class TimeRange {
       return false;
     }
 
-    // XXX later
-    return true;
+    java.util.Date dt = ((DateProperty)candidate).getDate();
+    if (dt == null) {
+      return false;
+    }
+
+    return includes(dt.getTime());
+  }
+
+  /** Test if the given instant falls in the timerange, that is
+   * start &lt;= val &lt; end with a missing bound treated as unbounded.
+   *
+   * @param val  millisecond instant
+   * @return boolean true if in range
+   */
+  public boolean includes(final long val) {
+    if ((start != null) && (val < start.getTime())) {
+      return false;
+    }
+
+    return (end == null) || (val < end.getTime());
+  }
+
+  /** Test if the period with the given start and end overlaps the
+   * timerange as defined by RFC 4791 section 9.9. A zero length period
+   * overlaps if its start is included in the range.
+   *
+   * @param pstart  millisecond start of the period
+   * @param pend    millisecond end of the period
+   * @return boolean true if they overlap
+   */
+  public boolean overlaps(final long pstart, final long pend) {
+    if (pend <= pstart) {
+      return includes(pstart);
+    }
+
+    if ((end != null) && (pstart >= end.getTime())) {
+      return false;
+    }
+
+    return (start == null) || (pend > start.getTime());
   }
 
   /** Debug
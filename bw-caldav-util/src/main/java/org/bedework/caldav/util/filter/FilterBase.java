@@ -21,6 +21,8 @@ package org.bedework.caldav.util.filter;
 import org.bedework.util.misc.ToString;
 import org.bedework.webdav.servlet.shared.WebdavException;
 
+import net.fortuna.ical4j.model.Component;
+
 import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.List;
@@ -212,7 +214,9 @@ public class FilterBase implements Serializable {
    * ==================================================================== */
 
   /** Overridden by filters which attempt to match the object with the
-   * requirements.
+   * requirements. By default ical4j components are evaluated by
+   * {@link FilterEvaluator}. Callers matching many objects should
+   * compile the filter once with FilterEvaluator.
    *
    * @param o
    * @param userHref - for whom we are matching
@@ -221,6 +225,10 @@ public class FilterBase implements Serializable {
    */
   public boolean match(final Object o,
                        final String userHref) throws WebdavException {
+    if (o instanceof Component) {
+      return FilterEvaluator.matches(this, (Component)o);
+    }
+
     return false;
   }
 
@@ -0,0 +1,1079 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.caldav.util.filter;
+
+import org.bedework.caldav.util.TimeRange;
+import org.bedework.util.calendar.IcalDefs;
+import org.bedework.util.calendar.PropertyIndex.PropertyInfoIndex;
+import org.bedework.webdav.servlet.shared.WebdavException;
+
+import net.fortuna.ical4j.model.Component;
+import net.fortuna.ical4j.model.ComponentList;
+import net.fortuna.ical4j.model.DateList;
+import net.fortuna.ical4j.model.DateTime;
+import net.fortuna.ical4j.model.Dur;
+import net.fortuna.ical4j.model.Parameter;
+import net.fortuna.ical4j.model.Period;
+import net.fortuna.ical4j.model.Property;
+import net.fortuna.ical4j.model.PropertyList;
+import net.fortuna.ical4j.model.component.VEvent;
+import net.fortuna.ical4j.model.component.VToDo;
+import net.fortuna.ical4j.model.parameter.Related;
+import net.fortuna.ical4j.model.parameter.Value;
+import net.fortuna.ical4j.model.property.DateProperty;
+import net.fortuna.ical4j.model.property.Duration;
+import net.fortuna.ical4j.model.property.ExDate;
+import net.fortuna.ical4j.model.property.Repeat;
+import net.fortuna.ical4j.model.property.Trigger;
+
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.List;
+import java.util.TimeZone;
+
+/** Evaluate a FilterBase tree in memory against ical4j components.
+ *
+ * <p>The tree is compiled once into a tree of matchers, each of which
+ * has resolved property names, time ranges and text values so that
+ * evaluating many components does no further work on the filter.
+ *
+ * <p>This allows post-filtering of results retrieved from a backend and
+ * allows backends without a query engine to carry out a calendar-query
+ * entirely in process.
+ */
+public class FilterEvaluator {
+  /** A compiled filter.
+   */
+  public interface ComponentMatcher {
+    /**
+     * @param comp  a calendar component - e.g. VEVENT
+     * @return true if the component matches.
+     */
+    boolean matches(Component comp);
+  }
+
+  private static final long oneDay = 24 * 60 * 60 * 1000L;
+
+  /* Used for open ended ranges when expanding recurrences */
+  private static final long farFuture = 4102444800000L; // 2100-01-01
+
+  private static final ComponentMatcher matchAll = new Constant(true);
+
+  private static final ComponentMatcher matchNone = new Constant(false);
+
+  /** Compile the filter. A null filter matches everything.
+   *
+   * @param f the filter
+   * @return a matcher which can be applied to any number of components
+   * @throws WebdavException for an unsupported filter
+   */
+  public static ComponentMatcher compile(final FilterBase f) throws WebdavException {
+    if (f == null) {
+      return matchAll;
+    }
+
+    ComponentMatcher m = compileTerm(f);
+
+    if (!f.getNot() || (m instanceof TextMatch)) {
+      // Text matches handle their own negation
+      return m;
+    }
+
+    if (m == matchAll) {
+      return matchNone;
+    }
+
+    if (m == matchNone) {
+      return matchAll;
+    }
+
+    return new Not(m);
+  }
+
+  /** Convenience method - compile and evaluate. Callers evaluating more
+   * than one component should compile once and reuse the result.
+   *
+   * @param f the filter
+   * @param comp the component
+   * @return true if the component matches
+   * @throws WebdavException for an unsupported filter
+   */
+  public static boolean matches(final FilterBase f,
+                                final Component comp) throws WebdavException {
+    return compile(f).matches(comp);
+  }
+
+  /** Evaluate a compiled filter against the components of one calendar
+   * object. The object matches if any of its components does. Where a
+   * recurring component has overrides the overridden instances are
+   * excluded from its expansion and each override is tested on its own.
+   *
+   * @param m the compiled filter
+   * @param comps components of the object - VTIMEZONEs are skipped
+   * @return true if any component matches
+   */
+  public static boolean matches(final ComponentMatcher m,
+                                final ComponentList comps) {
+    List<Component> cs = new ArrayList<Component>();
+    List<Date> overridden = new ArrayList<Date>();
+
+    for (Object o: comps) {
+      Component comp = (Component)o;
+
+      if (Component.VTIMEZONE.equals(comp.getName())) {
+        continue;
+      }
+
+      cs.add(comp);
+
+      Date rid = date(comp.getProperties(), Property.RECURRENCE_ID);
+
+      if (rid != null) {
+        overridden.add(rid);
+      }
+    }
+
+    for (Component comp: cs) {
+      if (overridden.isEmpty() ||
+          (comp.getProperty(Property.RECURRENCE_ID) != null)) {
+        if (m.matches(comp)) {
+          return true;
+        }
+
+        continue;
+      }
+
+      if (m.matches(excluding(comp, overridden))) {
+        return true;
+      }
+    }
+
+    return false;
+  }
+
+  /* ====================================================================
+   *                   Compilation
+   * ==================================================================== */
+
+  private static ComponentMatcher compileTerm(final FilterBase f) throws WebdavException {
+    if (f instanceof BooleanFilter) {
+      if (((BooleanFilter)f).getValue()) {
+        return matchAll;
+      }
+
+      return matchNone;
+    }
+
+    if (f instanceof AndFilter) {
+      List<ComponentMatcher> ms = new ArrayList<ComponentMatcher>();
+
+      for (FilterBase ch: children(f)) {
+        ComponentMatcher m = compile(ch);
+
+        if (m == matchNone) {
+          return matchNone;
+        }
+
+        if (m != matchAll) {
+          ms.add(m);
+        }
+      }
+
+      if (ms.isEmpty()) {
+        return matchAll;
+      }
+
+      if (ms.size() == 1) {
+        return ms.get(0);
+      }
+
+      return new And(ms);
+    }
+
+    if (f instanceof OrFilter) {
+      List<ComponentMatcher> ms = new ArrayList<ComponentMatcher>();
+
+      for (FilterBase ch: children(f)) {
+        ComponentMatcher m = compile(ch);
+
+        if (m == matchAll) {
+          return matchAll;
+        }
+
+        if (m != matchNone) {
+          ms.add(m);
+        }
+      }
+
+      if (ms.isEmpty()) {
+        return matchNone;
+      }
+
+      if (ms.size() == 1) {
+        return ms.get(0);
+      }
+
+      return new Or(ms);
+    }
+
+    if (f instanceof NotFilter) {
+      List<FilterBase> c = children(f);
+
+      if (c.size() != 1) {
+        throw new WebdavException("Not filter requires a single child: " + f);
+      }
+
+      ComponentMatcher m = compile(c.get(0));
+
+      if (m == matchAll) {
+        return matchNone;
+      }
+
+      if (m == matchNone) {
+        return matchAll;
+      }
+
+      return new Not(m);
+    }
+
+    if (f instanceof EntityTypeFilter) {
+      Integer type = ((EntityTypeFilter)f).getEntity();
+
+      if ((type == null) ||
+          (type < 0) || (type >= IcalDefs.entityTypeIcalNames.length)) {
+        throw new WebdavException("Bad entity type in filter: " + f);
+      }
+
+      return new EntityType(IcalDefs.entityTypeIcalNames[type]);
+    }
+
+    if (f instanceof EntityTimeRangeFilter) {
+      TimeRange tr = ((EntityTimeRangeFilter)f).getEntity();
+
+      if (tr == null) {
+        return matchAll;
+      }
+
+      return new EntityTimeRange(tr);
+    }
+
+    if (f instanceof PresenceFilter) {
+      PresenceFilter pf = (PresenceFilter)f;
+
+      return new Presence(parentName(pf), icalName(pf.getPropertyIndex()),
+                          pf.getTestPresent());
+    }
+
+    if (f instanceof ObjectFilter) {
+      ObjectFilter of = (ObjectFilter)f;
+      Object entity = of.getEntity();
+
+      if (entity instanceof TimeRange) {
+        String name = icalName(of.getPropertyIndex());
+
+        if ((of.getParentPropertyIndex() == null) &&
+            Component.VALARM.equals(name)) {
+          // Time-range on a sub-component
+          return new AlarmTimeRange((TimeRange)entity);
+        }
+
+        return new PropertyTimeRange(parentName(of), name,
+                                     (TimeRange)entity);
+      }
+
+      if (entity == null) {
+        throw new WebdavException("No value for filter: " + f);
+      }
+
+      String collation;
+
+      if (of.getCaseless()) {
+        collation = TextMatcher.collationAsciiCasemap;
+      } else {
+        collation = TextMatcher.collationOctet;
+      }
+
+      return new TextMatch(parentName(of),
+                           icalName(of.getPropertyIndex()),
+                           new TextMatcher(String.valueOf(entity),
+                                           collation,
+                                           of.getExact(),
+                                           of.getNot()));
+    }
+
+    throw new WebdavException("Unsupported filter: " + f);
+  }
+
+  /* A copy of the master with the overridden instances as EXDATEs */
+  private static Component excluding(final Component master,
+                                     final List<Date> overridden) {
+    PropertyList pl = master.getProperties();
+
+    if ((pl.getProperty(Property.RRULE) == null) &&
+        (pl.getProperty(Property.RDATE) == null)) {
+      return master;
+    }
+
+    try {
+      Component copy = master.copy();
+
+      for (Date rid: overridden) {
+        DateList dl;
+
+        if (rid instanceof DateTime) {
+          DateTime dt = (DateTime)rid;
+
+          dl = new DateList(Value.DATE_TIME, dt.getTimeZone());
+          dl.setUtc(dt.isUtc());
+
+          // DateList.add would change the zone of the original
+          dl.add(new DateTime(dt));
+        } else {
+          dl = new DateList(Value.DATE);
+          dl.add(new net.fortuna.ical4j.model.Date(rid));
+        }
+
+        copy.getProperties().add(new ExDate(dl));
+      }
+
+      return copy;
+    } catch (Throwable t) {
+      // Unable to copy - the master alone may over-match, never under
+      return master;
+    }
+  }
+
+  private static List<FilterBase> children(final FilterBase f) {
+    List<FilterBase> c = f.getChildren();
+
+    if (c == null) {
+      return new ArrayList<FilterBase>();
+    }
+
+    return c;
+  }
+
+  private static String parentName(final PropertyFilter pf) throws WebdavException {
+    if (pf.getParentPropertyIndex() == null) {
+      return null;
+    }
+
+    return icalName(pf.getParentPropertyIndex());
+  }
+
+  private static String icalName(final PropertyInfoIndex pi) throws WebdavException {
+    if ((pi == null) || (pi == PropertyInfoIndex.ENTITY_TYPE)) {
+      throw new WebdavException("No property for filter");
+    }
+
+    return pi.name().replace('_', '-');
+  }
+
+  /* ====================================================================
+   *                   Matchers
+   * ==================================================================== */
+
+  private static class Constant implements ComponentMatcher {
+    private final boolean val;
+
+    Constant(final boolean val) {
+      this.val = val;
+    }
+
+    @Override
+    public boolean matches(final Component comp) {
+      return val;
+    }
+  }
+
+  private static class And implements ComponentMatcher {
+    private final ComponentMatcher[] terms;
+
+    And(final List<ComponentMatcher> terms) {
+      this.terms = terms.toArray(new ComponentMatcher[terms.size()]);
+    }
+
+    @Override
+    public boolean matches(final Component comp) {
+      for (ComponentMatcher m: terms) {
+        if (!m.matches(comp)) {
+          return false;
+        }
+      }
+
+      return true;
+    }
+  }
+
+  private static class Or implements ComponentMatcher {
+    private final ComponentMatcher[] terms;
+
+    Or(final List<ComponentMatcher> terms) {
+      this.terms = terms.toArray(new ComponentMatcher[terms.size()]);
+    }
+
+    @Override
+    public boolean matches(final Component comp) {
+      for (ComponentMatcher m: terms) {
+        if (m.matches(comp)) {
+          return true;
+        }
+      }
+
+      return false;
+    }
+  }
+
+  private static class Not implements ComponentMatcher {
+    private final ComponentMatcher term;
+
+    Not(final ComponentMatcher term) {
+      this.term = term;
+    }
+
+    @Override
+    public boolean matches(final Component comp) {
+      return !term.matches(comp);
+    }
+  }
+
+  private static class EntityType implements ComponentMatcher {
+    private final String name;
+
+    EntityType(final String name) {
+      this.name = name;
+    }
+
+    @Override
+    public boolean matches(final Component comp) {
+      return name.equalsIgnoreCase(comp.getName());
+    }
+  }
+
+  /** Tests for a property or, with a parent, a parameter of that
+   * property. Component names, e.g. VALARM, test for the presence of
+   * sub-components.
+   */
+  private static class Presence implements ComponentMatcher {
+    private final String parent;
+    private final String name;
+    private final boolean testPresent;
+
+    Presence(final String parent, final String name,
+             final boolean testPresent) {
+      this.parent = parent;
+      this.name = name;
+      this.testPresent = testPresent;
+    }
+
+    @Override
+    public boolean matches(final Component comp) {
+      return present(comp) == testPresent;
+    }
+
+    private boolean present(final Component comp) {
+      if (parent != null) {
+        for (Object o: comp.getProperties(parent)) {
+          if (((Property)o).getParameter(name) != null) {
+            return true;
+          }
+        }
+
+        return false;
+      }
+
+      if (comp.getProperty(name) != null) {
+        return true;
+      }
+
+      ComponentList subs = subComponents(comp);
+
+      return (subs != null) && (subs.getComponent(name) != null);
+    }
+  }
+
+  private static class PropertyTimeRange implements ComponentMatcher {
+    private final String parent;
+    private final String name;
+    private final Window w;
+
+    PropertyTimeRange(final String parent, final String name,
+                      final TimeRange tr) {
+      this.parent = parent;
+      this.name = name;
+      w = new Window(tr);
+    }
+
+    @Override
+    public boolean matches(final Component comp) {
+      if (parent != null) {
+        // Parameters have no time values
+        return false;
+      }
+
+      for (Object o: comp.getProperties(name)) {
+        if (!(o instanceof DateProperty)) {
+          continue;
+        }
+
+        Date d = ((DateProperty)o).getDate();
+
+        if ((d != null) && w.includes(d)) {
+          return true;
+        }
+      }
+
+      return false;
+    }
+  }
+
+  private static class TextMatch implements ComponentMatcher {
+    private final String parent;
+    private final String name;
+    private final TextMatcher tm;
+
+    TextMatch(final String parent, final String name,
+              final TextMatcher tm) {
+      this.parent = parent;
+      this.name = name;
+      this.tm = tm;
+    }
+
+    @Override
+    public boolean matches(final Component comp) {
+      if (parent == null) {
+        for (Object o: comp.getProperties(name)) {
+          if (tm.matches(((Property)o).getValue())) {
+            return true;
+          }
+        }
+
+        return false;
+      }
+
+      for (Object o: comp.getProperties(parent)) {
+        Parameter par = ((Property)o).getParameter(name);
+
+        if ((par != null) && tm.matches(par.getValue())) {
+          return true;
+        }
+      }
+
+      return false;
+    }
+  }
+
+  /** Implements the component time-range rules of RFC 4791 section 9.9.
+   * Recurring components are expanded over the range.
+   */
+  private static class EntityTimeRange implements ComponentMatcher {
+    private final Window w;
+
+    EntityTimeRange(final TimeRange tr) {
+      w = new Window(tr);
+    }
+
+    @Override
+    public boolean matches(final Component comp) {
+      PropertyList pl = comp.getProperties();
+
+      if ((pl.getProperty(Property.RRULE) != null) ||
+          (pl.getProperty(Property.RDATE) != null)) {
+        return recurs(comp);
+      }
+
+      String cname = comp.getName();
+      Date start = date(pl, Property.DTSTART);
+
+      if (Component.VEVENT.equals(cname)) {
+        if (start == null) {
+          return false;
+        }
+
+        return w.overlaps(start, end(pl, start));
+      }
+
+      if (Component.VTODO.equals(cname)) {
+        return todoMatches(pl, start);
+      }
+
+      if (Component.VJOURNAL.equals(cname)) {
+        if (start == null) {
+          return false;
+        }
+
+        if (start instanceof DateTime) {
+          return w.includes(start);
+        }
+
+        return w.overlaps(start, new Date(start.getTime() + oneDay));
+      }
+
+      if (Component.VFREEBUSY.equals(cname)) {
+        Date end = date(pl, Property.DTEND);
+
+        if ((start == null) || (end == null)) {
+          return false;
+        }
+
+        return w.overlaps(start, end);
+      }
+
+      if (Component.VALARM.equals(cname)) {
+        /* Alarm triggers are relative to the parent, which we don't have.
+         * Leave it to the backend.
+         */
+        return true;
+      }
+
+      return false;
+    }
+
+    private boolean todoMatches(final PropertyList pl,
+                                final Date start) {
+      Date due = date(pl, Property.DUE);
+
+      if (start != null) {
+        if (pl.getProperty(Property.DURATION) != null) {
+          return w.overlaps(start, end(pl, start));
+        }
+
+        if (due != null) {
+          return w.overlaps(start, due);
+        }
+
+        return w.includes(start);
+      }
+
+      if (due != null) {
+        long d = w.instant(due);
+        boolean loose = w.loose(due);
+
+        return (d > w.lo(loose)) && (d <= w.hi(loose));
+      }
+
+      Date completed = date(pl, Property.COMPLETED);
+      Date created = date(pl, Property.CREATED);
+
+      if ((completed == null) && (created == null)) {
+        return true;
+      }
+
+      if (completed == null) {
+        completed = created;
+      } else if (created == null) {
+        created = completed;
+      }
+
+      // Both are UTC
+      long cr = created.getTime();
+      long co = completed.getTime();
+
+      return (w.lo(false) <= Math.max(cr, co)) &&
+             (w.hi(false) >= Math.min(cr, co));
+    }
+
+    private boolean recurs(final Component comp) {
+      try {
+        for (Object o: comp.calculateRecurrenceSet(w.expansion(0, 0))) {
+          Period p = (Period)o;
+
+          if (w.overlaps(p.getStart(), p.getEnd())) {
+            return true;
+          }
+        }
+      } catch (Throwable t) {
+        // Unable to expand - let it through rather than lose it
+        return true;
+      }
+
+      return false;
+    }
+  }
+
+  /** Implements the VALARM time-range rule of RFC 4791 section 9.9. The
+   * component matches if any trigger of one of its alarms, including
+   * repeats, falls within the range. Triggers relative to a recurring
+   * component are taken for each instance.
+   */
+  private static class AlarmTimeRange implements ComponentMatcher {
+    private final Window w;
+
+    AlarmTimeRange(final TimeRange tr) {
+      w = new Window(tr);
+    }
+
+    @Override
+    public boolean matches(final Component comp) {
+      ComponentList alarms = subComponents(comp);
+
+      if (alarms == null) {
+        return false;
+      }
+
+      for (Object o: alarms) {
+        if (alarmMatches(comp, (Component)o)) {
+          return true;
+        }
+      }
+
+      return false;
+    }
+
+    private boolean alarmMatches(final Component comp,
+                                 final Component alarm) {
+      Trigger trig = (Trigger)alarm.getProperty(Property.TRIGGER);
+
+      if (trig == null) {
+        return false;
+      }
+
+      int repeat = 0;
+      long interval = 0;
+
+      Repeat rpt = (Repeat)alarm.getProperty(Property.REPEAT);
+      Duration rdur = (Duration)alarm.getProperty(Property.DURATION);
+
+      if ((rpt != null) && (rdur != null) && (rdur.getDuration() != null)) {
+        repeat = rpt.getCount();
+        interval = millis(rdur.getDuration(), new Date(0));
+      }
+
+      if (trig.getDateTime() != null) {
+        // Always UTC
+        return fires(trig.getDateTime().getTime(), false, repeat, interval);
+      }
+
+      Dur d = trig.getDuration();
+
+      if (d == null) {
+        return false;
+      }
+
+      boolean fromEnd = Related.END.equals(trig.getParameter(Parameter.RELATED));
+      PropertyList pl = comp.getProperties();
+      Date start = date(pl, Property.DTSTART);
+
+      if (start == null) {
+        // A task may have only a due date
+        Date due = date(pl, Property.DUE);
+
+        if (!fromEnd || (due == null)) {
+          return false;
+        }
+
+        return fires(w.instant(due) + millis(d, due), w.loose(due),
+                     repeat, interval);
+      }
+
+      Date end;
+
+      if (Component.VTODO.equals(comp.getName()) &&
+          (pl.getProperty(Property.DUE) != null)) {
+        end = date(pl, Property.DUE);
+      } else {
+        end = end(pl, start);
+      }
+
+      if ((pl.getProperty(Property.RRULE) == null) &&
+          (pl.getProperty(Property.RDATE) == null)) {
+        return instanceFires(d, fromEnd, start, end, repeat, interval);
+      }
+
+      /* Expand over the range moved back by the offset to the trigger and
+       * widened by the instance length and any repeats. Each instance is
+       * then tested exactly.
+       */
+      long offset = millis(d, start);
+      long length = end.getTime() - start.getTime();
+
+      try {
+        Period range = w.expansion(offset + length + (repeat * interval),
+                                   length - offset);
+
+        for (Object o: comp.calculateRecurrenceSet(range)) {
+          Period p = (Period)o;
+
+          if (instanceFires(d, fromEnd, p.getStart(), p.getEnd(),
+                            repeat, interval)) {
+            return true;
+          }
+        }
+      } catch (Throwable t) {
+        // Unable to expand - let it through rather than lose it
+        return true;
+      }
+
+      return false;
+    }
+
+    private boolean instanceFires(final Dur d,
+                                  final boolean fromEnd,
+                                  final Date start,
+                                  final Date end,
+                                  final int repeat,
+                                  final long interval) {
+      Date base;
+      long baseInstant;
+
+      if (fromEnd) {
+        base = end;
+        baseInstant = w.instant(end, start);
+      } else {
+        base = start;
+        baseInstant = w.instant(start);
+      }
+
+      return fires(baseInstant + millis(d, base), w.loose(start),
+                   repeat, interval);
+    }
+
+    /* True if the trigger or any of its repeats is in the range */
+    private boolean fires(final long trigger,
+                          final boolean loose,
+                          final int repeat,
+                          final long interval) {
+      for (int i = 0; i <= repeat; i++) {
+        if (w.includes(trigger + (i * interval), loose)) {
+          return true;
+        }
+      }
+
+      return false;
+    }
+
+    private static long millis(final Dur d,
+                               final Date from) {
+      return d.getTime(from).getTime() - from.getTime();
+    }
+  }
+
+  /** A time-range as applied to the times in a component.
+   *
+   * <p>Floating date-times and dates have no fixed instant. If the range
+   * carries a timezone they are taken in that zone. Otherwise they are
+   * tested against the range widened by a day at each end, the same
+   * allowance the backends make, so that no possible match is lost.
+   */
+  private static class Window {
+    private final TimeRange tr;
+    private final TimeZone tz;
+
+    Window(final TimeRange tr) {
+      this.tr = tr;
+
+      TimeZone z = null;
+
+      if (tr.getTzid() != null) {
+        z = TimeZone.getTimeZone(tr.getTzid());
+
+        if (!z.getID().equals(tr.getTzid())) {
+          // Unknown - getTimeZone gave us GMT
+          z = null;
+        }
+      }
+
+      tz = z;
+    }
+
+    /* True if the value has no fixed instant and we have no zone */
+    boolean loose(final Date d) {
+      return (tz == null) && floating(d);
+    }
+
+    /* Millis for a value from a component */
+    long instant(final Date d) {
+      if ((tz == null) || !floating(d)) {
+        return d.getTime();
+      }
+
+      /* The string form is the local time */
+      String s = d.toString();
+      Calendar cal = Calendar.getInstance(tz);
+
+      cal.clear();
+      cal.set(num(s, 0, 4), num(s, 4, 2) - 1, num(s, 6, 2));
+
+      if (s.length() >= 15) {
+        cal.set(Calendar.HOUR_OF_DAY, num(s, 9, 2));
+        cal.set(Calendar.MINUTE, num(s, 11, 2));
+        cal.set(Calendar.SECOND, num(s, 13, 2));
+      }
+
+      return cal.getTimeInMillis();
+    }
+
+    /* As instant but a value computed from start, e.g. by adding a
+     * duration, is moved with it.
+     */
+    long instant(final Date d,
+                 final Date start) {
+      if (d instanceof net.fortuna.ical4j.model.Date) {
+        return instant(d);
+      }
+
+      return d.getTime() + instant(start) - start.getTime();
+    }
+
+    long lo(final boolean loose) {
+      DateTime dt;
+
+      if (loose) {
+        dt = tr.getStartExpanded();
+      } else {
+        dt = tr.getStart();
+      }
+
+      if (dt == null) {
+        return Long.MIN_VALUE;
+      }
+
+      return dt.getTime();
+    }
+
+    long hi(final boolean loose) {
+      DateTime dt;
+
+      if (loose) {
+        dt = tr.getEndExpanded();
+      } else {
+        dt = tr.getEnd();
+      }
+
+      if (dt == null) {
+        return Long.MAX_VALUE;
+      }
+
+      return dt.getTime();
+    }
+
+    boolean includes(final Date d) {
+      return includes(instant(d), loose(d));
+    }
+
+    boolean includes(final long t,
+                     final boolean loose) {
+      return (t >= lo(loose)) && (t < hi(loose));
+    }
+
+    /* As TimeRange.overlaps */
+    boolean overlaps(final Date start,
+                     final Date end) {
+      long s = instant(start);
+      long e = instant(end, start);
+      boolean loose = loose(start);
+
+      if (e <= s) {
+        return includes(s, loose);
+      }
+
+      return (s < hi(loose)) && (e > lo(loose));
+    }
+
+    /* A period for expanding recurrences. It is always the widened range
+     * as instances are tested exactly afterwards.
+     */
+    Period expansion(final long before,
+                     final long after) {
+      long s = 0;
+      long e = farFuture;
+
+      if (tr.getStartExpanded() != null) {
+        s = tr.getStartExpanded().getTime() - before;
+      }
+
+      if (tr.getEndExpanded() != null) {
+        e = tr.getEndExpanded().getTime() + after;
+      }
+
+      DateTime ps = new DateTime(s);
+      ps.setUtc(true);
+      DateTime pe = new DateTime(e);
+      pe.setUtc(true);
+
+      return new Period(ps, pe);
+    }
+
+    private static boolean floating(final Date d) {
+      if (d instanceof DateTime) {
+        DateTime dt = (DateTime)d;
+
+        return !dt.isUtc() && (dt.getTimeZone() == null);
+      }
+
+      // Dates are floating
+      return d instanceof net.fortuna.ical4j.model.Date;
+    }
+
+    private static int num(final String s,
+                           final int from,
+                           final int len) {
+      return Integer.parseInt(s.substring(from, from + len));
+    }
+  }
+
+  private static Date end(final PropertyList pl,
+                          final Date start) {
+    Date end = date(pl, Property.DTEND);
+
+    if (end != null) {
+      return end;
+    }
+
+    Duration dur = (Duration)pl.getProperty(Property.DURATION);
+
+    if (dur != null) {
+      Dur d = dur.getDuration();
+
+      if (d != null) {
+        return d.getTime(start);
+      }
+    }
+
+    if (!(start instanceof DateTime)) {
+      return new Date(start.getTime() + oneDay);
+    }
+
+    return start;
+  }
+
+  private static Date date(final PropertyList pl,
+                           final String name) {
+    Property p = pl.getProperty(name);
+
+    if (!(p instanceof DateProperty)) {
+      return null;
+    }
+
+    return ((DateProperty)p).getDate();
+  }
+
+  private static ComponentList subComponents(final Component comp) {
+    if (comp instanceof VEvent) {
+      return ((VEvent)comp).getAlarms();
+    }
+
+    if (comp instanceof VToDo) {
+      return ((VToDo)comp).getAlarms();
+    }
+
+    return null;
+  }
+}
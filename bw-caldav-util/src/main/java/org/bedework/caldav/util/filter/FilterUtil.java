@@ -18,6 +18,7 @@
 */
 package org.bedework.caldav.util.filter;
 
+import org.bedework.caldav.util.filter.parse.Filters;
 import org.bedework.webdav.servlet.shared.WebdavException;
 
 import ietf.params.xml.ns.caldav.PropFilterType;
@@ -47,6 +48,27 @@ public class FilterUtil {
    */
   public static boolean filter(final PropFilterType pf,
                                final Component c) throws WebdavException {
+    TextMatcher tm = null;
+
+    if (pf.getTextMatch() != null) {
+      tm = TextMatcher.compile(pf.getTextMatch());
+    }
+
+    return filter(pf, tm, c);
+  }
+
+  /** As above but with the text-match, if any, already compiled. Callers
+   * filtering many components should compile once per query.
+   *
+   * @param pf
+   * @param tm compiled text-match of the prop filter - null for none
+   * @param c
+   * @return boolean true if the given component matches the property filter
+   * @throws WebdavException
+   */
+  public static boolean filter(final PropFilterType pf,
+                               final TextMatcher tm,
+                               final Component c) throws WebdavException {
     try {
       PropertyList pl = c.getProperties();
 
@@ -60,9 +82,8 @@ public class FilterUtil {
         return pf.getIsNotDefined() != null;
       }
 
-      TextMatchType match = pf.getTextMatch();
-      if (match != null) {
-        return matches(match, prop.getValue());
+      if (tm != null) {
+        return tm.matches(prop.getValue());
       }
 
       UTCTimeRangeType tr = pf.getTimeRange();
@@ -77,32 +98,16 @@ public class FilterUtil {
     }
   }
 
-  /**
+  /** Compiles the text-match on each call. Use {@link TextMatcher} when
+   * testing more than one candidate.
+   *
    * @param tm
    * @param candidate
    * @return boolean true if matches
    */
   public static boolean matches(final TextMatchType tm,
                                 final String candidate) {
-    if (candidate == null) {
-      return false;
-    }
-
-    boolean isThere;
-
-    boolean upperMatch = tm.getCollation().equals("i;ascii-casemap");
-
-    if (!upperMatch) {
-      isThere = candidate.contains(tm.getValue());
-    } else {
-      isThere = candidate.toUpperCase().contains(tm.getValue());
-    }
-
-    if (tm.getNegateCondition().equals("yes")) {
-      return !isThere;
-    }
-
-    return isThere;
+    return TextMatcher.compile(tm).matches(candidate);
   }
 
   /** Test if the given property falls in the timerange
@@ -112,12 +117,11 @@ public class FilterUtil {
    * @return boolean true if in range
    */
   public static boolean matches(final UTCTimeRangeType tr,
-                                final Property candidate) {
+                                final Property candidate) throws WebdavException {
     if (!(candidate instanceof DateProperty)) {
       return false;
     }
 
-    // XXX later
-    return true;
+    return Filters.makeTimeRange(tr).matches(candidate);
   }
 }
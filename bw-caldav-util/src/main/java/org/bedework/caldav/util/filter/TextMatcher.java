@@ -0,0 +1,211 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.caldav.util.filter;
+
+import ietf.params.xml.ns.caldav.TextMatchType;
+
+/** A compiled CalDAV text-match. The collation and negation are resolved
+ * and the value case-folded once so that each candidate is tested
+ * without allocating.
+ *
+ * <p>Longer values are searched for with Boyer-Moore-Horspool using a
+ * shift table built at compile time.
+ */
+public class TextMatcher {
+  /** */
+  public static final String collationOctet = "i;octet";
+
+  /** */
+  public static final String collationAsciiCasemap = "i;ascii-casemap";
+
+  /** */
+  public static final String collationUnicodeCasemap = "i;unicode-casemap";
+
+  /* Below this length a simple scan beats building the skip table */
+  private static final int minHorspoolLength = 4;
+
+  private static final int foldNone = 0;
+  private static final int foldAscii = 1;
+  private static final int foldUnicode = 2;
+
+  private final char[] needle;
+  private final int fold;
+  private final boolean exact;
+  private final boolean negate;
+
+  /* Horspool shifts indexed by the low byte of the folded character */
+  private final int[] shifts;
+
+  /**
+   * @param val        the value to search for
+   * @param collation  as defined by RFC 4791 - null for the default
+   *                   i;ascii-casemap
+   * @param exact      true for an equality rather than substring test
+   * @param negate     true to negate the result
+   */
+  public TextMatcher(final String val,
+                     final String collation,
+                     final boolean exact,
+                     final boolean negate) {
+    if ((collation == null) ||
+        collationAsciiCasemap.equals(collation)) {
+      fold = foldAscii;
+    } else if (collationUnicodeCasemap.equals(collation)) {
+      fold = foldUnicode;
+    } else {
+      fold = foldNone;
+    }
+
+    this.exact = exact;
+    this.negate = negate;
+
+    needle = new char[val.length()];
+
+    for (int i = 0; i < needle.length; i++) {
+      needle[i] = fold(val.charAt(i));
+    }
+
+    if (exact || (needle.length < minHorspoolLength)) {
+      shifts = null;
+      return;
+    }
+
+    shifts = new int[256];
+    int m = needle.length;
+
+    for (int i = 0; i < shifts.length; i++) {
+      shifts[i] = m;
+    }
+
+    /* Characters sharing a low byte end up with the smallest shift which
+     * is always safe.
+     */
+    for (int i = 0; i < m - 1; i++) {
+      shifts[needle[i] & 0xff] = m - 1 - i;
+    }
+  }
+
+  /** Compile a CalDAV text-match element.
+   *
+   * @param tm the element
+   * @return compiled matcher
+   */
+  public static TextMatcher compile(final TextMatchType tm) {
+    return new TextMatcher(tm.getValue(),
+                           tm.getCollation(),
+                           false,
+                           "yes".equals(tm.getNegateCondition()));
+  }
+
+  /**
+   * @param candidate possibly null value
+   * @return true if the candidate matches - a null candidate never
+   *              matches
+   */
+  public boolean matches(final String candidate) {
+    if (candidate == null) {
+      return false;
+    }
+
+    boolean isThere;
+
+    if (exact) {
+      isThere = equal(candidate);
+    } else if (shifts != null) {
+      isThere = horspool(candidate);
+    } else {
+      isThere = scan(candidate);
+    }
+
+    return isThere != negate;
+  }
+
+  private boolean equal(final String candidate) {
+    if (candidate.length() != needle.length) {
+      return false;
+    }
+
+    for (int i = 0; i < needle.length; i++) {
+      if (fold(candidate.charAt(i)) != needle[i]) {
+        return false;
+      }
+    }
+
+    return true;
+  }
+
+  private boolean scan(final String candidate) {
+    int m = needle.length;
+    int last = candidate.length() - m;
+
+    outer:
+    for (int i = 0; i <= last; i++) {
+      for (int j = 0; j < m; j++) {
+        if (fold(candidate.charAt(i + j)) != needle[j]) {
+          continue outer;
+        }
+      }
+
+      return true;
+    }
+
+    return false;
+  }
+
+  private boolean horspool(final String candidate) {
+    int m = needle.length;
+    int last = candidate.length() - m;
+    int i = 0;
+
+    while (i <= last) {
+      int j = m - 1;
+      char c = fold(candidate.charAt(i + j));
+      char tail = c;
+
+      while (c == needle[j]) {
+        if (j == 0) {
+          return true;
+        }
+
+        j--;
+        c = fold(candidate.charAt(i + j));
+      }
+
+      i += shifts[tail & 0xff];
+    }
+
+    return false;
+  }
+
+  private char fold(final char c) {
+    switch (fold) {
+      case foldAscii:
+        if ((c >= 'a') && (c <= 'z')) {
+          return (char)(c - ('a' - 'A'));
+        }
+        return c;
+
+      case foldUnicode:
+        return Character.toUpperCase(Character.toLowerCase(c));
+
+      default:
+        return c;
+    }
+  }
+}
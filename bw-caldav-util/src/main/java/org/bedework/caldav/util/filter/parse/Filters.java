@@ -18,6 +18,7 @@
 */
 package org.bedework.caldav.util.filter.parse;
 
+import org.bedework.caldav.util.JaxbContexts;
 import org.bedework.caldav.util.TimeRange;
 import org.bedework.caldav.util.filter.EntityTimeRangeFilter;
 import org.bedework.caldav.util.filter.EntityTypeFilter;
@@ -50,7 +51,6 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
 
-import javax.xml.bind.JAXBContext;
 import javax.xml.bind.JAXBElement;
 import javax.xml.bind.Unmarshaller;
 import javax.xml.parsers.DocumentBuilder;
@@ -61,6 +61,8 @@ import javax.xml.parsers.DocumentBuilderFactory;
  *   @author Mike Douglass   douglm rpi.edu
  */
 public class Filters {
+  private static final String caldavContextPath = "ietf.params.xml.ns.caldav";
+
   /** Convenience method
    *
    * @param cf
@@ -113,9 +115,10 @@ public class Filters {
    * @throws WebdavException
    */
   public static FilterType parse(final Node nd) throws WebdavException {
+    Unmarshaller u = null;
+
     try {
-      JAXBContext jc = JAXBContext.newInstance("ietf.params.xml.ns.caldav");
-      Unmarshaller u = jc.createUnmarshaller();
+      u = JaxbContexts.getUnmarshaller(caldavContextPath);
 
       JAXBElement jel = (JAXBElement)u.unmarshal(nd);
       if (jel == null) {
@@ -125,6 +128,8 @@ public class Filters {
       return (FilterType)jel.getValue();
     } catch (Throwable t) {
       throw new WebdavException(t);
+    } finally {
+      JaxbContexts.release(caldavContextPath, u);
     }
   }
 
@@ -240,7 +245,13 @@ public class Filters {
     return filter;
   }
 
-  private static TimeRange makeTimeRange(final UTCTimeRangeType utr) throws WebdavException {
+  /** Convert and validate a CalDAV time-range element.
+   *
+   * @param utr the element
+   * @return TimeRange or null for null utr
+   * @throws WebdavException for an invalid time-range
+   */
+  public static TimeRange makeTimeRange(final UTCTimeRangeType utr) throws WebdavException {
     if (utr == null) {
       return null;
     }
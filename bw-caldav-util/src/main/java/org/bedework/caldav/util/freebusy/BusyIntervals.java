@@ -0,0 +1,512 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.caldav.util.freebusy;
+
+import java.io.IOException;
+
+/** A list of busy intervals held as parallel primitive arrays of start
+ * and end times, in millis UTC, each tagged with an FBTYPE.
+ *
+ * <p>Intervals may be added in any order. They are sorted by start when
+ * needed. Nothing here creates an object per interval so large lists are
+ * cheap to build and merge.
+ */
+public class BusyIntervals {
+  /** FBTYPE=FREE - never held */
+  public static final int fbtypeFree = 0;
+
+  /** FBTYPE=BUSY-TENTATIVE */
+  public static final int fbtypeBusyTentative = 1;
+
+  /** FBTYPE=BUSY-UNAVAILABLE */
+  public static final int fbtypeBusyUnavailable = 2;
+
+  /** FBTYPE=BUSY */
+  public static final int fbtypeBusy = 3;
+
+  /** Types are numbered so that where intervals overlap the higher one
+   * wins.
+   */
+  public static final int numFbtypes = 4;
+
+  private static final String[] fbtypeNames = {
+    "FREE",
+    "BUSY-TENTATIVE",
+    "BUSY-UNAVAILABLE",
+    "BUSY"
+  };
+
+  private static final long millisPerDay = 24L * 60 * 60 * 1000;
+
+  /* Below this size sort by insertion */
+  private static final int insertionSortSize = 16;
+
+  private long[] starts;
+  private long[] ends;
+  private byte[] types;
+  private int size;
+  private boolean sorted = true;
+
+  /**
+   */
+  public BusyIntervals() {
+    this(16);
+  }
+
+  /**
+   * @param capacity initial capacity
+   */
+  public BusyIntervals(final int capacity) {
+    final int cap = Math.max(capacity, 1);
+
+    starts = new long[cap];
+    ends = new long[cap];
+    types = new byte[cap];
+  }
+
+  /**
+   * @param name FBTYPE parameter value - null for the default BUSY
+   * @return type - unrecognized values are treated as BUSY as RFC 5545
+   *         requires
+   */
+  public static int fbtype(final String name) {
+    if (name == null) {
+      return fbtypeBusy;
+    }
+
+    for (int i = 0; i < fbtypeNames.length; i++) {
+      if (fbtypeNames[i].equalsIgnoreCase(name)) {
+        return i;
+      }
+    }
+
+    return fbtypeBusy;
+  }
+
+  /**
+   * @param fbtype a type
+   * @return FBTYPE parameter value
+   */
+  public static String fbtypeName(final int fbtype) {
+    return fbtypeNames[fbtype];
+  }
+
+  /** Add an interval. Empty intervals and free time are ignored.
+   *
+   * @param start millis UTC
+   * @param end millis UTC - exclusive
+   * @param fbtype type
+   */
+  public void add(final long start,
+                  final long end,
+                  final int fbtype) {
+    if ((end <= start) || (fbtype == fbtypeFree)) {
+      return;
+    }
+
+    if (size == starts.length) {
+      grow();
+    }
+
+    if ((size > 0) && (start < starts[size - 1])) {
+      sorted = false;
+    }
+
+    starts[size] = start;
+    ends[size] = end;
+    types[size] = (byte)fbtype;
+    size++;
+  }
+
+  /** Extend the last interval - used when merging.
+   *
+   * @param end new end of the last interval
+   */
+  void extendLast(final long end) {
+    ends[size - 1] = end;
+  }
+
+  /**
+   * @return number of intervals
+   */
+  public int size() {
+    return size;
+  }
+
+  /**
+   * @param i index
+   * @return start of interval i in millis UTC
+   */
+  public long getStart(final int i) {
+    return starts[i];
+  }
+
+  /**
+   * @param i index
+   * @return end of interval i in millis UTC
+   */
+  public long getEnd(final int i) {
+    return ends[i];
+  }
+
+  /**
+   * @param i index
+   * @return type of interval i
+   */
+  public int getFbtype(final int i) {
+    return types[i];
+  }
+
+  /** Remove all intervals
+   */
+  public void clear() {
+    size = 0;
+    sorted = true;
+  }
+
+  /** Put the intervals in order of start.
+   */
+  public void sort() {
+    if (sorted) {
+      return;
+    }
+
+    sort(0, size - 1);
+    sorted = true;
+  }
+
+  /** Add the periods from the value of a FREEBUSY property. Each period is
+   * an explicit UTC start and either a UTC end or a duration.
+   *
+   * @param fbtype FBTYPE parameter value - null for BUSY
+   * @param value comma separated list of periods
+   * @throws IllegalArgumentException for a malformed value
+   */
+  public void addFreeBusy(final String fbtype,
+                          final String value) {
+    final int type = fbtype(fbtype);
+    int pos = 0;
+
+    while (pos < value.length()) {
+      int comma = value.indexOf(',', pos);
+      if (comma < 0) {
+        comma = value.length();
+      }
+
+      final int slash = value.indexOf('/', pos);
+      if ((slash < 0) || (slash > comma)) {
+        throw new IllegalArgumentException("Bad period: " + value);
+      }
+
+      final long start = parseUtc(value, pos, slash);
+      final long end;
+
+      if (value.charAt(slash + 1) == 'P') {
+        end = start + parseDuration(value, slash + 1, comma);
+      } else {
+        end = parseUtc(value, slash + 1, comma);
+      }
+
+      add(start, end, type);
+      pos = comma + 1;
+    }
+  }
+
+  /** Write the intervals as FREEBUSY properties, one period to each so no
+   * line needs folding. The FBTYPE parameter is omitted for BUSY.
+   *
+   * @param out destination
+   * @throws IOException
+   */
+  public void writeFreeBusy(final Appendable out) throws IOException {
+    final StringBuilder sb = new StringBuilder(64);
+
+    for (int i = 0; i < size; i++) {
+      sb.setLength(0);
+      sb.append("FREEBUSY");
+
+      if (types[i] != fbtypeBusy) {
+        sb.append(";FBTYPE=");
+        sb.append(fbtypeNames[types[i]]);
+      }
+
+      sb.append(':');
+      appendUtc(sb, starts[i]);
+      sb.append('/');
+      appendUtc(sb, ends[i]);
+      sb.append("\r\n");
+
+      out.append(sb);
+    }
+  }
+
+  /** Append a time as an iCalendar UTC date-time e.g. 20140102T030405Z
+   *
+   * @param sb destination
+   * @param millis UTC
+   */
+  public static void appendUtc(final StringBuilder sb,
+                               final long millis) {
+    long days = Math.floorDiv(millis, millisPerDay);
+    long secs = Math.floorMod(millis, millisPerDay) / 1000;
+
+    /* Civil from days - H. Hinnant */
+    days += 719468;
+    final long era = Math.floorDiv(days, 146097);
+    final long doe = days - era * 146097;
+    final long yoe = (doe - doe / 1460 + doe / 36524 - doe / 146096) / 365;
+    final long doy = doe - (365 * yoe + yoe / 4 - yoe / 100);
+    final long mp = (5 * doy + 2) / 153;
+    final long d = doy - (153 * mp + 2) / 5 + 1;
+    final long m = (mp < 10) ? mp + 3 : mp - 9;
+    final long y = yoe + era * 400 + ((m <= 2) ? 1 : 0);
+
+    digits(sb, y, 4);
+    digits(sb, m, 2);
+    digits(sb, d, 2);
+    sb.append('T');
+    digits(sb, secs / 3600, 2);
+    digits(sb, (secs / 60) % 60, 2);
+    digits(sb, secs % 60, 2);
+    sb.append('Z');
+  }
+
+  /** Parse an iCalendar UTC date-time e.g. 20140102T030405Z
+   *
+   * @param val containing the value
+   * @param from start index
+   * @param to end index - exclusive
+   * @return millis UTC
+   * @throws IllegalArgumentException for a malformed value
+   */
+  public static long parseUtc(final String val,
+                              final int from,
+                              final int to) {
+    if ((to - from != 16) || (val.charAt(from + 8) != 'T') ||
+        (val.charAt(from + 15) != 'Z')) {
+      throw new IllegalArgumentException("Bad UTC date-time: " +
+                                                 val.substring(from, to));
+    }
+
+    final long y = number(val, from, 4);
+    final long m = number(val, from + 4, 2);
+    final long d = number(val, from + 6, 2);
+
+    /* Days from civil - H. Hinnant */
+    final long yy = (m <= 2) ? y - 1 : y;
+    final long era = Math.floorDiv(yy, 400);
+    final long yoe = yy - era * 400;
+    final long doy = (153 * ((m > 2) ? m - 3 : m + 9) + 2) / 5 + d - 1;
+    final long doe = yoe * 365 + yoe / 4 - yoe / 100 + doy;
+    final long days = era * 146097 + doe - 719468;
+
+    return days * millisPerDay +
+            ((number(val, from + 9, 2) * 60 +
+                      number(val, from + 11, 2)) * 60 +
+                     number(val, from + 13, 2)) * 1000;
+  }
+
+  /** Parse a positive iCalendar duration e.g. PT1H30M
+   *
+   * @param val containing the value
+   * @param from start index
+   * @param to end index - exclusive
+   * @return millis
+   * @throws IllegalArgumentException for a malformed value
+   */
+  public static long parseDuration(final String val,
+                                   final int from,
+                                   final int to) {
+    int pos = from;
+
+    if ((pos < to) && (val.charAt(pos) == '+')) {
+      pos++;
+    }
+
+    if ((pos >= to) || (val.charAt(pos) != 'P')) {
+      throw new IllegalArgumentException("Bad duration: " +
+                                                 val.substring(from, to));
+    }
+
+    pos++;
+
+    long secs = 0;
+    long n = -1;
+    boolean time = false;
+
+    for (; pos < to; pos++) {
+      final char c = val.charAt(pos);
+
+      if ((c >= '0') && (c <= '9')) {
+        n = ((n < 0) ? 0 : n * 10) + (c - '0');
+        continue;
+      }
+
+      if (c == 'T') {
+        time = true;
+        continue;
+      }
+
+      if (n < 0) {
+        throw new IllegalArgumentException("Bad duration: " +
+                                                   val.substring(from, to));
+      }
+
+      if (c == 'W') {
+        secs += n * 7 * 24 * 3600;
+      } else if ((c == 'D') && !time) {
+        secs += n * 24 * 3600;
+      } else if ((c == 'H') && time) {
+        secs += n * 3600;
+      } else if ((c == 'M') && time) {
+        secs += n * 60;
+      } else if ((c == 'S') && time) {
+        secs += n;
+      } else {
+        throw new IllegalArgumentException("Bad duration: " +
+                                                   val.substring(from, to));
+      }
+
+      n = -1;
+    }
+
+    return secs * 1000;
+  }
+
+  /* ====================================================================
+   *                   Private methods
+   * ==================================================================== */
+
+  private void grow() {
+    final int cap = starts.length * 2;
+
+    final long[] s = new long[cap];
+    final long[] e = new long[cap];
+    final byte[] t = new byte[cap];
+
+    System.arraycopy(starts, 0, s, 0, size);
+    System.arraycopy(ends, 0, e, 0, size);
+    System.arraycopy(types, 0, t, 0, size);
+
+    starts = s;
+    ends = e;
+    types = t;
+  }
+
+  /* Quicksort on start keeping the three arrays in step */
+  private void sort(int lo, int hi) {
+    while (hi - lo >= insertionSortSize) {
+      final int mid = (lo + hi) >>> 1;
+
+      if (starts[mid] < starts[lo]) {
+        swap(mid, lo);
+      }
+      if (starts[hi] < starts[lo]) {
+        swap(hi, lo);
+      }
+      if (starts[hi] < starts[mid]) {
+        swap(hi, mid);
+      }
+
+      final long pivot = starts[mid];
+      int i = lo;
+      int j = hi;
+
+      while (i <= j) {
+        while (starts[i] < pivot) {
+          i++;
+        }
+        while (starts[j] > pivot) {
+          j--;
+        }
+
+        if (i <= j) {
+          swap(i, j);
+          i++;
+          j--;
+        }
+      }
+
+      /* Recurse on the smaller part to bound the stack */
+      if (j - lo < hi - i) {
+        sort(lo, j);
+        lo = i;
+      } else {
+        sort(i, hi);
+        hi = j;
+      }
+    }
+
+    for (int i = lo + 1; i <= hi; i++) {
+      for (int j = i; (j > lo) && (starts[j] < starts[j - 1]); j--) {
+        swap(j, j - 1);
+      }
+    }
+  }
+
+  private void swap(final int i, final int j) {
+    final long s = starts[i];
+    starts[i] = starts[j];
+    starts[j] = s;
+
+    final long e = ends[i];
+    ends[i] = ends[j];
+    ends[j] = e;
+
+    final byte t = types[i];
+    types[i] = types[j];
+    types[j] = t;
+  }
+
+  private static void digits(final StringBuilder sb,
+                             final long val,
+                             final int width) {
+    long div = 1;
+
+    for (int i = 1; i < width; i++) {
+      div *= 10;
+    }
+
+    if (val >= div * 10) {
+      sb.append(val / (div * 10));
+    }
+
+    for (; div > 0; div /= 10) {
+      sb.append((char)('0' + (val / div) % 10));
+    }
+  }
+
+  private static long number(final String val,
+                             final int from,
+                             final int len) {
+    long res = 0;
+
+    for (int i = from; i < from + len; i++) {
+      final char c = val.charAt(i);
+
+      if ((c < '0') || (c > '9')) {
+        throw new IllegalArgumentException("Bad number in: " + val);
+      }
+
+      res = res * 10 + (c - '0');
+    }
+
+    return res;
+  }
+}
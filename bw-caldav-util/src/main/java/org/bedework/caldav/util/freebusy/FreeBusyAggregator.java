@@ -0,0 +1,224 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.caldav.util.freebusy;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/** Combines the busy time from a number of sources - calendars or
+ * principals - into a single list of non-overlapping periods.
+ *
+ * <p>Each source is sorted and the sources are then merged in a single
+ * pass with a heap ordered on the next start in each. Where intervals of
+ * different types overlap the more significant type, BUSY over
+ * BUSY-UNAVAILABLE over BUSY-TENTATIVE, is reported. Adjacent periods of
+ * the same type are joined.
+ *
+ * <p>Everything is clipped to the requested range.
+ */
+public class FreeBusyAggregator {
+  private final long rangeStart;
+  private final long rangeEnd;
+
+  private final List<BusyIntervals> sources = new ArrayList<BusyIntervals>();
+
+  /**
+   * @param rangeStart millis UTC
+   * @param rangeEnd millis UTC - exclusive
+   */
+  public FreeBusyAggregator(final long rangeStart,
+                            final long rangeEnd) {
+    this.rangeStart = rangeStart;
+    this.rangeEnd = rangeEnd;
+  }
+
+  /**
+   * @param source busy time from one source - it will be sorted
+   */
+  public void add(final BusyIntervals source) {
+    if ((source == null) || (source.size() == 0)) {
+      return;
+    }
+
+    source.sort();
+    sources.add(source);
+  }
+
+  /**
+   * @return merged busy time - sorted with no overlaps
+   */
+  public BusyIntervals aggregate() {
+    final int k = sources.size();
+    final BusyIntervals res = new BusyIntervals();
+
+    /* heap of source indexes ordered on the start at pos[source] */
+    final int[] heap = new int[k];
+    final int[] pos = new int[k];
+    int heapSize = 0;
+
+    for (int i = 0; i < k; i++) {
+      heap[heapSize] = i;
+      heapSize++;
+      siftUp(heap, heapSize - 1, pos);
+    }
+
+    /* End of the current run of each type - rangeStart when none */
+    final long[] openEnd = new long[BusyIntervals.numFbtypes];
+    for (int t = 0; t < openEnd.length; t++) {
+      openEnd[t] = rangeStart;
+    }
+
+    long cursor = rangeStart;
+
+    while (heapSize > 0) {
+      final int src = heap[0];
+      final BusyIntervals bi = sources.get(src);
+      final int i = pos[src];
+
+      pos[src]++;
+      if (pos[src] == bi.size()) {
+        heapSize--;
+        heap[0] = heap[heapSize];
+      }
+      siftDown(heap, heapSize, pos);
+
+      final long start = Math.max(bi.getStart(i), rangeStart);
+      final long end = Math.min(bi.getEnd(i), rangeEnd);
+
+      if (start >= rangeEnd) {
+        /* Starts come off the heap in order so nothing more is in range */
+        break;
+      }
+
+      if (end <= start) {
+        continue;
+      }
+
+      if (start > cursor) {
+        cursor = emit(res, openEnd, cursor, start);
+      }
+
+      final int type = bi.getFbtype(i);
+
+      if (end > openEnd[type]) {
+        openEnd[type] = end;
+      }
+    }
+
+    emit(res, openEnd, cursor, rangeEnd);
+
+    return res;
+  }
+
+  /* ====================================================================
+   *                   Private methods
+   * ==================================================================== */
+
+  /* Output the busy time between from and to given the end of the
+   * current run of each type. No new interval starts before to.
+   */
+  private long emit(final BusyIntervals res,
+                    final long[] openEnd,
+                    long from,
+                    final long to) {
+    while (from < to) {
+      int type = -1;
+
+      for (int t = openEnd.length - 1; t > BusyIntervals.fbtypeFree; t--) {
+        if (openEnd[t] > from) {
+          type = t;
+          break;
+        }
+      }
+
+      if (type < 0) {
+        // Free until the next start
+        return to;
+      }
+
+      final long end = Math.min(to, openEnd[type]);
+      final int last = res.size() - 1;
+
+      if ((last >= 0) && (res.getFbtype(last) == type) &&
+          (res.getEnd(last) == from)) {
+        res.extendLast(end);
+      } else {
+        res.add(from, end, type);
+      }
+
+      from = end;
+    }
+
+    return from;
+  }
+
+  private long key(final int src, final int[] pos) {
+    return sources.get(src).getStart(pos[src]);
+  }
+
+  private void siftUp(final int[] heap, int i, final int[] pos) {
+    final int src = heap[i];
+    final long k = key(src, pos);
+
+    while (i > 0) {
+      final int parent = (i - 1) >>> 1;
+
+      if (key(heap[parent], pos) <= k) {
+        break;
+      }
+
+      heap[i] = heap[parent];
+      i = parent;
+    }
+
+    heap[i] = src;
+  }
+
+  private void siftDown(final int[] heap, final int size, final int[] pos) {
+    if (size == 0) {
+      return;
+    }
+
+    final int src = heap[0];
+    final long k = key(src, pos);
+    int i = 0;
+
+    while (true) {
+      int child = 2 * i + 1;
+
+      if (child >= size) {
+        break;
+      }
+
+      if ((child + 1 < size) &&
+          (key(heap[child + 1], pos) < key(heap[child], pos))) {
+        child++;
+      }
+
+      if (k <= key(heap[child], pos)) {
+        break;
+      }
+
+      heap[i] = heap[child];
+      i = child;
+    }
+
+    heap[i] = src;
+  }
+}
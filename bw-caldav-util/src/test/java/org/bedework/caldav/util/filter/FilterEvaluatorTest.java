@@ -0,0 +1,358 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.caldav.util.filter;
+
+import org.bedework.caldav.util.TimeRange;
+import org.bedework.util.calendar.PropertyIndex.PropertyInfoIndex;
+
+import net.fortuna.ical4j.data.CalendarBuilder;
+import net.fortuna.ical4j.model.Calendar;
+import net.fortuna.ical4j.model.Component;
+import net.fortuna.ical4j.model.DateTime;
+
+import org.junit.Test;
+
+import java.io.StringReader;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/** Tests for in memory evaluation of filters.
+ */
+public class FilterEvaluatorTest {
+  private static final String meeting =
+          "BEGIN:VCALENDAR\r\n" +
+          "VERSION:2.0\r\n" +
+          "PRODID:-//bedework//test//EN\r\n" +
+          "BEGIN:VEVENT\r\n" +
+          "UID:meeting@example.com\r\n" +
+          "DTSTAMP:20140101T000000Z\r\n" +
+          "DTSTART:20140101T100000Z\r\n" +
+          "DTEND:20140101T110000Z\r\n" +
+          "SUMMARY:Weekly Team Meeting\r\n" +
+          "ATTENDEE;PARTSTAT=ACCEPTED:mailto:a@example.com\r\n" +
+          "BEGIN:VALARM\r\n" +
+          "ACTION:DISPLAY\r\n" +
+          "DESCRIPTION:Reminder\r\n" +
+          "TRIGGER:-PT15M\r\n" +
+          "END:VALARM\r\n" +
+          "END:VEVENT\r\n" +
+          "END:VCALENDAR\r\n";
+
+  private static final String daily =
+          "BEGIN:VCALENDAR\r\n" +
+          "VERSION:2.0\r\n" +
+          "PRODID:-//bedework//test//EN\r\n" +
+          "BEGIN:VEVENT\r\n" +
+          "UID:daily@example.com\r\n" +
+          "DTSTAMP:20140101T000000Z\r\n" +
+          "DTSTART:20140101T090000Z\r\n" +
+          "DURATION:PT30M\r\n" +
+          "RRULE:FREQ=DAILY;COUNT=5\r\n" +
+          "SUMMARY:Standup\r\n" +
+          "END:VEVENT\r\n" +
+          "END:VCALENDAR\r\n";
+
+  private static final String floating =
+          "BEGIN:VCALENDAR\r\n" +
+          "VERSION:2.0\r\n" +
+          "PRODID:-//bedework//test//EN\r\n" +
+          "BEGIN:VEVENT\r\n" +
+          "UID:floating@example.com\r\n" +
+          "DTSTAMP:20140101T000000Z\r\n" +
+          "DTSTART:20140101T100000\r\n" +
+          "DTEND:20140101T110000\r\n" +
+          "SUMMARY:Floating\r\n" +
+          "END:VEVENT\r\n" +
+          "END:VCALENDAR\r\n";
+
+  /* The third instance is moved to the afternoon */
+  private static final String overridden =
+          "BEGIN:VCALENDAR\r\n" +
+          "VERSION:2.0\r\n" +
+          "PRODID:-//bedework//test//EN\r\n" +
+          "BEGIN:VEVENT\r\n" +
+          "UID:daily@example.com\r\n" +
+          "DTSTAMP:20140101T000000Z\r\n" +
+          "DTSTART:20140101T090000Z\r\n" +
+          "DURATION:PT30M\r\n" +
+          "RRULE:FREQ=DAILY;COUNT=5\r\n" +
+          "SUMMARY:Standup\r\n" +
+          "END:VEVENT\r\n" +
+          "BEGIN:VEVENT\r\n" +
+          "UID:daily@example.com\r\n" +
+          "DTSTAMP:20140101T000000Z\r\n" +
+          "RECURRENCE-ID:20140103T090000Z\r\n" +
+          "DTSTART:20140103T150000Z\r\n" +
+          "DURATION:PT30M\r\n" +
+          "SUMMARY:Late standup\r\n" +
+          "END:VEVENT\r\n" +
+          "END:VCALENDAR\r\n";
+
+  @Test
+  public void testNullMatchesAll() throws Throwable {
+    assertTrue(FilterEvaluator.matches(null, event(meeting)));
+  }
+
+  @Test
+  public void testEntityType() throws Throwable {
+    final Component ev = event(meeting);
+
+    assertTrue(FilterEvaluator.matches(
+            EntityTypeFilter.makeIcalEntityTypeFilter(null, "VEVENT", false),
+            ev));
+    assertFalse(FilterEvaluator.matches(
+            EntityTypeFilter.makeIcalEntityTypeFilter(null, "VTODO", false),
+            ev));
+  }
+
+  @Test
+  public void testTextMatch() throws Throwable {
+    final Component ev = event(meeting);
+
+    assertTrue(FilterEvaluator.matches(text("SUMMARY", "team meeting",
+                                            true, false), ev));
+    assertFalse(FilterEvaluator.matches(text("SUMMARY", "team meeting",
+                                             false, false), ev));
+    assertFalse(FilterEvaluator.matches(text("SUMMARY", "lunch",
+                                             true, false), ev));
+    assertTrue(FilterEvaluator.matches(text("SUMMARY", "lunch",
+                                            true, true), ev));
+    assertFalse(FilterEvaluator.matches(text("LOCATION", "room",
+                                             true, false), ev));
+  }
+
+  @Test
+  public void testParameterTextMatch() throws Throwable {
+    final ObjectFilter<String> f =
+            new ObjectFilter<String>(null, pi("PARTSTAT"));
+    f.setParentPropertyIndex(pi("ATTENDEE"));
+    f.setEntity("accepted");
+    f.setExact(false);
+
+    assertTrue(FilterEvaluator.matches(f, event(meeting)));
+
+    f.setEntity("declined");
+
+    assertFalse(FilterEvaluator.matches(f, event(meeting)));
+  }
+
+  @Test
+  public void testPresence() throws Throwable {
+    final Component ev = event(meeting);
+
+    assertTrue(FilterEvaluator.matches(
+            new PresenceFilter(null, pi("SUMMARY"), true), ev));
+    assertFalse(FilterEvaluator.matches(
+            new PresenceFilter(null, pi("LOCATION"), true), ev));
+    assertTrue(FilterEvaluator.matches(
+            new PresenceFilter(null, pi("LOCATION"), false), ev));
+    assertTrue(FilterEvaluator.matches(
+            new PresenceFilter(null, pi("VALARM"), true), ev));
+  }
+
+  @Test
+  public void testBoolean() throws Throwable {
+    final Component ev = event(meeting);
+
+    final FilterBase yes = text("SUMMARY", "meeting", true, false);
+    final FilterBase no = text("SUMMARY", "lunch", true, false);
+
+    final AndFilter and = new AndFilter();
+    and.addChild(yes);
+    and.addChild(no);
+    assertFalse(FilterEvaluator.matches(and, ev));
+
+    final OrFilter or = new OrFilter();
+    or.addChild(no);
+    or.addChild(yes);
+    assertTrue(FilterEvaluator.matches(or, ev));
+
+    final NotFilter not = new NotFilter();
+    not.addChild(no);
+    assertTrue(FilterEvaluator.matches(not, ev));
+
+    /* A negated term is compiled to its inverse */
+    final FilterBase notYes = new PresenceFilter(null, pi("SUMMARY"), true);
+    notYes.setNot(true);
+    assertFalse(FilterEvaluator.matches(notYes, ev));
+  }
+
+  @Test
+  public void testEntityTimeRange() throws Throwable {
+    final Component ev = event(meeting);
+
+    assertTrue(FilterEvaluator.matches(
+            range("20140101T103000Z", "20140101T120000Z"), ev));
+    assertFalse(FilterEvaluator.matches(
+            range("20140101T110000Z", "20140101T120000Z"), ev));
+    assertFalse(FilterEvaluator.matches(
+            range("20140101T080000Z", "20140101T100000Z"), ev));
+    assertTrue(FilterEvaluator.matches(
+            range("20140101T080000Z", null), ev));
+  }
+
+  @Test
+  public void testRecurringTimeRange() throws Throwable {
+    final Component ev = event(daily);
+
+    /* Third instance */
+    assertTrue(FilterEvaluator.matches(
+            range("20140103T091500Z", "20140103T100000Z"), ev));
+
+    /* Between instances */
+    assertFalse(FilterEvaluator.matches(
+            range("20140103T100000Z", "20140104T080000Z"), ev));
+
+    /* After the last instance */
+    assertFalse(FilterEvaluator.matches(
+            range("20140106T000000Z", "20140107T000000Z"), ev));
+  }
+
+  @Test
+  public void testFloatingInRangeTimezone() throws Throwable {
+    final Component ev = event(floating);
+
+    /* 10:00 in New York is 15:00Z */
+    assertTrue(FilterEvaluator.matches(
+            range("20140101T143000Z", "20140101T153000Z",
+                  "America/New_York"), ev));
+    assertFalse(FilterEvaluator.matches(
+            range("20140101T093000Z", "20140101T103000Z",
+                  "America/New_York"), ev));
+  }
+
+  @Test
+  public void testFloatingWithoutTimezone() throws Throwable {
+    final Component ev = event(floating);
+
+    /* Could be in range in some zone */
+    assertTrue(FilterEvaluator.matches(
+            range("20140101T143000Z", "20140101T153000Z"), ev));
+    assertFalse(FilterEvaluator.matches(
+            range("20140103T000000Z", "20140104T000000Z"), ev));
+  }
+
+  @Test
+  public void testOverrides() throws Throwable {
+    final Calendar cal = calendar(overridden);
+    final FilterEvaluator.ComponentMatcher moved =
+            FilterEvaluator.compile(range("20140103T150000Z",
+                                          "20140103T153000Z"));
+    final FilterEvaluator.ComponentMatcher original =
+            FilterEvaluator.compile(range("20140103T090000Z",
+                                          "20140103T093000Z"));
+    final FilterEvaluator.ComponentMatcher other =
+            FilterEvaluator.compile(range("20140104T090000Z",
+                                          "20140104T093000Z"));
+
+    assertTrue(FilterEvaluator.matches(moved, cal.getComponents()));
+    assertFalse(FilterEvaluator.matches(original, cal.getComponents()));
+    assertTrue(FilterEvaluator.matches(other, cal.getComponents()));
+
+    /* Any component may satisfy a text match */
+    assertTrue(FilterEvaluator.matches(
+            FilterEvaluator.compile(text("SUMMARY", "late", true, false)),
+            cal.getComponents()));
+  }
+
+  @Test
+  public void testAlarmTimeRange() throws Throwable {
+    final Component ev = event(meeting);
+
+    /* The alarm goes off at 09:45 */
+    assertTrue(FilterEvaluator.matches(
+            alarmRange("20140101T094000Z", "20140101T095000Z"), ev));
+    assertFalse(FilterEvaluator.matches(
+            alarmRange("20140101T095000Z", "20140101T110000Z"), ev));
+  }
+
+  @Test
+  public void testCompiledReuse() throws Throwable {
+    final FilterEvaluator.ComponentMatcher m =
+            FilterEvaluator.compile(text("SUMMARY", "standup", true, false));
+
+    assertTrue(m.matches(event(daily)));
+    assertFalse(m.matches(event(meeting)));
+  }
+
+  /* ====================================================================
+   *                   Private methods
+   * ==================================================================== */
+
+  private static Calendar calendar(final String ical) throws Throwable {
+    return new CalendarBuilder().build(new StringReader(ical));
+  }
+
+  private static Component event(final String ical) throws Throwable {
+    return calendar(ical).getComponents().getComponent(Component.VEVENT);
+  }
+
+  private static PropertyInfoIndex pi(final String name) {
+    return PropertyInfoIndex.fromName(name);
+  }
+
+  private static FilterBase text(final String pname,
+                                 final String val,
+                                 final boolean caseless,
+                                 final boolean not) {
+    final ObjectFilter<String> f = new ObjectFilter<String>(null, pi(pname));
+
+    f.setEntity(val);
+    f.setExact(false);
+    f.setCaseless(caseless);
+    f.setNot(not);
+
+    return f;
+  }
+
+  private static TimeRange timeRange(final String start,
+                                     final String end) throws Throwable {
+    return new TimeRange(dateTime(start), dateTime(end));
+  }
+
+  private static FilterBase range(final String start,
+                                  final String end) throws Throwable {
+    return range(start, end, null);
+  }
+
+  private static FilterBase range(final String start,
+                                  final String end,
+                                  final String tzid) throws Throwable {
+    final TimeRange tr = timeRange(start, end);
+
+    tr.setTzid(tzid);
+
+    return new EntityTimeRangeFilter(null, tr);
+  }
+
+  private static FilterBase alarmRange(final String start,
+                                       final String end) throws Throwable {
+    return ObjectFilter.makeFilter(null, pi("VALARM"),
+                                   timeRange(start, end));
+  }
+
+  private static DateTime dateTime(final String val) throws Throwable {
+    if (val == null) {
+      return null;
+    }
+
+    return new DateTime(val);
+  }
+}
@@ -0,0 +1,125 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.caldav.util.filter;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/** Tests for the compiled text-match.
+ */
+public class TextMatcherTest {
+  @Test
+  public void testNullNeverMatches() {
+    assertFalse(new TextMatcher("a", null, false, false).matches(null));
+    assertFalse(new TextMatcher("a", null, false, true).matches(null));
+  }
+
+  @Test
+  public void testShortSubstring() {
+    final TextMatcher tm = new TextMatcher("ab", null, false, false);
+
+    assertTrue(tm.matches("ab"));
+    assertTrue(tm.matches("xxAByy"));
+    assertTrue(tm.matches("xxab"));
+    assertFalse(tm.matches("a"));
+    assertFalse(tm.matches("axb"));
+  }
+
+  @Test
+  public void testHorspoolSubstring() {
+    final TextMatcher tm = new TextMatcher("meeting", null, false, false);
+
+    assertTrue(tm.matches("Meeting"));
+    assertTrue(tm.matches("Weekly MEETING with team"));
+    assertTrue(tm.matches("meetmeeting"));
+    assertTrue(tm.matches("xxxxxxxxmeeting"));
+    assertFalse(tm.matches("meetin"));
+    assertFalse(tm.matches("meet ing"));
+    assertFalse(tm.matches(""));
+  }
+
+  @Test
+  public void testRepeatedCharacters() {
+    final TextMatcher tm = new TextMatcher("aaab", null, false, false);
+
+    assertTrue(tm.matches("aaaaaaab"));
+    assertFalse(tm.matches("aaaaaaa"));
+    assertFalse(tm.matches("aabaab"));
+  }
+
+  @Test
+  public void testOctetIsCaseSensitive() {
+    final TextMatcher tm = new TextMatcher("Meeting",
+                                           TextMatcher.collationOctet,
+                                           false, false);
+
+    assertTrue(tm.matches("A Meeting"));
+    assertFalse(tm.matches("a meeting"));
+  }
+
+  @Test
+  public void testAsciiCasemapOnlyFoldsAscii() {
+    final TextMatcher tm = new TextMatcher("caf\u00e9",
+                                           TextMatcher.collationAsciiCasemap,
+                                           false, false);
+
+    assertTrue(tm.matches("CAF\u00e9"));
+    assertFalse(tm.matches("CAF\u00c9"));
+  }
+
+  @Test
+  public void testUnicodeCasemap() {
+    final TextMatcher tm = new TextMatcher("caf\u00e9",
+                                           TextMatcher.collationUnicodeCasemap,
+                                           false, false);
+
+    assertTrue(tm.matches("CAF\u00c9"));
+    assertTrue(tm.matches("le caf\u00e9"));
+  }
+
+  @Test
+  public void testExact() {
+    final TextMatcher tm = new TextMatcher("busy", null, true, false);
+
+    assertTrue(tm.matches("BUSY"));
+    assertFalse(tm.matches("busy "));
+    assertFalse(tm.matches("not busy"));
+  }
+
+  @Test
+  public void testNegate() {
+    final TextMatcher tm = new TextMatcher("meeting", null, false, true);
+
+    assertFalse(tm.matches("Team meeting"));
+    assertTrue(tm.matches("Lunch"));
+  }
+
+  @Test
+  public void testLowByteCollisions() {
+    /* U+0161 and 'a' share a low byte */
+    final TextMatcher tm = new TextMatcher("\u0161bcd",
+                                           TextMatcher.collationOctet,
+                                           false, false);
+
+    assertTrue(tm.matches("xa\u0161bcd"));
+    assertFalse(tm.matches("xaabcd"));
+  }
+}
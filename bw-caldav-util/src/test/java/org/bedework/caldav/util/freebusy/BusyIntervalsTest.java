@@ -0,0 +1,223 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.caldav.util.freebusy;
+
+import org.junit.Test;
+
+import java.time.Instant;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/** Tests for the date math, parsing and sorting of busy intervals.
+ */
+public class BusyIntervalsTest {
+  @Test
+  public void testParseUtc() {
+    checkUtc("19700101T000000Z", "1970-01-01T00:00:00Z");
+    checkUtc("20140102T030405Z", "2014-01-02T03:04:05Z");
+    checkUtc("20000229T235959Z", "2000-02-29T23:59:59Z");
+    checkUtc("21000301T120000Z", "2100-03-01T12:00:00Z");
+    checkUtc("19691231T235959Z", "1969-12-31T23:59:59Z");
+    checkUtc("16010101T000000Z", "1601-01-01T00:00:00Z");
+  }
+
+  @Test
+  public void testAppendUtcRoundTrips() {
+    final Random r = new Random(42);
+
+    for (int i = 0; i < 1000; i++) {
+      /* Whole seconds between 1900 and 2200 */
+      final long millis = (Math.floorMod(r.nextLong(),
+                                         300L * 365 * 24 * 3600) -
+              70L * 365 * 24 * 3600) * 1000;
+
+      final StringBuilder sb = new StringBuilder();
+      BusyIntervals.appendUtc(sb, millis);
+
+      assertEquals(sb.toString(), millis,
+                   BusyIntervals.parseUtc(sb.toString(), 0, sb.length()));
+    }
+  }
+
+  @Test
+  public void testAppendUtc() {
+    final StringBuilder sb = new StringBuilder();
+
+    BusyIntervals.appendUtc(sb, Instant.parse("2014-01-02T03:04:05Z")
+                                       .toEpochMilli());
+    assertEquals("20140102T030405Z", sb.toString());
+
+    sb.setLength(0);
+    BusyIntervals.appendUtc(sb, -1000);
+    assertEquals("19691231T235959Z", sb.toString());
+  }
+
+  @Test
+  public void testBadUtc() {
+    badUtc("20140102T030405");
+    badUtc("20140102 030405Z");
+    badUtc("2014010xT030405Z");
+  }
+
+  @Test
+  public void testParseDuration() {
+    assertEquals(5400000, duration("PT1H30M"));
+    assertEquals(7L * 24 * 3600 * 1000, duration("P1W"));
+    assertEquals((26L * 3600 + 5) * 1000, duration("P1DT2H5S"));
+    assertEquals(60000, duration("+PT1M"));
+
+    badDuration("P1H");
+    badDuration("PT1D");
+    badDuration("T1H");
+    badDuration("-PT1H");
+  }
+
+  @Test
+  public void testFbtype() {
+    assertEquals(BusyIntervals.fbtypeBusy, BusyIntervals.fbtype(null));
+    assertEquals(BusyIntervals.fbtypeBusyTentative,
+                 BusyIntervals.fbtype("busy-tentative"));
+    assertEquals(BusyIntervals.fbtypeBusyUnavailable,
+                 BusyIntervals.fbtype("BUSY-UNAVAILABLE"));
+    assertEquals(BusyIntervals.fbtypeBusy, BusyIntervals.fbtype("X-OTHER"));
+  }
+
+  @Test
+  public void testAddIgnoresEmptyAndFree() {
+    final BusyIntervals bi = new BusyIntervals(1);
+
+    bi.add(10, 10, BusyIntervals.fbtypeBusy);
+    bi.add(10, 5, BusyIntervals.fbtypeBusy);
+    bi.add(10, 20, BusyIntervals.fbtypeFree);
+    assertEquals(0, bi.size());
+
+    bi.add(10, 20, BusyIntervals.fbtypeBusy);
+    bi.add(30, 40, BusyIntervals.fbtypeBusyTentative);
+    assertEquals(2, bi.size());
+    assertEquals(BusyIntervals.fbtypeBusyTentative, bi.getFbtype(1));
+  }
+
+  @Test
+  public void testAddFreeBusy() {
+    final BusyIntervals bi = new BusyIntervals();
+
+    bi.addFreeBusy("BUSY-TENTATIVE",
+                   "20140101T100000Z/20140101T110000Z," +
+                   "20140101T120000Z/PT30M");
+
+    assertEquals(2, bi.size());
+    assertEquals(millis("2014-01-01T10:00:00Z"), bi.getStart(0));
+    assertEquals(millis("2014-01-01T11:00:00Z"), bi.getEnd(0));
+    assertEquals(millis("2014-01-01T12:00:00Z"), bi.getStart(1));
+    assertEquals(millis("2014-01-01T12:30:00Z"), bi.getEnd(1));
+    assertEquals(BusyIntervals.fbtypeBusyTentative, bi.getFbtype(1));
+
+    try {
+      bi.addFreeBusy(null, "20140101T100000Z");
+      fail("Expected IllegalArgumentException");
+    } catch (final IllegalArgumentException iae) {
+      // expected
+    }
+  }
+
+  @Test
+  public void testWriteFreeBusy() throws Throwable {
+    final BusyIntervals bi = new BusyIntervals();
+
+    bi.add(millis("2014-01-01T10:00:00Z"), millis("2014-01-01T11:00:00Z"),
+           BusyIntervals.fbtypeBusy);
+    bi.add(millis("2014-01-01T12:00:00Z"), millis("2014-01-01T12:30:00Z"),
+           BusyIntervals.fbtypeBusyUnavailable);
+
+    final StringBuilder sb = new StringBuilder();
+    bi.writeFreeBusy(sb);
+
+    assertEquals("FREEBUSY:20140101T100000Z/20140101T110000Z\r\n" +
+                 "FREEBUSY;FBTYPE=BUSY-UNAVAILABLE:" +
+                 "20140101T120000Z/20140101T123000Z\r\n",
+                 sb.toString());
+  }
+
+  @Test
+  public void testSort() {
+    final Random r = new Random(7);
+    final BusyIntervals bi = new BusyIntervals();
+
+    for (int i = 0; i < 500; i++) {
+      final long start = r.nextInt(100000);
+
+      /* Length and type derived from start so we can check they moved
+         with it */
+      bi.add(start, start + 1 + (start % 97), 1 + (int)(start % 3));
+    }
+
+    bi.sort();
+
+    assertEquals(500, bi.size());
+
+    for (int i = 0; i < bi.size(); i++) {
+      final long start = bi.getStart(i);
+
+      if (i > 0) {
+        assertTrue(bi.getStart(i - 1) <= start);
+      }
+
+      assertEquals(start + 1 + (start % 97), bi.getEnd(i));
+      assertEquals(1 + (int)(start % 3), bi.getFbtype(i));
+    }
+  }
+
+  /* ====================================================================
+   *                   Private methods
+   * ==================================================================== */
+
+  private static long millis(final String iso) {
+    return Instant.parse(iso).toEpochMilli();
+  }
+
+  private static void checkUtc(final String val, final String iso) {
+    assertEquals(val, millis(iso),
+                 BusyIntervals.parseUtc(val, 0, val.length()));
+  }
+
+  private static long duration(final String val) {
+    return BusyIntervals.parseDuration(val, 0, val.length());
+  }
+
+  private static void badUtc(final String val) {
+    try {
+      BusyIntervals.parseUtc(val, 0, val.length());
+      fail("Expected IllegalArgumentException for " + val);
+    } catch (final IllegalArgumentException iae) {
+      // expected
+    }
+  }
+
+  private static void badDuration(final String val) {
+    try {
+      duration(val);
+      fail("Expected IllegalArgumentException for " + val);
+    } catch (final IllegalArgumentException iae) {
+      // expected
+    }
+  }
+}
@@ -0,0 +1,194 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.caldav.util.freebusy;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+/** Tests for merging busy time from many sources.
+ */
+public class FreeBusyAggregatorTest {
+  private static final int busy = BusyIntervals.fbtypeBusy;
+  private static final int tentative = BusyIntervals.fbtypeBusyTentative;
+  private static final int unavailable = BusyIntervals.fbtypeBusyUnavailable;
+
+  @Test
+  public void testNoSources() {
+    final FreeBusyAggregator fba = new FreeBusyAggregator(0, 100);
+
+    fba.add(null);
+    fba.add(new BusyIntervals());
+
+    assertEquals(0, fba.aggregate().size());
+  }
+
+  @Test
+  public void testClipped() {
+    final FreeBusyAggregator fba = new FreeBusyAggregator(10, 50);
+
+    fba.add(source(0, 20, busy,
+                   30, 40, busy,
+                   45, 80, busy,
+                   90, 100, busy));
+
+    check(fba.aggregate(),
+          10, 20, busy,
+          30, 40, busy,
+          45, 50, busy);
+  }
+
+  @Test
+  public void testOverlapAndAdjacentJoined() {
+    final FreeBusyAggregator fba = new FreeBusyAggregator(0, 100);
+
+    fba.add(source(30, 40, busy,
+                   10, 20, busy));
+    fba.add(source(15, 30, busy,
+                   60, 70, busy));
+    fba.add(source(65, 80, busy));
+
+    check(fba.aggregate(),
+          10, 40, busy,
+          60, 80, busy);
+  }
+
+  @Test
+  public void testTypePrecedence() {
+    final FreeBusyAggregator fba = new FreeBusyAggregator(0, 100);
+
+    fba.add(source(0, 100, tentative));
+    fba.add(source(20, 80, unavailable));
+    fba.add(source(40, 60, busy));
+
+    check(fba.aggregate(),
+          0, 20, tentative,
+          20, 40, unavailable,
+          40, 60, busy,
+          60, 80, unavailable,
+          80, 100, tentative);
+  }
+
+  @Test
+  public void testLowerTypeResumes() {
+    final FreeBusyAggregator fba = new FreeBusyAggregator(0, 100);
+
+    /* The tentative run outlasts a busy one which started later */
+    fba.add(source(10, 50, busy,
+                   5, 90, tentative));
+
+    check(fba.aggregate(),
+          5, 10, tentative,
+          10, 50, busy,
+          50, 90, tentative);
+  }
+
+  /** Compare against painting each unit of time with the most
+   * significant type covering it.
+   */
+  @Test
+  public void testAgainstTimeline() {
+    final Random r = new Random(1234);
+
+    for (int run = 0; run < 200; run++) {
+      final int rangeStart = r.nextInt(50);
+      final int rangeEnd = 150 + r.nextInt(100);
+      final int[] timeline = new int[300];
+
+      final FreeBusyAggregator fba =
+              new FreeBusyAggregator(rangeStart, rangeEnd);
+      final int sources = 1 + r.nextInt(6);
+
+      for (int s = 0; s < sources; s++) {
+        final BusyIntervals bi = new BusyIntervals(2);
+        final int n = r.nextInt(20);
+
+        for (int i = 0; i < n; i++) {
+          final int start = r.nextInt(280);
+          final int end = start + 1 + r.nextInt(20);
+          final int type = 1 + r.nextInt(BusyIntervals.numFbtypes - 1);
+
+          bi.add(start, end, type);
+
+          for (int t = Math.max(start, rangeStart);
+               t < Math.min(end, rangeEnd); t++) {
+            timeline[t] = Math.max(timeline[t], type);
+          }
+        }
+
+        fba.add(bi);
+      }
+
+      final BusyIntervals expected = new BusyIntervals();
+
+      for (int t = rangeStart; t < rangeEnd; t++) {
+        if (timeline[t] == BusyIntervals.fbtypeFree) {
+          continue;
+        }
+
+        final int last = expected.size() - 1;
+
+        if ((last >= 0) && (expected.getEnd(last) == t) &&
+            (expected.getFbtype(last) == timeline[t])) {
+          expected.extendLast(t + 1);
+        } else {
+          expected.add(t, t + 1, timeline[t]);
+        }
+      }
+
+      final BusyIntervals res = fba.aggregate();
+
+      assertEquals("run " + run, expected.size(), res.size());
+
+      for (int i = 0; i < res.size(); i++) {
+        assertEquals("run " + run, expected.getStart(i), res.getStart(i));
+        assertEquals("run " + run, expected.getEnd(i), res.getEnd(i));
+        assertEquals("run " + run, expected.getFbtype(i), res.getFbtype(i));
+      }
+    }
+  }
+
+  /* ====================================================================
+   *                   Private methods
+   * ==================================================================== */
+
+  /* start, end, type triples */
+  private static BusyIntervals source(final long... vals) {
+    final BusyIntervals bi = new BusyIntervals();
+
+    for (int i = 0; i < vals.length; i += 3) {
+      bi.add(vals[i], vals[i + 1], (int)vals[i + 2]);
+    }
+
+    return bi;
+  }
+
+  private static void check(final BusyIntervals res,
+                            final long... vals) {
+    assertEquals(vals.length / 3, res.size());
+
+    for (int i = 0; i < res.size(); i++) {
+      assertEquals(vals[i * 3], res.getStart(i));
+      assertEquals(vals[i * 3 + 1], res.getEnd(i));
+      assertEquals(vals[i * 3 + 2], res.getFbtype(i));
+    }
+  }
+}